@@ -9,11 +9,41 @@ repositories {
     mavenCentral()
 }
 
+// JMH benchmarks live in their own source set (src/jmh) on top of main,
+// run them with `gradle jmh` (optionally -Pjmh.include=<regex>).
+val jmh: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
 dependencies {
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
 }
 
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+    // Tests compare error messages with those of step(), which HotSpot drops
+    // from implicit exceptions once a method is hot
+    jvmArgs("-XX:-OmitStackTraceInFastThrow")
+}
+
+tasks.register<JavaExec>("jmh") {
+    description = "Runs the JMH benchmarks in src/jmh."
+    group = "verification"
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    val results = layout.buildDirectory.file("reports/jmh/results.json")
+    outputs.upToDateWhen { false }
+    doFirst {
+        results.get().asFile.parentFile.mkdirs()
+    }
+    args(listOfNotNull(
+        providers.gradleProperty("jmh.include").orNull,
+        "-rf", "json",
+        "-rff", results.get().asFile.path
+    ))
+}
@@ -0,0 +1,102 @@
+package tum.i2.cma;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Allocation throughput and collector cost of NEW/FREE programs.
+// JMH reports the "allocations" counter as objects allocated per second, and
+// "collections" and "pauseNanos" per second as well, so pauseNanos / 1e9 is
+// the share of time spent collecting and pauseNanos / collections the
+// average pause.
+//
+//   garbage    objects are dropped and left to the collector
+//   freed      every object is freed right away, so bump allocation reuses its cells
+//   fragmented every other object is freed, later ones come from the free list
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AllocationBenchmark {
+    static final int OBJECTS = 10000;
+
+    @Param({ "garbage", "freed", "fragmented" })
+    public String pattern;
+
+    @Param({ "4", "32" })
+    public int objectSize;
+
+    @Param({ "4096", "65536" })
+    public int heapCells;
+
+    CMaCodeImage image;
+    CMa machine;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long allocations;
+        public long collections;
+        public long pauseNanos;
+    }
+
+    // Slot 0 counts down, slot 1 holds the previous object for the fragmented pattern
+    static String program(String pattern, int objectSize) {
+        String body = switch (pattern) {
+            case "freed" -> "LOADC %2$d\nNEW\nFREE\n";
+            case "fragmented" -> "LOADA 1\nLOADC %2$d\nNEW\nSTOREA 1\nPOP\nLOADC %2$d\nNEW\nPOP\nFREE\n";
+            default -> "LOADC %2$d\nNEW\nPOP\n";
+        };
+        return String.format("""
+                ALLOC 2
+                LOADC 1
+                NEW
+                STOREA 1
+                POP
+                LOADC %1$d
+                STOREA 0
+                POP
+                L: LOADA 0
+                JUMPZ E
+                """ + body + """
+                LOADA 0
+                LOADC 1
+                SUB
+                STOREA 0
+                POP
+                JUMP L
+                E: ALLOC 0
+                """, OBJECTS, objectSize);
+    }
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        image = CMaFusion.fuse(CMaCodeImage.decode(new CmaParser().parse(program(pattern, objectSize))));
+        machine = new CMa(image, CMa.MEMMAX, new CMaPagedMemory(heapCells));
+    }
+
+    @Benchmark
+    public int run(Counters counters) {
+        machine.reset();
+        machine.run();
+        CMaAllocator.Stats stats = machine.getAllocator().getStats();
+        counters.allocations += stats.allocations();
+        counters.collections += stats.collections();
+        counters.pauseNanos += stats.pauseNanos();
+        return machine.getSP();
+    }
+}
@@ -0,0 +1,84 @@
+package tum.i2.cma;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Benchmark workloads: the hand-written programs in src/jmh/resources/corpus
+// plus generated programs of arbitrary length.
+final class CMaCorpus {
+    // Hand-written programs, see src/jmh/resources/corpus
+    static final String NESTED_LOOPS = "nested_loops";
+    static final String SWITCH_TABLE = "switch_table";
+    static final String GCD_SUM = "gcd_sum";
+    static final String SIEVE = "sieve";
+    static final String FIB = "fib";
+    static final String ACKERMANN = "ackermann";
+
+    private CMaCorpus() {}
+
+    // name is either one of the programs above or "generated<lines>", e.g. generated100000
+    static String source(String name) {
+        if (name.startsWith("generated")) {
+            return generate(Integer.parseInt(name.substring("generated".length())));
+        }
+        try (InputStream in = CMaCorpus.class.getResourceAsStream("/corpus/" + name + ".cma")) {
+            if (in == null) {
+                throw new IllegalArgumentException("Unknown corpus program " + name);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Writes the program to a temporary file, for benchmarks going through Helpers
+    static Path file(String name) throws IOException {
+        Path file = Files.createTempFile("cma-" + name, ".cma");
+        file.toFile().deleteOnExit();
+        Files.writeString(file, source(name));
+        return file;
+    }
+
+    // A long straight-line program shaped like generated code: a loop whose body
+    // is a sequence of small expression statements over a handful of variables,
+    // with labels, comments and a forward conditional jump every few statements.
+    static String generate(int lines) {
+        StringBuilder program = new StringBuilder(lines * 12);
+        program.append("ALLOC 8 // Variables\n");
+        program.append("LOADC 3\nSTOREA 0\nPOP\n");
+        program.append("START: LOADA 0\nJUMPZ END\n");
+        int written = 7;
+        int block = 0;
+        while (written + 12 < lines) {
+            int variable = 1 + block % 7;
+            program.append("B").append(block).append(": LOADA ").append(variable).append('\n');
+            program.append("LOADC ").append(block % 97 + 1).append(" // Update variable ").append(variable).append('\n');
+            program.append("ADD\n");
+            program.append("LOADA ").append(1 + (block + 3) % 7).append('\n');
+            program.append("LOADC 31\nMOD\nSUB\n");
+            program.append("STOREA ").append(variable).append("\nPOP\n");
+            program.append("LOADA ").append(variable).append("\nLOADC 0\nGEQ\n");
+            program.append("JUMPZ B").append(block + 1).append('\n');
+            written += 13;
+            block++;
+        }
+        program.append("B").append(block).append(": LOADA 0\nLOADC 1\nSUB\nSTOREA 0\nPOP\nJUMP START\n");
+        program.append("END: LOADA 1\n");
+        return program.toString();
+    }
+
+    // Number of instructions a run of the program executes
+    static long countExecutedInstructions(CMaInstruction[] instructions) {
+        CMa machine = new CMa(instructions);
+        long count = 0;
+        while (machine.ip < instructions.length) {
+            machine.step();
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,134 @@
+package tum.i2.cma;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Steady-state execution speed of whole program runs.
+// Besides runs per second, JMH reports the "instructions" counter as
+// executed CMa instructions per second. JMH runs every combination of the
+// @Param values, so programs are grouped by the engines that run them
+// themselves instead of handing them to the interpreter: fib and ackermann
+// call functions, which only the interpreter and the block machine execute,
+// and the register machine needs switch_table to verify.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class ExecutionBenchmark {
+    public static class Loops extends ExecutionBenchmark {
+        @Param({ CMaCorpus.NESTED_LOOPS, CMaCorpus.GCD_SUM, CMaCorpus.SIEVE, "generated100000" })
+        public String program;
+
+        @Param({ "interpreter", "block", "register", "jit", "tiered" })
+        public String engine;
+
+        @Override
+        String program() {
+            return program;
+        }
+
+        @Override
+        String engine() {
+            return engine;
+        }
+    }
+
+    public static class Unverified extends ExecutionBenchmark {
+        @Param({ CMaCorpus.SWITCH_TABLE })
+        public String program;
+
+        @Param({ "interpreter", "block", "jit", "tiered" })
+        public String engine;
+
+        @Override
+        String program() {
+            return program;
+        }
+
+        @Override
+        String engine() {
+            return engine;
+        }
+    }
+
+    public static class Calls extends ExecutionBenchmark {
+        @Param({ CMaCorpus.FIB, CMaCorpus.ACKERMANN })
+        public String program;
+
+        @Param({ "interpreter", "block" })
+        public String engine;
+
+        @Override
+        String program() {
+            return program;
+        }
+
+        @Override
+        String engine() {
+            return engine;
+        }
+    }
+
+    CMaCodeImage image;
+    CMaCompiledCode compiled;
+    CMaRegisterCode registerCode;
+    long executedInstructions;
+    CMa machine;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long instructions;
+    }
+
+    abstract String program();
+
+    abstract String engine();
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        CmaParser parser = new CmaParser();
+        CMaInstruction[] instructions = parser.parse(CMaCorpus.source(program()));
+        image = CMaFusion.fuse(instructions, parser.getLabels().values());
+        executedInstructions = CMaCorpus.countExecutedInstructions(instructions);
+        if (engine().equals("jit")) {
+            compiled = CMaJitCompiler.compile(image);
+        } else if (engine().equals("register")) {
+            registerCode = CMaRegisterTranslator.translate(image);
+        }
+    }
+
+    // Every run starts on a fresh machine, compiled and translated code is shared
+    @Setup(Level.Invocation)
+    public void createMachine() {
+        machine = switch (engine()) {
+            case "jit" -> new CMaJit(image, compiled);
+            case "register" -> new CMaRegisterMachine(image, registerCode);
+            case "block" -> new CMaBlockMachine(image);
+            case "tiered" -> new CMaTiered(image);
+            default -> new CMa(image);
+        };
+    }
+
+    @Benchmark
+    public int run(Counters counters) {
+        machine.run();
+        counters.instructions += executedInstructions;
+        return machine.getSP();
+    }
+}
@@ -0,0 +1,131 @@
+package tum.i2.cma;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One program over many inputs: CMaLockstep against one CMa per input.
+// JMH reports the "lanes" counter as inputs evaluated per second.
+//
+//   polynomial  straight-line arithmetic, the lanes never diverge
+//   collatz     a loop whose trip count and branches depend on the input
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LockstepBenchmark {
+    static final String POLYNOMIAL = """
+            LOADA 0
+            LOADA 0
+            MUL
+            LOADC 3
+            MUL
+            LOADA 0
+            LOADC 7
+            MUL
+            SUB
+            LOADC 11
+            ADD
+            LOADA 0
+            LOADC 5
+            MOD
+            ADD
+            """;
+
+    // Collatz steps from slot 0 down to 1
+    static final String COLLATZ = """
+            LOADC 0
+            L: LOADA 0
+            LOADC 1
+            EQ
+            NOT
+            JUMPZ E
+            LOADA 0
+            LOADC 2
+            MOD
+            JUMPZ EVEN
+            LOADA 0
+            LOADC 3
+            MUL
+            LOADC 1
+            ADD
+            JUMP NEXT
+            EVEN: LOADA 0
+            LOADC 2
+            DIV
+            NEXT: STOREA 0
+            POP
+            LOADA 1
+            LOADC 1
+            ADD
+            STOREA 1
+            POP
+            JUMP L
+            E: LOADA 1
+            """;
+
+    @Param({ "polynomial", "collatz" })
+    public String program;
+
+    @Param({ "lockstep", "machines" })
+    public String engine;
+
+    @Param({ "10000" })
+    public int lanes;
+
+    CMaCodeImage image;
+    int[] inputs;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long lanes;
+    }
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        image = CMaFusion.fuse(new CmaStreamingParser().parse(program.equals("collatz") ? COLLATZ : POLYNOMIAL));
+        inputs = new int[lanes];
+        for (int lane = 0; lane < lanes; lane++) {
+            inputs[lane] = lane + 1;
+        }
+    }
+
+    @Benchmark
+    public long run(Counters counters) {
+        long sum = 0;
+        if (engine.equals("lockstep")) {
+            CMaLockstep lockstep = new CMaLockstep(image, lanes, inputs);
+            lockstep.run();
+            for (int lane = 0; lane < lanes; lane++) {
+                int[] stack = lockstep.getStack(lane);
+                sum += stack[stack.length - 1];
+            }
+        } else {
+            for (int lane = 0; lane < lanes; lane++) {
+                CMa machine = new CMa(image);
+                machine.ensureStackCapacity(1)[0] = inputs[lane];
+                machine.sp = 0;
+                machine.stackTop = 0;
+                machine.run();
+                sum += machine.getStack()[machine.getSP()];
+            }
+        }
+        counters.lanes += lanes;
+        return sum;
+    }
+}
@@ -0,0 +1,44 @@
+package tum.i2.cma;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Time for CmaParser.parse() and CmaStreamingParser.parse() on programs already in memory
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({ CMaCorpus.NESTED_LOOPS, CMaCorpus.SIEVE, "generated100000", "generated1000000" })
+    public String program;
+
+    String source;
+
+    @Setup
+    public void setup() {
+        source = CMaCorpus.source(program);
+    }
+
+    @Benchmark
+    public CMaInstruction[] parse() {
+        return new CmaParser().parse(source);
+    }
+
+    @Benchmark
+    public CMaCodeImage parseStreaming() {
+        return new CmaStreamingParser().parse(source);
+    }
+}
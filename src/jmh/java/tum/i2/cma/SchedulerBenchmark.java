@@ -0,0 +1,76 @@
+package tum.i2.cma;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Time to run a few thousand time-sliced corpus programs to their end.
+// Comparing the carrier counts shows how the scheduler scales with cores.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SchedulerBenchmark {
+    @Param({ "1", "2", "4", "8" })
+    public int carriers;
+
+    @Param({ "2000" })
+    public int machines;
+
+    CMaCodeImage[] images;
+    CMaScheduler scheduler;
+    List<CMa> batch;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String[] programs = { CMaCorpus.GCD_SUM, CMaCorpus.SWITCH_TABLE, CMaCorpus.SIEVE };
+        images = new CMaCodeImage[programs.length];
+        for (int i = 0; i < programs.length; i++) {
+            images[i] = CMaFusion.fuse(CMaCodeImage.decode(new CmaParser().parse(CMaCorpus.source(programs[i]))));
+        }
+        scheduler = new CMaScheduler(carriers, CMaScheduler.DEFAULT_SLICE);
+    }
+
+    @Setup(Level.Invocation)
+    public void machines() {
+        batch = new ArrayList<>(machines);
+        for (int i = 0; i < machines; i++) {
+            batch.add(new CMa(images[i % images.length]));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        scheduler.close();
+    }
+
+    @Benchmark
+    public long runAll() {
+        List<CMaScheduler.Task> tasks = new ArrayList<>(machines);
+        for (CMa machine : batch) {
+            tasks.add(scheduler.submit(machine));
+        }
+        long finished = 0;
+        for (CMaScheduler.Task task : tasks) {
+            task.join();
+            finished++;
+        }
+        return finished;
+    }
+}
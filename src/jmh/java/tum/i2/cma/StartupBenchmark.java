@@ -0,0 +1,52 @@
+package tum.i2.cma;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Time from a program file on disk to a machine ready to run.
+// The single-shot mode in fresh forks measures true cold starts, the
+// average-time mode the same path once the JVM is warm.
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StartupBenchmark {
+    @Param({ CMaCorpus.NESTED_LOOPS, "generated100000", "generated1000000" })
+    public String program;
+
+    Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = CMaCorpus.file(program);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(10)
+    public CMa coldStart() throws IOException {
+        return Helpers.fromCMaCodeFile(file.toString());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    @Fork(1)
+    public CMa warmStart() throws IOException {
+        return Helpers.fromCMaCodeFile(file.toString());
+    }
+}
@@ -1,5 +1,11 @@
 package tum.i2.cma;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntUnaryOperator;
+
+import tum.i2.common.ExecutionStatus;
+import tum.i2.common.MachineMetrics;
 import tum.i2.common.VirtualMachine;
 public class CMa implements VirtualMachine {
     int sp = -1; // Stack pointer
@@ -7,22 +13,80 @@ public class CMa implements VirtualMachine {
 
     int ip = 0; // Instruction pointer
 
-    static int MEMMAX = 1 << 16;
-    int[] stack = new int[MEMMAX];
-    int[] heap = new int[MEMMAX];
+    // Frame of the running function: fp points at its return address, with the
+    // caller's fp and ep below it and the arguments below those. ep is the
+    // highest slot the function may use (see ENTER). Both are -1 outside of
+    // functions. Frames are plain stack slots, so calls allocate nothing.
+    int fp = -1;
+    int ep = -1;
+
+    // Highest stack slot used since the last reset, so reset() only clears what was touched
+    int stackTop = -1;
+
+    // Highest hp since the last reset, kept up to date by the allocator
+    int heapTop = -1;
+
+    // Instructions executed since the last reset, added up when a loop stops
+    long retired;
+
+    static int MEMMAX = 1 << 16; // Default limit for stack and heap
+    // Fuel of run(). Forward jumps give fuel back, which leaves room for that.
+    static final long UNLIMITED = Long.MAX_VALUE / 2;
+    static final int INITIAL_STACK_SIZE = 256;
+
+    // The stack array grows on demand up to stackLimit slots,
+    // the heap is a pluggable CMaMemory that allocates lazily.
+    int[] stack;
+    final int stackLimit;
+    final CMaMemory heap;
+    // Owns the heap cells up to hp, see NEW and FREE
+    final CMaAllocator allocator;
     CMaInstruction[] instructions;
+    CMaCodeImage image;
+
+    RuntimeException trap; // Set when run(maxSteps) traps
+    // A verified run was suspended by run(maxSteps), so the state is one the verifier has seen
+    boolean suspendedVerified;
+
+    CMaTrace trace; // null unless tracing, see enableTracing()
+    MachineMetrics metrics; // null unless reporting, see setMetrics()
+
+    // Program to switch to at the next safe point, see reload()
+    private record Reload(CMaCodeImage image, IntUnaryOperator relocate) {
+    }
+
+    private final AtomicReference<Reload> reload = new AtomicReference<>();
 
     // Getters for testing purposes...
     public int getSP() {
         return sp;
     }
 
+    public int getFP() {
+        return fp;
+    }
+
+    // All slots up to sp are present in the returned array
     public int[] getStack() {
+        ensureStackCapacity(sp + 1);
         return stack;
     }
 
+    public int getStackLimit() {
+        return stackLimit;
+    }
+
+    public CMaMemory getHeap() {
+        return heap;
+    }
+
+    public CMaAllocator getAllocator() {
+        return allocator;
+    }
+
     // Method for print-based debugging
     public void printStack() {
+        int[] stack = getStack();
         for (int i = 0; i <= sp; ++i) {
             String formatted = String.format("Addr %s: %s", i, stack[i]);
             System.out.println(formatted);
@@ -30,28 +94,1082 @@ public class CMa implements VirtualMachine {
     }
 
     public CMa(CMaInstruction[] instructions) {
+        this(CMaFusion.fuse(CMaCodeImage.decode(instructions)));
         this.instructions = instructions;
     }
 
+    // Runs an already decoded (and possibly fused) program.
+    // The image is only read, so many machines can share it.
+    public CMa(CMaCodeImage image) {
+        this(image, MEMMAX, new CMaPagedMemory(MEMMAX));
+    }
+
+    // Stack pushes beyond stackLimit slots fail like pushes beyond MEMMAX do by default
+    public CMa(CMaCodeImage image, int stackLimit, CMaMemory heap) {
+        if (stackLimit < 1) {
+            throw new IllegalArgumentException("Stack limit must be positive");
+        }
+        this.image = image;
+        this.stackLimit = stackLimit;
+        this.heap = heap;
+        this.allocator = new CMaAllocator(this);
+        this.stack = new int[Math.min(INITIAL_STACK_SIZE, stackLimit)];
+    }
+
+    // Same state as source, sharing its program and, copy-on-write, its heap pages
+    CMa(CMa source) {
+        this.image = source.image;
+        this.instructions = source.instructions;
+        this.stackLimit = source.stackLimit;
+        this.heap = source.heap.fork();
+        this.allocator = new CMaAllocator(this, source.allocator);
+        // Slots above stackTop are all 0
+        int used = Math.min(source.stackTop + 1, source.stack.length);
+        this.stack = Arrays.copyOf(source.stack, Math.max(used, Math.min(INITIAL_STACK_SIZE, stackLimit)));
+        this.sp = source.sp;
+        this.hp = source.hp;
+        this.ip = source.ip;
+        this.fp = source.fp;
+        this.ep = source.ep;
+        this.stackTop = source.stackTop;
+        this.trap = source.trap;
+        this.suspendedVerified = source.suspendedVerified;
+        this.trace = source.trace == null ? null : source.trace.copy();
+        this.metrics = source.metrics;
+        this.heapTop = source.heapTop;
+        this.retired = source.retired;
+    }
+
+    // An independent machine that continues from the current state, e.g. to try
+    // several inputs after running a common prefix. Only the stack is copied, the
+    // heap pages are shared until one of the machines writes to them.
+    public CMa fork() {
+        return new CMa(this);
+    }
+
+    // Captures the current state, see CMaSnapshot for the format
+    public CMaSnapshot snapshot() {
+        if (trap != null) {
+            throw new IllegalStateException("Cannot snapshot a trapped machine");
+        }
+        return CMaSnapshot.of(this);
+    }
+
+    // Continues from a snapshot of a machine running the same program
+    public void restore(CMaSnapshot snapshot) {
+        snapshot.restore(this);
+    }
+
+    // Brings the machine back to its initial state for another run of the same program,
+    // reusing the memory instead of allocating a new machine
+    public void reset() {
+        Arrays.fill(stack, 0, Math.min(stackTop + 1, stack.length), 0);
+        heap.clear();
+        allocator.reset();
+        sp = -1;
+        hp = -1;
+        ip = 0;
+        fp = -1;
+        ep = -1;
+        stackTop = -1;
+        trap = null;
+        suspendedVerified = false;
+        heapTop = -1;
+        retired = 0;
+        if (trace != null) {
+            trace.clear();
+        }
+    }
+
+    // Bounds errors name the stack limit instead of the size the stack array has
+    // grown to so far, so they do not depend on how much of it is allocated
+    final ArrayIndexOutOfBoundsException stackBoundsError(ArrayIndexOutOfBoundsException e) {
+        return stackBoundsError(e, stack.length, stackLimit);
+    }
+
+    // The same for any stack storage that has allocated slots so far
+    static ArrayIndexOutOfBoundsException stackBoundsError(ArrayIndexOutOfBoundsException e, int allocated,
+            int stackLimit) {
+        String suffix = " out of bounds for length " + allocated;
+        String message = e.getMessage();
+        if (allocated == stackLimit || message == null || !message.endsWith(suffix)) {
+            return e;
+        }
+        ArrayIndexOutOfBoundsException error = new ArrayIndexOutOfBoundsException(
+                message.substring(0, message.length() - suffix.length()) + " out of bounds for length " + stackLimit);
+        error.setStackTrace(e.getStackTrace());
+        return error;
+    }
+
+    // Makes stack slots 0 .. slots - 1 available, as far as the limit allows
+    final int[] ensureStackCapacity(int slots) {
+        if (slots > stack.length && stack.length < stackLimit) {
+            long grown = Math.max(slots, 2L * stack.length);
+            stack = Arrays.copyOf(stack, (int) Math.min(grown, stackLimit));
+        }
+        return stack;
+    }
+
+    // Like reset(), but loads another program
+    public void reset(CMaCodeImage image) {
+        reset();
+        load(image);
+    }
+
+    // Switches to another program, subclasses prepare their code for it here
+    void load(CMaCodeImage image) {
+        this.image = image;
+        this.instructions = null;
+    }
+
+    // Continues with another version of the program, e.g. one edited with
+    // CmaIncrementalParser, keeping the stack, the heap and a trap. relocate maps
+    // the instruction index the machine stopped at to the one it continues at.
+    // The switch happens at the next safe point, the start of the next run(),
+    // run(maxSteps) or step(), so it can be requested from another thread while
+    // the machine runs slices under a CMaScheduler. Reloads requested before
+    // that are applied one after the other.
+    public void reload(CMaCodeImage image, IntUnaryOperator relocate) {
+        reload.updateAndGet(pending -> pending == null
+                ? new Reload(image, relocate)
+                : new Reload(image, pending.relocate().andThen(relocate)));
+    }
+
+    // Safe point for reload(), the machine is not in any of its loops here
+    final void reloadIfRequested() {
+        if (reload.get() == null) {
+            return;
+        }
+        Reload pending = reload.getAndSet(null);
+        int target = pending.relocate().applyAsInt(ip);
+        if (target < 0 || target > pending.image().length) {
+            throw new IllegalArgumentException("Relocated instruction " + target + " is not in the reloaded program");
+        }
+        load(pending.image());
+        ip = target;
+        suspendedVerified = false; // The verifier has not seen this state of the new program
+    }
+
     @Override
     public void step() throws RuntimeException {
-        this.execute(instructions[ip++]);
-        if (sp >= MEMMAX || hp >= MEMMAX) { // After every instruction, check whether the stack and heap pointers are still in a valid state
+        reloadIfRequested();
+        if (instructions == null) { // Single-stepping works on instruction objects
+            instructions = image.toInstructions();
+        }
+        ensureStackCapacity(sp + 2); // No instruction pushes more than one slot
+        retired++;
+        try {
+            this.execute(instructions[ip++]);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw stackBoundsError(e);
+        }
+        stackTop = Math.max(stackTop, Math.min(sp, stack.length - 1));
+        if (sp >= stackLimit) { // After every instruction, check whether the stack pointer is still in a valid state, NEW checks the heap itself
             throw new RuntimeException("Memory overflow!");
         // FIXME: We currently have no HALT instruction, so we are handling it like this.
-        } else if (ip < 0 || ip > instructions.length) {
+        } else if (ip < 0 || ip > image.length) {
             throw new RuntimeException("Illegal instruction memory access!");
         }
     }
 
+    // From now on run() and run(maxSteps) record the last capacity instructions,
+    // and attach them to any error they throw (see CMaTrace). Traced runs execute
+    // one plain instruction at a time, like step(); untraced runs are not affected
+    // beyond a null check per instruction in interpret().
+    public CMaTrace enableTracing(int capacity) {
+        trace = new CMaTrace(capacity);
+        return trace;
+    }
+
+    public void disableTracing() {
+        trace = null;
+    }
+
+    // null unless tracing is enabled
+    public CMaTrace getTrace() {
+        return trace;
+    }
+
+    // From now on every run() and run(maxSteps) reports to metrics when it ends,
+    // null stops reporting. Instruction counts come from the fuel accounting of
+    // the interpreter loops and of CMaBlockMachine. Code compiled by CMaJit and
+    // CMaTiered and the register code of CMaRegisterMachine count nothing, so
+    // those machines interpret while metrics are set, at interpreter speed.
+    @Override
+    public void setMetrics(MachineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public MachineMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Instructions executed since the last reset. Traps count the failing
+    // instruction. CMaJit, CMaTiered and CMaRegisterMachine only count what
+    // they interpret, all of the run while metrics are set, see setMetrics().
+    public long getRetiredInstructions() {
+        return retired;
+    }
+
     @Override
     public int run() {
-        while (ip < instructions.length) {
-            this.step();
+        reloadIfRequested();
+        MachineMetrics metrics = this.metrics;
+        if (metrics == null) {
+            runProgram();
+            return 0; // Successful execution
+        }
+        long start = System.nanoTime();
+        long before = retired;
+        try {
+            runProgram();
+        } catch (RuntimeException e) {
+            metrics.trapped(CMaMetrics.kindOf(e));
+            throw e;
+        } finally {
+            report(metrics, before, start);
         }
         return 0; // Successful execution
     }
 
+    // Runs the program to its end, subclasses run it on their own engines
+    void runProgram() {
+        if (trace == null && (suspendedVerified || canRunVerified())) {
+            suspendedVerified = false;
+            this.interpretVerified(UNLIMITED);
+        } else {
+            this.interpret(UNLIMITED);
+        }
+    }
+
+    // Fuel is charged at jumps, CALL and RETURN, by the number of instructions
+    // jumped back over, and forward jumps give back the instructions they skip,
+    // so the fuel used plus the distance ip moved is exactly the number of
+    // instructions executed. The loops stay as fast as for run(). Every
+    // instruction executed more than once is covered by some backward jump,
+    // CALL or RETURN, so a run executes at most maxSteps instructions plus one
+    // pass over the program. The machine is suspended right after the jump
+    // that used up the fuel, so every call makes progress. A trapped machine keeps its error and stays TRAPPED until reset().
+    // Subclasses run on the interpreter loops here as well.
+    @Override
+    public ExecutionStatus run(long maxSteps) {
+        if (maxSteps <= 0) {
+            throw new IllegalArgumentException("Fuel must be positive");
+        }
+        reloadIfRequested();
+        if (trap != null) {
+            return ExecutionStatus.TRAPPED;
+        }
+        MachineMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        long before = retired;
+        try {
+            if (trace != null) {
+                suspendedVerified = false;
+                this.interpret(UNLIMITED, maxSteps); // Counts every instruction
+            } else {
+                this.interpretWithFuel(Math.min(maxSteps, UNLIMITED));
+            }
+        } catch (RuntimeException e) {
+            trap = e;
+            suspendedVerified = false;
+            if (metrics != null) {
+                metrics.trapped(CMaMetrics.kindOf(e));
+            }
+            return ExecutionStatus.TRAPPED;
+        } finally {
+            if (metrics != null) {
+                report(metrics, before, start);
+            }
+        }
+        return ip < image.length ? ExecutionStatus.OUT_OF_FUEL : ExecutionStatus.FINISHED;
+    }
+
+    // The interpreter part of run(maxSteps), which lets traps through.
+    // A run suspended on the fast loop continues on it.
+    final void interpretWithFuel(long fuel) {
+        if (suspendedVerified || canRunVerified()) {
+            this.interpretVerified(fuel);
+            suspendedVerified = ip < image.length;
+        } else {
+            this.interpret(fuel);
+        }
+    }
+
+    private void report(MachineMetrics metrics, long retiredBefore, long start) {
+        metrics.runEnded(retired - retiredBefore, System.nanoTime() - start, sp, hp,
+                Math.max(stackTop, sp), Math.max(heapTop, hp));
+    }
+
+    // The error that stopped run(maxSteps), null if it did not trap
+    public RuntimeException getTrap() {
+        return trap;
+    }
+
+    // The verifier assumes a fresh start, so the fast loop is only used from there
+    final boolean canRunVerified() {
+        if (sp != -1 || ip != 0) {
+            return false;
+        }
+        CMaVerifier.Result verification = image.verification();
+        return verification.isVerified() && verification.getMaxStackDepth() <= stackLimit;
+    }
+
+    // Interpreter loop over the pre-decoded code image.
+    // Behaves exactly like calling step() until ip falls off the end, but keeps
+    // sp and ip in locals and avoids the CMaInstruction indirection.
+    // Only ALLOC can move sp past the stack limit without touching the stack array,
+    // and only jumps, CALL and RETURN can move ip out of range, so the checks step()
+    // performs after every instruction are done in exactly those handlers.
+    // Those also use up fuel (see run(long)), the loop stops once it is negative.
+    private void interpret(long fuel) {
+        interpret(fuel, UNLIMITED);
+    }
+
+    // Traced runs take this loop too. Each instruction is then recorded in the
+    // trace before it runs and counted against maxSteps, and superinstructions
+    // run as just their first plain instruction, the following ones are still
+    // in place after it (see CMaFusion), so the trace shows every instruction
+    // of the source. Untraced runs pay one null check per instruction for that.
+    private void interpret(long fuel, long maxSteps) {
+        final int[] code = image.code;
+        final int length = image.length;
+        final long budget = fuel;
+        final int start = this.ip;
+        final CMaTrace trace = this.trace;
+        // The ring buffer is written through locals, see CMaTrace.advance()
+        final int[] entries = trace == null ? null : trace.entries;
+        final int mask = trace == null ? 0 : trace.mask;
+        int recorded = trace == null ? 0 : (int) trace.recorded;
+        int sp = this.sp;
+        int ip = this.ip;
+        int fp = this.fp;
+        int ep = this.ep;
+        int stackTop = this.stackTop;
+        // Invariant: the stack has room for stackTop + 2 slots (or is at its limit),
+        // so it only has to grow when sp reaches a new maximum.
+        int[] stack = ensureStackCapacity(Math.max(stackTop, sp) + 2);
+        final int stackLimit = this.stackLimit;
+        final CMaAllocator allocator = this.allocator;
+        try {
+            execution:
+            while (ip < length) {
+                if (sp > stackTop) {
+                    stackTop = sp;
+                    if (sp + 2 > stack.length) {
+                        stack = ensureStackCapacity(sp + 2);
+                    }
+                }
+                final int pc = ip * CMaCodeImage.STRIDE;
+                int opcode = code[pc];
+                if (entries != null) {
+                    // The instructions executed so far, see run(long)
+                    if (budget - fuel + ip - start >= maxSteps) {
+                        break execution;
+                    }
+                    opcode = CMaOpcodes.baseOf(opcode);
+                    final int entry = (recorded++ & mask) * CMaTrace.ENTRY;
+                    entries[entry] = ip;
+                    entries[entry + 1] = opcode;
+                    entries[entry + 2] = sp;
+                    entries[entry + 3] = sp >= 0 ? stack[sp] : 0;
+                }
+                ip++;
+                switch (opcode) {
+                    case CMaOpcodes.LOADC -> {
+                        stack[++sp] = code[pc + 1];
+                    }
+                    case CMaOpcodes.ADD -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call ADD!");
+                        }
+                        int second = stack[sp];
+                        stack[--sp] += second;
+                    }
+                    case CMaOpcodes.SUB -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call SUB!");
+                        }
+                        int second = stack[sp];
+                        stack[--sp] -= second;
+                    }
+                    case CMaOpcodes.MUL -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call MUL!");
+                        }
+                        int second = stack[sp];
+                        stack[--sp] *= second;
+                    }
+                    case CMaOpcodes.DIV -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call DIV!");
+                        }
+                        int second = stack[sp];
+                        if (second == 0) {
+                            throw new ArithmeticException("Division by zero is not allowed!");
+                        }
+                        stack[--sp] /= second;
+                    }
+                    case CMaOpcodes.MOD -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call MOD!");
+                        }
+                        int second = stack[sp];
+                        if (second == 0) {
+                            throw new ArithmeticException("Division by zero is not allowed!");
+                        }
+                        stack[--sp] %= second;
+                    }
+                    case CMaOpcodes.AND -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call AND!");
+                        }
+                        int c1 = stack[sp];
+                        int c2 = stack[--sp];
+                        stack[sp] = (c1 != 0 && c2 != 0) ? 1 : 0;
+                    }
+                    case CMaOpcodes.OR -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call OR!");
+                        }
+                        int c1 = stack[sp];
+                        int c2 = stack[--sp];
+                        stack[sp] = (c1 != 0 || c2 != 0) ? 1 : 0;
+                    }
+                    case CMaOpcodes.XOR -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call XOR!");
+                        }
+                        int c1 = stack[sp];
+                        int c2 = stack[--sp];
+                        stack[sp] = ((c1 != 0) != (c2 != 0)) ? 1 : 0;
+                    }
+                    case CMaOpcodes.EQ -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call EQ!");
+                        }
+                        int second = stack[sp];
+                        int first = stack[--sp];
+                        stack[sp] = (first == second) ? 1 : 0;
+                    }
+                    case CMaOpcodes.NEQ -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call NEQ!");
+                        }
+                        int second = stack[sp];
+                        int first = stack[--sp];
+                        stack[sp] = (first != second) ? 1 : 0;
+                    }
+                    case CMaOpcodes.LE -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call LE!");
+                        }
+                        int second = stack[sp];
+                        int first = stack[--sp];
+                        stack[sp] = (first < second) ? 1 : 0;
+                    }
+                    case CMaOpcodes.LEQ -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call LEQ!");
+                        }
+                        int second = stack[sp];
+                        int first = stack[--sp];
+                        stack[sp] = (first <= second) ? 1 : 0;
+                    }
+                    case CMaOpcodes.GR -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call GR!");
+                        }
+                        int second = stack[sp];
+                        int first = stack[--sp];
+                        stack[sp] = (first > second) ? 1 : 0;
+                    }
+                    case CMaOpcodes.GEQ -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call GEQ!");
+                        }
+                        int second = stack[sp];
+                        int first = stack[--sp];
+                        stack[sp] = (first >= second) ? 1 : 0;
+                    }
+                    case CMaOpcodes.NOT -> {
+                        if (sp < 0) {
+                            throw new RuntimeException("Not enough arguments on the stack to call NOT!");
+                        }
+                        stack[sp] = (stack[sp] != 0) ? 0 : 1;
+                    }
+                    case CMaOpcodes.NEG -> {
+                        if (sp < 0) {
+                            throw new RuntimeException("Not enough arguments on the stack to call NEG!");
+                        }
+                        stack[sp] = -stack[sp];
+                    }
+                    case CMaOpcodes.LOAD -> {
+                        if (sp < 0) {
+                            throw new RuntimeException("Not enough arguments on the stack to call LOAD!");
+                        }
+                        int addr = stack[sp];
+                        if (addr > sp) {
+                            throw new RuntimeException("Illegal stack memory access!");
+                        }
+                        stack[sp] = stack[addr];
+                    }
+                    case CMaOpcodes.STORE -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call STORE!");
+                        }
+                        int addr = stack[sp--];
+                        if (addr > sp) {
+                            throw new RuntimeException("Illegal stack memory access!");
+                        }
+                        stack[addr] = stack[sp];
+                    }
+                    case CMaOpcodes.LOADA -> {
+                        int addr = code[pc + 1];
+                        if (addr > sp) {
+                            throw new RuntimeException("Illegal stack memory access!");
+                        }
+                        stack[++sp] = stack[addr];
+                    }
+                    case CMaOpcodes.STOREA -> {
+                        int addr = code[pc + 1];
+                        if (addr > sp || sp < 0) {
+                            throw new RuntimeException("Illegal stack memory access!");
+                        }
+                        stack[addr] = stack[sp];
+                    }
+                    case CMaOpcodes.POP -> {
+                        if (sp == -1) {
+                            throw new RuntimeException("Nothing to pop from the stack!");
+                        }
+                        --sp;
+                    }
+                    case CMaOpcodes.JUMP -> {
+                        int iaddr = code[pc + 1];
+                        if (iaddr >= length) {
+                            throw new RuntimeException("Illegal instruction memory access!");
+                        }
+                        ip = iaddr;
+                        if (ip < 0) {
+                            throw new RuntimeException("Illegal instruction memory access!");
+                        }
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 1 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.JUMPZ -> {
+                        int iaddr = code[pc + 1];
+                        if (iaddr >= length) {
+                            throw new RuntimeException("Illegal instruction memory access!");
+                        }
+                        if (stack[sp] == 0) {
+                            ip = iaddr;
+                        }
+                        --sp;
+                        if (ip < 0) {
+                            throw new RuntimeException("Illegal instruction memory access!");
+                        }
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 1 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.JUMPI -> {
+                        int iaddr = code[pc + 1];
+                        if (iaddr >= length) {
+                            throw new RuntimeException("Illegal instruction memory access!");
+                        }
+                        ip = iaddr + stack[sp];
+                        --sp;
+                        if (ip < 0 || ip > length) {
+                            throw new RuntimeException("Illegal instruction memory access!");
+                        }
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 1 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.DUP -> {
+                        if (sp == -1) {
+                            throw new RuntimeException("Nothing to duplicate! Stack is empty!");
+                        }
+                        stack[sp + 1] = stack[sp];
+                        ++sp;
+                    }
+                    case CMaOpcodes.ALLOC -> {
+                        sp += code[pc + 1];
+                        if (sp >= stackLimit) {
+                            throw new RuntimeException("Memory overflow!");
+                        }
+                    }
+                    case CMaOpcodes.NEW -> {
+                        if (sp < 0) {
+                            throw new RuntimeException("Not enough arguments on the stack to call NEW!");
+                        }
+                        stack[sp] = allocator.allocate(stack[sp], stack, sp - 1);
+                    }
+                    case CMaOpcodes.FREE -> {
+                        if (sp < 0) {
+                            throw new RuntimeException("Not enough arguments on the stack to call FREE!");
+                        }
+                        allocator.free(stack[sp--]);
+                    }
+                    case CMaOpcodes.LOADH -> {
+                        if (sp < 0) {
+                            throw new RuntimeException("Not enough arguments on the stack to call LOADH!");
+                        }
+                        stack[sp] = allocator.load(stack[sp], code[pc + 1]);
+                    }
+                    case CMaOpcodes.STOREH -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call STOREH!");
+                        }
+                        int ref = stack[sp--];
+                        allocator.store(ref, code[pc + 1], stack[sp]);
+                    }
+                    // Functions. CALL and RETURN are jumps to addresses from the stack,
+                    // they use up fuel like JUMPI.
+                    case CMaOpcodes.MARK -> {
+                        if (sp + 3 > stack.length) {
+                            stack = ensureStackCapacity(sp + 3);
+                        }
+                        stack[sp + 1] = ep;
+                        stack[sp + 2] = fp;
+                        sp += 2;
+                    }
+                    case CMaOpcodes.CALL -> {
+                        if (sp < 0) {
+                            throw new RuntimeException("Not enough arguments on the stack to call CALL!");
+                        }
+                        int target = stack[sp];
+                        stack[sp] = ip;
+                        fp = sp;
+                        ip = target;
+                        if (ip < 0 || ip > length) {
+                            throw new RuntimeException("Illegal instruction memory access!");
+                        }
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 1 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.ENTER -> {
+                        int m = code[pc + 1];
+                        if (m >= stackLimit - sp) {
+                            throw new RuntimeException("Memory overflow!");
+                        }
+                        ep = sp + m;
+                    }
+                    case CMaOpcodes.RETURN -> {
+                        if (fp < 2 || fp > sp) {
+                            throw new RuntimeException("Illegal stack memory access!");
+                        }
+                        ip = stack[fp];
+                        ep = stack[fp - 2];
+                        sp = fp - 3;
+                        fp = stack[fp - 1];
+                        if (ip < 0 || ip > length) {
+                            throw new RuntimeException("Illegal instruction memory access!");
+                        }
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 1 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.SLIDE -> {
+                        int k = code[pc + 1];
+                        if (sp < k || sp < 0) {
+                            throw new RuntimeException("Not enough arguments on the stack to call SLIDE!");
+                        }
+                        if (k < 0) {
+                            throw new RuntimeException("Illegal stack memory access!");
+                        }
+                        stack[sp - k] = stack[sp];
+                        sp -= k;
+                    }
+                    case CMaOpcodes.LOADRC -> {
+                        stack[++sp] = fp + code[pc + 1];
+                    }
+                    case CMaOpcodes.LOADR -> {
+                        int addr = fp + code[pc + 1];
+                        if (addr > sp) {
+                            throw new RuntimeException("Illegal stack memory access!");
+                        }
+                        stack[++sp] = stack[addr];
+                    }
+                    case CMaOpcodes.STORER -> {
+                        int addr = fp + code[pc + 1];
+                        if (addr > sp || sp < 0) {
+                            throw new RuntimeException("Illegal stack memory access!");
+                        }
+                        stack[addr] = stack[sp];
+                    }
+                    // Superinstructions (see CMaFusion). Each one takes a fast path when
+                    // none of the fused instructions can trap, otherwise it executes just
+                    // its first instruction and lets the following ones run unfused.
+                    case CMaOpcodes.LOADC_ADD -> {
+                        if (sp >= 0 && sp < stack.length - 1) {
+                            stack[sp] += code[pc + 1];
+                            ip++;
+                        } else {
+                            stack[++sp] = code[pc + 1];
+                        }
+                    }
+                    case CMaOpcodes.LOADC_SUB -> {
+                        if (sp >= 0 && sp < stack.length - 1) {
+                            stack[sp] -= code[pc + 1];
+                            ip++;
+                        } else {
+                            stack[++sp] = code[pc + 1];
+                        }
+                    }
+                    case CMaOpcodes.LOADC_LOAD -> {
+                        int addr = code[pc + 1];
+                        stack[++sp] = addr;
+                        if (addr >= 0 && addr <= sp) {
+                            stack[sp] = stack[addr];
+                            ip++;
+                        }
+                    }
+                    case CMaOpcodes.INCA -> {
+                        int addr = code[pc + 1];
+                        if (addr > sp) {
+                            throw new RuntimeException("Illegal stack memory access!");
+                        }
+                        if (addr >= 0 && sp < stack.length - 2) {
+                            stack[addr] += code[pc + 3];
+                            ip += 4;
+                        } else {
+                            stack[++sp] = stack[addr];
+                        }
+                    }
+                    case CMaOpcodes.EQ_JUMPZ -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call EQ!");
+                        }
+                        sp -= 2;
+                        ip = (stack[sp + 1] == stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 2 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.NEQ_JUMPZ -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call NEQ!");
+                        }
+                        sp -= 2;
+                        ip = (stack[sp + 1] != stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 2 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.LE_JUMPZ -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call LE!");
+                        }
+                        sp -= 2;
+                        ip = (stack[sp + 1] < stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 2 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.LEQ_JUMPZ -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call LEQ!");
+                        }
+                        sp -= 2;
+                        ip = (stack[sp + 1] <= stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 2 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.GR_JUMPZ -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call GR!");
+                        }
+                        sp -= 2;
+                        ip = (stack[sp + 1] > stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 2 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.GEQ_JUMPZ -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call GEQ!");
+                        }
+                        sp -= 2;
+                        ip = (stack[sp + 1] >= stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 2 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    default -> {
+                        throw new UnsupportedOperationException("Unknown opcode: " + code[pc]);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            RuntimeException error = e instanceof ArrayIndexOutOfBoundsException bounds ? stackBoundsError(bounds) : e;
+            if (trace != null) {
+                trace.advance(recorded);
+                error.addSuppressed(new CMaTrace.TraceException(trace.copy(), image));
+            }
+            throw error;
+        } finally {
+            if (trace != null) {
+                trace.advance(recorded);
+            }
+            retired += Math.max(budget - fuel + ip - start, 0); // A jump that trapped may have left ip anywhere
+            this.sp = sp;
+            this.ip = ip;
+            this.fp = fp;
+            this.ep = ep;
+            this.stackTop = Math.max(stackTop, Math.min(sp, this.stack.length - 1));
+        }
+    }
+
+    // Interpreter loop for programs that passed CMaVerifier.
+    // The verifier proved that every instruction finds enough values on the stack,
+    // that LOADA/STOREA, ALLOC and all jumps stay in range and that the stack never
+    // holds more than getMaxStackDepth() <= stackLimit values, so none of that is
+    // checked here and the stack is sized once up front. Division by zero, the
+    // addresses of LOAD and STORE and heap references depend on runtime values and
+    // are still checked, with the same errors as in interpret().
+    private void interpretVerified(long fuel) {
+        final int[] code = image.code;
+        final int length = image.length;
+        final int maxDepth = image.verification().getMaxStackDepth();
+        final int[] stack = ensureStackCapacity(maxDepth);
+        final CMaAllocator allocator = this.allocator;
+        final long budget = fuel;
+        final int start = this.ip;
+        int sp = this.sp;
+        int ip = this.ip;
+        try {
+            execution:
+            while (ip < length) {
+                final int pc = ip * CMaCodeImage.STRIDE;
+                ip++;
+                switch (code[pc]) {
+                    case CMaOpcodes.LOADC -> {
+                        stack[++sp] = code[pc + 1];
+                    }
+                    case CMaOpcodes.ADD -> {
+                        int second = stack[sp];
+                        stack[--sp] += second;
+                    }
+                    case CMaOpcodes.SUB -> {
+                        int second = stack[sp];
+                        stack[--sp] -= second;
+                    }
+                    case CMaOpcodes.MUL -> {
+                        int second = stack[sp];
+                        stack[--sp] *= second;
+                    }
+                    case CMaOpcodes.DIV -> {
+                        int second = stack[sp];
+                        if (second == 0) {
+                            throw new ArithmeticException("Division by zero is not allowed!");
+                        }
+                        stack[--sp] /= second;
+                    }
+                    case CMaOpcodes.MOD -> {
+                        int second = stack[sp];
+                        if (second == 0) {
+                            throw new ArithmeticException("Division by zero is not allowed!");
+                        }
+                        stack[--sp] %= second;
+                    }
+                    case CMaOpcodes.AND -> {
+                        int c1 = stack[sp];
+                        int c2 = stack[--sp];
+                        stack[sp] = (c1 != 0 && c2 != 0) ? 1 : 0;
+                    }
+                    case CMaOpcodes.OR -> {
+                        int c1 = stack[sp];
+                        int c2 = stack[--sp];
+                        stack[sp] = (c1 != 0 || c2 != 0) ? 1 : 0;
+                    }
+                    case CMaOpcodes.XOR -> {
+                        int c1 = stack[sp];
+                        int c2 = stack[--sp];
+                        stack[sp] = ((c1 != 0) != (c2 != 0)) ? 1 : 0;
+                    }
+                    case CMaOpcodes.EQ -> {
+                        int second = stack[sp];
+                        int first = stack[--sp];
+                        stack[sp] = (first == second) ? 1 : 0;
+                    }
+                    case CMaOpcodes.NEQ -> {
+                        int second = stack[sp];
+                        int first = stack[--sp];
+                        stack[sp] = (first != second) ? 1 : 0;
+                    }
+                    case CMaOpcodes.LE -> {
+                        int second = stack[sp];
+                        int first = stack[--sp];
+                        stack[sp] = (first < second) ? 1 : 0;
+                    }
+                    case CMaOpcodes.LEQ -> {
+                        int second = stack[sp];
+                        int first = stack[--sp];
+                        stack[sp] = (first <= second) ? 1 : 0;
+                    }
+                    case CMaOpcodes.GR -> {
+                        int second = stack[sp];
+                        int first = stack[--sp];
+                        stack[sp] = (first > second) ? 1 : 0;
+                    }
+                    case CMaOpcodes.GEQ -> {
+                        int second = stack[sp];
+                        int first = stack[--sp];
+                        stack[sp] = (first >= second) ? 1 : 0;
+                    }
+                    case CMaOpcodes.NOT -> {
+                        stack[sp] = (stack[sp] != 0) ? 0 : 1;
+                    }
+                    case CMaOpcodes.NEG -> {
+                        stack[sp] = -stack[sp];
+                    }
+                    case CMaOpcodes.LOAD -> {
+                        int addr = stack[sp];
+                        if (addr > sp) {
+                            throw new RuntimeException("Illegal stack memory access!");
+                        }
+                        stack[sp] = stack[addr];
+                    }
+                    case CMaOpcodes.STORE -> {
+                        int addr = stack[sp--];
+                        if (addr > sp) {
+                            throw new RuntimeException("Illegal stack memory access!");
+                        }
+                        stack[addr] = stack[sp];
+                    }
+                    case CMaOpcodes.LOADA -> {
+                        int addr = code[pc + 1];
+                        stack[++sp] = stack[addr];
+                    }
+                    case CMaOpcodes.STOREA -> {
+                        stack[code[pc + 1]] = stack[sp];
+                    }
+                    case CMaOpcodes.POP -> {
+                        --sp;
+                    }
+                    case CMaOpcodes.JUMP -> {
+                        ip = code[pc + 1];
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 1 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.JUMPZ -> {
+                        if (stack[sp--] == 0) {
+                            ip = code[pc + 1];
+                        }
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 1 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.JUMPI -> {
+                        ip = code[pc + 1] + stack[sp--];
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 1 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.DUP -> {
+                        stack[sp + 1] = stack[sp];
+                        ++sp;
+                    }
+                    case CMaOpcodes.ALLOC -> {
+                        sp += code[pc + 1];
+                    }
+                    case CMaOpcodes.NEW -> {
+                        stack[sp] = allocator.allocate(stack[sp], stack, sp - 1);
+                    }
+                    case CMaOpcodes.FREE -> {
+                        allocator.free(stack[sp--]);
+                    }
+                    case CMaOpcodes.LOADH -> {
+                        stack[sp] = allocator.load(stack[sp], code[pc + 1]);
+                    }
+                    case CMaOpcodes.STOREH -> {
+                        int ref = stack[sp--];
+                        allocator.store(ref, code[pc + 1], stack[sp]);
+                    }
+                    // Superinstructions always take their fast path, none of the fused
+                    // instructions can trap in a verified program
+                    case CMaOpcodes.LOADC_ADD -> {
+                        stack[sp] += code[pc + 1];
+                        ip++;
+                    }
+                    case CMaOpcodes.LOADC_SUB -> {
+                        stack[sp] -= code[pc + 1];
+                        ip++;
+                    }
+                    case CMaOpcodes.LOADC_LOAD -> {
+                        int addr = code[pc + 1];
+                        stack[++sp] = addr;
+                        if (addr >= 0 && addr <= sp) {
+                            stack[sp] = stack[addr];
+                            ip++;
+                        }
+                    }
+                    case CMaOpcodes.INCA -> {
+                        stack[code[pc + 1]] += code[pc + 3];
+                        ip += 4;
+                    }
+                    case CMaOpcodes.EQ_JUMPZ -> {
+                        sp -= 2;
+                        ip = (stack[sp + 1] == stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 2 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.NEQ_JUMPZ -> {
+                        sp -= 2;
+                        ip = (stack[sp + 1] != stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 2 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.LE_JUMPZ -> {
+                        sp -= 2;
+                        ip = (stack[sp + 1] < stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 2 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.LEQ_JUMPZ -> {
+                        sp -= 2;
+                        ip = (stack[sp + 1] <= stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 2 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.GR_JUMPZ -> {
+                        sp -= 2;
+                        ip = (stack[sp + 1] > stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 2 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.GEQ_JUMPZ -> {
+                        sp -= 2;
+                        ip = (stack[sp + 1] >= stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                        if ((fuel -= pc / CMaCodeImage.STRIDE + 2 - ip) < 0) {
+                            break execution;
+                        }
+                    }
+                    default -> {
+                        throw new UnsupportedOperationException("Unknown opcode: " + code[pc]);
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw stackBoundsError(e); // Negative LOAD/STORE addresses
+        } finally {
+            retired += Math.max(budget - fuel + ip - start, 0);
+            this.sp = sp;
+            this.ip = ip;
+            this.stackTop = Math.max(this.stackTop, Math.min(maxDepth, stack.length) - 1);
+        }
+    }
+
     public void execute(CMaInstruction instruction) {
         // CMaInstructionType enum contains comments,
         // describing where the operations are defined
@@ -145,6 +1263,44 @@ public class CMa implements VirtualMachine {
             case ALLOC -> {
                 this.handle_alloc(instruction.getFirstArg());
             }
+            // Heap allocation (as introduced in Pointer and Dynamic Data Structures)
+            case NEW -> {
+                this.handle_new();
+            }
+            case FREE -> {
+                this.handle_free();
+            }
+            case LOADH -> {
+                this.handle_loadh(instruction.getFirstArg());
+            }
+            case STOREH -> {
+                this.handle_storeh(instruction.getFirstArg());
+            }
+            // Functions (as introduced in Functions)
+            case MARK -> {
+                this.handle_mark();
+            }
+            case CALL -> {
+                this.handle_call();
+            }
+            case ENTER -> {
+                this.handle_enter(instruction.getFirstArg());
+            }
+            case RETURN -> {
+                this.handle_return();
+            }
+            case SLIDE -> {
+                this.handle_slide(instruction.getFirstArg());
+            }
+            case LOADRC -> {
+                this.handle_loadrc(instruction.getFirstArg());
+            }
+            case LOADR -> {
+                this.handle_loadr(instruction.getFirstArg());
+            }
+            case STORER -> {
+                this.handle_storer(instruction.getFirstArg());
+            }
             default -> {
                 throw new UnsupportedOperationException("Unknown instruction type: " + instruction.getType());
             }
@@ -343,14 +1499,14 @@ public class CMa implements VirtualMachine {
     }
 
     private void handle_jump(int iaddr) {
-        if (iaddr >= instructions.length) {
+        if (iaddr >= image.length) {
             throw new RuntimeException("Illegal instruction memory access!");
         }
         ip = iaddr;
     }
 
     private void handle_jumpz(int iaddr) {
-        if (iaddr >= instructions.length) {
+        if (iaddr >= image.length) {
             throw new RuntimeException("Illegal instruction memory access!");
         }
         if (stack[sp] == 0) {
@@ -360,7 +1516,7 @@ public class CMa implements VirtualMachine {
     }
 
     private void handle_jumpi(int iaddr) {
-        if (iaddr >= instructions.length) {
+        if (iaddr >= image.length) {
             throw new RuntimeException("Illegal instruction memory access!");
         }
         ip = iaddr + stack[sp];
@@ -378,4 +1534,106 @@ public class CMa implements VirtualMachine {
     private void handle_alloc(int k) {
         sp += k;
     }
+
+    // Replace the size on top with a reference to a new object of that many cells
+    private void handle_new() {
+        if (sp < 0) {
+            throw new RuntimeException("Not enough arguments on the stack to call NEW!");
+        }
+        stack[sp] = allocator.allocate(stack[sp], stack, sp - 1);
+    }
+
+    private void handle_free() {
+        if (sp < 0) {
+            throw new RuntimeException("Not enough arguments on the stack to call FREE!");
+        }
+        allocator.free(stack[sp--]);
+    }
+
+    // Replace the reference on top with cell k of its object
+    private void handle_loadh(int k) {
+        if (sp < 0) {
+            throw new RuntimeException("Not enough arguments on the stack to call LOADH!");
+        }
+        stack[sp] = allocator.load(stack[sp], k);
+    }
+
+    // Store the value below the reference on top in cell k, leaving the value, like STORE
+    private void handle_storeh(int k) {
+        if (sp < 1) {
+            throw new RuntimeException("Not enough arguments on the stack to call STOREH!");
+        }
+        int ref = stack[sp--];
+        allocator.store(ref, k, stack[sp]);
+    }
+
+    // Save ep and fp for the CALL that follows, the only instruction that pushes two slots
+    private void handle_mark() {
+        ensureStackCapacity(sp + 3);
+        stack[sp + 1] = ep;
+        stack[sp + 2] = fp;
+        sp += 2;
+    }
+
+    // Replace the function address on top with the return address and jump to the function
+    private void handle_call() {
+        if (sp < 0) {
+            throw new RuntimeException("Not enough arguments on the stack to call CALL!");
+        }
+        int target = stack[sp];
+        stack[sp] = ip;
+        fp = sp;
+        ip = target;
+    }
+
+    // Reserve m slots for the frame, the function never uses more
+    private void handle_enter(int m) {
+        if (m >= stackLimit - sp) {
+            throw new RuntimeException("Memory overflow!");
+        }
+        ep = sp + m;
+    }
+
+    // Leave the result in the slot of the first argument on top and restore the caller's frame
+    private void handle_return() {
+        if (fp < 2 || fp > sp) {
+            throw new RuntimeException("Illegal stack memory access!");
+        }
+        ip = stack[fp];
+        ep = stack[fp - 2];
+        sp = fp - 3;
+        fp = stack[fp - 1];
+    }
+
+    // Remove the k slots below the top, e.g. the arguments of a call below its result
+    private void handle_slide(int k) {
+        if (sp < k || sp < 0) {
+            throw new RuntimeException("Not enough arguments on the stack to call SLIDE!");
+        }
+        if (k < 0) {
+            throw new RuntimeException("Illegal stack memory access!");
+        }
+        stack[sp - k] = stack[sp];
+        sp -= k;
+    }
+
+    private void handle_loadrc(int j) {
+        stack[++sp] = fp + j;
+    }
+
+    private void handle_loadr(int j) {
+        int addr = fp + j;
+        if (addr > sp) {
+            throw new RuntimeException("Illegal stack memory access!");
+        }
+        stack[++sp] = stack[addr];
+    }
+
+    private void handle_storer(int j) {
+        int addr = fp + j;
+        if (addr > sp || sp < 0) {
+            throw new RuntimeException("Illegal stack memory access!");
+        }
+        stack[addr] = stack[sp];
+    }
 }
@@ -0,0 +1,361 @@
+package tum.i2.cma;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Heap allocator behind NEW, FREE, LOADH and STOREH.
+//
+// Objects are runs of heap cells. Programs never see their addresses, only
+// references: REFERENCE_BASE plus the index of a handle that holds the
+// object's address and size. The collector can then move objects without
+// knowing which stack slots hold references, which it cannot know, as stack
+// values are plain ints.
+//
+// NEW bumps hp when the object fits above it, and otherwise takes the first
+// large enough block from the free list that FREE fills. When neither has
+// room, it collects: every value on the stack that is a reference to a live
+// object is a root, and so is every cell of a reachable object that is one
+// (conservative marking). Unreachable objects are released and the rest slide
+// down to the bottom of the heap in address order, which leaves one free run
+// above hp and an empty free list. Only then does NEW fail with "Out of heap
+// memory!".
+//
+// Handles of freed or collected objects are reused, so a reference kept after
+// FREE may later name another object.
+public final class CMaAllocator {
+    static final int REFERENCE_BASE = 1 << 24;
+
+    // Measured since the allocator was created or last reset
+    public record Stats(long allocations, long allocatedCells, long freeListAllocations, long frees,
+            long collections, long collectedObjects, long pauseNanos, long maxPauseNanos, int liveObjects,
+            int usedCells) {
+
+        public double getAveragePauseNanos() {
+            return collections == 0 ? 0 : (double) pauseNanos / collections;
+        }
+    }
+
+    private final CMa machine;
+
+    // Handle table, size is -1 for handles that are not in use
+    private int[] address;
+    private int[] size;
+    private int handles;       // Handles ever used, all others are above this
+    private int[] freeHandles; // Stack of released handles below handles
+    private int freeHandleCount;
+    private int liveCells;
+
+    // Free blocks below hp, by address. Adjacent blocks are merged.
+    private final TreeMap<Integer, Integer> freeBlocks;
+
+    private long allocations;
+    private long allocatedCells;
+    private long freeListAllocations;
+    private long frees;
+    private long collections;
+    private long collectedObjects;
+    private long pauseNanos;
+    private long maxPauseNanos;
+
+    CMaAllocator(CMa machine) {
+        this.machine = machine;
+        this.address = new int[16];
+        this.size = new int[16];
+        this.freeHandles = new int[16];
+        this.freeBlocks = new TreeMap<>();
+    }
+
+    // Same objects as source, for a fork of its machine
+    CMaAllocator(CMa machine, CMaAllocator source) {
+        this.machine = machine;
+        this.address = source.address.clone();
+        this.size = source.size.clone();
+        this.handles = source.handles;
+        this.freeHandles = source.freeHandles.clone();
+        this.freeHandleCount = source.freeHandleCount;
+        this.liveCells = source.liveCells;
+        this.freeBlocks = new TreeMap<>(source.freeBlocks);
+    }
+
+    // Forgets all objects, the heap itself is cleared by the machine
+    void reset() {
+        Arrays.fill(size, 0, handles, -1);
+        handles = 0;
+        freeHandleCount = 0;
+        liveCells = 0;
+        freeBlocks.clear();
+        allocations = allocatedCells = freeListAllocations = frees = 0;
+        collections = collectedObjects = pauseNanos = maxPauseNanos = 0;
+    }
+
+    public Stats getStats() {
+        return new Stats(allocations, allocatedCells, freeListAllocations, frees, collections, collectedObjects,
+                pauseNanos, maxPauseNanos, getLiveObjects(), liveCells);
+    }
+
+    public int getLiveObjects() {
+        return handles - freeHandleCount;
+    }
+
+    // Whether value is a reference to an object that has not been freed or collected
+    public boolean isReference(int value) {
+        int handle = value - REFERENCE_BASE;
+        return handle >= 0 && handle < handles && size[handle] >= 0;
+    }
+
+    // Number of cells of the object value refers to
+    public int sizeOf(int value) {
+        return size[handle(value)];
+    }
+
+    // Collects with the machine's current stack as roots, e.g. between runs
+    public void collect() {
+        collect(machine.getStack(), machine.sp);
+    }
+
+    // A reference to a new object of n cells, all 0. stack[0 .. sp] are the roots
+    // in case a collection is needed.
+    int allocate(int n, int[] stack, int sp) {
+        if (n < 0) {
+            throw new RuntimeException("Invalid heap object size!");
+        }
+        int at = bump(n);
+        if (at < 0) {
+            at = takeFreeBlock(n);
+            if (at >= 0) {
+                freeListAllocations++;
+            }
+        }
+        if (at < 0) {
+            collect(stack, sp);
+            at = bump(n);
+        }
+        if (at < 0) {
+            throw new RuntimeException("Out of heap memory!");
+        }
+        CMaMemory heap = machine.heap;
+        for (int i = 0; i < n; i++) {
+            heap.store(at + i, 0);
+        }
+        int handle = newHandle();
+        address[handle] = at;
+        size[handle] = n;
+        liveCells += n;
+        allocations++;
+        allocatedCells += n;
+        return REFERENCE_BASE + handle;
+    }
+
+    void free(int reference) {
+        int handle = handle(reference);
+        release(handle);
+        frees++;
+    }
+
+    int load(int reference, int cell) {
+        int handle = handle(reference);
+        if (cell < 0 || cell >= size[handle]) {
+            throw new RuntimeException("Illegal heap memory access!");
+        }
+        return machine.heap.load(address[handle] + cell);
+    }
+
+    void store(int reference, int cell, int value) {
+        int handle = handle(reference);
+        if (cell < 0 || cell >= size[handle]) {
+            throw new RuntimeException("Illegal heap memory access!");
+        }
+        machine.heap.store(address[handle] + cell, value);
+    }
+
+    private int handle(int reference) {
+        if (!isReference(reference)) {
+            throw new RuntimeException("Illegal heap memory access!");
+        }
+        return reference - REFERENCE_BASE;
+    }
+
+    // Address for n cells right above hp, -1 if they do not fit
+    private int bump(int n) {
+        int at = machine.hp + 1;
+        if ((long) at + n > machine.heap.limit()) {
+            return -1;
+        }
+        machine.hp = at + n - 1;
+        machine.heapTop = Math.max(machine.heapTop, machine.hp);
+        return at;
+    }
+
+    // First fit, the rest of the block stays free
+    private int takeFreeBlock(int n) {
+        for (Map.Entry<Integer, Integer> block : freeBlocks.entrySet()) {
+            int at = block.getKey();
+            int available = block.getValue();
+            if (available >= n) {
+                freeBlocks.remove(at);
+                if (available > n) {
+                    freeBlocks.put(at + n, available - n);
+                }
+                return at;
+            }
+        }
+        return -1;
+    }
+
+    private int newHandle() {
+        if (freeHandleCount > 0) {
+            return freeHandles[--freeHandleCount];
+        }
+        if (handles == address.length) {
+            address = Arrays.copyOf(address, handles * 2);
+            size = Arrays.copyOf(size, handles * 2);
+            Arrays.fill(size, handles, handles * 2, -1);
+        }
+        return handles++;
+    }
+
+    private void release(int handle) {
+        int at = address[handle];
+        int n = size[handle];
+        size[handle] = -1;
+        liveCells -= n;
+        if (freeHandleCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, freeHandleCount * 2);
+        }
+        freeHandles[freeHandleCount++] = handle;
+        if (n == 0) {
+            return;
+        }
+        // Merge with the neighbouring free blocks
+        Map.Entry<Integer, Integer> below = freeBlocks.floorEntry(at);
+        if (below != null && below.getKey() + below.getValue() == at) {
+            freeBlocks.remove(below.getKey());
+            at = below.getKey();
+            n += below.getValue();
+        }
+        Integer above = freeBlocks.remove(at + n);
+        if (above != null) {
+            n += above;
+        }
+        if (at + n - 1 == machine.hp) {
+            machine.hp = at - 1; // The top of the heap, bump allocation can reuse it
+        } else {
+            freeBlocks.put(at, n);
+        }
+    }
+
+    private void collect(int[] stack, int sp) {
+        long start = System.nanoTime();
+        boolean[] marked = new boolean[handles];
+        int[] worklist = new int[Math.max(1, getLiveObjects())];
+        int pending = 0;
+        for (int i = 0; i <= sp && i < stack.length; i++) {
+            pending = mark(stack[i], marked, worklist, pending);
+        }
+        CMaMemory heap = machine.heap;
+        while (pending > 0) {
+            int handle = worklist[--pending];
+            for (int i = 0; i < size[handle]; i++) {
+                pending = mark(heap.load(address[handle] + i), marked, worklist, pending);
+            }
+        }
+
+        // Survivors slide down in address order, sorted as address << 32 | handle
+        long[] survivors = new long[getLiveObjects()];
+        int count = 0;
+        for (int handle = 0; handle < handles; handle++) {
+            if (size[handle] < 0) {
+                continue;
+            }
+            if (marked[handle]) {
+                survivors[count++] = (long) address[handle] << 32 | handle;
+            } else {
+                liveCells -= size[handle];
+                size[handle] = -1;
+                if (freeHandleCount == freeHandles.length) {
+                    freeHandles = Arrays.copyOf(freeHandles, freeHandleCount * 2);
+                }
+                freeHandles[freeHandleCount++] = handle;
+                collectedObjects++;
+            }
+        }
+        Arrays.sort(survivors, 0, count);
+        int free = 0;
+        for (int i = 0; i < count; i++) {
+            int handle = (int) survivors[i];
+            int from = address[handle];
+            if (from != free) {
+                for (int j = 0; j < size[handle]; j++) {
+                    heap.store(free + j, heap.load(from + j));
+                }
+                address[handle] = free;
+            }
+            free += size[handle];
+        }
+        machine.hp = free - 1;
+        freeBlocks.clear();
+
+        long pause = System.nanoTime() - start;
+        collections++;
+        pauseNanos += pause;
+        maxPauseNanos = Math.max(maxPauseNanos, pause);
+    }
+
+    private int mark(int value, boolean[] marked, int[] worklist, int pending) {
+        if (isReference(value) && !marked[value - REFERENCE_BASE]) {
+            marked[value - REFERENCE_BASE] = true;
+            worklist[pending++] = value - REFERENCE_BASE;
+        }
+        return pending;
+    }
+
+    // Handle table and free lists for snapshots: the handle count, address and size
+    // of every handle, the released handles in the order they are reused, and
+    // the number of free blocks followed by their address and size
+    int[] saveState() {
+        int[] state = new int[1 + 2 * handles + 1 + freeHandleCount + 1 + 2 * freeBlocks.size()];
+        int k = 0;
+        state[k++] = handles;
+        for (int handle = 0; handle < handles; handle++) {
+            state[k++] = address[handle];
+            state[k++] = size[handle];
+        }
+        state[k++] = freeHandleCount;
+        for (int i = 0; i < freeHandleCount; i++) {
+            state[k++] = freeHandles[i];
+        }
+        state[k++] = freeBlocks.size();
+        for (Map.Entry<Integer, Integer> block : freeBlocks.entrySet()) {
+            state[k++] = block.getKey();
+            state[k++] = block.getValue();
+        }
+        return state;
+    }
+
+    // Inverse of saveState(), on a reset allocator
+    void restoreState(int[] state) {
+        int k = 0;
+        handles = state[k++];
+        address = new int[Math.max(16, handles)];
+        size = new int[address.length];
+        Arrays.fill(size, -1);
+        for (int handle = 0; handle < handles; handle++) {
+            address[handle] = state[k++];
+            size[handle] = state[k++];
+            liveCells += Math.max(size[handle], 0);
+        }
+        freeHandleCount = state[k++];
+        freeHandles = Arrays.copyOfRange(state, k, k + Math.max(16, freeHandleCount));
+        k += freeHandleCount;
+        int blocks = state[k++];
+        for (int i = 0; i < blocks; i++) {
+            freeBlocks.put(state[k], state[k + 1]);
+            k += 2;
+        }
+    }
+
+    boolean isEmpty() {
+        return handles == 0;
+    }
+}
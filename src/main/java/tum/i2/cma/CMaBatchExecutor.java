@@ -0,0 +1,177 @@
+package tum.i2.cma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Runs many independent programs in parallel on a work-stealing pool.
+// Machines come from a CMaMachinePool, so a batch of thousands of short jobs
+// only allocates about one machine per worker thread.
+// A job that traps does not affect the others, its exception is kept in its result.
+public final class CMaBatchExecutor implements AutoCloseable {
+
+    // input is pushed onto the stack before the program starts, input[0] first
+    public record Job(String name, CMaCodeImage image, int[] input) {
+        public Job(String name, CMaCodeImage image) {
+            this(name, image, new int[0]);
+        }
+    }
+
+    // stack holds stack[0..sp] after the run, failure is null if the job finished normally
+    public record JobResult(Job job, int[] stack, RuntimeException failure, long nanos) {
+        public boolean succeeded() {
+            return failure == null;
+        }
+    }
+
+    public static final class BatchResult {
+        private final List<JobResult> results;
+        private final long elapsedNanos;
+
+        BatchResult(List<JobResult> results, long elapsedNanos) {
+            this.results = results;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        // In the order of the submitted jobs
+        public List<JobResult> getResults() {
+            return results;
+        }
+
+        public List<JobResult> getFailures() {
+            List<JobResult> failures = new ArrayList<>();
+            for (JobResult result : results) {
+                if (!result.succeeded()) {
+                    failures.add(result);
+                }
+            }
+            return failures;
+        }
+
+        public int getFailureCount() {
+            int count = 0;
+            for (JobResult result : results) {
+                if (!result.succeeded()) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        // Wall-clock time of the whole batch
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        // Sum of the run times of all jobs
+        public long getBusyNanos() {
+            long sum = 0;
+            for (JobResult result : results) {
+                sum += result.nanos();
+            }
+            return sum;
+        }
+
+        public double getJobsPerSecond() {
+            return elapsedNanos == 0 ? 0 : results.size() * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d jobs (%d failed) in %.1f ms, %.0f jobs/s, parallel speedup %.1f",
+                    results.size(), getFailureCount(), elapsedNanos / 1e6, getJobsPerSecond(),
+                    elapsedNanos == 0 ? 0 : (double) getBusyNanos() / elapsedNanos);
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final CMaMachinePool machines;
+
+    public CMaBatchExecutor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public CMaBatchExecutor(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.machines = new CMaMachinePool(2 * parallelism);
+    }
+
+    public BatchResult run(List<Job> jobs) {
+        JobResult[] results = new JobResult[jobs.size()];
+        // Small enough ranges that idle workers always find something to steal
+        int threshold = Math.max(1, jobs.size() / (pool.getParallelism() * 16));
+        long start = System.nanoTime();
+        pool.invoke(new RunRange(jobs, results, 0, jobs.size(), threshold));
+        long elapsed = System.nanoTime() - start;
+        return new BatchResult(Collections.unmodifiableList(Arrays.asList(results)), elapsed);
+    }
+
+    // Pool statistics, e.g. to check that machines are actually reused
+    public CMaMachinePool getMachinePool() {
+        return machines;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    private JobResult runJob(Job job) {
+        long start = System.nanoTime();
+        CMa machine = machines.acquire(job.image());
+        try {
+            int[] input = job.input();
+            if (input.length > machine.stackLimit) {
+                throw new RuntimeException("Memory overflow!");
+            }
+            System.arraycopy(input, 0, machine.ensureStackCapacity(input.length + 1), 0, input.length);
+            machine.sp = input.length - 1;
+            machine.stackTop = Math.max(machine.stackTop, machine.sp);
+            machine.run();
+            return new JobResult(job, finalStack(machine), null, System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            return new JobResult(job, finalStack(machine), e, System.nanoTime() - start);
+        } finally {
+            machines.release(machine);
+        }
+    }
+
+    private static int[] finalStack(CMa machine) {
+        int size = Math.max(0, Math.min(machine.sp + 1, machine.stackLimit));
+        return Arrays.copyOf(machine.getStack(), size);
+    }
+
+    private final class RunRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Job> jobs;
+        private final JobResult[] results;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        RunRange(List<Job> jobs, JobResult[] results, int from, int to, int threshold) {
+            this.jobs = jobs;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                for (int i = from; i < to; i++) {
+                    results[i] = runJob(jobs.get(i));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RunRange(jobs, results, from, middle, threshold),
+                    new RunRange(jobs, results, middle, to, threshold));
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package tum.i2.cma;
+
+// Layout of assembled CMa programs (.cmab files), all values big-endian:
+//
+//   int    magic                  "CMAB"
+//   short  version                VERSION
+//   short  flags                  FLAG_LINES | FLAG_LABELS
+//   int    count                  number of instructions
+//   int[]  code                   count * (opcode, operand), see CMaOpcodes
+//   int[]  lines                  count source line numbers, if FLAG_LINES
+//   int    labelCount             if FLAG_LABELS, followed by labelCount *
+//            short length, byte[] name (UTF-8), int position
+//   int    checksum               CRC32 of everything before it
+//
+// Only plain opcodes are stored, superinstructions are recreated at load time.
+final class CMaBinaryFormat {
+    static final int MAGIC = 0x434d4142;
+    static final int VERSION = 1;
+
+    static final int FLAG_LINES = 1;
+    static final int FLAG_LABELS = 2;
+
+    static final int HEADER_SIZE = 12;
+    static final int CHECKSUM_SIZE = 4;
+
+    static final String FILE_EXTENSION = ".cmab";
+
+    private CMaBinaryFormat() {}
+}
@@ -0,0 +1,89 @@
+package tum.i2.cma;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Loads programs in the binary format described in CMaBinaryFormat.
+// The file is memory-mapped and its code section is copied with a single bulk
+// read straight into the code image, no CMaInstruction objects are created.
+public final class CMaBinaryLoader {
+
+    private CMaBinaryLoader() {}
+
+    public static CMaCodeImage load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return load(buffer, file.toString());
+        }
+    }
+
+    public static CMaCodeImage load(ByteBuffer buffer, String name) throws IOException {
+        buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int size = buffer.remaining();
+        int start = buffer.position();
+        if (size < CMaBinaryFormat.HEADER_SIZE + CMaBinaryFormat.CHECKSUM_SIZE
+                || buffer.getInt(start) != CMaBinaryFormat.MAGIC) {
+            throw new IOException("Not a CMa binary program: " + name);
+        }
+        int version = buffer.getShort(start + 4) & 0xffff;
+        if (version != CMaBinaryFormat.VERSION) {
+            throw new IOException("Unsupported CMa binary version " + version + " in " + name);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.duplicate().limit(start + size - CMaBinaryFormat.CHECKSUM_SIZE));
+        if ((int) checksum.getValue() != buffer.getInt(start + size - CMaBinaryFormat.CHECKSUM_SIZE)) {
+            throw new IOException("Checksum mismatch in " + name);
+        }
+
+        try {
+            buffer.position(start + 6);
+            int flags = buffer.getShort() & 0xffff;
+            int length = buffer.getInt();
+            if (length < 0 || (long) length * CMaCodeImage.STRIDE * 4 > size) {
+                throw new IOException("Invalid instruction count " + length + " in " + name);
+            }
+            int[] code = new int[length * CMaCodeImage.STRIDE];
+            buffer.asIntBuffer().get(code);
+            buffer.position(buffer.position() + code.length * 4);
+            for (int i = 0; i < length; i++) {
+                int opcode = code[i * CMaCodeImage.STRIDE];
+                if (opcode < 0 || opcode != CMaOpcodes.baseOf(opcode)) {
+                    throw new IOException("Invalid opcode " + opcode + " at instruction " + i + " in " + name);
+                }
+            }
+
+            CMaDebugInfo debugInfo = null;
+            if ((flags & (CMaBinaryFormat.FLAG_LINES | CMaBinaryFormat.FLAG_LABELS)) != 0) {
+                int[] lines = null;
+                if ((flags & CMaBinaryFormat.FLAG_LINES) != 0) {
+                    lines = new int[length];
+                    buffer.asIntBuffer().get(lines);
+                    buffer.position(buffer.position() + lines.length * 4);
+                }
+                Map<String, Integer> labels = new HashMap<>();
+                if ((flags & CMaBinaryFormat.FLAG_LABELS) != 0) {
+                    int labelCount = buffer.getInt();
+                    for (int i = 0; i < labelCount; i++) {
+                        byte[] label = new byte[buffer.getShort() & 0xffff];
+                        buffer.get(label);
+                        labels.put(new String(label, StandardCharsets.UTF_8), buffer.getInt());
+                    }
+                }
+                debugInfo = new CMaDebugInfo(labels, lines);
+            }
+            return new CMaCodeImage(code, length, debugInfo);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated or malformed CMa binary program: " + name, e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package tum.i2.cma;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Writes programs in the binary format described in CMaBinaryFormat
+public final class CMaBinaryWriter {
+
+    private CMaBinaryWriter() {}
+
+    // Includes labels and source lines if the image has them
+    public static void write(CMaCodeImage image, Path file) throws IOException {
+        write(image, file, true);
+    }
+
+    public static void write(CMaCodeImage image, Path file, boolean withDebugInfo) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(toBytes(image, withDebugInfo));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    public static byte[] toBytes(CMaCodeImage image, boolean withDebugInfo) {
+        CMaDebugInfo debugInfo = withDebugInfo ? image.debugInfo : null;
+        boolean lines = debugInfo != null && debugInfo.hasSourceLines();
+        boolean labels = debugInfo != null;
+
+        int size = CMaBinaryFormat.HEADER_SIZE + image.length * CMaCodeImage.STRIDE * 4 + CMaBinaryFormat.CHECKSUM_SIZE;
+        if (lines) {
+            size += image.length * 4;
+        }
+        if (labels) {
+            size += 4;
+            for (String label : debugInfo.getLabels().keySet()) {
+                size += 2 + label.getBytes(StandardCharsets.UTF_8).length + 4;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(CMaBinaryFormat.MAGIC);
+        buffer.putShort((short) CMaBinaryFormat.VERSION);
+        buffer.putShort((short) ((lines ? CMaBinaryFormat.FLAG_LINES : 0) | (labels ? CMaBinaryFormat.FLAG_LABELS : 0)));
+        buffer.putInt(image.length);
+        for (int i = 0; i < image.length; i++) {
+            buffer.putInt(CMaOpcodes.baseOf(image.code[i * CMaCodeImage.STRIDE]));
+            buffer.putInt(image.code[i * CMaCodeImage.STRIDE + 1]);
+        }
+        if (lines) {
+            for (int i = 0; i < image.length; i++) {
+                buffer.putInt(debugInfo.getSourceLine(i));
+            }
+        }
+        if (labels) {
+            buffer.putInt(debugInfo.getLabels().size());
+            for (Map.Entry<String, Integer> label : debugInfo.getLabels().entrySet()) {
+                byte[] name = label.getKey().getBytes(StandardCharsets.UTF_8);
+                if (name.length > 0xffff) {
+                    throw new IllegalArgumentException("Label " + label.getKey() + " is too long");
+                }
+                buffer.putShort((short) name.length);
+                buffer.put(name);
+                buffer.putInt(label.getValue());
+            }
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) checksum.getValue());
+        return buffer.array();
+    }
+}
@@ -0,0 +1,483 @@
+package tum.i2.cma;
+
+// CMa machine that dispatches per basic block (see CMaControlFlowGraph).
+//
+// The interpreter checks the stack before every instruction. Within a block the
+// stack only moves by amounts known up front, so this machine checks once on
+// entry that the block cannot underflow the stack, access a LOADA/STOREA slot
+// above the top or run past the stack limit, and then runs the block's
+// instructions without those checks. Only checks that depend on values, like
+// division by zero, LOAD/STORE addresses, heap references and frames, stay in the instructions. Blocks
+// that fail the entry check run through step(), so errors are the same as in
+// the interpreter.
+//
+// The checks do not need the verifier, so unverified programs and machines
+// that do not start from a fresh state run this way too. run(maxSteps) runs on
+// the interpreter loops of CMa.
+public class CMaBlockMachine extends CMa {
+    // Not a real requirement, the instruction never touches the stack
+    private static final int NO_NEED = Integer.MIN_VALUE / 4;
+
+    private CMaControlFlowGraph graph;
+    // For every instruction i, about the rest of its block from i on:
+    private int[] blockEnd; // Index after the block's last instruction
+    private int[] need;     // Smallest sp on entry for which no instruction underflows
+    private int[] grow;     // How far sp rises above its entry value at most
+
+    public CMaBlockMachine(CMaInstruction[] instructions) {
+        this(CMaFusion.fuse(CMaCodeImage.decode(instructions)));
+    }
+
+    public CMaBlockMachine(CMaCodeImage image) {
+        super(image);
+        analyze(image);
+    }
+
+    public CMaBlockMachine(CMaCodeImage image, int stackLimit, CMaMemory heap) {
+        super(image, stackLimit, heap);
+        analyze(image);
+    }
+
+    private CMaBlockMachine(CMaBlockMachine source) {
+        super(source);
+        this.graph = source.graph;
+        this.blockEnd = source.blockEnd;
+        this.need = source.need;
+        this.grow = source.grow;
+    }
+
+    @Override
+    public CMaBlockMachine fork() {
+        return new CMaBlockMachine(this);
+    }
+
+    public CMaControlFlowGraph getControlFlowGraph() {
+        return graph;
+    }
+
+    private void analyze(CMaCodeImage image) {
+        int length = image.length;
+        graph = CMaControlFlowGraph.build(image);
+        blockEnd = new int[length];
+        need = new int[length];
+        grow = new int[length];
+        for (CMaControlFlowGraph.Block block : graph.getBlocks()) {
+            // Walks the block backwards, so each instruction adds its own
+            // requirement to those of the instructions after it
+            long restNeed = NO_NEED;
+            long restGrow = 0;
+            for (int i = block.getEnd() - 1; i >= block.getStart(); i--) {
+                int opcode = CMaOpcodes.baseOf(image.code[i * CMaCodeImage.STRIDE]);
+                int operand = image.code[i * CMaCodeImage.STRIDE + 1];
+                long delta = stackEffect(opcode, operand);
+                restNeed = Math.max(requirement(opcode, operand), restNeed - delta);
+                restGrow = Math.max(Math.max(delta, 0), delta + restGrow);
+                blockEnd[i] = block.getEnd();
+                need[i] = (int) Math.max(NO_NEED, Math.min(restNeed, Integer.MAX_VALUE));
+                grow[i] = (int) Math.min(restGrow, Integer.MAX_VALUE / 4);
+            }
+        }
+    }
+
+    private static long stackEffect(int opcode, int operand) {
+        return switch (opcode) {
+            case CMaOpcodes.LOADC, CMaOpcodes.LOADA, CMaOpcodes.DUP, CMaOpcodes.LOADRC, CMaOpcodes.LOADR -> 1;
+            case CMaOpcodes.NOT, CMaOpcodes.NEG, CMaOpcodes.LOAD, CMaOpcodes.STOREA, CMaOpcodes.JUMP, CMaOpcodes.NEW,
+                    CMaOpcodes.LOADH, CMaOpcodes.CALL, CMaOpcodes.ENTER, CMaOpcodes.STORER -> 0;
+            // RETURN ends its block, where it leaves sp does not matter here
+            case CMaOpcodes.RETURN -> 0;
+            case CMaOpcodes.MARK -> 2;
+            case CMaOpcodes.ALLOC -> operand;
+            case CMaOpcodes.SLIDE -> -(long) operand;
+            default -> -1; // Binary operators, STORE, POP, JUMPZ, JUMPI, FREE, STOREH
+        };
+    }
+
+    // Smallest sp before the instruction at which it cannot fail on the stack
+    private static long requirement(int opcode, int operand) {
+        return switch (opcode) {
+            // Frame slots depend on fp, LOADR checks them itself
+            case CMaOpcodes.LOADC, CMaOpcodes.MARK, CMaOpcodes.LOADRC, CMaOpcodes.LOADR -> -1;
+            case CMaOpcodes.NOT, CMaOpcodes.NEG, CMaOpcodes.LOAD, CMaOpcodes.POP, CMaOpcodes.JUMPZ,
+                    CMaOpcodes.JUMPI, CMaOpcodes.DUP, CMaOpcodes.NEW, CMaOpcodes.FREE, CMaOpcodes.LOADH,
+                    CMaOpcodes.CALL, CMaOpcodes.STORER -> 0;
+            // A negative slot always fails, so the block always runs through step()
+            case CMaOpcodes.LOADA -> operand < 0 ? Integer.MAX_VALUE : operand;
+            case CMaOpcodes.STOREA -> operand < 0 ? Integer.MAX_VALUE : Math.max(operand, 0);
+            case CMaOpcodes.SLIDE -> operand < 0 ? Integer.MAX_VALUE : operand;
+            // ENTER and RETURN check the frame themselves
+            case CMaOpcodes.JUMP, CMaOpcodes.ALLOC, CMaOpcodes.ENTER, CMaOpcodes.RETURN -> NO_NEED;
+            default -> 1; // Binary operators, STORE, STOREH
+        };
+    }
+
+    @Override
+    void runProgram() {
+        if (trace != null) {
+            super.runProgram(); // Traced runs go one instruction at a time
+            return;
+        }
+        suspendedVerified = false; // Blocks run from any state
+        interpretBlocks();
+    }
+
+    @Override
+    void load(CMaCodeImage image) {
+        if (image != this.image) {
+            analyze(image);
+        }
+        super.load(image);
+    }
+
+    private void interpretBlocks() {
+        final int[] code = image.code;
+        final int length = image.length;
+        final int[] blockEnd = this.blockEnd;
+        final int[] need = this.need;
+        final int[] grow = this.grow;
+        final CMaAllocator allocator = this.allocator;
+        int[] stack = this.stack;
+        int sp = this.sp;
+        int ip = this.ip;
+        int fp = this.fp;
+        int ep = this.ep;
+        long executed = 0; // Counted per block, so a trap counts the rest of its block
+        try {
+            dispatch:
+            while (ip < length) {
+                long top = (long) sp + grow[ip];
+                if (sp < need[ip] || top >= stackLimit) {
+                    this.sp = sp;
+                    this.ip = ip;
+                    this.fp = fp;
+                    this.ep = ep;
+                    try {
+                        stepBlock(blockEnd[ip]);
+                    } finally {
+                        sp = this.sp;
+                        ip = this.ip;
+                        fp = this.fp;
+                        ep = this.ep;
+                        stack = this.stack;
+                    }
+                    continue;
+                }
+                if (top + 2 > stack.length) {
+                    stack = ensureStackCapacity((int) top + 2);
+                }
+                stackTop = Math.max(stackTop, Math.min((int) top, stack.length - 1));
+                final int end = blockEnd[ip];
+                executed += end - ip;
+                while (ip < end) {
+                    final int pc = ip * CMaCodeImage.STRIDE;
+                    ip++;
+                    switch (code[pc]) {
+                        case CMaOpcodes.LOADC -> {
+                            stack[++sp] = code[pc + 1];
+                        }
+                        case CMaOpcodes.ADD -> {
+                            int second = stack[sp];
+                            stack[--sp] += second;
+                        }
+                        case CMaOpcodes.SUB -> {
+                            int second = stack[sp];
+                            stack[--sp] -= second;
+                        }
+                        case CMaOpcodes.MUL -> {
+                            int second = stack[sp];
+                            stack[--sp] *= second;
+                        }
+                        case CMaOpcodes.DIV -> {
+                            int second = stack[sp];
+                            if (second == 0) {
+                                throw new ArithmeticException("Division by zero is not allowed!");
+                            }
+                            stack[--sp] /= second;
+                        }
+                        case CMaOpcodes.MOD -> {
+                            int second = stack[sp];
+                            if (second == 0) {
+                                throw new ArithmeticException("Division by zero is not allowed!");
+                            }
+                            stack[--sp] %= second;
+                        }
+                        case CMaOpcodes.AND -> {
+                            int c1 = stack[sp];
+                            int c2 = stack[--sp];
+                            stack[sp] = (c1 != 0 && c2 != 0) ? 1 : 0;
+                        }
+                        case CMaOpcodes.OR -> {
+                            int c1 = stack[sp];
+                            int c2 = stack[--sp];
+                            stack[sp] = (c1 != 0 || c2 != 0) ? 1 : 0;
+                        }
+                        case CMaOpcodes.XOR -> {
+                            int c1 = stack[sp];
+                            int c2 = stack[--sp];
+                            stack[sp] = ((c1 != 0) != (c2 != 0)) ? 1 : 0;
+                        }
+                        case CMaOpcodes.EQ -> {
+                            int second = stack[sp];
+                            int first = stack[--sp];
+                            stack[sp] = (first == second) ? 1 : 0;
+                        }
+                        case CMaOpcodes.NEQ -> {
+                            int second = stack[sp];
+                            int first = stack[--sp];
+                            stack[sp] = (first != second) ? 1 : 0;
+                        }
+                        case CMaOpcodes.LE -> {
+                            int second = stack[sp];
+                            int first = stack[--sp];
+                            stack[sp] = (first < second) ? 1 : 0;
+                        }
+                        case CMaOpcodes.LEQ -> {
+                            int second = stack[sp];
+                            int first = stack[--sp];
+                            stack[sp] = (first <= second) ? 1 : 0;
+                        }
+                        case CMaOpcodes.GR -> {
+                            int second = stack[sp];
+                            int first = stack[--sp];
+                            stack[sp] = (first > second) ? 1 : 0;
+                        }
+                        case CMaOpcodes.GEQ -> {
+                            int second = stack[sp];
+                            int first = stack[--sp];
+                            stack[sp] = (first >= second) ? 1 : 0;
+                        }
+                        case CMaOpcodes.NOT -> {
+                            stack[sp] = (stack[sp] != 0) ? 0 : 1;
+                        }
+                        case CMaOpcodes.NEG -> {
+                            stack[sp] = -stack[sp];
+                        }
+                        case CMaOpcodes.LOAD -> {
+                            int addr = stack[sp];
+                            if (addr > sp) {
+                                throw new RuntimeException("Illegal stack memory access!");
+                            }
+                            stack[sp] = stack[addr];
+                        }
+                        case CMaOpcodes.STORE -> {
+                            int addr = stack[sp--];
+                            if (addr > sp) {
+                                throw new RuntimeException("Illegal stack memory access!");
+                            }
+                            stack[addr] = stack[sp];
+                        }
+                        case CMaOpcodes.LOADA -> {
+                            int addr = code[pc + 1];
+                            stack[++sp] = stack[addr];
+                        }
+                        case CMaOpcodes.STOREA -> {
+                            stack[code[pc + 1]] = stack[sp];
+                        }
+                        case CMaOpcodes.POP -> {
+                            --sp;
+                        }
+                        // Jump targets depend on nothing but the code. Like the
+                        // interpreter, a jump sets ip before it traps on a negative target
+                        case CMaOpcodes.JUMP -> {
+                            int iaddr = code[pc + 1];
+                            if (iaddr >= length) {
+                                throw new RuntimeException("Illegal instruction memory access!");
+                            }
+                            ip = iaddr;
+                            if (ip < 0) {
+                                throw new RuntimeException("Illegal instruction memory access!");
+                            }
+                            continue dispatch;
+                        }
+                        case CMaOpcodes.JUMPZ -> {
+                            int iaddr = code[pc + 1];
+                            if (iaddr >= length) {
+                                throw new RuntimeException("Illegal instruction memory access!");
+                            }
+                            if (stack[sp--] == 0) {
+                                ip = iaddr;
+                            }
+                            if (ip < 0) {
+                                throw new RuntimeException("Illegal instruction memory access!");
+                            }
+                            continue dispatch;
+                        }
+                        case CMaOpcodes.JUMPI -> {
+                            int iaddr = code[pc + 1];
+                            if (iaddr >= length) {
+                                throw new RuntimeException("Illegal instruction memory access!");
+                            }
+                            ip = iaddr + stack[sp--];
+                            if (ip < 0 || ip > length) {
+                                throw new RuntimeException("Illegal instruction memory access!");
+                            }
+                            continue dispatch;
+                        }
+                        case CMaOpcodes.DUP -> {
+                            stack[sp + 1] = stack[sp];
+                            ++sp;
+                        }
+                        case CMaOpcodes.ALLOC -> {
+                            sp += code[pc + 1];
+                        }
+                        // References are values, the allocator checks them
+                        case CMaOpcodes.NEW -> {
+                            stack[sp] = allocator.allocate(stack[sp], stack, sp - 1);
+                        }
+                        case CMaOpcodes.FREE -> {
+                            allocator.free(stack[sp--]);
+                        }
+                        case CMaOpcodes.LOADH -> {
+                            stack[sp] = allocator.load(stack[sp], code[pc + 1]);
+                        }
+                        case CMaOpcodes.STOREH -> {
+                            int ref = stack[sp--];
+                            allocator.store(ref, code[pc + 1], stack[sp]);
+                        }
+                        // Functions. Where CALL and RETURN go depends on the stack,
+                        // the interpreter checks in the same order.
+                        case CMaOpcodes.MARK -> {
+                            stack[sp + 1] = ep;
+                            stack[sp + 2] = fp;
+                            sp += 2;
+                        }
+                        case CMaOpcodes.CALL -> {
+                            int target = stack[sp];
+                            stack[sp] = ip;
+                            fp = sp;
+                            ip = target;
+                            if (ip < 0 || ip > length) {
+                                throw new RuntimeException("Illegal instruction memory access!");
+                            }
+                            continue dispatch;
+                        }
+                        case CMaOpcodes.ENTER -> {
+                            int m = code[pc + 1];
+                            if (m >= stackLimit - sp) {
+                                throw new RuntimeException("Memory overflow!");
+                            }
+                            ep = sp + m;
+                        }
+                        case CMaOpcodes.RETURN -> {
+                            if (fp < 2 || fp > sp) {
+                                throw new RuntimeException("Illegal stack memory access!");
+                            }
+                            ip = stack[fp];
+                            ep = stack[fp - 2];
+                            sp = fp - 3;
+                            fp = stack[fp - 1];
+                            if (ip < 0 || ip > length) {
+                                throw new RuntimeException("Illegal instruction memory access!");
+                            }
+                            continue dispatch;
+                        }
+                        case CMaOpcodes.SLIDE -> {
+                            int k = code[pc + 1];
+                            stack[sp - k] = stack[sp];
+                            sp -= k;
+                        }
+                        case CMaOpcodes.LOADRC -> {
+                            stack[++sp] = fp + code[pc + 1];
+                        }
+                        case CMaOpcodes.LOADR -> {
+                            int addr = fp + code[pc + 1];
+                            if (addr > sp) {
+                                throw new RuntimeException("Illegal stack memory access!");
+                            }
+                            stack[++sp] = stack[addr];
+                        }
+                        case CMaOpcodes.STORER -> {
+                            int addr = fp + code[pc + 1];
+                            if (addr > sp) {
+                                throw new RuntimeException("Illegal stack memory access!");
+                            }
+                            stack[addr] = stack[sp];
+                        }
+                        // Superinstructions. A fused sequence may run past the end of the
+                        // block when a bounded JUMPI can land inside it, so LOADC_ADD and
+                        // LOADC_SUB keep the interpreter's check on the operand of ADD/SUB.
+                        case CMaOpcodes.LOADC_ADD -> {
+                            if (sp >= 0 && sp < stack.length - 1) {
+                                stack[sp] += code[pc + 1];
+                                ip++;
+                            } else {
+                                stack[++sp] = code[pc + 1];
+                            }
+                        }
+                        case CMaOpcodes.LOADC_SUB -> {
+                            if (sp >= 0 && sp < stack.length - 1) {
+                                stack[sp] -= code[pc + 1];
+                                ip++;
+                            } else {
+                                stack[++sp] = code[pc + 1];
+                            }
+                        }
+                        case CMaOpcodes.LOADC_LOAD -> {
+                            int addr = code[pc + 1];
+                            stack[++sp] = addr;
+                            if (addr >= 0 && addr <= sp) {
+                                stack[sp] = stack[addr];
+                                ip++;
+                            }
+                        }
+                        case CMaOpcodes.INCA -> {
+                            stack[code[pc + 1]] += code[pc + 3];
+                            ip += 4;
+                        }
+                        case CMaOpcodes.EQ_JUMPZ -> {
+                            sp -= 2;
+                            ip = (stack[sp + 1] == stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                            continue dispatch;
+                        }
+                        case CMaOpcodes.NEQ_JUMPZ -> {
+                            sp -= 2;
+                            ip = (stack[sp + 1] != stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                            continue dispatch;
+                        }
+                        case CMaOpcodes.LE_JUMPZ -> {
+                            sp -= 2;
+                            ip = (stack[sp + 1] < stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                            continue dispatch;
+                        }
+                        case CMaOpcodes.LEQ_JUMPZ -> {
+                            sp -= 2;
+                            ip = (stack[sp + 1] <= stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                            continue dispatch;
+                        }
+                        case CMaOpcodes.GR_JUMPZ -> {
+                            sp -= 2;
+                            ip = (stack[sp + 1] > stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                            continue dispatch;
+                        }
+                        case CMaOpcodes.GEQ_JUMPZ -> {
+                            sp -= 2;
+                            ip = (stack[sp + 1] >= stack[sp + 2]) ? ip + 1 : code[pc + 3];
+                            continue dispatch;
+                        }
+                        default -> {
+                            throw new UnsupportedOperationException("Unknown opcode: " + code[pc]);
+                        }
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw stackBoundsError(e); // Negative LOAD/STORE addresses
+        } finally {
+            retired += executed;
+            this.sp = sp;
+            this.ip = ip;
+            this.fp = fp;
+            this.ep = ep;
+        }
+    }
+
+    // Runs the block at ip with step(), which checks every instruction,
+    // until control leaves it
+    private void stepBlock(int end) {
+        int at;
+        do {
+            at = ip;
+            step();
+        } while (ip == at + 1 && ip < end);
+    }
+}
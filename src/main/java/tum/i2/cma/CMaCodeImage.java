@@ -0,0 +1,170 @@
+package tum.i2.cma;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+// Flat, pre-decoded form of a CMa program.
+// Every instruction occupies two consecutive ints: the opcode (see CMaOpcodes)
+// followed by its operand (0 for instructions without one). Instruction i thus
+// lives at code[2 * i], so jump targets keep their meaning as instruction indices.
+// The image is never modified after decoding and can be shared between machines.
+public final class CMaCodeImage {
+    static final int STRIDE = 2;
+
+    final int[] code;
+    final int length; // Number of instructions
+    final CMaDebugInfo debugInfo; // May be null
+    private volatile CMaVerifier.Result verification; // Computed on first use
+    private volatile long fingerprint = -1; // Computed on first use
+    private volatile CMaCompiledCode compiled; // Compiled on first use, NOT_COMPILABLE if it cannot be
+    // Where the compiled class is kept across processes, set by CMaProgramCache before it shares the image
+    private CMaCodeStore classStore;
+    private String className;
+
+    private static final CMaCompiledCode NOT_COMPILABLE = (stack, registers) -> {};
+
+    CMaCodeImage(int[] code, int length, CMaDebugInfo debugInfo) {
+        this.code = code;
+        this.length = length;
+        this.debugInfo = debugInfo;
+    }
+
+    public static CMaCodeImage decode(CMaInstruction[] instructions) {
+        return decode(instructions, null);
+    }
+
+    public static CMaCodeImage decode(CMaInstruction[] instructions, CMaDebugInfo debugInfo) {
+        int[] code = new int[instructions.length * STRIDE];
+        for (int i = 0; i < instructions.length; i++) {
+            CMaInstruction instruction = instructions[i];
+            code[i * STRIDE] = CMaOpcodes.fromType(instruction.getType());
+            if (instruction.getArgs().length > 0) {
+                code[i * STRIDE + 1] = instruction.getFirstArg();
+            }
+        }
+        return new CMaCodeImage(code, instructions.length, debugInfo);
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    // Labels and source lines, if the program was loaded with them
+    public CMaDebugInfo getDebugInfo() {
+        return debugInfo;
+    }
+
+    // Verified once per image, so machines sharing it share the result
+    CMaVerifier.Result verification() {
+        CMaVerifier.Result result = verification;
+        if (result == null) {
+            result = CMaVerifier.verify(this);
+            verification = result;
+        }
+        return result;
+    }
+
+    // Compiled once per image, so machines sharing it share the code (see
+    // CMaJit and CMaTiered). null if CMaJitCompiler cannot compile the program.
+    CMaCompiledCode compiled() {
+        CMaCompiledCode result = compiled;
+        if (result == null) {
+            result = classStore == null ? CMaJitCompiler.compile(this)
+                    : CMaJitCompiler.compile(this, classStore, className);
+            if (result == null) {
+                result = NOT_COMPILABLE;
+            }
+            compiled = result;
+        }
+        return result == NOT_COMPILABLE ? null : result;
+    }
+
+    void keepCompiledCodeIn(CMaCodeStore store, String name) {
+        classStore = store;
+        className = name;
+    }
+
+    // CRC32 of the plain opcodes and operands, the same for fused and unfused images
+    int fingerprint() {
+        long result = fingerprint;
+        if (result == -1) {
+            ByteBuffer bytes = ByteBuffer.allocate(length * 8);
+            for (int i = 0; i < length; i++) {
+                bytes.putInt(CMaOpcodes.baseOf(code[i * STRIDE])).putInt(code[i * STRIDE + 1]);
+            }
+            CRC32 checksum = new CRC32();
+            checksum.update(bytes.flip());
+            result = checksum.getValue();
+            fingerprint = result;
+        }
+        return (int) result;
+    }
+
+    // Whether ALLOC may make the old contents of stack slots above sp visible
+    // again, so values matter even after they were popped. An ALLOC that is the
+    // very first instruction, and is never jumped to, only exposes slots nothing
+    // has written to yet. CALL and RETURN may go to any instruction, like JUMPI.
+    boolean exposesOldSlots() {
+        boolean allocAtStart = false;
+        for (int i = 0; i < length; i++) {
+            int opcode = CMaOpcodes.baseOf(code[i * STRIDE]);
+            int operand = code[i * STRIDE + 1];
+            if (opcode == CMaOpcodes.ALLOC && operand > 0) {
+                if (i > 0) {
+                    return true;
+                }
+                allocAtStart = true;
+            }
+        }
+        if (!allocAtStart) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            int opcode = CMaOpcodes.baseOf(code[i * STRIDE]);
+            int operand = code[i * STRIDE + 1];
+            if (opcode == CMaOpcodes.JUMPI || opcode == CMaOpcodes.CALL || opcode == CMaOpcodes.RETURN
+                    || ((opcode == CMaOpcodes.JUMP || opcode == CMaOpcodes.JUMPZ) && operand == 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the program allocates or accesses heap objects (see CMaAllocator)
+    boolean usesHeap() {
+        for (int i = 0; i < length; i++) {
+            int opcode = CMaOpcodes.baseOf(code[i * STRIDE]);
+            if (opcode == CMaOpcodes.NEW || opcode == CMaOpcodes.FREE || opcode == CMaOpcodes.LOADH
+                    || opcode == CMaOpcodes.STOREH) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the program calls functions, whose frames hang off CMa.fp
+    boolean usesFrames() {
+        for (int i = 0; i < length; i++) {
+            int opcode = CMaOpcodes.baseOf(code[i * STRIDE]);
+            if (opcode >= CMaOpcodes.MARK && opcode <= CMaOpcodes.STORER) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Rebuilds the instruction objects, e.g. for single-stepping.
+    // Fused instructions are split up again, so the result always runs
+    // the same program as this image.
+    public CMaInstruction[] toInstructions() {
+        CMaInstruction[] instructions = new CMaInstruction[length];
+        for (int i = 0; i < length; i++) {
+            CMaInstructionType type = CMaOpcodes.toType(code[i * STRIDE]);
+            int[] args = CMaInstructionType.expectedNumberOfArguments(type) == 0
+                    ? new int[0]
+                    : new int[] { code[i * STRIDE + 1] };
+            instructions[i] = new CMaInstruction(type, args);
+        }
+        return instructions;
+    }
+}
@@ -0,0 +1,203 @@
+package tum.i2.cma;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+// Disk tier of CMaProgramCache: a directory of assembled programs
+// (<key>.cmab, see CMaBinaryFormat) and of the classes CMaJitCompiler
+// generated for them (<key>.cmaj), shared by every process that uses it.
+//
+// Files are written to a temporary file and renamed into place, so readers
+// only ever see complete files and take no lock. Renames and eviction hold an
+// exclusive lock on cache.lock, and a monitor per directory inside the
+// process, since a FileLock belongs to the whole JVM. After each write, the
+// least recently used files are deleted until the rest fit into maxBytes.
+// Reads touch the modification time of a file for that. Damaged files fail
+// their checksum, are deleted and counted as errors.
+//
+// Classes read from the directory run as part of the program, so it has to be
+// writable only by the user running the JVMs.
+final class CMaCodeStore {
+    static final String CLASS_EXTENSION = ".cmaj";
+    static final String LOCK_FILE = "cache.lock";
+
+    private static final int CLASS_MAGIC = 0x434d414a; // "CMAJ"
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+    // Temporary files of writers that died are deleted after this long
+    private static final long STALE_TEMPORARY_MILLIS = 60 * 60 * 1000;
+    private static final ConcurrentHashMap<Path, Object> MONITORS = new ConcurrentHashMap<>();
+
+    interface Writer {
+        void write(Path file) throws IOException;
+    }
+
+    private record Entry(Path file, long size, long lastUsed) {}
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Object monitor;
+
+    final LongAdder writes = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder classHits = new LongAdder(); // Classes defined from disk instead of generated
+
+    CMaCodeStore(Path directory, long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.monitor = MONITORS.computeIfAbsent(directory.toAbsolutePath().normalize(), d -> new Object());
+    }
+
+    // The file of an entry, marked as recently used, or null if there is none
+    Path find(String name) {
+        Path file = directory.resolve(name);
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return file;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            return Files.exists(file) ? file : null;
+        }
+    }
+
+    // Deletes an entry that failed to load
+    void discard(String name) {
+        errors.increment();
+        try {
+            Files.deleteIfExists(directory.resolve(name));
+        } catch (IOException ignored) {
+            // Written again by the caller, or evicted eventually
+        }
+    }
+
+    // Replaces the entry with what writer puts into a temporary file. Failures
+    // are counted, the entry is then missing or keeps its old content.
+    void store(String name, Writer writer) {
+        Path temporary = null;
+        try {
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, name, TEMPORARY_EXTENSION);
+            writer.write(temporary);
+            synchronized (monitor) {
+                // Closing the channel releases the lock
+                try (FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE)) {
+                    channel.lock();
+                    Files.move(temporary, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                    temporary = null;
+                    writes.increment();
+                    evict();
+                }
+            }
+        } catch (IOException e) {
+            errors.increment();
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {
+                    // Deleted by a later eviction once stale
+                }
+            }
+        }
+    }
+
+    // The class bytes of an entry, null if there is none or it is damaged
+    byte[] readClass(String name) {
+        Path file = find(name);
+        if (file == null) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (buffer.remaining() < 12 || buffer.getInt() != CLASS_MAGIC
+                    || buffer.getInt() != buffer.remaining() - 4) {
+                throw new IOException("Not a compiled CMa class: " + file);
+            }
+            byte[] bytes = new byte[buffer.remaining() - 4];
+            buffer.get(bytes);
+            if (buffer.getInt() != checksum(bytes)) {
+                throw new IOException("Checksum mismatch in " + file);
+            }
+            return bytes;
+        } catch (NoSuchFileException e) {
+            return null; // Evicted by another process in the meantime
+        } catch (IOException e) {
+            discard(name);
+            return null;
+        }
+    }
+
+    // Stored as magic, length, the bytes and their CRC32
+    void storeClass(String name, byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 12);
+        buffer.putInt(CLASS_MAGIC).putInt(bytes.length).put(bytes).putInt(checksum(bytes));
+        store(name, file -> Files.write(file, buffer.array()));
+    }
+
+    // Deletes the least recently used entries until the rest fit into
+    // maxBytes, and stale temporary files. Called with the lock held.
+    private void evict() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long total = 0;
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                long lastUsed = attributes.lastModifiedTime().toMillis();
+                if (fileName.endsWith(TEMPORARY_EXTENSION)) {
+                    if (now - lastUsed > STALE_TEMPORARY_MILLIS) {
+                        Files.deleteIfExists(file);
+                    }
+                } else if (fileName.endsWith(CMaBinaryFormat.FILE_EXTENSION) || fileName.endsWith(CLASS_EXTENSION)) {
+                    entries.add(new Entry(file, attributes.size(), lastUsed));
+                    total += attributes.size();
+                }
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        entries.sort(Comparator.comparingLong(Entry::lastUsed));
+        for (Entry entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            Files.deleteIfExists(entry.file());
+            total -= entry.size();
+            evictions.increment();
+        }
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+}
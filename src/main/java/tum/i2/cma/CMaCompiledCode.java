@@ -0,0 +1,8 @@
+package tum.i2.cma;
+
+// Entry point of a program translated to JVM bytecode by CMaJitCompiler.
+// registers[0] holds sp and registers[1] holds ip. Execution starts at ip and
+// both registers are written back when the program ends or traps.
+interface CMaCompiledCode {
+    void run(int[] stack, int[] registers);
+}
@@ -0,0 +1,262 @@
+package tum.i2.cma;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+// Control-flow graph of a CMa program: its basic blocks and the jumps between them.
+//
+// A block is a run of instructions that is only entered at its first instruction
+// and only left after its last one. Blocks start at instruction 0, at every jump
+// target and label, and after every JUMP, JUMPZ, JUMPI, CALL and RETURN. The
+// targets of a JUMPI are only known when the verifier bounds its index; otherwise
+// the block ending in it has unknown successors, and the JUMPI may land anywhere
+// in a block. The same holds for CALL and RETURN, which take their targets from
+// the stack.
+//
+// Fused images give the same graph as the program they were fused from.
+public final class CMaControlFlowGraph {
+
+    public static final class Block {
+        private final int index;
+        private final int start;
+        private final int end;
+        private final List<Block> successors = new ArrayList<>();
+        private final List<Block> predecessors = new ArrayList<>();
+        private boolean exits;
+        private boolean unknownSuccessors;
+        private boolean reachable;
+
+        Block(int index, int start, int end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+
+        // Position in getBlocks(), blocks are ordered by their start
+        public int getIndex() {
+            return index;
+        }
+
+        // Index of the first instruction
+        public int getStart() {
+            return start;
+        }
+
+        // Index after the last instruction
+        public int getEnd() {
+            return end;
+        }
+
+        public int getLength() {
+            return end - start;
+        }
+
+        public List<Block> getSuccessors() {
+            return Collections.unmodifiableList(successors);
+        }
+
+        public List<Block> getPredecessors() {
+            return Collections.unmodifiableList(predecessors);
+        }
+
+        // Whether the program can end after this block, by running past its last instruction
+        public boolean exits() {
+            return exits;
+        }
+
+        // Whether the block ends in a JUMPI whose targets are not bounded, a CALL or a RETURN
+        public boolean hasUnknownSuccessors() {
+            return unknownSuccessors;
+        }
+
+        // Whether some path from instruction 0 gets here. Once a block with
+        // unknown successors is reachable, every block counts as reachable.
+        public boolean isReachable() {
+            return reachable;
+        }
+
+        @Override
+        public String toString() {
+            return "B" + index + " [" + start + ", " + end + ")";
+        }
+    }
+
+    private final List<Block> blocks;
+    private final int[] blockOf; // Instruction index to block index
+
+    private CMaControlFlowGraph(List<Block> blocks, int[] blockOf) {
+        this.blocks = Collections.unmodifiableList(blocks);
+        this.blockOf = blockOf;
+    }
+
+    public static CMaControlFlowGraph build(CMaInstruction[] instructions) {
+        return build(CMaCodeImage.decode(instructions), List.of());
+    }
+
+    // labelPositions are the instruction indices of all labels (see CmaParser.getLabels())
+    public static CMaControlFlowGraph build(CMaInstruction[] instructions, Collection<Integer> labelPositions) {
+        return build(CMaCodeImage.decode(instructions), labelPositions);
+    }
+
+    public static CMaControlFlowGraph build(CMaCodeImage image) {
+        return build(image, List.of());
+    }
+
+    // Labels from the image's debug info start blocks as well
+    public static CMaControlFlowGraph build(CMaCodeImage image, Collection<Integer> labelPositions) {
+        int length = image.length;
+        CMaVerifier.Result verification = image.verification();
+        boolean[] leader = new boolean[length + 1];
+        leader[0] = true;
+        for (int position : labelPositions) {
+            if (position >= 0 && position <= length) {
+                leader[position] = true;
+            }
+        }
+        if (image.debugInfo != null) {
+            for (int position : image.debugInfo.getLabels().values()) {
+                if (position >= 0 && position <= length) {
+                    leader[position] = true;
+                }
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            int opcode = opcodeAt(image, i);
+            if (opcode == CMaOpcodes.JUMP || opcode == CMaOpcodes.JUMPZ || opcode == CMaOpcodes.JUMPI) {
+                leader[i + 1] = true;
+                int target = operandAt(image, i);
+                if (target >= 0 && target <= length) {
+                    leader[target] = true;
+                }
+            } else if (opcode == CMaOpcodes.CALL || opcode == CMaOpcodes.RETURN) {
+                leader[i + 1] = true; // Calls return after the CALL
+            }
+            if (opcode == CMaOpcodes.JUMPI && verification.isVerified() && verification.getFirstJumpiTarget(i) >= 0) {
+                for (int target = verification.getFirstJumpiTarget(i); target <= verification.getLastJumpiTarget(i); target++) {
+                    leader[target] = true;
+                }
+            }
+        }
+
+        List<Block> blocks = new ArrayList<>();
+        int[] blockOf = new int[length];
+        for (int start = 0; start < length;) {
+            int end = start + 1;
+            while (end < length && !leader[end]) {
+                end++;
+            }
+            for (int i = start; i < end; i++) {
+                blockOf[i] = blocks.size();
+            }
+            blocks.add(new Block(blocks.size(), start, end));
+            start = end;
+        }
+
+        for (Block block : blocks) {
+            int last = block.end - 1;
+            int target = operandAt(image, last);
+            switch (opcodeAt(image, last)) {
+                // JUMP and JUMPZ trap on a target at the end, JUMPI and falling through end the program
+                case CMaOpcodes.JUMP -> link(blocks, blockOf, block, target < length ? target : -1, length);
+                case CMaOpcodes.JUMPZ -> {
+                    link(blocks, blockOf, block, target < length ? target : -1, length);
+                    link(blocks, blockOf, block, block.end, length);
+                }
+                case CMaOpcodes.JUMPI -> {
+                    if (verification.isVerified() && verification.getFirstJumpiTarget(last) >= 0) {
+                        for (int t = verification.getFirstJumpiTarget(last); t <= verification.getLastJumpiTarget(last); t++) {
+                            link(blocks, blockOf, block, t, length);
+                        }
+                    } else {
+                        block.unknownSuccessors = true;
+                    }
+                }
+                case CMaOpcodes.CALL, CMaOpcodes.RETURN -> block.unknownSuccessors = true;
+                default -> link(blocks, blockOf, block, block.end, length);
+            }
+        }
+        markReachable(blocks);
+        return new CMaControlFlowGraph(blocks, blockOf);
+    }
+
+    private static int opcodeAt(CMaCodeImage image, int i) {
+        return CMaOpcodes.baseOf(image.code[i * CMaCodeImage.STRIDE]);
+    }
+
+    private static int operandAt(CMaCodeImage image, int i) {
+        return image.code[i * CMaCodeImage.STRIDE + 1];
+    }
+
+    // Targets outside the program trap, so they have no edge
+    private static void link(List<Block> blocks, int[] blockOf, Block from, int target, int length) {
+        if (target == length) {
+            from.exits = true;
+        } else if (target >= 0 && target < length) {
+            Block to = blocks.get(blockOf[target]);
+            if (!from.successors.contains(to)) {
+                from.successors.add(to);
+                to.predecessors.add(from);
+            }
+        }
+    }
+
+    private static void markReachable(List<Block> blocks) {
+        if (blocks.isEmpty()) {
+            return;
+        }
+        ArrayDeque<Block> worklist = new ArrayDeque<>();
+        blocks.get(0).reachable = true;
+        worklist.add(blocks.get(0));
+        while (!worklist.isEmpty()) {
+            Block block = worklist.poll();
+            if (block.unknownSuccessors) {
+                for (Block other : blocks) {
+                    other.reachable = true;
+                }
+                return;
+            }
+            for (Block successor : block.successors) {
+                if (!successor.reachable) {
+                    successor.reachable = true;
+                    worklist.add(successor);
+                }
+            }
+        }
+    }
+
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    public Block getEntry() {
+        return blocks.isEmpty() ? null : blocks.get(0);
+    }
+
+    // The block that holds instruction i
+    public Block getBlockAt(int i) {
+        return blocks.get(blockOf[i]);
+    }
+
+    // One line per block, e.g. "B1 [3, 7) -> B2 B4"
+    @Override
+    public String toString() {
+        StringBuilder graph = new StringBuilder();
+        for (Block block : blocks) {
+            graph.append(block).append(" ->");
+            for (Block successor : block.successors) {
+                graph.append(" B").append(successor.index);
+            }
+            if (block.exits) {
+                graph.append(" exit");
+            }
+            if (block.unknownSuccessors) {
+                graph.append(" ?");
+            }
+            graph.append('\n');
+        }
+        return graph.toString();
+    }
+}
@@ -0,0 +1,41 @@
+package tum.i2.cma;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+// Source information of a program: its labels and the source line of every
+// instruction, as produced by CmaParser.getDebugInfo(). Tools use it to map
+// instruction indices back to the .cma file.
+public final class CMaDebugInfo {
+    private final Map<String, Integer> labels;
+    final int[] sourceLines; // May be null
+
+    public CMaDebugInfo(Map<String, Integer> labels, int[] sourceLines) {
+        this.labels = Collections.unmodifiableMap(new HashMap<>(labels));
+        this.sourceLines = sourceLines == null ? null : sourceLines.clone();
+    }
+
+    // Shares the labels of source, for programs whose labels did not move
+    CMaDebugInfo(CMaDebugInfo source, int[] sourceLines) {
+        this.labels = source.labels;
+        this.sourceLines = sourceLines;
+    }
+
+    // Label name to instruction index
+    public Map<String, Integer> getLabels() {
+        return labels;
+    }
+
+    public boolean hasSourceLines() {
+        return sourceLines != null;
+    }
+
+    // Source line of instruction i, or -1 if unknown
+    public int getSourceLine(int i) {
+        if (sourceLines == null || i < 0 || i >= sourceLines.length) {
+            return -1;
+        }
+        return sourceLines[i];
+    }
+}
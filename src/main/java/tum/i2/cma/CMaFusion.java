@@ -0,0 +1,162 @@
+package tum.i2.cma;
+
+import java.util.Collection;
+import java.util.List;
+
+// Load-time pass that rewrites common instruction sequences into
+// superinstructions (see CMaOpcodes), so the interpreter needs one dispatch
+// for the whole sequence instead of one per instruction.
+//
+// Only the opcode of the first instruction of a sequence is replaced. The
+// remaining instructions stay in the image unchanged, so instruction indices
+// and all jump targets keep their meaning, and a computed JUMPI that lands in
+// the middle of a fused sequence still executes the original instructions.
+// A sequence is never fused if one of its later instructions is a jump target.
+//
+// The fast paths of superinstructions skip writing the values that the
+// sequence pops again, e.g. LOADC_ADD adds the constant to the top of the
+// stack. Those slots above sp only matter once ALLOC exposes them again, so
+// programs for which CMaCodeImage.exposesOldSlots() holds are left unfused.
+public final class CMaFusion {
+
+    private CMaFusion() {}
+
+    public static CMaCodeImage fuse(CMaInstruction[] instructions, Collection<Integer> labelPositions) {
+        return fuse(CMaCodeImage.decode(instructions), labelPositions);
+    }
+
+    public static CMaCodeImage fuse(CMaCodeImage image) {
+        return fuse(image, List.of());
+    }
+
+    // labelPositions are the instruction indices of all labels (see CmaParser.getLabels()).
+    // Labels from the image's debug info and operands of JUMP, JUMPZ and JUMPI are
+    // always treated as jump targets.
+    public static CMaCodeImage fuse(CMaCodeImage image, Collection<Integer> labelPositions) {
+        if (image.exposesOldSlots()) {
+            return image;
+        }
+        int length = image.length;
+        int[] code = image.code.clone();
+        boolean[] isTarget = findJumpTargets(image, labelPositions);
+
+        int i = 0;
+        while (i < length) {
+            int fused = fuseAt(code, length, isTarget, i);
+            i += (fused == 0) ? 1 : fused;
+        }
+        return new CMaCodeImage(code, length, image.debugInfo);
+    }
+
+    private static boolean[] findJumpTargets(CMaCodeImage image, Collection<Integer> labelPositions) {
+        boolean[] isTarget = new boolean[image.length + 1];
+        for (int position : labelPositions) {
+            if (position >= 0 && position <= image.length) {
+                isTarget[position] = true;
+            }
+        }
+        if (image.debugInfo != null) {
+            for (int position : image.debugInfo.getLabels().values()) {
+                if (position >= 0 && position <= image.length) {
+                    isTarget[position] = true;
+                }
+            }
+        }
+        for (int i = 0; i < image.length; i++) {
+            int opcode = image.code[i * CMaCodeImage.STRIDE];
+            int target = image.code[i * CMaCodeImage.STRIDE + 1];
+            if ((opcode == CMaOpcodes.JUMP || opcode == CMaOpcodes.JUMPZ || opcode == CMaOpcodes.JUMPI)
+                    && target >= 0 && target <= image.length) {
+                isTarget[target] = true;
+            }
+        }
+        return isTarget;
+    }
+
+    // Tries to fuse the sequence starting at instruction i,
+    // returns the number of instructions covered or 0 if nothing was fused.
+    private static int fuseAt(int[] code, int length, boolean[] isTarget, int i) {
+        int first = opcodeAt(code, length, i);
+        int second = opcodeAt(code, length, i + 1);
+
+        if (first == CMaOpcodes.LOADA
+                && second == CMaOpcodes.LOADC
+                && opcodeAt(code, length, i + 2) == CMaOpcodes.ADD
+                && opcodeAt(code, length, i + 3) == CMaOpcodes.STOREA
+                && opcodeAt(code, length, i + 4) == CMaOpcodes.POP
+                && operandAt(code, i + 3) == operandAt(code, i)
+                && !crossesTarget(isTarget, i, 5)) {
+            return replace(code, i, CMaOpcodes.INCA, 5);
+        }
+        if (first == CMaOpcodes.LOADC && !crossesTarget(isTarget, i, 2)) {
+            switch (second) {
+                case CMaOpcodes.ADD -> {
+                    return replace(code, i, CMaOpcodes.LOADC_ADD, 2);
+                }
+                case CMaOpcodes.SUB -> {
+                    return replace(code, i, CMaOpcodes.LOADC_SUB, 2);
+                }
+                case CMaOpcodes.LOAD -> {
+                    return replace(code, i, CMaOpcodes.LOADC_LOAD, 2);
+                }
+                default -> {
+                    return 0;
+                }
+            }
+        }
+        if (second == CMaOpcodes.JUMPZ && !crossesTarget(isTarget, i, 2)) {
+            // The fused compare-and-branch skips the target check of JUMPZ,
+            // so only statically valid targets are fused.
+            int target = operandAt(code, i + 1);
+            if (target < 0 || target >= length) {
+                return 0;
+            }
+            switch (first) {
+                case CMaOpcodes.EQ -> {
+                    return replace(code, i, CMaOpcodes.EQ_JUMPZ, 2);
+                }
+                case CMaOpcodes.NEQ -> {
+                    return replace(code, i, CMaOpcodes.NEQ_JUMPZ, 2);
+                }
+                case CMaOpcodes.LE -> {
+                    return replace(code, i, CMaOpcodes.LE_JUMPZ, 2);
+                }
+                case CMaOpcodes.LEQ -> {
+                    return replace(code, i, CMaOpcodes.LEQ_JUMPZ, 2);
+                }
+                case CMaOpcodes.GR -> {
+                    return replace(code, i, CMaOpcodes.GR_JUMPZ, 2);
+                }
+                case CMaOpcodes.GEQ -> {
+                    return replace(code, i, CMaOpcodes.GEQ_JUMPZ, 2);
+                }
+                default -> {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static int opcodeAt(int[] code, int length, int i) {
+        return i < length ? code[i * CMaCodeImage.STRIDE] : -1;
+    }
+
+    private static int operandAt(int[] code, int i) {
+        return code[i * CMaCodeImage.STRIDE + 1];
+    }
+
+    private static boolean crossesTarget(boolean[] isTarget, int start, int count) {
+        for (int i = start + 1; i < start + count; i++) {
+            if (isTarget[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int replace(int[] code, int i, int fusedOpcode, int count) {
+        code[i * CMaCodeImage.STRIDE] = fusedOpcode;
+        return count;
+    }
+}
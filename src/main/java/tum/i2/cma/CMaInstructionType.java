@@ -38,7 +38,21 @@ public enum CMaInstructionType {
     JUMPI,
     DUP,
     // Introduced in Storage Allocation for Variables
-    ALLOC;
+    ALLOC,
+    // Heap allocation (as introduced in Pointer and Dynamic Data Structures)
+    NEW,
+    FREE,
+    LOADH,
+    STOREH,
+    // Functions (as introduced in Functions), frames live on the stack
+    MARK,
+    CALL,
+    ENTER,
+    RETURN,
+    SLIDE,
+    LOADRC,
+    LOADR,
+    STORER;
     //
     private static final Map<String, CMaInstructionType> STRING_TO_ENUM = new HashMap<>();
 
@@ -67,6 +81,13 @@ public enum CMaInstructionType {
             case JUMPZ:
             case JUMPI:
             case ALLOC:
+            case LOADH:
+            case STOREH:
+            case ENTER:
+            case SLIDE:
+            case LOADRC:
+            case LOADR:
+            case STORER:
                 return 1;
             default:
                 return 0;
@@ -0,0 +1,69 @@
+package tum.i2.cma;
+
+// CMa machine that runs its program as JVM bytecode (see CMaJitCompiler)
+// instead of interpreting it, so HotSpot can optimise the CMa code itself.
+// The machine state is the same as for CMa: run() leaves the stack, sp and the
+// error cases exactly as the interpreter does, and step() still interprets a
+// single instruction on the shared state. Machines share the compiled code of
+// their image, which CMaProgramCache may keep on disk.
+public class CMaJit extends CMa {
+    private CMaCompiledCode compiled;
+
+    public CMaJit(CMaInstruction[] instructions) {
+        this(CMaCodeImage.decode(instructions));
+    }
+
+    public CMaJit(CMaCodeImage image) {
+        this(image, image.compiled());
+    }
+
+    public CMaJit(CMaCodeImage image, int stackLimit, CMaMemory heap) {
+        super(image, stackLimit, heap);
+        this.compiled = image.compiled();
+    }
+
+    // Shares code compiled earlier for the same image
+    CMaJit(CMaCodeImage image, CMaCompiledCode compiled) {
+        super(image);
+        this.compiled = compiled;
+    }
+
+    private CMaJit(CMaJit source) {
+        super(source);
+        this.compiled = source.compiled;
+    }
+
+    @Override
+    public CMaJit fork() {
+        return new CMaJit(this);
+    }
+
+    // The compiled code checks ALLOC against the length of the stack array,
+    // so the stack is grown to its limit up front. Programs that use the heap
+    // or call functions are not compiled and run on the interpreter, as do
+    // traced runs and runs that report metrics, since the compiled code counts
+    // no instructions (see setMetrics()).
+    @Override
+    void runProgram() {
+        if (compiled == null || trace != null || metrics != null) {
+            super.runProgram();
+            return;
+        }
+        int[] registers = { sp, ip };
+        try {
+            compiled.run(ensureStackCapacity(stackLimit), registers);
+        } finally {
+            sp = registers[0];
+            ip = registers[1];
+            stackTop = stack.length - 1; // The compiled code does not track it
+        }
+    }
+
+    @Override
+    void load(CMaCodeImage image) {
+        if (image != this.image) {
+            compiled = image.compiled();
+        }
+        super.load(image);
+    }
+}
@@ -0,0 +1,643 @@
+package tum.i2.cma;
+
+import static tum.i2.cma.JvmClassWriter.*;
+
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Map;
+
+// Translates a CMa program into a hidden JVM class implementing CMaCompiledCode.
+//
+// The program is cut into chunks of 2^chunkBits instructions and every chunk
+// becomes one static method, so that each method stays below the size HotSpot
+// is willing to JIT-compile. Within a chunk every CMa instruction is translated
+// inline: sp lives in a JVM local, JUMP/JUMPZ become branches and JUMPI goes
+// through a tableswitch over the chunk. A comparison directly followed by a
+// JUMPZ becomes a single compare-and-branch, unless ALLOC may expose the
+// result it never stores (see CMaCodeImage.exposesOldSlots()). Control leaving the chunk returns
+// to run(), which dispatches to the chunk holding the new ip through one of
+// the group methods.
+//
+// The CMa stack itself stays in the int[] shared with the machine, and every
+// trap leaves sp, ip and the stack exactly as the CMa interpreter would.
+final class CMaJitCompiler {
+    private static final String CLASS_NAME = "tum/i2/cma/CMaCompiled";
+    private static final String CHUNK_DESCRIPTOR = "([I[I)V";
+    // HotSpot does not JIT-compile methods with more bytecode than this (HugeMethodLimit)
+    private static final int MAX_CHUNK_SIZE = 8000;
+    private static final int MAX_CHUNK_BITS = 7;
+    // Chunks per dispatch group (see emitGroup)
+    private static final int GROUP_BITS = 8;
+
+    // Locals of the chunk methods. IP holds ip relative to the chunk start,
+    // which keeps the per-instruction constants small.
+    private static final int STACK = 0;
+    private static final int REGISTERS = 1;
+    private static final int SP = 2;
+    private static final int IP = 3;
+    private static final int TMP = 4;
+
+    private static final String RUNTIME_EXCEPTION = "java/lang/RuntimeException";
+    private static final String ARITHMETIC_EXCEPTION = "java/lang/ArithmeticException";
+    private static final String ILLEGAL_INSTRUCTION = "Illegal instruction memory access!";
+    private static final String ILLEGAL_STACK = "Illegal stack memory access!";
+
+    private CMaJitCompiler() {}
+
+    // Returns null for programs that use the heap or call functions. The
+    // allocator and the frame registers fp and ep only live in the interpreter.
+    static CMaCompiledCode compile(CMaCodeImage image) {
+        if (image.usesHeap() || image.usesFrames()) {
+            return null;
+        }
+        return define(generate(image));
+    }
+
+    // Like compile(image), but defines the class that an earlier compile of
+    // the image stored under name, possibly in another process, and stores
+    // the class it generates otherwise. Classes that fail to define are
+    // treated like damaged files.
+    static CMaCompiledCode compile(CMaCodeImage image, CMaCodeStore store, String name) {
+        if (image.usesHeap() || image.usesFrames()) {
+            return null;
+        }
+        byte[] bytes = store.readClass(name);
+        if (bytes != null) {
+            try {
+                CMaCompiledCode compiled = define(bytes);
+                store.classHits.increment();
+                return compiled;
+            } catch (LinkageError | IllegalStateException e) {
+                store.discard(name);
+            }
+        }
+        bytes = generate(image);
+        store.storeClass(name, bytes);
+        return define(bytes);
+    }
+
+    private static byte[] generate(CMaCodeImage image) {
+        for (int chunkBits = MAX_CHUNK_BITS; chunkBits >= 0; chunkBits--) {
+            byte[] bytes = generate(image, chunkBits);
+            if (bytes != null) {
+                return bytes;
+            }
+        }
+        throw new IllegalStateException("Cannot split program into compilable chunks");
+    }
+
+    private static CMaCompiledCode define(byte[] bytes) {
+        try {
+            Class<?> compiled = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+            return (CMaCompiledCode) compiled.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load compiled CMa program", e);
+        }
+    }
+
+    // Returns null if a chunk ended up too large for the JIT
+    static byte[] generate(CMaCodeImage image, int chunkBits) {
+        JvmClassWriter classWriter = new JvmClassWriter();
+        int chunkSize = 1 << chunkBits;
+        int chunks = (image.length + chunkSize - 1) / chunkSize;
+        boolean fuseBranches = !image.exposesOldSlots();
+
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int start = chunk * chunkSize;
+            int end = Math.min(image.length, start + chunkSize);
+            JvmClassWriter.Code code = new ChunkEmitter(classWriter, image, start, end, fuseBranches).emit();
+            if (code.length() > MAX_CHUNK_SIZE) {
+                return null;
+            }
+            classWriter.addMethod(ACC_STATIC, "chunk" + chunk, CHUNK_DESCRIPTOR, code);
+        }
+        int groups = (chunks + (1 << GROUP_BITS) - 1) >> GROUP_BITS;
+        for (int group = 0; group < groups; group++) {
+            classWriter.addMethod(ACC_STATIC, "group" + group, CHUNK_DESCRIPTOR,
+                    emitGroup(classWriter, group, chunks, chunkBits));
+        }
+        classWriter.addMethod(ACC_PUBLIC, "<init>", "()V", emitConstructor(classWriter));
+        classWriter.addMethod(ACC_PUBLIC, "run", CHUNK_DESCRIPTOR, emitRun(classWriter, image.length, groups, chunkBits));
+        return classWriter.toByteArray(ACC_PUBLIC | ACC_FINAL | ACC_SUPER, CLASS_NAME, "java/lang/Object",
+                "tum/i2/cma/CMaCompiledCode");
+    }
+
+    private static JvmClassWriter.Code emitConstructor(JvmClassWriter classWriter) {
+        JvmClassWriter.Code code = new JvmClassWriter.Code(classWriter, 1, 1);
+        code.load(ALOAD, 0);
+        code.member(INVOKESPECIAL, classWriter.methodRef("java/lang/Object", "<init>", "()V"));
+        code.op(RETURN);
+        return code;
+    }
+
+    // while (ip < length) group[ip >>> (chunkBits + GROUP_BITS)](stack, registers);
+    private static JvmClassWriter.Code emitRun(JvmClassWriter classWriter, int length, int groups, int chunkBits) {
+        final int stack = 1;
+        final int registers = 2;
+        final int ip = 3;
+        JvmClassWriter.Code code = new JvmClassWriter.Code(classWriter, 3, 4);
+        JvmClassWriter.Label loop = new JvmClassWriter.Label();
+        JvmClassWriter.Label done = new JvmClassWriter.Label();
+        JvmClassWriter.Label[] calls = newLabels(groups);
+
+        code.bind(loop);
+        code.load(ALOAD, registers);
+        code.iconst(1);
+        code.op(IALOAD);
+        code.load(ISTORE, ip);
+        code.load(ILOAD, ip);
+        code.iconst(length);
+        code.jump(IF_ICMPGE, done);
+        code.load(ILOAD, ip);
+        code.iconst(chunkBits + GROUP_BITS);
+        code.op(IUSHR);
+        code.tableswitch(0, done, calls);
+        for (int group = 0; group < groups; group++) {
+            code.bind(calls[group]);
+            code.load(ALOAD, stack);
+            code.load(ALOAD, registers);
+            code.member(INVOKESTATIC, classWriter.methodRef(CLASS_NAME, "group" + group, CHUNK_DESCRIPTOR));
+            code.jump(GOTO, loop);
+        }
+        code.bind(done);
+        code.op(RETURN);
+        return code;
+    }
+
+    // Calls the chunk of this group that holds ip. Splitting the dispatch
+    // into groups keeps every method small enough for the JIT.
+    private static JvmClassWriter.Code emitGroup(JvmClassWriter classWriter, int group, int chunks, int chunkBits) {
+        final int stack = 0;
+        final int registers = 1;
+        int first = group << GROUP_BITS;
+        int last = Math.min(chunks, first + (1 << GROUP_BITS));
+        JvmClassWriter.Code code = new JvmClassWriter.Code(classWriter, 3, 2);
+        JvmClassWriter.Label done = new JvmClassWriter.Label();
+        JvmClassWriter.Label[] calls = newLabels(last - first);
+
+        code.load(ALOAD, registers);
+        code.iconst(1);
+        code.op(IALOAD);
+        code.iconst(chunkBits);
+        code.op(IUSHR);
+        code.tableswitch(first, done, calls);
+        for (int chunk = first; chunk < last; chunk++) {
+            code.bind(calls[chunk - first]);
+            code.load(ALOAD, stack);
+            code.load(ALOAD, registers);
+            code.member(INVOKESTATIC, classWriter.methodRef(CLASS_NAME, "chunk" + chunk, CHUNK_DESCRIPTOR));
+            code.jump(GOTO, done);
+        }
+        code.bind(done);
+        code.op(RETURN);
+        return code;
+    }
+
+    private static JvmClassWriter.Label[] newLabels(int count) {
+        JvmClassWriter.Label[] labels = new JvmClassWriter.Label[count];
+        for (int i = 0; i < count; i++) {
+            labels[i] = new JvmClassWriter.Label();
+        }
+        return labels;
+    }
+
+    private static final class ChunkEmitter {
+        private final JvmClassWriter classWriter;
+        private final JvmClassWriter.Code code;
+        private final CMaCodeImage image;
+        private final int start;
+        private final int end;
+        private final boolean fuseBranches;
+        private final JvmClassWriter.Label[] labels;
+        private final JvmClassWriter.Label dispatch = new JvmClassWriter.Label();
+        private final JvmClassWriter.Label exit = new JvmClassWriter.Label();
+        // Stubs emitted after the instructions, keyed by target or message
+        private final Map<Integer, JvmClassWriter.Label> exitStubs = new HashMap<>();
+        private final Map<Integer, JvmClassWriter.Label> illegalJumpStubs = new HashMap<>();
+        private final Map<String, JvmClassWriter.Label> trapStubs = new HashMap<>();
+        private final Map<String, String> trapExceptions = new HashMap<>();
+
+        ChunkEmitter(JvmClassWriter classWriter, CMaCodeImage image, int start, int end, boolean fuseBranches) {
+            this.classWriter = classWriter;
+            this.code = new JvmClassWriter.Code(classWriter, 6, 5);
+            this.image = image;
+            this.start = start;
+            this.end = end;
+            this.fuseBranches = fuseBranches;
+            this.labels = newLabels(end - start);
+        }
+
+        JvmClassWriter.Code emit() {
+            // sp = registers[0]; ip = registers[1];
+            code.load(ALOAD, REGISTERS);
+            code.iconst(0);
+            code.op(IALOAD);
+            code.load(ISTORE, SP);
+            code.load(ALOAD, REGISTERS);
+            code.iconst(1);
+            code.op(IALOAD);
+            code.iconst(start);
+            code.op(ISUB);
+            code.load(ISTORE, IP);
+
+            JvmClassWriter.Label protectedStart = new JvmClassWriter.Label();
+            JvmClassWriter.Label protectedEnd = new JvmClassWriter.Label();
+            JvmClassWriter.Label handler = new JvmClassWriter.Label();
+            code.bind(protectedStart);
+            code.bind(dispatch);
+            code.load(ILOAD, IP);
+            code.tableswitch(0, exit, labels);
+
+            for (int i = start; i < end; i++) {
+                code.bind(labels[i - start]);
+                // Like the interpreter, ip already points past the instruction while it executes
+                code.iconst(i + 1 - start);
+                code.load(ISTORE, IP);
+                int next = emitInstruction(i);
+                if (next >= 0 && (next >= end || next != i + 1)) {
+                    code.jump(GOTO, jumpTo(next));
+                }
+            }
+            emitStubs();
+            code.bind(protectedEnd);
+
+            // Normal exit: write back the registers
+            code.bind(exit);
+            storeRegisters();
+            code.op(RETURN);
+
+            // Trap: write back the registers and rethrow
+            code.bind(handler);
+            storeRegisters();
+            code.op(ATHROW);
+            code.handler(protectedStart, protectedEnd, handler);
+            return code;
+        }
+
+        private void storeRegisters() {
+            code.load(ALOAD, REGISTERS);
+            code.iconst(0);
+            code.load(ILOAD, SP);
+            code.op(IASTORE);
+            code.load(ALOAD, REGISTERS);
+            code.iconst(1);
+            code.load(ILOAD, IP);
+            code.iconst(start);
+            code.op(IADD);
+            code.op(IASTORE);
+        }
+
+        private int opcodeAt(int i) {
+            return CMaOpcodes.baseOf(image.code[i * CMaCodeImage.STRIDE]);
+        }
+
+        private int operandAt(int i) {
+            return image.code[i * CMaCodeImage.STRIDE + 1];
+        }
+
+        // Emits instruction i and returns the index of the instruction control
+        // continues with, or -1 if it never falls through.
+        private int emitInstruction(int i) {
+            int opcode = opcodeAt(i);
+            int operand = operandAt(i);
+            switch (opcode) {
+                case CMaOpcodes.LOADC -> {
+                    // stack[++sp] = c
+                    code.iinc(SP, 1);
+                    code.load(ALOAD, STACK);
+                    code.load(ILOAD, SP);
+                    code.iconst(operand);
+                    code.op(IASTORE);
+                }
+                case CMaOpcodes.ADD -> emitBinary(IADD, "ADD");
+                case CMaOpcodes.SUB -> emitBinary(ISUB, "SUB");
+                case CMaOpcodes.MUL -> emitBinary(IMUL, "MUL");
+                case CMaOpcodes.DIV -> emitDivision(IDIV, "DIV");
+                case CMaOpcodes.MOD -> emitDivision(IREM, "MOD");
+                case CMaOpcodes.AND, CMaOpcodes.OR, CMaOpcodes.XOR -> emitLogical(opcode);
+                case CMaOpcodes.EQ, CMaOpcodes.NEQ, CMaOpcodes.LE, CMaOpcodes.LEQ, CMaOpcodes.GR, CMaOpcodes.GEQ -> {
+                    if (fuseBranches && i + 1 < image.length && opcodeAt(i + 1) == CMaOpcodes.JUMPZ
+                            && operandAt(i + 1) >= 0 && operandAt(i + 1) < image.length) {
+                        return emitCompareAndBranch(opcode, operandAt(i + 1), i + 2);
+                    }
+                    emitComparison(opcode);
+                }
+                case CMaOpcodes.NOT -> {
+                    requireSp(0, "NOT");
+                    // stack[sp] = (stack[sp] != 0) ? 0 : 1
+                    code.load(ALOAD, STACK);
+                    code.load(ILOAD, SP);
+                    pushTop(0);
+                    emitBoolean(IFNE, false);
+                    code.op(IASTORE);
+                }
+                case CMaOpcodes.NEG -> {
+                    requireSp(0, "NEG");
+                    code.load(ALOAD, STACK);
+                    code.load(ILOAD, SP);
+                    pushTop(0);
+                    code.op(INEG);
+                    code.op(IASTORE);
+                }
+                case CMaOpcodes.LOAD -> {
+                    requireSp(0, "LOAD");
+                    // addr = stack[sp]; if (addr > sp) trap; stack[sp] = stack[addr]
+                    pushTop(0);
+                    code.load(ISTORE, TMP);
+                    code.load(ILOAD, TMP);
+                    code.load(ILOAD, SP);
+                    code.jump(IF_ICMPGT, trap(RUNTIME_EXCEPTION, ILLEGAL_STACK));
+                    code.load(ALOAD, STACK);
+                    code.load(ILOAD, SP);
+                    code.load(ALOAD, STACK);
+                    code.load(ILOAD, TMP);
+                    code.op(IALOAD);
+                    code.op(IASTORE);
+                }
+                case CMaOpcodes.STORE -> {
+                    requireSp(1, "STORE");
+                    // addr = stack[sp--]; if (addr > sp) trap; stack[addr] = stack[sp]
+                    pushTop(0);
+                    code.load(ISTORE, TMP);
+                    code.iinc(SP, -1);
+                    code.load(ILOAD, TMP);
+                    code.load(ILOAD, SP);
+                    code.jump(IF_ICMPGT, trap(RUNTIME_EXCEPTION, ILLEGAL_STACK));
+                    code.load(ALOAD, STACK);
+                    code.load(ILOAD, TMP);
+                    pushTop(0);
+                    code.op(IASTORE);
+                }
+                case CMaOpcodes.LOADA -> {
+                    // if (addr > sp) trap; stack[++sp] = stack[addr]
+                    code.load(ILOAD, SP);
+                    code.iconst(operand);
+                    code.jump(IF_ICMPLT, trap(RUNTIME_EXCEPTION, ILLEGAL_STACK));
+                    code.iinc(SP, 1);
+                    code.load(ALOAD, STACK);
+                    code.load(ILOAD, SP);
+                    code.load(ALOAD, STACK);
+                    code.iconst(operand);
+                    code.op(IALOAD);
+                    code.op(IASTORE);
+                }
+                case CMaOpcodes.STOREA -> {
+                    // if (addr > sp || sp < 0) trap; stack[addr] = stack[sp]
+                    code.load(ILOAD, SP);
+                    code.iconst(operand);
+                    code.jump(IF_ICMPLT, trap(RUNTIME_EXCEPTION, ILLEGAL_STACK));
+                    code.load(ILOAD, SP);
+                    code.jump(IFLT, trap(RUNTIME_EXCEPTION, ILLEGAL_STACK));
+                    code.load(ALOAD, STACK);
+                    code.iconst(operand);
+                    pushTop(0);
+                    code.op(IASTORE);
+                }
+                case CMaOpcodes.POP -> {
+                    code.load(ILOAD, SP);
+                    code.iconst(-1);
+                    code.jump(IF_ICMPEQ, trap(RUNTIME_EXCEPTION, "Nothing to pop from the stack!"));
+                    code.iinc(SP, -1);
+                }
+                case CMaOpcodes.JUMP -> {
+                    if (operand >= image.length) {
+                        code.jump(GOTO, trap(RUNTIME_EXCEPTION, ILLEGAL_INSTRUCTION));
+                    } else {
+                        code.jump(GOTO, jumpTo(operand));
+                    }
+                    return -1;
+                }
+                case CMaOpcodes.JUMPZ -> {
+                    if (operand >= image.length) {
+                        code.jump(GOTO, trap(RUNTIME_EXCEPTION, ILLEGAL_INSTRUCTION));
+                        return -1;
+                    }
+                    // if (stack[sp--] == 0) goto target
+                    pushTop(0);
+                    code.iinc(SP, -1);
+                    code.jump(IFEQ, jumpTo(operand));
+                }
+                case CMaOpcodes.JUMPI -> {
+                    if (operand >= image.length) {
+                        code.jump(GOTO, trap(RUNTIME_EXCEPTION, ILLEGAL_INSTRUCTION));
+                        return -1;
+                    }
+                    // ip = iaddr + stack[sp--]; then dispatch on ip
+                    pushTop(0);
+                    code.iconst(operand);
+                    code.op(IADD);
+                    code.load(ISTORE, TMP);
+                    code.load(ILOAD, TMP);
+                    code.iconst(start);
+                    code.op(ISUB);
+                    code.load(ISTORE, IP);
+                    code.iinc(SP, -1);
+                    code.load(ILOAD, TMP);
+                    code.jump(IFLT, trap(RUNTIME_EXCEPTION, ILLEGAL_INSTRUCTION));
+                    code.load(ILOAD, TMP);
+                    code.iconst(image.length);
+                    code.jump(IF_ICMPGT, trap(RUNTIME_EXCEPTION, ILLEGAL_INSTRUCTION));
+                    code.jump(GOTO, dispatch);
+                    return -1;
+                }
+                case CMaOpcodes.DUP -> {
+                    code.load(ILOAD, SP);
+                    code.iconst(-1);
+                    code.jump(IF_ICMPEQ, trap(RUNTIME_EXCEPTION, "Nothing to duplicate! Stack is empty!"));
+                    // stack[sp + 1] = stack[sp]; ++sp
+                    code.load(ALOAD, STACK);
+                    code.load(ILOAD, SP);
+                    code.iconst(1);
+                    code.op(IADD);
+                    pushTop(0);
+                    code.op(IASTORE);
+                    code.iinc(SP, 1);
+                }
+                case CMaOpcodes.ALLOC -> {
+                    code.iinc(SP, operand);
+                    code.load(ILOAD, SP);
+                    code.load(ALOAD, STACK);
+                    code.op(ARRAYLENGTH);
+                    code.jump(IF_ICMPGE, trap(RUNTIME_EXCEPTION, "Memory overflow!"));
+                }
+                default -> throw new IllegalArgumentException("Cannot compile opcode " + opcode);
+            }
+            return i + 1;
+        }
+
+        // Pushes stack[sp - offset]
+        private void pushTop(int offset) {
+            code.load(ALOAD, STACK);
+            code.load(ILOAD, SP);
+            if (offset != 0) {
+                code.iconst(offset);
+                code.op(ISUB);
+            }
+            code.op(IALOAD);
+        }
+
+        private void requireSp(int minimum, String name) {
+            code.load(ILOAD, SP);
+            code.iconst(minimum);
+            code.jump(IF_ICMPLT, trap(RUNTIME_EXCEPTION, "Not enough arguments on the stack to call " + name + "!"));
+        }
+
+        private void emitBinary(int operation, String name) {
+            requireSp(1, name);
+            emitBinaryUnchecked(operation);
+        }
+
+        private void emitDivision(int operation, String name) {
+            requireSp(1, name);
+            pushTop(0);
+            code.jump(IFEQ, trap(ARITHMETIC_EXCEPTION, "Division by zero is not allowed!"));
+            emitBinaryUnchecked(operation);
+        }
+
+        // stack[sp - 1] = stack[sp - 1] <op> stack[sp]; --sp
+        private void emitBinaryUnchecked(int operation) {
+            code.load(ALOAD, STACK);
+            code.load(ILOAD, SP);
+            code.iconst(1);
+            code.op(ISUB);
+            code.op(DUP2);
+            code.op(IALOAD);
+            pushTop(0);
+            code.op(operation);
+            code.op(IASTORE);
+            code.iinc(SP, -1);
+        }
+
+        // Pushes 1 if the branch is taken on the value on top of the JVM stack, 0 otherwise
+        // (or the other way round if whenTaken is false).
+        private void emitBoolean(int branch, boolean whenTaken) {
+            JvmClassWriter.Label taken = new JvmClassWriter.Label();
+            JvmClassWriter.Label done = new JvmClassWriter.Label();
+            code.jump(branch, taken);
+            code.iconst(whenTaken ? 0 : 1);
+            code.jump(GOTO, done);
+            code.bind(taken);
+            code.iconst(whenTaken ? 1 : 0);
+            code.bind(done);
+        }
+
+        private void emitLogical(int opcode) {
+            String name = opcode == CMaOpcodes.AND ? "AND" : opcode == CMaOpcodes.OR ? "OR" : "XOR";
+            requireSp(1, name);
+            code.load(ALOAD, STACK);
+            code.load(ILOAD, SP);
+            code.iconst(1);
+            code.op(ISUB);
+            // Normalise both operands to 0/1, then combine
+            pushTop(1);
+            emitBoolean(IFNE, true);
+            pushTop(0);
+            emitBoolean(IFNE, true);
+            switch (opcode) {
+                case CMaOpcodes.AND -> code.op(IAND);
+                case CMaOpcodes.OR -> code.op(IOR);
+                default -> code.op(IXOR);
+            }
+            code.op(IASTORE);
+            code.iinc(SP, -1);
+        }
+
+        private static int compareBranch(int opcode) {
+            return switch (opcode) {
+                case CMaOpcodes.EQ -> IF_ICMPEQ;
+                case CMaOpcodes.NEQ -> IF_ICMPNE;
+                case CMaOpcodes.LE -> IF_ICMPLT;
+                case CMaOpcodes.LEQ -> IF_ICMPLE;
+                case CMaOpcodes.GR -> IF_ICMPGT;
+                default -> IF_ICMPGE;
+            };
+        }
+
+        private static int negatedCompareBranch(int opcode) {
+            return switch (opcode) {
+                case CMaOpcodes.EQ -> IF_ICMPNE;
+                case CMaOpcodes.NEQ -> IF_ICMPEQ;
+                case CMaOpcodes.LE -> IF_ICMPGE;
+                case CMaOpcodes.LEQ -> IF_ICMPGT;
+                case CMaOpcodes.GR -> IF_ICMPLE;
+                default -> IF_ICMPLT;
+            };
+        }
+
+        private static String comparisonName(int opcode) {
+            return switch (opcode) {
+                case CMaOpcodes.EQ -> "EQ";
+                case CMaOpcodes.NEQ -> "NEQ";
+                case CMaOpcodes.LE -> "LE";
+                case CMaOpcodes.LEQ -> "LEQ";
+                case CMaOpcodes.GR -> "GR";
+                default -> "GEQ";
+            };
+        }
+
+        // stack[sp - 1] = (stack[sp - 1] <cmp> stack[sp]) ? 1 : 0; --sp
+        private void emitComparison(int opcode) {
+            requireSp(1, comparisonName(opcode));
+            code.load(ALOAD, STACK);
+            code.load(ILOAD, SP);
+            code.iconst(1);
+            code.op(ISUB);
+            pushTop(1);
+            pushTop(0);
+            emitBoolean(compareBranch(opcode), true);
+            code.op(IASTORE);
+            code.iinc(SP, -1);
+        }
+
+        // <cmp>; JUMPZ target as one branch, the JUMPZ target is known to be valid
+        private int emitCompareAndBranch(int opcode, int target, int next) {
+            requireSp(1, comparisonName(opcode));
+            pushTop(1);
+            pushTop(0);
+            code.iinc(SP, -2);
+            code.jump(negatedCompareBranch(opcode), jumpTo(target));
+            return next;
+        }
+
+        // Branch target for continuing at instruction target
+        private JvmClassWriter.Label jumpTo(int target) {
+            if (target < 0) {
+                return illegalJumpStubs.computeIfAbsent(target, t -> new JvmClassWriter.Label());
+            }
+            if (target >= start && target < end) {
+                return labels[target - start];
+            }
+            return exitStubs.computeIfAbsent(target, t -> new JvmClassWriter.Label());
+        }
+
+        private JvmClassWriter.Label trap(String exception, String message) {
+            trapExceptions.put(message, exception);
+            return trapStubs.computeIfAbsent(message, m -> new JvmClassWriter.Label());
+        }
+
+        private void emitStubs() {
+            for (Map.Entry<Integer, JvmClassWriter.Label> stub : exitStubs.entrySet()) {
+                code.bind(stub.getValue());
+                code.iconst(stub.getKey() - start);
+                code.load(ISTORE, IP);
+                code.jump(GOTO, exit);
+            }
+            for (Map.Entry<Integer, JvmClassWriter.Label> stub : illegalJumpStubs.entrySet()) {
+                // Like the interpreter, ip is set to the bad target before trapping
+                code.bind(stub.getValue());
+                code.iconst(stub.getKey() - start);
+                code.load(ISTORE, IP);
+                code.jump(GOTO, trap(RUNTIME_EXCEPTION, ILLEGAL_INSTRUCTION));
+            }
+            for (Map.Entry<String, JvmClassWriter.Label> stub : trapStubs.entrySet()) {
+                String exception = trapExceptions.get(stub.getKey());
+                code.bind(stub.getValue());
+                code.member(NEW, classWriter.classRef(exception));
+                code.op(DUP);
+                code.ldcString(stub.getKey());
+                code.member(INVOKESPECIAL, classWriter.methodRef(exception, "<init>", "(Ljava/lang/String;)V"));
+                code.op(ATHROW);
+            }
+        }
+    }
+}
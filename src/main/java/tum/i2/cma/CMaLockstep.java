@@ -0,0 +1,647 @@
+package tum.i2.cma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Runs one program over many inputs at once. Lanes that are at the same
+// instruction with the same stack depth form a group, and a group executes
+// each instruction once, as a loop over its lanes. The stack is stored as a
+// structure of arrays: slot s of every lane is in the row slots[s], and the
+// lanes of a group are a contiguous range of positions in the rows. So
+// arithmetic, LOADC, LOADA, STOREA and DUP are plain array loops or copies,
+// which C2 compiles to SIMD instructions, and the dispatch of an instruction
+// is paid once for all lanes of the group.
+//
+// JUMPZ and JUMPI split a group when its lanes go different ways, and lanes
+// that trap leave it with their own error. Lanes are moved between positions
+// so that every group stays contiguous. The group at the lowest instruction
+// runs first, and groups next to each other are merged again when they meet
+// at the same instruction with the same stack depth. That brings the lanes of
+// an if/else, or of a loop with different trip counts, back together.
+//
+// Every lane ends exactly like a CMa that starts with its input on the stack.
+// Programs that use the heap or call functions are not supported. Not
+// thread-safe.
+//
+//   // xs[lane] starts in slot 0, ys[lane] in slot 1
+//   CMaLockstep lockstep = new CMaLockstep(image, 100000, xs, ys);
+//   lockstep.run();
+//   int result = lockstep.getStack(lane)[0];
+public final class CMaLockstep {
+
+    // dispatched counts the instructions executed by groups, retired the
+    // instructions executed by lanes, so retired / dispatched is the average
+    // number of lanes an instruction ran on
+    public record Stats(long dispatched, long retired, long splits, long merges) {}
+
+    // The lanes at positions from .. to - 1, at instruction ip with stack pointer sp
+    private static final class Group {
+        int from;
+        int to;
+        int ip;
+        int sp;
+
+        Group(int from, int to, int ip, int sp) {
+            this.from = from;
+            this.to = to;
+            this.ip = ip;
+            this.sp = sp;
+        }
+    }
+
+    private final CMaCodeImage image;
+    private final int[] code; // Plain opcodes only, superinstructions run as their first instruction
+    private final int lanes;
+    private final int stackLimit;
+    private int[][] slots; // slots[s][position], rows are allocated as the stack grows
+    private int rowCount;
+    private final int[] targets; // JUMPI targets by position
+    private final int[] laneAt; // Input lane at each position
+    private final int[] positionOf;
+    private final List<Group> groups = new ArrayList<>(); // Running groups, by position
+    // Final state of every lane, by input lane
+    private final int[] finalIp;
+    private final int[] finalSp;
+    private final RuntimeException[] traps;
+    private long dispatched;
+    private long retired;
+    private long splits;
+    private long merges;
+
+    // inputs[k][lane] is stack slot k of the lane when it starts
+    public CMaLockstep(CMaCodeImage image, int lanes, int[]... inputs) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("At least one lane is needed");
+        }
+        if (image.usesHeap() || image.usesFrames()) {
+            throw new IllegalArgumentException("Lockstep execution supports neither the heap nor function calls");
+        }
+        for (int k = 0; k < inputs.length; k++) {
+            if (inputs[k].length != lanes) {
+                throw new IllegalArgumentException("Input " + k + " has " + inputs[k].length + " values for "
+                        + lanes + " lanes");
+            }
+        }
+        this.stackLimit = CMa.MEMMAX;
+        if (inputs.length > stackLimit) {
+            throw new IllegalArgumentException("Inputs of " + inputs.length + " slots exceed the stack limit");
+        }
+        this.image = image;
+        this.code = Arrays.copyOf(image.code, image.length * CMaCodeImage.STRIDE);
+        for (int pc = 0; pc < code.length; pc += CMaCodeImage.STRIDE) {
+            code[pc] = CMaOpcodes.baseOf(code[pc]);
+        }
+        this.lanes = lanes;
+        this.slots = new int[Math.min(16, stackLimit)][];
+        ensureRows(inputs.length + 2);
+        for (int k = 0; k < inputs.length; k++) {
+            System.arraycopy(inputs[k], 0, slots[k], 0, lanes);
+        }
+        this.targets = new int[lanes];
+        this.laneAt = new int[lanes];
+        this.positionOf = new int[lanes];
+        for (int lane = 0; lane < lanes; lane++) {
+            laneAt[lane] = lane;
+            positionOf[lane] = lane;
+        }
+        this.finalIp = new int[lanes];
+        this.finalSp = new int[lanes];
+        this.traps = new RuntimeException[lanes];
+        groups.add(new Group(0, lanes, 0, inputs.length - 1));
+    }
+
+    // Runs every lane to its end or its trap
+    public void run() {
+        while (!groups.isEmpty()) {
+            int index = 0;
+            for (int i = 1; i < groups.size(); i++) {
+                if (groups.get(i).ip < groups.get(index).ip) {
+                    index = i;
+                }
+            }
+            index = merge(index);
+            Group group = groups.get(index);
+            // Stop where the next group waits, it may join this one there
+            int yieldAt = Integer.MAX_VALUE;
+            for (Group other : groups) {
+                if (other.ip > group.ip && other.ip < yieldAt) {
+                    yieldAt = other.ip;
+                }
+            }
+            execute(group, yieldAt);
+        }
+    }
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    public boolean isFinished() {
+        return groups.isEmpty();
+    }
+
+    // The state of a lane after run()
+    public int getIP(int lane) {
+        checkFinished();
+        return finalIp[lane];
+    }
+
+    public int getSP(int lane) {
+        checkFinished();
+        return finalSp[lane];
+    }
+
+    // Slots 0 .. sp of the lane
+    public int[] getStack(int lane) {
+        checkFinished();
+        int position = positionOf[lane];
+        int[] stack = new int[Math.max(0, finalSp[lane] + 1)];
+        for (int s = 0; s < Math.min(stack.length, rowCount); s++) {
+            stack[s] = slots[s][position];
+        }
+        return stack;
+    }
+
+    // The error the lane trapped with, null if it finished normally.
+    // Lanes that trap together in one instruction share it.
+    public RuntimeException getTrap(int lane) {
+        checkFinished();
+        return traps[lane];
+    }
+
+    public Stats getStats() {
+        return new Stats(dispatched, retired, splits, merges);
+    }
+
+    private void checkFinished() {
+        if (!groups.isEmpty()) {
+            throw new IllegalStateException("The lanes have not been run yet");
+        }
+    }
+
+    // Joins the group at index with the groups next to it that wait at the same
+    // instruction with the same stack depth, returns its new index
+    private int merge(int index) {
+        Group group = groups.get(index);
+        while (index + 1 < groups.size() && joins(group, groups.get(index + 1))) {
+            group.to = groups.remove(index + 1).to;
+            merges++;
+        }
+        while (index > 0 && joins(groups.get(index - 1), group)) {
+            group.from = groups.remove(--index).from;
+            merges++;
+        }
+        return index;
+    }
+
+    private static boolean joins(Group left, Group right) {
+        return left.to == right.from && left.ip == right.ip && left.sp == right.sp;
+    }
+
+    // Runs the group until it ends, traps, splits or reaches yieldAt. The
+    // checks and the order of updates to ip and sp mirror CMa.interpret(), so
+    // lanes trap with the same state.
+    private void execute(Group group, int yieldAt) {
+        final int[] code = this.code;
+        final int length = image.length;
+        final int to = group.to;
+        int from = group.from;
+        int ip = group.ip;
+        int sp = group.sp;
+        int[][] slots = this.slots;
+        long dispatched = 0;
+        long retired = 0;
+        try {
+            execution:
+            while (ip < length && ip < yieldAt) {
+                if (sp + 2 > rowCount) {
+                    slots = ensureRows(sp + 2);
+                }
+                final int pc = ip * CMaCodeImage.STRIDE;
+                ip++;
+                dispatched++;
+                retired += to - from;
+                switch (code[pc]) {
+                    case CMaOpcodes.LOADC -> {
+                        Arrays.fill(slots[++sp], from, to, code[pc + 1]);
+                    }
+                    case CMaOpcodes.ADD -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call ADD!");
+                        }
+                        int[] second = slots[sp];
+                        int[] first = slots[--sp];
+                        for (int p = from; p < to; p++) {
+                            first[p] += second[p];
+                        }
+                    }
+                    case CMaOpcodes.SUB -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call SUB!");
+                        }
+                        int[] second = slots[sp];
+                        int[] first = slots[--sp];
+                        for (int p = from; p < to; p++) {
+                            first[p] -= second[p];
+                        }
+                    }
+                    case CMaOpcodes.MUL -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call MUL!");
+                        }
+                        int[] second = slots[sp];
+                        int[] first = slots[--sp];
+                        for (int p = from; p < to; p++) {
+                            first[p] *= second[p];
+                        }
+                    }
+                    case CMaOpcodes.DIV, CMaOpcodes.MOD -> {
+                        boolean div = code[pc] == CMaOpcodes.DIV;
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call "
+                                    + (div ? "DIV" : "MOD") + "!");
+                        }
+                        int[] second = slots[sp];
+                        int zeros = separateEqual(from, to, second, 0);
+                        if (zeros > 0) {
+                            RuntimeException trap = new ArithmeticException("Division by zero is not allowed!");
+                            finish(from, from + zeros, ip, sp, trap);
+                            from = group.from = from + zeros;
+                            if (from == to) {
+                                groups.remove(group);
+                                return;
+                            }
+                        }
+                        int[] first = slots[--sp];
+                        if (div) {
+                            for (int p = from; p < to; p++) {
+                                first[p] /= second[p];
+                            }
+                        } else {
+                            for (int p = from; p < to; p++) {
+                                first[p] %= second[p];
+                            }
+                        }
+                    }
+                    case CMaOpcodes.AND -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call AND!");
+                        }
+                        int[] c1 = slots[sp];
+                        int[] c2 = slots[--sp];
+                        for (int p = from; p < to; p++) {
+                            c2[p] = (c1[p] != 0 && c2[p] != 0) ? 1 : 0;
+                        }
+                    }
+                    case CMaOpcodes.OR -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call OR!");
+                        }
+                        int[] c1 = slots[sp];
+                        int[] c2 = slots[--sp];
+                        for (int p = from; p < to; p++) {
+                            c2[p] = (c1[p] != 0 || c2[p] != 0) ? 1 : 0;
+                        }
+                    }
+                    case CMaOpcodes.XOR -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call XOR!");
+                        }
+                        int[] c1 = slots[sp];
+                        int[] c2 = slots[--sp];
+                        for (int p = from; p < to; p++) {
+                            c2[p] = ((c1[p] != 0) != (c2[p] != 0)) ? 1 : 0;
+                        }
+                    }
+                    case CMaOpcodes.EQ -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call EQ!");
+                        }
+                        int[] second = slots[sp];
+                        int[] first = slots[--sp];
+                        for (int p = from; p < to; p++) {
+                            first[p] = (first[p] == second[p]) ? 1 : 0;
+                        }
+                    }
+                    case CMaOpcodes.NEQ -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call NEQ!");
+                        }
+                        int[] second = slots[sp];
+                        int[] first = slots[--sp];
+                        for (int p = from; p < to; p++) {
+                            first[p] = (first[p] != second[p]) ? 1 : 0;
+                        }
+                    }
+                    case CMaOpcodes.LE -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call LE!");
+                        }
+                        int[] second = slots[sp];
+                        int[] first = slots[--sp];
+                        for (int p = from; p < to; p++) {
+                            first[p] = (first[p] < second[p]) ? 1 : 0;
+                        }
+                    }
+                    case CMaOpcodes.LEQ -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call LEQ!");
+                        }
+                        int[] second = slots[sp];
+                        int[] first = slots[--sp];
+                        for (int p = from; p < to; p++) {
+                            first[p] = (first[p] <= second[p]) ? 1 : 0;
+                        }
+                    }
+                    case CMaOpcodes.GR -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call GR!");
+                        }
+                        int[] second = slots[sp];
+                        int[] first = slots[--sp];
+                        for (int p = from; p < to; p++) {
+                            first[p] = (first[p] > second[p]) ? 1 : 0;
+                        }
+                    }
+                    case CMaOpcodes.GEQ -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call GEQ!");
+                        }
+                        int[] second = slots[sp];
+                        int[] first = slots[--sp];
+                        for (int p = from; p < to; p++) {
+                            first[p] = (first[p] >= second[p]) ? 1 : 0;
+                        }
+                    }
+                    case CMaOpcodes.NOT -> {
+                        if (sp < 0) {
+                            throw new RuntimeException("Not enough arguments on the stack to call NOT!");
+                        }
+                        int[] top = slots[sp];
+                        for (int p = from; p < to; p++) {
+                            top[p] = (top[p] != 0) ? 0 : 1;
+                        }
+                    }
+                    case CMaOpcodes.NEG -> {
+                        if (sp < 0) {
+                            throw new RuntimeException("Not enough arguments on the stack to call NEG!");
+                        }
+                        int[] top = slots[sp];
+                        for (int p = from; p < to; p++) {
+                            top[p] = -top[p];
+                        }
+                    }
+                    // LOAD and STORE address every lane's stack separately
+                    case CMaOpcodes.LOAD -> {
+                        if (sp < 0) {
+                            throw new RuntimeException("Not enough arguments on the stack to call LOAD!");
+                        }
+                        int[] top = slots[sp];
+                        from = group.from = trapOutside(group, top, sp, ip, sp);
+                        if (from == to) {
+                            return;
+                        }
+                        for (int p = from; p < to; p++) {
+                            top[p] = slots[top[p]][p];
+                        }
+                    }
+                    case CMaOpcodes.STORE -> {
+                        if (sp < 1) {
+                            throw new RuntimeException("Not enough arguments on the stack to call STORE!");
+                        }
+                        int[] top = slots[sp--];
+                        from = group.from = trapOutside(group, top, sp, ip, sp);
+                        if (from == to) {
+                            return;
+                        }
+                        int[] value = slots[sp];
+                        for (int p = from; p < to; p++) {
+                            slots[top[p]][p] = value[p];
+                        }
+                    }
+                    case CMaOpcodes.LOADA -> {
+                        int addr = code[pc + 1];
+                        if (addr > sp) {
+                            throw new RuntimeException("Illegal stack memory access!");
+                        }
+                        int[] top = slots[++sp];
+                        System.arraycopy(slots[addr], from, top, from, to - from);
+                    }
+                    case CMaOpcodes.STOREA -> {
+                        int addr = code[pc + 1];
+                        if (addr > sp || sp < 0) {
+                            throw new RuntimeException("Illegal stack memory access!");
+                        }
+                        System.arraycopy(slots[sp], from, slots[addr], from, to - from);
+                    }
+                    case CMaOpcodes.POP -> {
+                        if (sp == -1) {
+                            throw new RuntimeException("Nothing to pop from the stack!");
+                        }
+                        --sp;
+                    }
+                    case CMaOpcodes.DUP -> {
+                        if (sp == -1) {
+                            throw new RuntimeException("Nothing to duplicate! Stack is empty!");
+                        }
+                        System.arraycopy(slots[sp], from, slots[sp + 1], from, to - from);
+                        ++sp;
+                    }
+                    case CMaOpcodes.ALLOC -> {
+                        sp += code[pc + 1];
+                        if (sp >= stackLimit) {
+                            throw new RuntimeException("Memory overflow!");
+                        }
+                    }
+                    case CMaOpcodes.JUMP -> {
+                        int iaddr = code[pc + 1];
+                        if (iaddr >= length) {
+                            throw new RuntimeException("Illegal instruction memory access!");
+                        }
+                        ip = iaddr;
+                        if (ip < 0) {
+                            throw new RuntimeException("Illegal instruction memory access!");
+                        }
+                    }
+                    case CMaOpcodes.JUMPZ -> {
+                        int iaddr = code[pc + 1];
+                        if (iaddr >= length) {
+                            throw new RuntimeException("Illegal instruction memory access!");
+                        }
+                        int zeros = separateEqual(from, to, slots[sp], 0);
+                        --sp;
+                        if (zeros == to - from) {
+                            ip = iaddr;
+                            if (ip < 0) {
+                                throw new RuntimeException("Illegal instruction memory access!");
+                            }
+                        } else if (zeros > 0) {
+                            // The lanes that jump continue as a group of their own
+                            if (iaddr < 0) {
+                                finish(from, from + zeros, iaddr, sp,
+                                        new RuntimeException("Illegal instruction memory access!"));
+                            } else {
+                                groups.add(groups.indexOf(group), new Group(from, from + zeros, iaddr, sp));
+                                splits++;
+                            }
+                            from = group.from = from + zeros;
+                            break execution;
+                        }
+                    }
+                    case CMaOpcodes.JUMPI -> {
+                        int iaddr = code[pc + 1];
+                        if (iaddr >= length) {
+                            throw new RuntimeException("Illegal instruction memory access!");
+                        }
+                        int[] top = slots[sp];
+                        for (int p = from; p < to; p++) {
+                            targets[p] = iaddr + top[p];
+                        }
+                        --sp;
+                        int outside = separateOutside(from, to, targets, 0, length);
+                        for (int p = from; p < from + outside; p++) {
+                            finishLane(p, targets[p], sp, new RuntimeException("Illegal instruction memory access!"));
+                        }
+                        from = group.from = from + outside;
+                        if (from == to) {
+                            groups.remove(group);
+                            return;
+                        }
+                        // One group per target, the last one is this group
+                        boolean split = outside > 0;
+                        int count;
+                        while ((count = separateEqual(from, to, targets, targets[from])) < to - from) {
+                            groups.add(groups.indexOf(group), new Group(from, from + count, targets[from], sp));
+                            splits++;
+                            from = group.from = from + count;
+                            split = true;
+                        }
+                        ip = targets[from];
+                        if (split) {
+                            break execution;
+                        }
+                    }
+                    default -> {
+                        throw new UnsupportedOperationException("Unknown opcode: " + code[pc]);
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // Rows that do not exist yet, e.g. for negative LOADA addresses
+            finish(group.from, to, ip, sp, CMa.stackBoundsError(e, this.slots.length, stackLimit));
+            groups.remove(group);
+            return;
+        } catch (RuntimeException e) {
+            // Every lane left in the group traps the same way
+            finish(group.from, to, ip, sp, e);
+            groups.remove(group);
+            return;
+        } finally {
+            this.dispatched += dispatched;
+            this.retired += retired;
+        }
+        group.ip = ip;
+        group.sp = sp;
+        if (ip >= length) {
+            finish(group.from, to, ip, sp, null);
+            groups.remove(group);
+        }
+    }
+
+    // Lanes whose address in row is outside 0 .. high trap like CMa does for
+    // LOAD and STORE. Returns the first position of the lanes that are left,
+    // and removes the group if there are none.
+    private int trapOutside(Group group, int[] row, int high, int ip, int sp) {
+        int outside = separateOutside(group.from, group.to, row, 0, high);
+        for (int p = group.from; p < group.from + outside; p++) {
+            int addr = row[p];
+            finishLane(p, ip, sp, addr > high ? new RuntimeException("Illegal stack memory access!")
+                    : new ArrayIndexOutOfBoundsException("Index " + addr + " out of bounds for length " + stackLimit));
+        }
+        if (group.from + outside == group.to) {
+            groups.remove(group);
+        }
+        return group.from + outside;
+    }
+
+    private void finish(int from, int to, int ip, int sp, RuntimeException trap) {
+        for (int p = from; p < to; p++) {
+            finishLane(p, ip, sp, trap);
+        }
+    }
+
+    private void finishLane(int position, int ip, int sp, RuntimeException trap) {
+        int lane = laneAt[position];
+        finalIp[lane] = ip;
+        finalSp[lane] = sp;
+        traps[lane] = trap;
+    }
+
+    // Moves the lanes whose value in row is value to the front of from .. to,
+    // returns how many there are. Nothing moves if all or none of them match.
+    private int separateEqual(int from, int to, int[] row, int value) {
+        int i = from;
+        int j = to - 1;
+        while (true) {
+            while (i <= j && row[i] == value) {
+                i++;
+            }
+            while (i <= j && row[j] != value) {
+                j--;
+            }
+            if (i >= j) {
+                return i - from;
+            }
+            swap(i++, j--);
+        }
+    }
+
+    // Like separateEqual(), for the lanes whose value is outside low .. high
+    private int separateOutside(int from, int to, int[] row, int low, int high) {
+        int i = from;
+        int j = to - 1;
+        while (true) {
+            while (i <= j && (row[i] < low || row[i] > high)) {
+                i++;
+            }
+            while (i <= j && row[j] >= low && row[j] <= high) {
+                j--;
+            }
+            if (i >= j) {
+                return i - from;
+            }
+            swap(i++, j--);
+        }
+    }
+
+    // Exchanges the whole stacks of the lanes at two positions
+    private void swap(int p, int q) {
+        for (int s = 0; s < rowCount; s++) {
+            int[] row = slots[s];
+            int value = row[p];
+            row[p] = row[q];
+            row[q] = value;
+        }
+        int target = targets[p];
+        targets[p] = targets[q];
+        targets[q] = target;
+        int lane = laneAt[p];
+        laneAt[p] = laneAt[q];
+        laneAt[q] = lane;
+        positionOf[laneAt[p]] = p;
+        positionOf[laneAt[q]] = q;
+    }
+
+    // Makes stack slots 0 .. count - 1 available, as far as the limit allows
+    private int[][] ensureRows(int count) {
+        count = Math.min(count, stackLimit);
+        if (count > slots.length) {
+            slots = Arrays.copyOf(slots, Math.min(Math.max(count, 2 * slots.length), stackLimit));
+        }
+        while (rowCount < count) {
+            slots[rowCount++] = new int[lanes];
+        }
+        return slots;
+    }
+}
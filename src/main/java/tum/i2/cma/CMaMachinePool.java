@@ -0,0 +1,51 @@
+package tum.i2.cma;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Thread-safe pool of interpreter machines.
+// Allocating a new CMa for every run dominates the cost of running many short
+// programs. Released machines are kept and handed out again after a reset(),
+// which only clears the part of the memory that was used.
+public final class CMaMachinePool {
+    private final ConcurrentLinkedQueue<CMa> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final int maxIdle;
+    private final AtomicInteger created = new AtomicInteger();
+
+    // Keeps at most maxIdle released machines, the rest is left to the GC
+    public CMaMachinePool(int maxIdle) {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("maxIdle must not be negative");
+        }
+        this.maxIdle = maxIdle;
+    }
+
+    // Returns a machine in its initial state, loaded with the given program
+    public CMa acquire(CMaCodeImage image) {
+        CMa machine = idle.poll();
+        if (machine == null) {
+            created.incrementAndGet();
+            return new CMa(image);
+        }
+        idleCount.decrementAndGet();
+        machine.reset(image);
+        return machine;
+    }
+
+    public void release(CMa machine) {
+        if (machine.getClass() != CMa.class) {
+            return; // Only plain interpreters are interchangeable
+        }
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offer(machine);
+    }
+
+    // Number of machines allocated by this pool so far
+    public int getCreatedCount() {
+        return created.get();
+    }
+}
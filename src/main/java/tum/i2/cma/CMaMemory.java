@@ -0,0 +1,22 @@
+package tum.i2.cma;
+
+// Backing store for the heap of a CMa machine.
+// Addresses run from 0 to limit() - 1, memory that was never written reads as 0.
+public interface CMaMemory {
+    int load(int address);
+
+    void store(int address, int value);
+
+    // Number of addressable cells
+    int limit();
+
+    // Sets all cells back to 0, keeping the storage for reuse
+    void clear();
+
+    // Storage currently allocated, in bytes
+    long allocatedBytes();
+
+    // A memory with the same contents that shares storage with this one until
+    // either of them writes to it
+    CMaMemory fork();
+}
@@ -0,0 +1,166 @@
+package tum.i2.cma;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import tum.i2.common.MachineMetrics;
+
+// Default MachineMetrics: adds up what machines report and publishes it as an
+// MXBean, so JMX clients and exporters can read it.
+//
+// One instance is meant to be shared by many machines, e.g. all machines of a
+// service or of a scheduler tenant. Machines report once per run() or
+// run(maxSteps) call, so counters move once per slice under a CMaScheduler
+// and only at the end of a long run(). The counters are LongAdders, which
+// reporting threads update without contending, and reading them takes no lock.
+//
+//   CMaMetrics metrics = new CMaMetrics();
+//   metrics.register("interpreter");
+//   machine.setMetrics(metrics);
+public final class CMaMetrics implements MachineMetrics, CMaMetricsMXBean {
+    public static final String DOMAIN = "tum.i2.cma";
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder instructions = new LongAdder();
+    private final LongAdder runNanos = new LongAdder();
+    private final LongAccumulator maxRunNanos = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator peakSp = new LongAccumulator(Math::max, -1);
+    private final LongAccumulator peakHp = new LongAccumulator(Math::max, -1);
+    private final LongAdder traps = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> trapsByKind = new ConcurrentHashMap<>();
+    private volatile int currentSp = -1;
+    private volatile int currentHp = -1;
+    private volatile ObjectName name; // null unless registered
+
+    @Override
+    public void runEnded(long instructions, long nanos, int sp, int hp, int peakSp, int peakHp) {
+        runs.increment();
+        this.instructions.add(instructions);
+        runNanos.add(nanos);
+        maxRunNanos.accumulate(nanos);
+        this.peakSp.accumulate(peakSp);
+        this.peakHp.accumulate(peakHp);
+        currentSp = sp;
+        currentHp = hp;
+    }
+
+    @Override
+    public void trapped(String kind) {
+        traps.increment();
+        trapsByKind.computeIfAbsent(kind, k -> new LongAdder()).increment();
+    }
+
+    // Plain RuntimeExceptions are told apart by their message, which is the same
+    // for every trap of a kind (e.g. "Memory overflow!"), others by their class
+    public static String kindOf(RuntimeException e) {
+        if (e.getClass() == RuntimeException.class && e.getMessage() != null) {
+            return e.getMessage();
+        }
+        return e.getClass().getSimpleName();
+    }
+
+    // Publishes the metrics on the platform MBean server as
+    // tum.i2.cma:type=CMaMetrics,name=<name>
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=CMaMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this.name = objectName;
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Cannot register metrics as " + name, e);
+        }
+    }
+
+    public void unregister() {
+        ObjectName objectName = name;
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // Already gone
+        }
+        name = null;
+    }
+
+    @Override
+    public long getRuns() {
+        return runs.sum();
+    }
+
+    @Override
+    public long getInstructionsRetired() {
+        return instructions.sum();
+    }
+
+    @Override
+    public double getInstructionsPerSecond() {
+        long nanos = runNanos.sum();
+        return nanos == 0 ? 0 : instructions.sum() * 1e9 / nanos;
+    }
+
+    @Override
+    public long getRunNanos() {
+        return runNanos.sum();
+    }
+
+    @Override
+    public long getMaxRunNanos() {
+        return maxRunNanos.get();
+    }
+
+    @Override
+    public double getAverageRunNanos() {
+        long count = runs.sum();
+        return count == 0 ? 0 : (double) runNanos.sum() / count;
+    }
+
+    @Override
+    public int getCurrentSp() {
+        return currentSp;
+    }
+
+    @Override
+    public int getCurrentHp() {
+        return currentHp;
+    }
+
+    @Override
+    public int getPeakSp() {
+        return (int) peakSp.get();
+    }
+
+    @Override
+    public int getPeakHp() {
+        return (int) peakHp.get();
+    }
+
+    @Override
+    public long getTraps() {
+        return traps.sum();
+    }
+
+    @Override
+    public Map<String, Long> getTrapsByKind() {
+        Map<String, Long> counts = new TreeMap<>();
+        trapsByKind.forEach((kind, count) -> counts.put(kind, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d runs, %d instructions (%.0f/s), run avg %.1f us max %.1f us, sp %d (peak %d), "
+                + "hp %d (peak %d), %d traps %s", getRuns(), getInstructionsRetired(), getInstructionsPerSecond(),
+                getAverageRunNanos() / 1e3, getMaxRunNanos() / 1e3, getCurrentSp(), getPeakSp(), getCurrentHp(),
+                getPeakHp(), getTraps(), getTrapsByKind());
+    }
+}
@@ -0,0 +1,33 @@
+package tum.i2.cma;
+
+import java.util.Map;
+
+// Management interface of CMaMetrics, see CMaMetrics.register()
+public interface CMaMetricsMXBean {
+    long getRuns();
+
+    long getInstructionsRetired();
+
+    // Instructions per second of run time, summed over all machines
+    double getInstructionsPerSecond();
+
+    long getRunNanos();
+
+    long getMaxRunNanos();
+
+    double getAverageRunNanos();
+
+    // sp and hp of the machine that reported last
+    int getCurrentSp();
+
+    int getCurrentHp();
+
+    int getPeakSp();
+
+    int getPeakHp();
+
+    long getTraps();
+
+    // Trap kind (see CMaMetrics.kindOf()) to count
+    Map<String, Long> getTrapsByKind();
+}
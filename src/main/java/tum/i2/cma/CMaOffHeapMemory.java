@@ -0,0 +1,115 @@
+package tum.i2.cma;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Heap memory outside the Java heap, for images too large to keep in int[]s.
+// Like CMaPagedMemory it is split into lazily allocated pages, each one a
+// direct ByteBuffer (the MemorySegment API is still incubating in JDK 17).
+// Pages are released when the memory object is garbage collected.
+// fork() shares pages copy-on-write like CMaPagedMemory does.
+public final class CMaOffHeapMemory implements CMaMemory {
+    static final int DEFAULT_PAGE_BITS = 20; // 1M cells, 4 MB per page
+
+    private final int limit;
+    private final int pageBits;
+    private final int pageMask;
+    private ByteBuffer[] pages = new ByteBuffer[0];
+    private boolean[] shared = new boolean[0]; // Pages that another fork may still read
+    private int allocatedPages;
+
+    public CMaOffHeapMemory(int limit) {
+        this(limit, DEFAULT_PAGE_BITS);
+    }
+
+    public CMaOffHeapMemory(int limit, int pageBits) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Memory limit must not be negative");
+        }
+        if (pageBits < 0 || pageBits > 28) {
+            throw new IllegalArgumentException("Page size out of range: 2^" + pageBits);
+        }
+        this.limit = limit;
+        this.pageBits = pageBits;
+        this.pageMask = (1 << pageBits) - 1;
+    }
+
+    @Override
+    public int load(int address) {
+        checkAddress(address);
+        int page = address >>> pageBits;
+        if (page >= pages.length || pages[page] == null) {
+            return 0;
+        }
+        return pages[page].getInt((address & pageMask) << 2);
+    }
+
+    @Override
+    public void store(int address, int value) {
+        checkAddress(address);
+        int page = address >>> pageBits;
+        if (page >= pages.length) {
+            int maxPages = (int) (((long) limit + pageMask) >>> pageBits);
+            pages = Arrays.copyOf(pages, Math.min(maxPages, Math.max(page + 1, 2 * pages.length)));
+            shared = Arrays.copyOf(shared, pages.length);
+        }
+        if (pages[page] == null) {
+            // Direct buffers start out zeroed
+            pages[page] = ByteBuffer.allocateDirect(4 << pageBits).order(ByteOrder.nativeOrder());
+            allocatedPages++;
+        } else if (shared[page]) {
+            ByteBuffer copy = ByteBuffer.allocateDirect(4 << pageBits).order(ByteOrder.nativeOrder());
+            copy.put(0, pages[page], 0, copy.capacity());
+            pages[page] = copy;
+            shared[page] = false;
+        }
+        pages[page].putInt((address & pageMask) << 2, value);
+    }
+
+    @Override
+    public int limit() {
+        return limit;
+    }
+
+    @Override
+    public void clear() {
+        byte[] zeros = new byte[Math.min(4 << pageBits, 1 << 16)];
+        for (int i = 0; i < pages.length; i++) {
+            ByteBuffer page = pages[i];
+            if (shared[i]) {
+                pages[i] = null; // Still in use by another fork
+                shared[i] = false;
+                allocatedPages--;
+            } else if (page != null) {
+                for (int offset = 0; offset < page.capacity(); offset += zeros.length) {
+                    page.put(offset, zeros, 0, Math.min(zeros.length, page.capacity() - offset));
+                }
+            }
+        }
+    }
+
+    // Shared pages count for every memory that uses them
+    @Override
+    public long allocatedBytes() {
+        return (long) allocatedPages << (pageBits + 2);
+    }
+
+    @Override
+    public CMaOffHeapMemory fork() {
+        CMaOffHeapMemory fork = new CMaOffHeapMemory(limit, pageBits);
+        for (int page = 0; page < pages.length; page++) {
+            shared[page] = pages[page] != null;
+        }
+        fork.pages = pages.clone();
+        fork.shared = shared.clone();
+        fork.allocatedPages = allocatedPages;
+        return fork;
+    }
+
+    private void checkAddress(int address) {
+        if (address < 0 || address >= limit) {
+            throw new RuntimeException("Illegal heap memory access!");
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package tum.i2.cma;
+
+// Integer opcodes used in the pre-decoded code image (see CMaCodeImage).
+// The values mirror the order of CMaInstructionType, but the mapping is
+// spelled out in fromType() so that reordering the enum cannot silently
+// change the meaning of an image.
+final class CMaOpcodes {
+    static final int LOADC = 0;
+    // Arithmetic and logical
+    static final int ADD = 1;
+    static final int SUB = 2;
+    static final int MUL = 3;
+    static final int DIV = 4;
+    static final int MOD = 5;
+    static final int AND = 6;
+    static final int OR = 7;
+    static final int XOR = 8;
+    // Comparison
+    static final int EQ = 9;
+    static final int NEQ = 10;
+    static final int LE = 11;
+    static final int LEQ = 12;
+    static final int GR = 13;
+    static final int GEQ = 14;
+    // Negation
+    static final int NOT = 15;
+    static final int NEG = 16;
+    // Assignments
+    static final int LOAD = 17;
+    static final int STORE = 18;
+    static final int LOADA = 19;
+    static final int STOREA = 20;
+    // Statements
+    static final int POP = 21;
+    // Conditional and Iterative Statements
+    static final int JUMP = 22;
+    static final int JUMPZ = 23;
+    // Switch Statement
+    static final int JUMPI = 24;
+    static final int DUP = 25;
+    // Storage Allocation for Variables
+    static final int ALLOC = 26;
+    // Heap allocation, see CMaAllocator
+    static final int NEW = 27;
+    static final int FREE = 28;
+    static final int LOADH = 29;
+    static final int STOREH = 30;
+    // Functions, see CMa.fp
+    static final int MARK = 31;
+    static final int CALL = 32;
+    static final int ENTER = 33;
+    static final int RETURN = 34;
+    static final int SLIDE = 35;
+    static final int LOADRC = 36;
+    static final int LOADR = 37;
+    static final int STORER = 38;
+
+    // Superinstructions, only ever produced by CMaFusion.
+    // Each one replaces the opcode of the first instruction of the fused
+    // sequence and reads the operands of the following ones in place.
+    // They are never stored (see CMaBinaryFormat), so they can be renumbered
+    // whenever plain instructions are added.
+    static final int LOADC_ADD = 39;   // LOADC c; ADD
+    static final int LOADC_SUB = 40;   // LOADC c; SUB
+    static final int LOADC_LOAD = 41;  // LOADC a; LOAD
+    static final int INCA = 42;        // LOADA a; LOADC c; ADD; STOREA a; POP
+    static final int EQ_JUMPZ = 43;    // EQ; JUMPZ l
+    static final int NEQ_JUMPZ = 44;   // NEQ; JUMPZ l
+    static final int LE_JUMPZ = 45;    // LE; JUMPZ l
+    static final int LEQ_JUMPZ = 46;   // LEQ; JUMPZ l
+    static final int GR_JUMPZ = 47;    // GR; JUMPZ l
+    static final int GEQ_JUMPZ = 48;   // GEQ; JUMPZ l
+
+    private CMaOpcodes() {}
+
+    static int fromType(CMaInstructionType type) {
+        return switch (type) {
+            case LOADC -> LOADC;
+            case ADD -> ADD;
+            case SUB -> SUB;
+            case MUL -> MUL;
+            case DIV -> DIV;
+            case MOD -> MOD;
+            case AND -> AND;
+            case OR -> OR;
+            case XOR -> XOR;
+            case EQ -> EQ;
+            case NEQ -> NEQ;
+            case LE -> LE;
+            case LEQ -> LEQ;
+            case GR -> GR;
+            case GEQ -> GEQ;
+            case NOT -> NOT;
+            case NEG -> NEG;
+            case LOAD -> LOAD;
+            case STORE -> STORE;
+            case LOADA -> LOADA;
+            case STOREA -> STOREA;
+            case POP -> POP;
+            case JUMP -> JUMP;
+            case JUMPZ -> JUMPZ;
+            case JUMPI -> JUMPI;
+            case DUP -> DUP;
+            case ALLOC -> ALLOC;
+            case NEW -> NEW;
+            case FREE -> FREE;
+            case LOADH -> LOADH;
+            case STOREH -> STOREH;
+            case MARK -> MARK;
+            case CALL -> CALL;
+            case ENTER -> ENTER;
+            case RETURN -> RETURN;
+            case SLIDE -> SLIDE;
+            case LOADRC -> LOADRC;
+            case LOADR -> LOADR;
+            case STORER -> STORER;
+        };
+    }
+
+    // baseOf() of every opcode, so interpreter loops can look it up cheaply
+    private static final int[] BASES = new int[GEQ_JUMPZ + 1];
+
+    static {
+        for (int opcode = 0; opcode < BASES.length; opcode++) {
+            BASES[opcode] = fromType(toType(opcode));
+        }
+    }
+
+    // Opcode of the plain instruction a (possibly fused) opcode starts with
+    static int baseOf(int opcode) {
+        if (opcode < 0 || opcode >= BASES.length) {
+            throw new IllegalArgumentException("Unknown opcode: " + opcode);
+        }
+        return BASES[opcode];
+    }
+
+    // Inverse of fromType() for the instruction a (possibly fused) opcode starts with
+    static CMaInstructionType toType(int opcode) {
+        return switch (opcode) {
+            case LOADC, LOADC_ADD, LOADC_SUB, LOADC_LOAD -> CMaInstructionType.LOADC;
+            case ADD -> CMaInstructionType.ADD;
+            case SUB -> CMaInstructionType.SUB;
+            case MUL -> CMaInstructionType.MUL;
+            case DIV -> CMaInstructionType.DIV;
+            case MOD -> CMaInstructionType.MOD;
+            case AND -> CMaInstructionType.AND;
+            case OR -> CMaInstructionType.OR;
+            case XOR -> CMaInstructionType.XOR;
+            case EQ, EQ_JUMPZ -> CMaInstructionType.EQ;
+            case NEQ, NEQ_JUMPZ -> CMaInstructionType.NEQ;
+            case LE, LE_JUMPZ -> CMaInstructionType.LE;
+            case LEQ, LEQ_JUMPZ -> CMaInstructionType.LEQ;
+            case GR, GR_JUMPZ -> CMaInstructionType.GR;
+            case GEQ, GEQ_JUMPZ -> CMaInstructionType.GEQ;
+            case NOT -> CMaInstructionType.NOT;
+            case NEG -> CMaInstructionType.NEG;
+            case LOAD -> CMaInstructionType.LOAD;
+            case STORE -> CMaInstructionType.STORE;
+            case LOADA, INCA -> CMaInstructionType.LOADA;
+            case STOREA -> CMaInstructionType.STOREA;
+            case POP -> CMaInstructionType.POP;
+            case JUMP -> CMaInstructionType.JUMP;
+            case JUMPZ -> CMaInstructionType.JUMPZ;
+            case JUMPI -> CMaInstructionType.JUMPI;
+            case DUP -> CMaInstructionType.DUP;
+            case ALLOC -> CMaInstructionType.ALLOC;
+            case NEW -> CMaInstructionType.NEW;
+            case FREE -> CMaInstructionType.FREE;
+            case LOADH -> CMaInstructionType.LOADH;
+            case STOREH -> CMaInstructionType.STOREH;
+            case MARK -> CMaInstructionType.MARK;
+            case CALL -> CMaInstructionType.CALL;
+            case ENTER -> CMaInstructionType.ENTER;
+            case RETURN -> CMaInstructionType.RETURN;
+            case SLIDE -> CMaInstructionType.SLIDE;
+            case LOADRC -> CMaInstructionType.LOADRC;
+            case LOADR -> CMaInstructionType.LOADR;
+            case STORER -> CMaInstructionType.STORER;
+            default -> throw new IllegalArgumentException("Unknown opcode: " + opcode);
+        };
+    }
+}
@@ -0,0 +1,479 @@
+package tum.i2.cma;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Pass pipeline that removes redundancy from parsed programs before they are
+// loaded, e.g.
+//
+//   CmaParser parser = new CmaParser();
+//   CMaOptimizer.Result result = new CMaOptimizer().optimize(parser.parse(source), parser.getLabels());
+//   CMa machine = new CMa(result.getInstructions());
+//
+// The passes run in a loop until none of them changes anything. Instructions
+// that are removed shift the ones after them, and all jump targets and labels
+// are moved along.
+//
+// The optimized program ends with the same stack and traps with the same error
+// as the original, only the number of executed instructions changes. To keep
+// it that way the passes are conservative:
+//  - Removing instructions needs every jump target to be known, so programs with
+//    a JUMPI the verifier cannot bound are never shortened, and code between a
+//    JUMPI and its last target is never removed. Neither are programs that call
+//    functions, their addresses are plain LOADC constants.
+//  - Constant folding and the peephole rules change how a value gets onto the
+//    stack, so they only run on verified programs (no operand can be missing).
+//  - Programs where ALLOC can expose the old contents of popped slots stay as
+//    they are. What is left in those slots depends on every instruction that
+//    ran, and on how CMaFusion combined them.
+//  - Nothing is folded into an instruction that traps, like a division by 0.
+public final class CMaOptimizer {
+    private static final int MAX_ROUNDS = 32;
+
+    public enum Pass {
+        // LOADC a; LOADC b; ADD -> LOADC a+b, likewise NOT, NEG, POP and JUMPZ on constants
+        CONSTANT_FOLDING,
+        // DUP; POP, NEG; NEG, NOT; NOT on truth values, LOADC 0; ADD, LOADC 1; MUL,
+        // STOREA a; POP; LOADA a, ALLOC 0, and jumps to the next instruction
+        PEEPHOLE,
+        // A jump to a JUMP goes straight to that JUMP's target
+        JUMP_THREADING,
+        // Instructions no path from the start reaches
+        DEAD_CODE
+    }
+
+    public static final class Result {
+        private final CMaInstruction[] instructions;
+        private final Map<String, Integer> labels;
+        private final int[] removed;
+        private final int[] rewritten;
+        private final int originalLength;
+
+        Result(CMaInstruction[] instructions, Map<String, Integer> labels, int[] removed, int[] rewritten,
+                int originalLength) {
+            this.instructions = instructions;
+            this.labels = Collections.unmodifiableMap(labels);
+            this.removed = removed;
+            this.rewritten = rewritten;
+            this.originalLength = originalLength;
+        }
+
+        public CMaInstruction[] getInstructions() {
+            return instructions;
+        }
+
+        // The labels passed in, moved to where their instructions ended up
+        public Map<String, Integer> getLabels() {
+            return labels;
+        }
+
+        // Instructions the pass removed
+        public int getRemoved(Pass pass) {
+            return removed[pass.ordinal()];
+        }
+
+        // Instructions the pass changed in place, e.g. retargeted jumps
+        public int getRewritten(Pass pass) {
+            return rewritten[pass.ordinal()];
+        }
+
+        public int getRemovedTotal() {
+            return originalLength - instructions.length;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder summary = new StringBuilder();
+            summary.append(originalLength).append(" -> ").append(instructions.length).append(" instructions");
+            for (Pass pass : Pass.values()) {
+                summary.append(", ").append(pass).append(": -").append(getRemoved(pass))
+                        .append(" ~").append(getRewritten(pass));
+            }
+            return summary.toString();
+        }
+    }
+
+    private final Set<Pass> passes;
+
+    // All passes
+    public CMaOptimizer() {
+        this(EnumSet.allOf(Pass.class));
+    }
+
+    public CMaOptimizer(Set<Pass> passes) {
+        this.passes = EnumSet.noneOf(Pass.class);
+        this.passes.addAll(passes);
+    }
+
+    public Result optimize(CMaInstruction[] instructions) {
+        return optimize(instructions, Map.of());
+    }
+
+    // labels: label name to instruction index, as from CmaParser.getLabels()
+    public Result optimize(CMaInstruction[] instructions, Map<String, Integer> labels) {
+        Run run = new Run(CMaCodeImage.decode(instructions), labels);
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            boolean changed = false;
+            for (Pass pass : Pass.values()) {
+                if (passes.contains(pass)) {
+                    changed |= run.apply(pass);
+                }
+            }
+            if (!changed) {
+                break;
+            }
+        }
+        return run.result(instructions.length);
+    }
+
+    // One optimization of one program. Passes mark instructions as deleted and
+    // rewrite others in place, compact() then closes the gaps.
+    private static final class Run {
+        private int[] op;
+        private int[] arg;
+        private int length;
+        private final Map<String, Integer> labels;
+        private final int[] removed = new int[Pass.values().length];
+        private final int[] rewritten = new int[Pass.values().length];
+
+        // Facts about the current program, see analyze()
+        private boolean verified;
+        private boolean canRemove;
+        private boolean exposesOldSlots;
+        private boolean[] isTarget;
+        private boolean[] pinned; // Inside a JUMPI range, must keep its index relative to the JUMPI base
+        private boolean[] reachable;
+        private boolean[] deleted;
+
+        Run(CMaCodeImage image, Map<String, Integer> labels) {
+            this.length = image.length;
+            this.op = new int[length];
+            this.arg = new int[length];
+            for (int i = 0; i < length; i++) {
+                op[i] = image.code[i * CMaCodeImage.STRIDE];
+                arg[i] = image.code[i * CMaCodeImage.STRIDE + 1];
+            }
+            this.labels = new HashMap<>(labels);
+        }
+
+        boolean apply(Pass pass) {
+            analyze();
+            if (exposesOldSlots) {
+                return false;
+            }
+            int before = length;
+            int changes = switch (pass) {
+                case CONSTANT_FOLDING -> verified ? foldConstants() : 0;
+                case PEEPHOLE -> peephole();
+                case JUMP_THREADING -> threadJumps();
+                case DEAD_CODE -> canRemove ? removeDeadCode() : 0;
+            };
+            compact();
+            removed[pass.ordinal()] += before - length;
+            rewritten[pass.ordinal()] += changes;
+            return changes > 0 || length < before;
+        }
+
+        Result result(int originalLength) {
+            CMaInstruction[] instructions = new CMaInstruction[length];
+            for (int i = 0; i < length; i++) {
+                CMaInstructionType type = CMaOpcodes.toType(op[i]);
+                int[] args = CMaInstructionType.expectedNumberOfArguments(type) == 0 ? new int[0] : new int[] { arg[i] };
+                instructions[i] = new CMaInstruction(type, args);
+            }
+            return new Result(instructions, labels, removed, rewritten, originalLength);
+        }
+
+        private void analyze() {
+            int[] code = new int[length * CMaCodeImage.STRIDE];
+            boolean indirectJumps = false;
+            for (int i = 0; i < length; i++) {
+                code[i * CMaCodeImage.STRIDE] = op[i];
+                code[i * CMaCodeImage.STRIDE + 1] = arg[i];
+                indirectJumps |= op[i] == CMaOpcodes.JUMPI || op[i] == CMaOpcodes.CALL || op[i] == CMaOpcodes.RETURN;
+            }
+            CMaCodeImage image = new CMaCodeImage(code, length, null);
+            CMaVerifier.Result verification = CMaVerifier.verify(image);
+            verified = verification.isVerified();
+            exposesOldSlots = image.exposesOldSlots();
+            canRemove = verified || !indirectJumps;
+
+            isTarget = new boolean[length + 1];
+            pinned = new boolean[length + 1];
+            deleted = new boolean[length];
+            for (int i = 0; i < length; i++) {
+                if ((op[i] == CMaOpcodes.JUMP || op[i] == CMaOpcodes.JUMPZ) && arg[i] >= 0 && arg[i] <= length) {
+                    isTarget[arg[i]] = true;
+                } else if (op[i] == CMaOpcodes.JUMPI && verified && verification.getFirstJumpiTarget(i) >= 0) {
+                    int first = Math.min(arg[i], verification.getFirstJumpiTarget(i));
+                    int last = Math.max(arg[i], verification.getLastJumpiTarget(i));
+                    for (int target = first; target <= last; target++) {
+                        isTarget[target] = true;
+                        pinned[target] = true;
+                    }
+                }
+            }
+
+            reachable = new boolean[length];
+            if (verified) {
+                for (int i = 0; i < length; i++) {
+                    reachable[i] = verification.getStackDepth(i) >= 0;
+                }
+            } else if (!indirectJumps) {
+                markReachable();
+            } else {
+                Arrays.fill(reachable, true);
+            }
+        }
+
+        // Without JUMPI, CALL and RETURN every successor is known, no matter whether the program verifies
+        private void markReachable() {
+            ArrayDeque<Integer> worklist = new ArrayDeque<>();
+            if (length > 0) {
+                reachable[0] = true;
+                worklist.add(0);
+            }
+            while (!worklist.isEmpty()) {
+                int i = worklist.poll();
+                int[] successors = switch (op[i]) {
+                    case CMaOpcodes.JUMP -> new int[] { arg[i] };
+                    case CMaOpcodes.JUMPZ -> new int[] { arg[i], i + 1 };
+                    default -> new int[] { i + 1 };
+                };
+                for (int successor : successors) {
+                    if (successor >= 0 && successor < length && !reachable[successor]) {
+                        reachable[successor] = true;
+                        worklist.add(successor);
+                    }
+                }
+            }
+        }
+
+        // Index of the next instruction after i that is not deleted, length if there is none
+        private int next(int i) {
+            int j = i + 1;
+            while (j < length && deleted[j]) {
+                j++;
+            }
+            return j;
+        }
+
+        private int opAt(int i) {
+            return i < length ? op[i] : -1;
+        }
+
+        // Instruction j may be removed as part of a sequence that starts before it
+        private boolean removableInside(int j) {
+            return j < length && !isTarget[j] && !pinned[j];
+        }
+
+        private boolean removable(int i) {
+            return canRemove && !pinned[i];
+        }
+
+        private int foldConstants() {
+            int changes = 0;
+            for (int i = 0; i < length; i++) {
+                if (deleted[i] || op[i] != CMaOpcodes.LOADC || !removable(i)) {
+                    continue;
+                }
+                // Folds as long as the result is again a constant
+                while (true) {
+                    int j = next(i);
+                    if (!removableInside(j)) {
+                        break;
+                    }
+                    int a = arg[i];
+                    int k = next(j);
+                    if (op[j] == CMaOpcodes.LOADC && removableInside(k) && isFoldable(op[k], arg[j])) {
+                        arg[i] = evaluate(op[k], a, arg[j]);
+                        deleted[j] = deleted[k] = true;
+                    } else if (op[j] == CMaOpcodes.NOT || op[j] == CMaOpcodes.NEG) {
+                        arg[i] = op[j] == CMaOpcodes.NOT ? (a != 0 ? 0 : 1) : -a;
+                        deleted[j] = true;
+                    } else if (op[j] == CMaOpcodes.POP) {
+                        deleted[i] = deleted[j] = true;
+                    } else if (op[j] == CMaOpcodes.JUMPZ) {
+                        if (a == 0) {
+                            // Keeps the target even if it is the next instruction, so
+                            // a jump to the end still traps (see peephole)
+                            op[i] = CMaOpcodes.JUMP;
+                            arg[i] = arg[j];
+                        } else {
+                            deleted[i] = true; // Never jumps
+                        }
+                        deleted[j] = true;
+                    } else {
+                        break;
+                    }
+                    changes++;
+                    if (deleted[i] || op[i] != CMaOpcodes.LOADC) {
+                        break;
+                    }
+                }
+            }
+            return changes;
+        }
+
+        private static boolean isFoldable(int opcode, int second) {
+            return (opcode >= CMaOpcodes.ADD && opcode <= CMaOpcodes.GEQ)
+                    && !((opcode == CMaOpcodes.DIV || opcode == CMaOpcodes.MOD) && second == 0);
+        }
+
+        private static int evaluate(int opcode, int a, int b) {
+            return switch (opcode) {
+                case CMaOpcodes.ADD -> a + b;
+                case CMaOpcodes.SUB -> a - b;
+                case CMaOpcodes.MUL -> a * b;
+                case CMaOpcodes.DIV -> a / b;
+                case CMaOpcodes.MOD -> a % b;
+                case CMaOpcodes.AND -> (a != 0 && b != 0) ? 1 : 0;
+                case CMaOpcodes.OR -> (a != 0 || b != 0) ? 1 : 0;
+                case CMaOpcodes.XOR -> ((a != 0) != (b != 0)) ? 1 : 0;
+                case CMaOpcodes.EQ -> (a == b) ? 1 : 0;
+                case CMaOpcodes.NEQ -> (a != b) ? 1 : 0;
+                case CMaOpcodes.LE -> (a < b) ? 1 : 0;
+                case CMaOpcodes.LEQ -> (a <= b) ? 1 : 0;
+                case CMaOpcodes.GR -> (a > b) ? 1 : 0;
+                default -> (a >= b) ? 1 : 0;
+            };
+        }
+
+        // Instructions that only ever push 0 or 1
+        private static boolean producesTruthValue(int opcode) {
+            return opcode >= CMaOpcodes.AND && opcode <= CMaOpcodes.NOT;
+        }
+
+        private int peephole() {
+            int changes = 0;
+            for (int i = 0; i < length; i++) {
+                if (deleted[i]) {
+                    continue;
+                }
+                int j = next(i);
+                int k = j < length ? next(j) : length;
+                // A jump to the end of the program traps, so only jumps to an
+                // instruction lead to the same place as falling through
+                if (op[i] == CMaOpcodes.JUMP && arg[i] == j && j < length && removable(i)) {
+                    deleted[i] = true;
+                } else if (op[i] == CMaOpcodes.ALLOC && arg[i] == 0 && removable(i)) {
+                    deleted[i] = true;
+                } else if (!verified) {
+                    continue;
+                } else if (op[i] == CMaOpcodes.JUMPZ && arg[i] == j && j < length) {
+                    op[i] = CMaOpcodes.POP; // Continues at the same place either way
+                    arg[i] = 0;
+                    changes++;
+                } else if (!removable(i)) {
+                    continue;
+                } else if ((op[i] == CMaOpcodes.DUP && opAt(j) == CMaOpcodes.POP
+                        || op[i] == CMaOpcodes.NEG && opAt(j) == CMaOpcodes.NEG) && removableInside(j)) {
+                    deleted[i] = deleted[j] = true;
+                } else if (op[i] == CMaOpcodes.NOT && opAt(j) == CMaOpcodes.NOT && opAt(k) == CMaOpcodes.JUMPZ
+                        && removableInside(j)) {
+                    deleted[i] = deleted[j] = true; // JUMPZ only tells 0 from the rest
+                } else if (producesTruthValue(op[i]) && opAt(j) == CMaOpcodes.NOT && opAt(k) == CMaOpcodes.NOT
+                        && removableInside(j) && removableInside(k)) {
+                    deleted[j] = deleted[k] = true;
+                } else if (op[i] == CMaOpcodes.LOADC && removableInside(j)
+                        && (arg[i] == 0 && (opAt(j) == CMaOpcodes.ADD || opAt(j) == CMaOpcodes.SUB)
+                                || arg[i] == 1 && (opAt(j) == CMaOpcodes.MUL || opAt(j) == CMaOpcodes.DIV))) {
+                    deleted[i] = deleted[j] = true;
+                } else if (op[i] == CMaOpcodes.STOREA && opAt(j) == CMaOpcodes.POP && opAt(k) == CMaOpcodes.LOADA
+                        && arg[k] == arg[i] && removableInside(j) && removableInside(k)) {
+                    deleted[j] = deleted[k] = true; // The stored value is still on top
+                }
+            }
+            return changes;
+        }
+
+        // Follows chains of JUMPs, stopping at cycles and targets outside the
+        // program. A JUMP to the end traps, so chains never continue onto it.
+        private int threadJumps() {
+            int changes = 0;
+            for (int i = 0; i < length; i++) {
+                if (op[i] != CMaOpcodes.JUMP && op[i] != CMaOpcodes.JUMPZ) {
+                    continue;
+                }
+                int target = arg[i];
+                for (int steps = 0; steps < length && target >= 0 && target < length
+                        && op[target] == CMaOpcodes.JUMP && arg[target] >= 0 && arg[target] < length
+                        && arg[target] != target; steps++) {
+                    target = arg[target];
+                }
+                if (target != arg[i]) {
+                    arg[i] = target;
+                    changes++;
+                }
+            }
+            return changes;
+        }
+
+        private int removeDeadCode() {
+            for (int i = 0; i < length; i++) {
+                if (!reachable[i] && !pinned[i]) {
+                    deleted[i] = true;
+                }
+            }
+            return 0;
+        }
+
+        // Drops deleted instructions. A target that was deleted moves to the next
+        // instruction that is kept, the passes only delete targets whose
+        // instructions have no effect when jumped to.
+        private void compact() {
+            // The verifier wants jumps to land inside the program, so a jump into a
+            // removed tail keeps one no-op to land on
+            int tail = length;
+            while (tail > 0 && deleted[tail - 1]) {
+                tail--;
+            }
+            for (int i = tail; i < length; i++) {
+                if (isTarget[i]) {
+                    op[length - 1] = CMaOpcodes.ALLOC;
+                    arg[length - 1] = 0;
+                    deleted[length - 1] = false;
+                    break;
+                }
+            }
+            int[] newIndex = new int[length + 1];
+            int kept = 0;
+            for (int i = 0; i < length; i++) {
+                newIndex[i] = kept;
+                if (!deleted[i]) {
+                    op[kept] = op[i];
+                    arg[kept] = arg[i];
+                    kept++;
+                }
+            }
+            newIndex[length] = kept;
+            if (kept == length) {
+                return;
+            }
+            for (int i = 0; i < kept; i++) {
+                if (op[i] == CMaOpcodes.JUMP || op[i] == CMaOpcodes.JUMPZ || op[i] == CMaOpcodes.JUMPI) {
+                    arg[i] = moveTarget(arg[i], newIndex, kept);
+                }
+            }
+            int remaining = kept;
+            labels.replaceAll((name, position) -> moveTarget(position, newIndex, remaining));
+            length = kept;
+        }
+
+        // Targets outside the program stay outside, so they still trap
+        private int moveTarget(int target, int[] newIndex, int kept) {
+            if (target < 0) {
+                return target;
+            }
+            if (target > length) {
+                return target - (length - kept);
+            }
+            return newIndex[target];
+        }
+    }
+}
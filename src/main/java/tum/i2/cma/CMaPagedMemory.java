@@ -0,0 +1,105 @@
+package tum.i2.cma;
+
+import java.util.Arrays;
+
+// Heap memory made of fixed-size int[] pages that are only allocated when
+// first written, so a machine that never touches its heap pays nothing for it.
+// fork() shares the pages between both memories and copies a page on its first
+// write, so forking a machine only costs the page table.
+public final class CMaPagedMemory implements CMaMemory {
+    static final int DEFAULT_PAGE_BITS = 10; // 1024 cells, 4 KB per page
+
+    private final int limit;
+    private final int pageBits;
+    private final int pageMask;
+    private int[][] pages = new int[0][];
+    private boolean[] shared = new boolean[0]; // Pages that another fork may still read
+    private int allocatedPages;
+
+    public CMaPagedMemory(int limit) {
+        this(limit, DEFAULT_PAGE_BITS);
+    }
+
+    public CMaPagedMemory(int limit, int pageBits) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Memory limit must not be negative");
+        }
+        if (pageBits < 0 || pageBits > 30) {
+            throw new IllegalArgumentException("Page size out of range: 2^" + pageBits);
+        }
+        this.limit = limit;
+        this.pageBits = pageBits;
+        this.pageMask = (1 << pageBits) - 1;
+    }
+
+    @Override
+    public int load(int address) {
+        checkAddress(address);
+        int page = address >>> pageBits;
+        if (page >= pages.length || pages[page] == null) {
+            return 0;
+        }
+        return pages[page][address & pageMask];
+    }
+
+    @Override
+    public void store(int address, int value) {
+        checkAddress(address);
+        int page = address >>> pageBits;
+        if (page >= pages.length) {
+            int maxPages = (int) (((long) limit + pageMask) >>> pageBits);
+            pages = Arrays.copyOf(pages, Math.min(maxPages, Math.max(page + 1, 2 * pages.length)));
+            shared = Arrays.copyOf(shared, pages.length);
+        }
+        if (pages[page] == null) {
+            pages[page] = new int[1 << pageBits];
+            allocatedPages++;
+        } else if (shared[page]) {
+            pages[page] = pages[page].clone();
+            shared[page] = false;
+        }
+        pages[page][address & pageMask] = value;
+    }
+
+    @Override
+    public int limit() {
+        return limit;
+    }
+
+    @Override
+    public void clear() {
+        for (int page = 0; page < pages.length; page++) {
+            if (shared[page]) {
+                pages[page] = null; // Still in use by another fork
+                shared[page] = false;
+                allocatedPages--;
+            } else if (pages[page] != null) {
+                Arrays.fill(pages[page], 0);
+            }
+        }
+    }
+
+    // Shared pages count for every memory that uses them
+    @Override
+    public long allocatedBytes() {
+        return (long) allocatedPages << (pageBits + 2);
+    }
+
+    @Override
+    public CMaPagedMemory fork() {
+        CMaPagedMemory fork = new CMaPagedMemory(limit, pageBits);
+        for (int page = 0; page < pages.length; page++) {
+            shared[page] = pages[page] != null;
+        }
+        fork.pages = pages.clone();
+        fork.shared = shared.clone();
+        fork.allocatedPages = allocatedPages;
+        return fork;
+    }
+
+    private void checkAddress(int address) {
+        if (address < 0 || address >= limit) {
+            throw new RuntimeException("Illegal heap memory access!");
+        }
+    }
+}
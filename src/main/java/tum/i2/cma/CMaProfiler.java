@@ -0,0 +1,203 @@
+package tum.i2.cma;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+// Opt-in execution profiler for a CMa machine.
+// Profiling runs the machine through its own loop on top of step() instead of
+// run(), so the normal interpreter loop contains no profiling code at all.
+// Counts are kept per original instruction (superinstructions are split up
+// again by step()) and mapped back to source lines and labels if the program
+// was loaded with debug info (see CmaParser.getDebugInfo()).
+public final class CMaProfiler {
+    private final CMa machine;
+    private final CMaCodeImage image;
+    private final long[] counts;
+    private final long[] taken; // JUMPZ only
+    private final long[] typeCounts = new long[CMaInstructionType.values().length];
+    private int maxStackDepth;
+
+    public CMaProfiler(CMa machine) {
+        this.machine = machine;
+        this.image = machine.image;
+        this.counts = new long[image.length];
+        this.taken = new long[image.length];
+        this.maxStackDepth = machine.sp + 1;
+    }
+
+    // Runs the machine to completion. If it traps, the exception is rethrown and
+    // the profile covers everything up to and including the failing instruction.
+    public void run() {
+        int length = image.length;
+        while (machine.ip < length) {
+            int i = machine.ip;
+            int opcode = CMaOpcodes.baseOf(image.code[i * CMaCodeImage.STRIDE]);
+            counts[i]++;
+            typeCounts[opcode]++;
+            if (opcode == CMaOpcodes.JUMPZ && machine.sp >= 0 && machine.sp < machine.stack.length
+                    && machine.stack[machine.sp] == 0) {
+                taken[i]++;
+            }
+            machine.step();
+            maxStackDepth = Math.max(maxStackDepth, machine.sp + 1);
+        }
+    }
+
+    public long getCount(int index) {
+        return counts[index];
+    }
+
+    public long getCount(CMaInstructionType type) {
+        return typeCounts[CMaOpcodes.fromType(type)];
+    }
+
+    public long getTotalCount() {
+        long sum = 0;
+        for (long count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    // Executions of the JUMPZ at index that jumped
+    public long getTakenCount(int index) {
+        return taken[index];
+    }
+
+    public long getNotTakenCount(int index) {
+        return CMaOpcodes.baseOf(image.code[index * CMaCodeImage.STRIDE]) == CMaOpcodes.JUMPZ
+                ? counts[index] - taken[index]
+                : 0;
+    }
+
+    public int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+    // Source line of an instruction, or -1 without debug info
+    public int getSourceLine(int index) {
+        return image.debugInfo == null ? -1 : image.debugInfo.getSourceLine(index);
+    }
+
+    // The closest label at or before the instruction, or null if there is none
+    public String getEnclosingLabel(int index) {
+        return enclosingLabels()[index];
+    }
+
+    // The hottest instructions, per-opcode totals and the JUMPZ branch statistics
+    public String hotSpotReport(int limit) {
+        long total = getTotalCount();
+        String[] blocks = enclosingLabels();
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%d instructions executed, max stack depth %d%n", total, maxStackDepth));
+
+        report.append(String.format("%nHot instructions%n"));
+        report.append(String.format("%8s %14s %7s %6s  %-16s %s%n", "index", "count", "%", "line", "label", "instruction"));
+        for (int i : hottest(limit)) {
+            report.append(String.format("%8d %14d %6.2f%% %6s  %-16s %s%n", i, counts[i], percent(counts[i], total),
+                    lineText(i), blocks[i] == null ? "" : blocks[i], instructionText(i)));
+        }
+
+        report.append(String.format("%nInstruction types%n"));
+        List<CMaInstructionType> types = new ArrayList<>(Arrays.asList(CMaInstructionType.values()));
+        types.sort(Comparator.comparingLong((CMaInstructionType type) -> getCount(type)).reversed());
+        for (CMaInstructionType type : types) {
+            if (getCount(type) > 0) {
+                report.append(String.format("%-8s %14d %6.2f%%%n", type, getCount(type), percent(getCount(type), total)));
+            }
+        }
+
+        report.append(String.format("%nBranches (JUMPZ)%n"));
+        report.append(String.format("%8s %14s %14s %6s%n", "index", "taken", "not taken", "line"));
+        for (int i = 0; i < image.length; i++) {
+            if (CMaOpcodes.baseOf(image.code[i * CMaCodeImage.STRIDE]) == CMaOpcodes.JUMPZ && counts[i] > 0) {
+                report.append(String.format("%8d %14d %14d %6s%n", i, taken[i], getNotTakenCount(i), lineText(i)));
+            }
+        }
+        return report.toString();
+    }
+
+    // Writes the profile in the collapsed-stack format read by flame graph tools,
+    // one line "root;label;instruction count" per executed instruction
+    public void writeCollapsedStacks(Writer out, String root) throws IOException {
+        String[] blocks = enclosingLabels();
+        for (int i = 0; i < image.length; i++) {
+            if (counts[i] == 0) {
+                continue;
+            }
+            out.write(frameName(root));
+            if (blocks[i] != null) {
+                out.write(';');
+                out.write(frameName(blocks[i]));
+            }
+            out.write(';');
+            out.write(frameName(i + " " + instructionText(i) + (getSourceLine(i) < 0 ? "" : " (line " + getSourceLine(i) + ")")));
+            out.write(' ');
+            out.write(Long.toString(counts[i]));
+            out.write('\n');
+        }
+    }
+
+    private int[] hottest(int limit) {
+        Integer[] indices = new Integer[image.length];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = i;
+        }
+        Arrays.sort(indices, (a, b) -> Long.compare(counts[b], counts[a]));
+        int size = 0;
+        while (size < Math.min(limit, indices.length) && counts[indices[size]] > 0) {
+            size++;
+        }
+        int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = indices[i];
+        }
+        return result;
+    }
+
+    private String[] enclosingLabels() {
+        String[] blocks = new String[image.length];
+        if (image.debugInfo == null) {
+            return blocks;
+        }
+        for (Map.Entry<String, Integer> label : image.debugInfo.getLabels().entrySet()) {
+            int position = label.getValue();
+            if (position >= 0 && position < image.length
+                    && (blocks[position] == null || label.getKey().compareTo(blocks[position]) < 0)) {
+                blocks[position] = label.getKey();
+            }
+        }
+        for (int i = 1; i < blocks.length; i++) {
+            if (blocks[i] == null) {
+                blocks[i] = blocks[i - 1];
+            }
+        }
+        return blocks;
+    }
+
+    private String instructionText(int index) {
+        CMaInstructionType type = CMaOpcodes.toType(image.code[index * CMaCodeImage.STRIDE]);
+        if (CMaInstructionType.expectedNumberOfArguments(type) == 0) {
+            return type.toString();
+        }
+        return type + " " + image.code[index * CMaCodeImage.STRIDE + 1];
+    }
+
+    private String lineText(int index) {
+        int line = getSourceLine(index);
+        return line < 0 ? "-" : Integer.toString(line);
+    }
+
+    private static String frameName(String name) {
+        return name.replace(';', ':');
+    }
+
+    private static double percent(long count, long total) {
+        return total == 0 ? 0 : 100.0 * count / total;
+    }
+}
@@ -0,0 +1,233 @@
+package tum.i2.cma;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Cache of parsed programs, keyed by the SHA-256 hash of their source and
+// ENGINE_VERSION.
+//
+// A lookup returns the fused CMaCodeImage of the source. Images are never
+// modified, so every machine running the program shares the cached one. There
+// are two tiers: a bounded in-memory map that evicts the least recently used
+// program, and optionally a directory (see CMaCodeStore) that outlives the
+// process and can be shared by several. It holds assembled programs
+// (<key>.cmab, see CMaBinaryFormat), so a new process loads them without
+// parsing or optimizing, and the classes CMaJitCompiler generated for images
+// returned by this cache (<key>.cmaj), so CMaJit and CMaTiered skip code
+// generation too. A program found in neither tier is parsed, optimized if
+// asked for, and stored in both. The directory is bounded to maxDiskBytes by
+// evicting the least recently used files. It is best effort: files that fail
+// to load or write are counted, damaged ones deleted, and otherwise ignored.
+//
+// Safe for concurrent use. Concurrent misses on the same source parse it once,
+// the other callers wait for that result.
+public final class CMaProgramCache {
+    // Part of every key. Bump it whenever the parser, the optimizer, the binary
+    // format or the generated classes change, so no process reads files that
+    // an older version wrote. Those are evicted once the directory is full.
+    public static final int ENGINE_VERSION = 1;
+
+    public static final long DEFAULT_MAX_DISK_BYTES = 256L << 20;
+
+    // Counted since the cache was created. Callers that waited for another
+    // thread's load count as hits. The disk counters include compiled classes,
+    // compiledHits counts the classes loaded instead of generated.
+    public record Stats(long hits, long diskHits, long misses, long evictions, long diskWrites, long diskErrors,
+            int entries, long loadNanos, long diskEvictions, long compiledHits) {
+
+        public long getRequests() {
+            return hits + diskHits + misses;
+        }
+
+        // Share of requests answered from memory
+        public double getHitRate() {
+            return getRequests() == 0 ? 0 : (double) hits / getRequests();
+        }
+    }
+
+    private final int maxEntries;
+    private final CMaCodeStore store; // null without a disk tier
+    private final LinkedHashMap<String, CMaCodeImage> entries;
+    private final ConcurrentHashMap<String, CompletableFuture<CMaCodeImage>> loading = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder(); // Time spent loading from disk or parsing
+
+    public CMaProgramCache(int maxEntries) {
+        this(maxEntries, null);
+    }
+
+    public CMaProgramCache(int maxEntries, Path directory) {
+        this(maxEntries, directory, DEFAULT_MAX_DISK_BYTES);
+    }
+
+    // Keeps at most maxEntries programs in memory, and up to maxDiskBytes of
+    // programs and compiled classes in directory
+    public CMaProgramCache(int maxEntries, Path directory, long maxDiskBytes) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.store = directory == null ? null : new CMaCodeStore(directory, maxDiskBytes);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CMaCodeImage> eldest) {
+                if (size() > CMaProgramCache.this.maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public CMaCodeImage get(Path file) throws IOException {
+        return get(file, false);
+    }
+
+    // With optimize, the program runs through all CMaOptimizer passes and loses its debug info
+    public CMaCodeImage get(Path file, boolean optimize) throws IOException {
+        return get(Files.readAllBytes(file), optimize);
+    }
+
+    public CMaCodeImage get(String source) {
+        return get(source.getBytes(StandardCharsets.UTF_8), false);
+    }
+
+    // UTF-8 encoded source
+    public CMaCodeImage get(byte[] source, boolean optimize) {
+        String key = key(source, optimize);
+        CMaCodeImage image = lookup(key);
+        if (image != null) {
+            hits.increment();
+            return image;
+        }
+        CompletableFuture<CMaCodeImage> load = new CompletableFuture<>();
+        CompletableFuture<CMaCodeImage> running = loading.putIfAbsent(key, load);
+        if (running != null) {
+            hits.increment();
+            return await(running);
+        }
+        try {
+            // Another thread may have finished loading it in the meantime
+            image = lookup(key);
+            if (image != null) {
+                hits.increment();
+            } else {
+                image = load(key, source, optimize);
+                synchronized (entries) {
+                    entries.put(key, image);
+                }
+            }
+            load.complete(image);
+            return image;
+        } catch (RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key);
+        }
+    }
+
+    public Stats getStats() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        if (store == null) {
+            return new Stats(hits.sum(), diskHits.sum(), misses.sum(), evictions.sum(), 0, 0, size, loadNanos.sum(),
+                    0, 0);
+        }
+        return new Stats(hits.sum(), diskHits.sum(), misses.sum(), evictions.sum(), store.writes.sum(),
+                store.errors.sum(), size, loadNanos.sum(), store.evictions.sum(), store.classHits.sum());
+    }
+
+    // Empties the memory tier, the disk tier is kept
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private CMaCodeImage lookup(String key) {
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    private CMaCodeImage load(String key, byte[] source, boolean optimize) {
+        long start = System.nanoTime();
+        try {
+            String name = key + CMaBinaryFormat.FILE_EXTENSION;
+            Path file = store == null ? null : store.find(name);
+            if (file != null) {
+                try {
+                    CMaCodeImage image = CMaFusion.fuse(CMaBinaryLoader.load(file));
+                    diskHits.increment();
+                    return keepCompiledCode(image, key);
+                } catch (NoSuchFileException e) {
+                    // Evicted by another process in the meantime
+                } catch (IOException e) {
+                    store.discard(name); // Parsed and written again below
+                }
+            }
+            misses.increment();
+            CMaCodeImage image = new CmaStreamingParser().parse(source);
+            if (optimize) {
+                CMaOptimizer.Result result = new CMaOptimizer().optimize(image.toInstructions());
+                image = CMaCodeImage.decode(result.getInstructions());
+            }
+            if (store != null) {
+                CMaCodeImage assembled = image;
+                store.store(name, temporary -> CMaBinaryWriter.write(assembled, temporary));
+            }
+            return keepCompiledCode(CMaFusion.fuse(image), key);
+        } finally {
+            loadNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private CMaCodeImage keepCompiledCode(CMaCodeImage image, String key) {
+        if (store != null) {
+            image.keepCompiledCodeIn(store, key + CMaCodeStore.CLASS_EXTENSION);
+        }
+        return image;
+    }
+
+    private static CMaCodeImage await(CompletableFuture<CMaCodeImage> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    // Hex SHA-256 of the source, with suffixes for optimized programs and the engine version
+    static String key(byte[] source, boolean optimize) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String hash = HexFormat.of().formatHex(digest.digest(source));
+            return (optimize ? hash + ".optimized" : hash) + ".v" + ENGINE_VERSION;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
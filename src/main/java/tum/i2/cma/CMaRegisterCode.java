@@ -0,0 +1,116 @@
+package tum.i2.cma;
+
+// Three-address register form of a verified CMa program (see CMaRegisterTranslator).
+// Every operation occupies four consecutive ints: the opcode and three operands,
+// usually a destination register followed by two source registers.
+//
+// Registers are stack slots: register k is stack[k]. Since the verifier proves a
+// fixed stack depth for every instruction, a value's stack slot is known during
+// translation and sp only has to be written back when the program ends or traps.
+// Constants live in registers above the deepest stack slot and are loaded before
+// the program starts.
+public final class CMaRegisterCode {
+    static final int STRIDE = 4;
+
+    // d = destination register, a and b = source registers
+    static final int MOVE = 0;   // d, a: r[d] = r[a]
+    static final int ADD = 1;    // d, a, b: r[d] = r[a] + r[b]
+    static final int SUB = 2;
+    static final int MUL = 3;
+    static final int AND = 4;
+    static final int OR = 5;
+    static final int XOR = 6;
+    static final int EQ = 7;
+    static final int NEQ = 8;
+    static final int LE = 9;
+    static final int LEQ = 10;
+    static final int GR = 11;
+    static final int GEQ = 12;
+    static final int NOT = 13;   // d, a
+    static final int NEG = 14;   // d, a
+
+    // Operations that may trap. Their last operand is the stack pointer of the
+    // original instruction at the point where it traps. DIV and MOD only trap
+    // if b is a stack slot, it is then the top of the stack.
+    static final int DIV = 15;   // d, a, b: r[d] = r[a] / r[b]
+    static final int MOD = 16;   // d, a, b: r[d] = r[a] % r[b]
+    static final int LOAD = 17;  // d, a, sp: r[d] = r[r[a]] if r[a] <= sp
+    static final int STORE = 18; // d, a, sp: r[r[a]] = r[d] if r[a] <= sp
+
+    static final int JUMP = 19;  // target
+    static final int JUMPZ = 20; // target, a: jump if r[a] == 0
+    // Compare and branch: jump if the comparison of r[a] and r[b] is false, like JUMPZ after it
+    static final int JUMP_NEQ = 21; // target, a, b (EQ; JUMPZ)
+    static final int JUMP_EQ = 22;  // NEQ; JUMPZ
+    static final int JUMP_GEQ = 23; // LE; JUMPZ
+    static final int JUMP_GR = 24;  // LEQ; JUMPZ
+    static final int JUMP_LEQ = 25; // GR; JUMPZ
+    static final int JUMP_LE = 26;  // GEQ; JUMPZ
+    static final int JUMPI = 27; // exit, a, base: continue at instruction base + r[a], at exit if that is the end
+    static final int EXIT = 28;  // sp: the program ends with the given stack pointer
+
+    private static final String[] NAMES = {
+            "MOVE", "ADD", "SUB", "MUL", "AND", "OR", "XOR", "EQ", "NEQ", "LE", "LEQ", "GR", "GEQ", "NOT", "NEG",
+            "DIV", "MOD", "LOAD", "STORE", "JUMP", "JUMPZ",
+            "JUMP_NEQ", "JUMP_EQ", "JUMP_GEQ", "JUMP_GR", "JUMP_LEQ", "JUMP_LE", "JUMPI", "EXIT"
+    };
+
+    final int[] code;
+    final int length; // Number of operations
+    final int[] origin; // Index of the CMa instruction each operation belongs to
+    final int[] entries; // Operation index of each instruction that starts a block, -1 for all others
+    final int[] constants; // Loaded into registers constantBase, constantBase + 1, ...
+    final int constantBase;
+    final int programLength; // Number of CMa instructions
+
+    CMaRegisterCode(int[] code, int length, int[] origin, int[] entries, int[] constants, int constantBase,
+            int programLength) {
+        this.code = code;
+        this.length = length;
+        this.origin = origin;
+        this.entries = entries;
+        this.constants = constants;
+        this.constantBase = constantBase;
+        this.programLength = programLength;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    // Stack slots plus constant registers
+    public int getRegisterCount() {
+        return constantBase + constants.length;
+    }
+
+    // One operation per line, e.g. "3: ADD r2, r0, r5"
+    @Override
+    public String toString() {
+        StringBuilder listing = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            int pc = i * STRIDE;
+            int opcode = code[pc];
+            listing.append(i).append(": ").append(NAMES[opcode]);
+            switch (opcode) {
+                case JUMP -> listing.append(' ').append(code[pc + 1]);
+                case JUMPZ -> listing.append(' ').append(code[pc + 1]).append(", ").append(register(code[pc + 2]));
+                case JUMP_NEQ, JUMP_EQ, JUMP_GEQ, JUMP_GR, JUMP_LEQ, JUMP_LE -> listing.append(' ').append(code[pc + 1])
+                        .append(", ").append(register(code[pc + 2])).append(", ").append(register(code[pc + 3]));
+                case JUMPI -> listing.append(' ').append(code[pc + 3]).append(" + ").append(register(code[pc + 2]));
+                case EXIT -> listing.append(" sp=").append(code[pc + 1]);
+                case MOVE, NOT, NEG -> listing.append(' ').append(register(code[pc + 1]))
+                        .append(", ").append(register(code[pc + 2]));
+                case LOAD, STORE -> listing.append(' ').append(register(code[pc + 1]))
+                        .append(", ").append(register(code[pc + 2])).append(" sp=").append(code[pc + 3]);
+                default -> listing.append(' ').append(register(code[pc + 1])).append(", ")
+                        .append(register(code[pc + 2])).append(", ").append(register(code[pc + 3]));
+            }
+            listing.append('\n');
+        }
+        return listing.toString();
+    }
+
+    private String register(int r) {
+        return r >= constantBase ? "#" + constants[r - constantBase] : "r" + r;
+    }
+}
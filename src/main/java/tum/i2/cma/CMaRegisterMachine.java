@@ -0,0 +1,214 @@
+package tum.i2.cma;
+
+// CMa machine that runs its program as register code (see CMaRegisterTranslator).
+// The registers are the stack slots, so the machine state is the same as for
+// CMa: run() leaves the stack, sp, ip and the error cases exactly as the
+// interpreter does, and step() still interprets a single instruction.
+// Programs that do not verify, or are not started from a fresh state, run on
+// the stack interpreter instead, as do traced runs and runs that report
+// metrics, since register code counts no instructions.
+public class CMaRegisterMachine extends CMa {
+    private CMaRegisterCode registerCode; // null if the program does not verify
+
+    public CMaRegisterMachine(CMaInstruction[] instructions) {
+        this(CMaCodeImage.decode(instructions));
+    }
+
+    public CMaRegisterMachine(CMaCodeImage image) {
+        super(image);
+        this.registerCode = CMaRegisterTranslator.translate(image);
+    }
+
+    public CMaRegisterMachine(CMaCodeImage image, int stackLimit, CMaMemory heap) {
+        super(image, stackLimit, heap);
+        this.registerCode = CMaRegisterTranslator.translate(image);
+    }
+
+    // Shares code translated earlier for the same image
+    CMaRegisterMachine(CMaCodeImage image, CMaRegisterCode registerCode) {
+        super(image);
+        this.registerCode = registerCode;
+    }
+
+    private CMaRegisterMachine(CMaRegisterMachine source) {
+        super(source);
+        this.registerCode = source.registerCode;
+    }
+
+    @Override
+    public CMaRegisterMachine fork() {
+        return new CMaRegisterMachine(this);
+    }
+
+    // null if the program runs on the stack interpreter
+    public CMaRegisterCode getRegisterCode() {
+        return registerCode;
+    }
+
+    @Override
+    void runProgram() {
+        if (registerCode == null || registerCode.getRegisterCount() > stackLimit || suspendedVerified
+                || trace != null || metrics != null || !canRunVerified()) {
+            super.runProgram();
+            return;
+        }
+        execute(registerCode);
+    }
+
+    @Override
+    void load(CMaCodeImage image) {
+        if (image != this.image) {
+            registerCode = CMaRegisterTranslator.translate(image);
+        }
+        super.load(image);
+    }
+
+    private void execute(CMaRegisterCode program) {
+        final int[] code = program.code;
+        final int[] entries = program.entries;
+        final int[] r = ensureStackCapacity(program.getRegisterCount());
+        System.arraycopy(program.constants, 0, r, program.constantBase, program.constants.length);
+        stackTop = Math.max(stackTop, program.getRegisterCount() - 1);
+        int pc = 0;
+        try {
+            while (true) {
+                switch (code[pc]) {
+                    case CMaRegisterCode.MOVE -> {
+                        r[code[pc + 1]] = r[code[pc + 2]];
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.ADD -> {
+                        r[code[pc + 1]] = r[code[pc + 2]] + r[code[pc + 3]];
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.SUB -> {
+                        r[code[pc + 1]] = r[code[pc + 2]] - r[code[pc + 3]];
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.MUL -> {
+                        r[code[pc + 1]] = r[code[pc + 2]] * r[code[pc + 3]];
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.AND -> {
+                        r[code[pc + 1]] = (r[code[pc + 2]] != 0 && r[code[pc + 3]] != 0) ? 1 : 0;
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.OR -> {
+                        r[code[pc + 1]] = (r[code[pc + 2]] != 0 || r[code[pc + 3]] != 0) ? 1 : 0;
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.XOR -> {
+                        r[code[pc + 1]] = ((r[code[pc + 2]] != 0) != (r[code[pc + 3]] != 0)) ? 1 : 0;
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.EQ -> {
+                        r[code[pc + 1]] = (r[code[pc + 2]] == r[code[pc + 3]]) ? 1 : 0;
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.NEQ -> {
+                        r[code[pc + 1]] = (r[code[pc + 2]] != r[code[pc + 3]]) ? 1 : 0;
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.LE -> {
+                        r[code[pc + 1]] = (r[code[pc + 2]] < r[code[pc + 3]]) ? 1 : 0;
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.LEQ -> {
+                        r[code[pc + 1]] = (r[code[pc + 2]] <= r[code[pc + 3]]) ? 1 : 0;
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.GR -> {
+                        r[code[pc + 1]] = (r[code[pc + 2]] > r[code[pc + 3]]) ? 1 : 0;
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.GEQ -> {
+                        r[code[pc + 1]] = (r[code[pc + 2]] >= r[code[pc + 3]]) ? 1 : 0;
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.NOT -> {
+                        r[code[pc + 1]] = (r[code[pc + 2]] != 0) ? 0 : 1;
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.NEG -> {
+                        r[code[pc + 1]] = -r[code[pc + 2]];
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.DIV -> {
+                        int second = r[code[pc + 3]];
+                        if (second == 0) {
+                            throw new ArithmeticException("Division by zero is not allowed!");
+                        }
+                        r[code[pc + 1]] = r[code[pc + 2]] / second;
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.MOD -> {
+                        int second = r[code[pc + 3]];
+                        if (second == 0) {
+                            throw new ArithmeticException("Division by zero is not allowed!");
+                        }
+                        r[code[pc + 1]] = r[code[pc + 2]] % second;
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.LOAD -> {
+                        int addr = r[code[pc + 2]];
+                        if (addr > code[pc + 3]) {
+                            throw new RuntimeException("Illegal stack memory access!");
+                        }
+                        r[code[pc + 1]] = r[addr];
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.STORE -> {
+                        int addr = r[code[pc + 2]];
+                        if (addr > code[pc + 3]) {
+                            throw new RuntimeException("Illegal stack memory access!");
+                        }
+                        r[addr] = r[code[pc + 1]];
+                        pc += CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.JUMP -> {
+                        pc = code[pc + 1] * CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.JUMPZ -> {
+                        pc = r[code[pc + 2]] == 0 ? code[pc + 1] * CMaRegisterCode.STRIDE : pc + CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.JUMP_NEQ -> {
+                        pc = r[code[pc + 2]] == r[code[pc + 3]] ? pc + CMaRegisterCode.STRIDE : code[pc + 1] * CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.JUMP_EQ -> {
+                        pc = r[code[pc + 2]] != r[code[pc + 3]] ? pc + CMaRegisterCode.STRIDE : code[pc + 1] * CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.JUMP_GEQ -> {
+                        pc = r[code[pc + 2]] < r[code[pc + 3]] ? pc + CMaRegisterCode.STRIDE : code[pc + 1] * CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.JUMP_GR -> {
+                        pc = r[code[pc + 2]] <= r[code[pc + 3]] ? pc + CMaRegisterCode.STRIDE : code[pc + 1] * CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.JUMP_LEQ -> {
+                        pc = r[code[pc + 2]] > r[code[pc + 3]] ? pc + CMaRegisterCode.STRIDE : code[pc + 1] * CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.JUMP_LE -> {
+                        pc = r[code[pc + 2]] >= r[code[pc + 3]] ? pc + CMaRegisterCode.STRIDE : code[pc + 1] * CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.JUMPI -> {
+                        int target = code[pc + 3] + r[code[pc + 2]];
+                        pc = (target == program.programLength ? code[pc + 1] : entries[target]) * CMaRegisterCode.STRIDE;
+                    }
+                    case CMaRegisterCode.EXIT -> {
+                        sp = code[pc + 1];
+                        ip = program.programLength;
+                        return;
+                    }
+                    default -> {
+                        throw new UnsupportedOperationException("Unknown register opcode: " + code[pc]);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // Only DIV, MOD, LOAD and STORE can trap, with the stack written back
+            // and their last operand holding sp at the point of the trap
+            sp = code[pc + 3];
+            ip = program.origin[pc / CMaRegisterCode.STRIDE] + 1;
+            throw e instanceof ArrayIndexOutOfBoundsException bounds ? stackBoundsError(bounds) : e;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package tum.i2.cma;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Lifts a verified CMa program into three-address register code (see CMaRegisterCode).
+//
+// Each basic block is translated with a symbolic stack. A pushed value is not
+// written to its stack slot right away; the slot remembers that it holds a copy
+// of another slot, a constant, or the result of a pending operation on the top
+// of the stack. Values are only written to their slots when the next operation
+// needs them there, so e.g. LOADA x; LOADA y; ADD; STOREA z; POP becomes the
+// single operation ADD rz, rx, ry, and a comparison followed by JUMPZ becomes
+// one compare-and-branch.
+//
+// At the end of every block and before every operation that may trap, all
+// values are written to their slots, so at those points stack[0 .. sp] holds
+// exactly what the stack interpreter would have there.
+public final class CMaRegisterTranslator {
+    // What a stack slot holds during translation
+    private static final int SELF = 0;     // its own value, the slot is up to date
+    private static final int COPY = 1;     // the value of register value[slot]
+    private static final int CONSTANT = 2; // the constant value[slot]
+    private static final int PENDING = 3;  // the result of pendingOp, only ever the top slot
+
+    private final int[] source;
+    private final int sourceLength;
+    private final CMaVerifier.Result verification;
+    // Values that are popped again before being written never reach their slots,
+    // unless ALLOC may expose those slots (see CMaCodeImage.exposesOldSlots())
+    private final boolean lazy;
+
+    private int[] code = new int[64 * CMaRegisterCode.STRIDE];
+    private int[] origin = new int[64];
+    private int size;
+    private final int[] entries;
+    private final Map<Integer, Integer> constantRegisters = new HashMap<>();
+    private int[] constants = new int[16];
+    private final int constantBase;
+
+    private final int[] kind;
+    private final int[] value;
+    private int depth;
+    private int clean; // Slots below this are SELF
+    private int pendingOp;
+    private int pendingA;
+    private int pendingB;
+    private int current; // Instruction being translated
+
+    private CMaRegisterTranslator(CMaCodeImage image, CMaVerifier.Result verification) {
+        this.source = image.code;
+        this.sourceLength = image.length;
+        this.verification = verification;
+        this.lazy = !image.exposesOldSlots();
+        this.entries = new int[image.length];
+        Arrays.fill(entries, -1);
+        this.constantBase = verification.getMaxStackDepth();
+        this.kind = new int[constantBase + 1];
+        this.value = new int[constantBase + 1];
+    }
+
+    public static CMaRegisterCode translate(CMaInstruction[] instructions) {
+        return translate(CMaCodeImage.decode(instructions));
+    }
+
+    // Returns null if the program does not verify or uses the heap, it then has to
+    // run on the stack interpreter
+    public static CMaRegisterCode translate(CMaCodeImage image) {
+        CMaVerifier.Result verification = image.verification();
+        if (!verification.isVerified() || image.usesHeap()) {
+            return null;
+        }
+        return new CMaRegisterTranslator(image, verification).run();
+    }
+
+    private CMaRegisterCode run() {
+        boolean open = false; // Whether the previous instruction falls through
+        for (int i = 0; i < sourceLength; i++) {
+            if (verification.getStackDepth(i) < 0) {
+                continue; // Unreachable
+            }
+            current = i;
+            if (verification.isBlockStart(i)) {
+                if (open) {
+                    materializeAll();
+                }
+                startBlock(i);
+            }
+            open = translate(CMaOpcodes.baseOf(source[i * CMaCodeImage.STRIDE]),
+                    source[i * CMaCodeImage.STRIDE + 1]);
+        }
+        if (open) {
+            current = sourceLength - 1;
+            materializeAll();
+            emit(CMaRegisterCode.EXIT, depth - 1, 0, 0);
+        }
+
+        // Jump targets were emitted as instruction indices
+        for (int pc = 0; pc < size * CMaRegisterCode.STRIDE; pc += CMaRegisterCode.STRIDE) {
+            int opcode = code[pc];
+            if (opcode >= CMaRegisterCode.JUMP && opcode <= CMaRegisterCode.JUMP_LE) {
+                code[pc + 1] = entries[code[pc + 1]];
+            }
+        }
+        return new CMaRegisterCode(Arrays.copyOf(code, size * CMaRegisterCode.STRIDE), size,
+                Arrays.copyOf(origin, size), entries, Arrays.copyOf(constants, constantRegisters.size()),
+                constantBase, sourceLength);
+    }
+
+    private void startBlock(int i) {
+        entries[i] = size;
+        depth = verification.getStackDepth(i);
+        clean = depth;
+    }
+
+    // Translates one instruction, returns false if control never falls through to the next one
+    private boolean translate(int opcode, int operand) {
+        int top = depth - 1;
+        switch (opcode) {
+            case CMaOpcodes.LOADC -> push(CONSTANT, operand);
+            case CMaOpcodes.LOADA -> pushCopyOf(operand);
+            case CMaOpcodes.ADD, CMaOpcodes.SUB, CMaOpcodes.MUL, CMaOpcodes.AND, CMaOpcodes.OR, CMaOpcodes.XOR,
+                    CMaOpcodes.EQ, CMaOpcodes.NEQ, CMaOpcodes.LE, CMaOpcodes.LEQ, CMaOpcodes.GR, CMaOpcodes.GEQ -> {
+                if (kindOf(top) == CONSTANT && kindOf(top - 1) == CONSTANT) {
+                    int result = fold(opcode, value[top - 1], value[top]);
+                    pop(2);
+                    push(CONSTANT, result);
+                } else {
+                    int b = operand(top);
+                    int a = operand(top - 1);
+                    pop(2);
+                    pending(registerOpcode(opcode), a, b);
+                }
+            }
+            case CMaOpcodes.NOT, CMaOpcodes.NEG -> {
+                if (kindOf(top) == CONSTANT) {
+                    int result = opcode == CMaOpcodes.NOT ? (value[top] != 0 ? 0 : 1) : -value[top];
+                    pop(1);
+                    push(CONSTANT, result);
+                } else {
+                    int a = operand(top);
+                    pop(1);
+                    pending(opcode == CMaOpcodes.NOT ? CMaRegisterCode.NOT : CMaRegisterCode.NEG, a, 0);
+                }
+            }
+            case CMaOpcodes.DIV, CMaOpcodes.MOD -> {
+                int registerOpcode = opcode == CMaOpcodes.DIV ? CMaRegisterCode.DIV : CMaRegisterCode.MOD;
+                if (kindOf(top) == CONSTANT && value[top] != 0) {
+                    // Cannot trap, so it is treated like any other arithmetic
+                    if (kindOf(top - 1) == CONSTANT) {
+                        int a = value[top - 1];
+                        int b = value[top];
+                        pop(2);
+                        push(CONSTANT, opcode == CMaOpcodes.DIV ? a / b : a % b);
+                    } else {
+                        int b = operand(top);
+                        int a = operand(top - 1);
+                        pop(2);
+                        pending(registerOpcode, a, b);
+                    }
+                } else {
+                    materializeAll();
+                    emit(registerOpcode, top - 1, top - 1, top);
+                    pop(1);
+                }
+            }
+            case CMaOpcodes.LOAD -> {
+                if (kindOf(top) == CONSTANT && value[top] >= 0 && value[top] < top) {
+                    // LOADC a; LOAD is LOADA a
+                    int addr = value[top];
+                    pop(1);
+                    pushCopyOf(addr);
+                } else {
+                    materializeAll();
+                    emit(CMaRegisterCode.LOAD, top, top, top);
+                }
+            }
+            case CMaOpcodes.STORE -> {
+                if (kindOf(top) == CONSTANT && value[top] >= 0 && value[top] < top) {
+                    // LOADC a; STORE is STOREA a
+                    int addr = value[top];
+                    pop(1);
+                    storeTo(addr);
+                } else {
+                    materializeAll();
+                    emit(CMaRegisterCode.STORE, top - 1, top, top - 1);
+                    pop(1);
+                }
+            }
+            case CMaOpcodes.STOREA -> storeTo(operand);
+            case CMaOpcodes.POP -> pop(1);
+            case CMaOpcodes.DUP -> pushCopyOf(top);
+            case CMaOpcodes.ALLOC -> {
+                if (operand < 0) {
+                    pop(-operand);
+                } else {
+                    for (int k = 0; k < operand; k++) {
+                        push(SELF, 0); // Whatever the slot held before
+                    }
+                }
+            }
+            case CMaOpcodes.JUMP -> {
+                materializeAll();
+                emit(CMaRegisterCode.JUMP, operand, 0, 0);
+                return false;
+            }
+            case CMaOpcodes.JUMPZ -> {
+                materializeBelowTop();
+                if (kindOf(top) == CONSTANT) {
+                    pop(1);
+                    if (value[top] == 0) {
+                        emit(CMaRegisterCode.JUMP, operand, 0, 0);
+                        return false;
+                    }
+                } else if (kindOf(top) == PENDING && pendingOp >= CMaRegisterCode.EQ && pendingOp <= CMaRegisterCode.GEQ) {
+                    emit(CMaRegisterCode.JUMP_NEQ + pendingOp - CMaRegisterCode.EQ, operand, pendingA, pendingB);
+                    pop(1);
+                } else {
+                    emit(CMaRegisterCode.JUMPZ, operand, operand(top), 0);
+                    pop(1);
+                }
+            }
+            case CMaOpcodes.JUMPI -> {
+                materializeBelowTop();
+                if (kindOf(top) == CONSTANT) {
+                    int target = operand + value[top];
+                    pop(1);
+                    if (target == sourceLength) {
+                        emit(CMaRegisterCode.EXIT, depth - 1, 0, 0);
+                    } else {
+                        emit(CMaRegisterCode.JUMP, target, 0, 0);
+                    }
+                } else {
+                    int index = operand(top);
+                    pop(1);
+                    emit(CMaRegisterCode.JUMPI, size + 1, index, operand);
+                    emit(CMaRegisterCode.EXIT, depth - 1, 0, 0);
+                }
+                return false;
+            }
+            default -> throw new IllegalArgumentException("Unknown opcode: " + opcode);
+        }
+        return true;
+    }
+
+    private void push(int slotKind, int slotValue) {
+        if (depth > 0 && kindOf(depth - 1) == PENDING) {
+            materialize(depth - 1);
+        }
+        kind[depth] = slotKind;
+        value[depth] = slotValue;
+        depth++;
+        if (!lazy) {
+            materialize(depth - 1);
+        }
+    }
+
+    // Pushes the value of slot
+    private void pushCopyOf(int slot) {
+        switch (kindOf(slot)) {
+            case SELF -> push(COPY, slot);
+            case COPY, CONSTANT -> push(kindOf(slot), value[slot]);
+            default -> {
+                materialize(slot);
+                push(COPY, slot);
+            }
+        }
+    }
+
+    private void pending(int opcode, int a, int b) {
+        pendingOp = opcode;
+        pendingA = a;
+        pendingB = b;
+        kind[depth] = PENDING;
+        depth++;
+        if (!lazy) {
+            materialize(depth - 1);
+        }
+    }
+
+    private int kindOf(int slot) {
+        return slot < clean ? SELF : kind[slot];
+    }
+
+    private void pop(int count) {
+        depth -= count;
+        clean = Math.min(clean, depth);
+    }
+
+    // STOREA addr with the value on top of the stack
+    private void storeTo(int addr) {
+        int top = depth - 1;
+        if (addr == top) {
+            if (kindOf(top) == PENDING) {
+                materialize(top);
+            }
+            return;
+        }
+        // Slots that copy addr need its old value
+        for (int slot = clean; slot < depth; slot++) {
+            if (kindOf(slot) == COPY && value[slot] == addr) {
+                materialize(slot);
+            }
+        }
+        if (addr >= clean && lazy
+                && (kindOf(top) == CONSTANT || (kindOf(top) == COPY && value[top] < addr))) {
+            // Nothing refers to addr, so it can simply take over the value. Copies
+            // only ever refer to lower slots, which cannot be popped before them.
+            kind[addr] = kind[top];
+            value[addr] = value[top];
+            return;
+        }
+        if (kindOf(top) == PENDING) {
+            emit(pendingOp, addr, pendingA, pendingB);
+            kind[top] = COPY;
+            value[top] = addr;
+        } else {
+            emit(CMaRegisterCode.MOVE, addr, operand(top), 0);
+        }
+        kind[addr] = SELF;
+    }
+
+    // Register holding the value of slot
+    private int operand(int slot) {
+        return switch (kindOf(slot)) {
+            case SELF -> slot;
+            case COPY -> value[slot];
+            case CONSTANT -> constantRegister(value[slot]);
+            default -> {
+                materialize(slot);
+                yield slot;
+            }
+        };
+    }
+
+    // Writes the value of slot into it
+    private void materialize(int slot) {
+        switch (kindOf(slot)) {
+            case COPY -> emit(CMaRegisterCode.MOVE, slot, value[slot], 0);
+            case CONSTANT -> emit(CMaRegisterCode.MOVE, slot, constantRegister(value[slot]), 0);
+            case PENDING -> emit(pendingOp, slot, pendingA, pendingB);
+            default -> {
+                return;
+            }
+        }
+        kind[slot] = SELF;
+    }
+
+    private void materializeAll() {
+        for (int slot = clean; slot < depth; slot++) {
+            materialize(slot);
+        }
+        clean = depth;
+    }
+
+    // Before a jump that consumes the top of the stack
+    private void materializeBelowTop() {
+        for (int slot = clean; slot < depth - 1; slot++) {
+            materialize(slot);
+        }
+    }
+
+    private int constantRegister(int constant) {
+        Integer register = constantRegisters.get(constant);
+        if (register == null) {
+            int index = constantRegisters.size();
+            if (index == constants.length) {
+                constants = Arrays.copyOf(constants, 2 * index);
+            }
+            constants[index] = constant;
+            register = constantBase + index;
+            constantRegisters.put(constant, register);
+        }
+        return register;
+    }
+
+    private void emit(int opcode, int d, int a, int b) {
+        if ((size + 1) * CMaRegisterCode.STRIDE > code.length) {
+            code = Arrays.copyOf(code, 2 * code.length);
+            origin = Arrays.copyOf(origin, 2 * origin.length);
+        }
+        int pc = size * CMaRegisterCode.STRIDE;
+        code[pc] = opcode;
+        code[pc + 1] = d;
+        code[pc + 2] = a;
+        code[pc + 3] = b;
+        origin[size++] = current;
+    }
+
+    private static int registerOpcode(int opcode) {
+        return switch (opcode) {
+            case CMaOpcodes.ADD -> CMaRegisterCode.ADD;
+            case CMaOpcodes.SUB -> CMaRegisterCode.SUB;
+            case CMaOpcodes.MUL -> CMaRegisterCode.MUL;
+            case CMaOpcodes.AND -> CMaRegisterCode.AND;
+            case CMaOpcodes.OR -> CMaRegisterCode.OR;
+            case CMaOpcodes.XOR -> CMaRegisterCode.XOR;
+            case CMaOpcodes.EQ -> CMaRegisterCode.EQ;
+            case CMaOpcodes.NEQ -> CMaRegisterCode.NEQ;
+            case CMaOpcodes.LE -> CMaRegisterCode.LE;
+            case CMaOpcodes.LEQ -> CMaRegisterCode.LEQ;
+            case CMaOpcodes.GR -> CMaRegisterCode.GR;
+            default -> CMaRegisterCode.GEQ;
+        };
+    }
+
+    private static int fold(int opcode, int a, int b) {
+        return switch (opcode) {
+            case CMaOpcodes.ADD -> a + b;
+            case CMaOpcodes.SUB -> a - b;
+            case CMaOpcodes.MUL -> a * b;
+            case CMaOpcodes.AND -> (a != 0 && b != 0) ? 1 : 0;
+            case CMaOpcodes.OR -> (a != 0 || b != 0) ? 1 : 0;
+            case CMaOpcodes.XOR -> ((a != 0) != (b != 0)) ? 1 : 0;
+            case CMaOpcodes.EQ -> (a == b) ? 1 : 0;
+            case CMaOpcodes.NEQ -> (a != b) ? 1 : 0;
+            case CMaOpcodes.LE -> (a < b) ? 1 : 0;
+            case CMaOpcodes.LEQ -> (a <= b) ? 1 : 0;
+            case CMaOpcodes.GR -> (a > b) ? 1 : 0;
+            default -> (a >= b) ? 1 : 0;
+        };
+    }
+}
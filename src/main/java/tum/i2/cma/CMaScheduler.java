@@ -0,0 +1,325 @@
+package tum.i2.cma;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import tum.i2.common.ExecutionStatus;
+import tum.i2.common.VirtualMachine;
+
+// Runs many machines at once by time-slicing them over a few carrier threads.
+// A machine is its own continuation: run(maxSteps) suspends it after a slice of
+// fuel and the next slice continues where it stopped, so a task needs no thread
+// of its own and thousands of them cost no more than their machines.
+//
+// The carriers share one FIFO run queue. A task that runs out of fuel is queued
+// behind the tasks already waiting, so a program stuck in a loop only gets its
+// turn like everybody else. (A work-stealing pool would keep a requeued task in
+// its carrier's own queue, ahead of new submissions, and starve them.) With the
+// default slice a carrier takes a task every few dozen microseconds, far too
+// rarely for the shared queue to limit scaling. A priority p task gets p times
+// the fuel per slice.
+// Tenants limit how many of their tasks run at the same time; their other tasks
+// wait in the tenant's queue without holding a carrier.
+public final class CMaScheduler implements AutoCloseable {
+    public static final long DEFAULT_SLICE = 50_000;
+
+    public static final class Tenant {
+        private final String name;
+        private final int quota;
+        private final Queue<Task> waiting = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger running = new AtomicInteger();
+        private final LongAccumulator peakRunning = new LongAccumulator(Math::max, 0);
+        private final LongAdder slices = new LongAdder();
+
+        // quota = number of carriers the tenant may use at the same time
+        public Tenant(String name, int quota) {
+            if (quota <= 0) {
+                throw new IllegalArgumentException("Quota must be positive");
+            }
+            this.name = name;
+            this.quota = quota;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getQuota() {
+            return quota;
+        }
+
+        public int getRunning() {
+            return running.get();
+        }
+
+        // Most tasks that ever ran at the same time, never more than the quota
+        public int getPeakRunning() {
+            return (int) peakRunning.get();
+        }
+
+        public int getWaiting() {
+            return waiting.size();
+        }
+
+        public long getSlices() {
+            return slices.sum();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    // Handle of a submitted machine. The completion holds FINISHED or TRAPPED, or
+    // OUT_OF_FUEL if the task was cancelled, the machine then stays resumable.
+    public final class Task implements Runnable {
+        private final VirtualMachine machine;
+        private final Tenant tenant;
+        private final int priority;
+        private final CompletableFuture<ExecutionStatus> completion = new CompletableFuture<>();
+        private volatile boolean cancelled;
+        private volatile RuntimeException failure;
+        private volatile long slices; // Only written by the carrier running the task
+        private long queuedAt;
+
+        Task(VirtualMachine machine, Tenant tenant, int priority) {
+            this.machine = machine;
+            this.tenant = tenant;
+            this.priority = priority;
+        }
+
+        public VirtualMachine getMachine() {
+            return machine;
+        }
+
+        public Tenant getTenant() {
+            return tenant;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public CompletableFuture<ExecutionStatus> getCompletion() {
+            return completion;
+        }
+
+        // Waits for the task to end
+        public ExecutionStatus join() {
+            return completion.join();
+        }
+
+        // The error that stopped the machine, null unless the task trapped
+        public RuntimeException getFailure() {
+            return failure;
+        }
+
+        // Number of slices run so far
+        public long getSlices() {
+            return slices;
+        }
+
+        // Stops the task before its next slice
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            queued.decrement();
+            waitNanos.add(start - queuedAt);
+            maxWaitNanos.accumulate(start - queuedAt);
+            ExecutionStatus status;
+            if (cancelled || closed) {
+                status = ExecutionStatus.OUT_OF_FUEL;
+            } else {
+                try {
+                    status = machine.run(sliceFuel * priority);
+                } catch (RuntimeException e) {
+                    failure = e;
+                    status = ExecutionStatus.TRAPPED;
+                }
+                if (status == ExecutionStatus.TRAPPED && failure == null && machine instanceof CMa cma) {
+                    failure = cma.getTrap();
+                }
+                long elapsed = System.nanoTime() - start;
+                slices++;
+                totalSlices.increment();
+                tenant.slices.increment();
+                sliceNanos.add(elapsed);
+                maxSliceNanos.accumulate(elapsed);
+            }
+            tenant.running.decrementAndGet();
+            if (status == ExecutionStatus.OUT_OF_FUEL && !cancelled && !closed) {
+                schedule(this);
+            } else {
+                finish(this, status);
+            }
+            dispatch(tenant);
+        }
+    }
+
+    // A consistent-enough view of the counters, e.g. for monitoring
+    public record Stats(int queueDepth, int liveTasks, long submitted, long finished, long trapped, long cancelled,
+            long slices, long sliceNanos, long maxSliceNanos, long waitNanos, long maxWaitNanos, long elapsedNanos) {
+
+        public double getAverageSliceNanos() {
+            return slices == 0 ? 0 : (double) sliceNanos / slices;
+        }
+
+        // Time a task waits from being queued until its slice starts
+        public double getAverageWaitNanos() {
+            return slices == 0 ? 0 : (double) waitNanos / slices;
+        }
+
+        public double getSlicesPerSecond() {
+            return elapsedNanos == 0 ? 0 : slices * 1e9 / elapsedNanos;
+        }
+
+        public double getCompletedPerSecond() {
+            return elapsedNanos == 0 ? 0 : (finished + trapped) * 1e9 / elapsedNanos;
+        }
+
+        // Fraction of the carriers' time spent running slices
+        public double getUtilization(int carriers) {
+            return elapsedNanos == 0 ? 0 : (double) sliceNanos / elapsedNanos / carriers;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d live, %d queued, %d finished, %d trapped, %d cancelled, %d slices "
+                    + "(avg %.1f us, max %.1f us), wait avg %.1f us max %.1f us, %.0f slices/s, %.0f tasks/s",
+                    liveTasks, queueDepth, finished, trapped, cancelled, slices, getAverageSliceNanos() / 1e3,
+                    maxSliceNanos / 1e3, getAverageWaitNanos() / 1e3, maxWaitNanos / 1e3, getSlicesPerSecond(),
+                    getCompletedPerSecond());
+        }
+    }
+
+    private final ThreadPoolExecutor carriers;
+    private final long sliceFuel;
+    private final Tenant defaultTenant = new Tenant("default", Integer.MAX_VALUE);
+    private final long startedAt = System.nanoTime();
+    private volatile boolean closed;
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder live = new LongAdder();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder finished = new LongAdder();
+    private final LongAdder trapped = new LongAdder();
+    private final LongAdder cancelledTasks = new LongAdder();
+    private final LongAdder totalSlices = new LongAdder();
+    private final LongAdder sliceNanos = new LongAdder();
+    private final LongAccumulator maxSliceNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+    public CMaScheduler() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_SLICE);
+    }
+
+    public CMaScheduler(int carriers, long sliceFuel) {
+        if (sliceFuel <= 0) {
+            throw new IllegalArgumentException("Fuel must be positive");
+        }
+        AtomicInteger threads = new AtomicInteger();
+        this.carriers = new ThreadPoolExecutor(carriers, carriers, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                task -> {
+                    Thread thread = new Thread(task, "cma-carrier-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.carriers.prestartAllCoreThreads();
+        this.sliceFuel = sliceFuel;
+    }
+
+    public Task submit(VirtualMachine machine) {
+        return submit(machine, defaultTenant, 1);
+    }
+
+    public Task submit(VirtualMachine machine, Tenant tenant, int priority) {
+        if (priority <= 0) {
+            throw new IllegalArgumentException("Priority must be positive");
+        }
+        if (closed) {
+            throw new RejectedExecutionException("Scheduler is closed");
+        }
+        Task task = new Task(machine, tenant, priority);
+        submitted.increment();
+        live.increment();
+        schedule(task);
+        dispatch(tenant);
+        return task;
+    }
+
+    public int getCarrierCount() {
+        return carriers.getCorePoolSize();
+    }
+
+    public Stats getStats() {
+        return new Stats(queued.intValue(), live.intValue(), submitted.sum(), finished.sum(), trapped.sum(),
+                cancelledTasks.sum(), totalSlices.sum(), sliceNanos.sum(), maxSliceNanos.get(), waitNanos.sum(),
+                maxWaitNanos.get(), System.nanoTime() - startedAt);
+    }
+
+    // Running tasks stop after their current slice and end as OUT_OF_FUEL
+    @Override
+    public void close() {
+        closed = true;
+        carriers.shutdown();
+    }
+
+    private void schedule(Task task) {
+        task.queuedAt = System.nanoTime();
+        queued.increment();
+        task.tenant.waiting.add(task);
+    }
+
+    // Starts waiting tasks while the tenant is below its quota. Queueing a task
+    // and finishing a slice both call this after changing the tenant, so one of
+    // them always sees the other's change.
+    private void dispatch(Tenant tenant) {
+        while (!tenant.waiting.isEmpty()) {
+            int running = tenant.running.get();
+            if (running >= tenant.quota) {
+                return;
+            }
+            if (!tenant.running.compareAndSet(running, running + 1)) {
+                continue;
+            }
+            Task task = tenant.waiting.poll();
+            if (task == null) {
+                tenant.running.decrementAndGet();
+                continue;
+            }
+            tenant.peakRunning.accumulate(running + 1);
+            try {
+                carriers.execute(task);
+            } catch (RejectedExecutionException e) {
+                // Closed in the meantime
+                queued.decrement();
+                tenant.running.decrementAndGet();
+                finish(task, ExecutionStatus.OUT_OF_FUEL);
+            }
+        }
+    }
+
+    private void finish(Task task, ExecutionStatus status) {
+        live.decrement();
+        switch (status) {
+            case FINISHED -> finished.increment();
+            case TRAPPED -> trapped.increment();
+            case OUT_OF_FUEL -> cancelledTasks.increment();
+        }
+        task.completion.complete(status);
+    }
+}
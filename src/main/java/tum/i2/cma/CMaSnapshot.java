@@ -0,0 +1,273 @@
+package tum.i2.cma;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// Machine state in a compact binary form, all values big-endian:
+//
+//   int    magic                  "CMAS"
+//   short  version                VERSION
+//   short  flags                  FLAG_VERIFIED | FLAG_OBJECTS | FLAG_FRAME
+//   int    program                fingerprint of the program (CMaCodeImage.fingerprint())
+//   int    ip, sp, hp
+//   int    stackCount             followed by stack[0 .. stackCount - 1]
+//   int    segmentCount           followed by segmentCount * int address,
+//            int count, int[count] values
+//   int    objectCount            if FLAG_OBJECTS, followed by objectCount ints
+//            of allocator state (CMaAllocator.saveState())
+//   int    fp, ep                 if FLAG_FRAME
+//   int    checksum               CRC32 of everything before it
+//
+// The stack is stored up to sp. Programs in which ALLOC exposes old slots
+// again (see CMaCodeImage.exposesOldSlots()) also keep the slots above sp, up
+// to the last one that is not 0.
+// The heap is stored as segments of heap[0 .. hp], leaving out long runs of zeros.
+// Version 1 snapshots have no allocator state and version 2 snapshots no
+// frame registers, both are still read.
+// A snapshot only holds state, restoring it needs a machine with the same program.
+public final class CMaSnapshot {
+    static final int MAGIC = 0x434d4153;
+    static final int VERSION = 3;
+
+    static final int FLAG_VERIFIED = 1; // Taken while suspended in the verified loop
+    static final int FLAG_OBJECTS = 2;  // The allocator holds objects
+    static final int FLAG_FRAME = 4;    // Taken inside a function
+
+    static final int HEADER_SIZE = 24;
+    static final int CHECKSUM_SIZE = 4;
+
+    // Zero runs shorter than this stay inside a segment, they cost less than a new segment header
+    private static final int MIN_GAP = 3;
+
+    private final byte[] data;
+
+    private CMaSnapshot(byte[] data) {
+        this.data = data;
+    }
+
+    static CMaSnapshot of(CMa machine) {
+        int[] stack = machine.getStack();
+        int top = machine.sp;
+        if (machine.image.exposesOldSlots()) {
+            top = Math.max(top, Math.min(machine.stackTop, stack.length - 1));
+            while (top > machine.sp && stack[top] == 0) {
+                top--;
+            }
+        }
+        int stackCount = Math.max(0, Math.min(top + 1, stack.length));
+        int heapEnd = Math.min(machine.hp + 1, machine.heap.limit());
+        int[] heap = new int[Math.max(0, heapEnd)];
+        for (int i = 0; i < heap.length; i++) {
+            heap[i] = machine.heap.load(i);
+        }
+
+        // First pass sizes the buffer, the second fills it
+        int segments = 0;
+        int segmentInts = 0;
+        for (int start = nextSegment(heap, 0); start < heap.length; start = nextSegment(heap, start)) {
+            int end = segmentEnd(heap, start);
+            segments++;
+            segmentInts += 2 + end - start;
+            start = end;
+        }
+        int[] objects = machine.allocator.isEmpty() ? null : machine.allocator.saveState();
+        int objectInts = objects == null ? 0 : 1 + objects.length;
+        boolean frame = machine.fp != -1 || machine.ep != -1;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4 + stackCount * 4 + 4 + segmentInts * 4 + objectInts * 4
+                + (frame ? 8 : 0) + CHECKSUM_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) ((machine.suspendedVerified ? FLAG_VERIFIED : 0) | (objects != null ? FLAG_OBJECTS : 0)
+                | (frame ? FLAG_FRAME : 0)));
+        buffer.putInt(machine.image.fingerprint());
+        buffer.putInt(machine.ip);
+        buffer.putInt(machine.sp);
+        buffer.putInt(machine.hp);
+        buffer.putInt(stackCount);
+        buffer.asIntBuffer().put(stack, 0, stackCount);
+        buffer.position(buffer.position() + stackCount * 4);
+        buffer.putInt(segments);
+        for (int start = nextSegment(heap, 0); start < heap.length; start = nextSegment(heap, start)) {
+            int end = segmentEnd(heap, start);
+            buffer.putInt(start);
+            buffer.putInt(end - start);
+            buffer.asIntBuffer().put(heap, start, end - start);
+            buffer.position(buffer.position() + (end - start) * 4);
+            start = end;
+        }
+        if (objects != null) {
+            buffer.putInt(objects.length);
+            buffer.asIntBuffer().put(objects);
+            buffer.position(buffer.position() + objects.length * 4);
+        }
+        if (frame) {
+            buffer.putInt(machine.fp);
+            buffer.putInt(machine.ep);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) checksum.getValue());
+        return new CMaSnapshot(buffer.array());
+    }
+
+    private static int nextSegment(int[] heap, int from) {
+        while (from < heap.length && heap[from] == 0) {
+            from++;
+        }
+        return from;
+    }
+
+    private static int segmentEnd(int[] heap, int start) {
+        int end = start;
+        int zeros = 0;
+        for (int i = start; i < heap.length && zeros < MIN_GAP; i++) {
+            if (heap[i] == 0) {
+                zeros++;
+            } else {
+                zeros = 0;
+                end = i + 1;
+            }
+        }
+        return end;
+    }
+
+    void restore(CMa machine) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (buffer.getInt(8) != machine.image.fingerprint()) {
+            throw new IllegalArgumentException("Snapshot was taken from a different program");
+        }
+        buffer.position(12);
+        int ip = buffer.getInt();
+        int sp = buffer.getInt();
+        int hp = buffer.getInt();
+        int stackCount = buffer.getInt();
+        if (stackCount > machine.stackLimit) {
+            throw new IllegalArgumentException("Snapshot needs " + stackCount + " stack slots, the machine has "
+                    + machine.stackLimit);
+        }
+
+        machine.reset();
+        int[] stack = machine.ensureStackCapacity(stackCount);
+        buffer.asIntBuffer().get(stack, 0, stackCount);
+        buffer.position(buffer.position() + stackCount * 4);
+        int segments = buffer.getInt();
+        for (int i = 0; i < segments; i++) {
+            int address = buffer.getInt();
+            int count = buffer.getInt();
+            if (address + count > machine.heap.limit()) {
+                throw new IllegalArgumentException("Snapshot heap does not fit into the machine's heap");
+            }
+            for (int j = 0; j < count; j++) {
+                machine.heap.store(address + j, buffer.getInt());
+            }
+        }
+        if ((buffer.getShort(6) & FLAG_OBJECTS) != 0) {
+            int[] objects = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(objects);
+            machine.allocator.restoreState(objects);
+        }
+        if ((buffer.getShort(6) & FLAG_FRAME) != 0) {
+            machine.fp = buffer.getInt();
+            machine.ep = buffer.getInt();
+        }
+        machine.ip = ip;
+        machine.sp = sp;
+        machine.hp = hp;
+        machine.stackTop = stackCount - 1;
+        // The verified loop relies on the whole stack depth the verifier computed
+        machine.suspendedVerified = (buffer.getShort(6) & FLAG_VERIFIED) != 0
+                && machine.image.verification().getMaxStackDepth() <= machine.stackLimit;
+    }
+
+    public int getSizeInBytes() {
+        return data.length;
+    }
+
+    public byte[] toBytes() {
+        return data.clone();
+    }
+
+    public static CMaSnapshot fromBytes(byte[] bytes, String name) throws IOException {
+        return fromBuffer(ByteBuffer.wrap(bytes), name);
+    }
+
+    public void write(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    public static CMaSnapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a CMa snapshot: " + file);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until the buffer is full
+            }
+            return fromBuffer(buffer.flip(), file.toString());
+        }
+    }
+
+    // Checks the framing once, so restore() can trust the contents
+    private static CMaSnapshot fromBuffer(ByteBuffer buffer, String name) throws IOException {
+        int size = buffer.remaining();
+        if (size < HEADER_SIZE + 8 + CHECKSUM_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a CMa snapshot: " + name);
+        }
+        int version = buffer.getShort(4) & 0xffff;
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported CMa snapshot version " + version + " in " + name);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.duplicate().limit(size - CHECKSUM_SIZE));
+        if ((int) checksum.getValue() != buffer.getInt(size - CHECKSUM_SIZE)) {
+            throw new IOException("Checksum mismatch in " + name);
+        }
+        try {
+            buffer.position(HEADER_SIZE);
+            int stackCount = buffer.getInt();
+            if (stackCount < 0 || (long) stackCount * 4 > size) {
+                throw new IOException("Invalid stack size " + stackCount + " in " + name);
+            }
+            buffer.position(buffer.position() + stackCount * 4);
+            int segments = buffer.getInt();
+            for (int i = 0; i < segments; i++) {
+                int address = buffer.getInt();
+                int count = buffer.getInt();
+                if (address < 0 || count < 0 || (long) count * 4 > buffer.remaining()) {
+                    throw new IOException("Invalid heap segment at " + address + " in " + name);
+                }
+                buffer.position(buffer.position() + count * 4);
+            }
+            if ((buffer.getShort(6) & FLAG_OBJECTS) != 0) {
+                int objectCount = buffer.getInt();
+                if (objectCount < 0 || (long) objectCount * 4 > buffer.remaining()) {
+                    throw new IOException("Invalid allocator state in " + name);
+                }
+                buffer.position(buffer.position() + objectCount * 4);
+            }
+            if ((buffer.getShort(6) & FLAG_FRAME) != 0) {
+                buffer.position(buffer.position() + 8);
+            }
+            if (buffer.remaining() != CHECKSUM_SIZE) {
+                throw new IOException("Trailing data in " + name);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated or malformed CMa snapshot: " + name, e);
+        }
+        byte[] data = new byte[size];
+        buffer.get(0, data);
+        return new CMaSnapshot(data);
+    }
+}
@@ -0,0 +1,129 @@
+package tum.i2.cma;
+
+// CMa machine that starts every program in the interpreter and moves it to
+// compiled code (see CMaJitCompiler) only once a loop in it turns out to be
+// hot, so short programs never pay for compilation.
+//
+// The interpreter charges fuel at every backward JUMP and JUMPZ, by the
+// number of instructions the jump goes back over (see CMa.run(long)). Fuel
+// thus counts backward edges weighted by the size of their loop, at no cost
+// to the interpreter loop. run() interprets with threshold fuel. When it is
+// used up, the interpreter stops right after the backward jump that crossed
+// the threshold, at the header of the hot loop. The program is then compiled
+// (once per code image) and the compiled code continues from that ip on the
+// same stack and sp, in the middle of the run (on-stack replacement).
+//
+// Programs that use the heap or call functions stay in the interpreter, as do
+// traced runs and runs that report metrics, like on CMaJit: compiled loops
+// count no instructions. run(maxSteps) always interprets, so fuel keeps its
+// meaning.
+public class CMaTiered extends CMa {
+    // Instructions a run executes in loops before it is compiled
+    public static final long DEFAULT_THRESHOLD = 100_000;
+
+    // A switch to compiled code: the header of the hot loop, the instructions
+    // interpreted since the last reset, and the time spent waiting for the
+    // compiled code (close to 0 if another machine compiled the image before)
+    public record CompileEvent(int loopHeader, long interpretedInstructions, long compileNanos) {}
+
+    // Counted since the machine was created. Runs that never got hot
+    // are runs - compiledRuns.
+    public record Stats(long runs, long compiledRuns, long compileNanos) {}
+
+    private final long threshold;
+    private boolean compilable;
+    private CompileEvent lastCompile; // Since the last reset
+    private long runs;
+    private long compiledRuns;
+    private long compileNanos;
+
+    public CMaTiered(CMaInstruction[] instructions) {
+        this(CMaFusion.fuse(CMaCodeImage.decode(instructions)));
+        this.instructions = instructions;
+    }
+
+    public CMaTiered(CMaCodeImage image) {
+        this(image, DEFAULT_THRESHOLD);
+    }
+
+    public CMaTiered(CMaCodeImage image, long threshold) {
+        super(image);
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Threshold must be positive");
+        }
+        this.threshold = threshold;
+        this.compilable = isCompilable(image);
+    }
+
+    private CMaTiered(CMaTiered source) {
+        super(source);
+        this.threshold = source.threshold;
+        this.compilable = source.compilable;
+        this.lastCompile = source.lastCompile;
+    }
+
+    @Override
+    public CMaTiered fork() {
+        return new CMaTiered(this);
+    }
+
+    public long getThreshold() {
+        return threshold;
+    }
+
+    // The switch to compiled code since the last reset, null if there was none
+    public CompileEvent getLastCompile() {
+        return lastCompile;
+    }
+
+    public Stats getStats() {
+        return new Stats(runs, compiledRuns, compileNanos);
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        lastCompile = null;
+    }
+
+    @Override
+    void runProgram() {
+        runs++;
+        if (!compilable || trace != null || metrics != null) {
+            super.runProgram();
+            return;
+        }
+        interpretWithFuel(threshold);
+        if (ip >= image.length) {
+            return;
+        }
+        // Stopped at the header of the loop that used up the threshold
+        long start = System.nanoTime();
+        CMaCompiledCode compiled = image.compiled();
+        long nanos = System.nanoTime() - start;
+        lastCompile = new CompileEvent(ip, retired, nanos);
+        compiledRuns++;
+        compileNanos += nanos;
+
+        // The compiled code checks ALLOC against the length of the stack array
+        suspendedVerified = false;
+        int[] registers = { sp, ip };
+        try {
+            compiled.run(ensureStackCapacity(stackLimit), registers);
+        } finally {
+            sp = registers[0];
+            ip = registers[1];
+            stackTop = stack.length - 1; // The compiled code does not track it
+        }
+    }
+
+    @Override
+    void load(CMaCodeImage image) {
+        compilable = isCompilable(image);
+        super.load(image);
+    }
+
+    private static boolean isCompilable(CMaCodeImage image) {
+        return !image.usesHeap() && !image.usesFrames();
+    }
+}
@@ -0,0 +1,165 @@
+package tum.i2.cma;
+
+import java.util.Arrays;
+
+// Ring buffer of the last instructions a machine executed, for finding out how
+// a program got into the state it trapped in (see CMa.enableTracing()).
+//
+// Every entry is four ints in one preallocated array: the instruction index,
+// its plain opcode, and sp and the value on top of the stack before it ran,
+// so recording allocates nothing. Only the machine's own thread writes to the
+// buffer; read it once the machine has stopped.
+public final class CMaTrace {
+    static final int ENTRY = 4;
+
+    // CMa.interpret() writes entries through locals and calls advance()
+    // when it stops, so that the loop keeps the write position in a register
+    final int[] entries;
+    final int mask;
+    long recorded;
+
+    // The capacity is rounded up to a power of two
+    public CMaTrace(int capacity) {
+        if (capacity < 1 || capacity > 1 << 24) {
+            throw new IllegalArgumentException("Trace capacity must be between 1 and " + (1 << 24));
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.entries = new int[size * ENTRY];
+        this.mask = size - 1;
+    }
+
+    private CMaTrace(CMaTrace source) {
+        this.entries = source.entries.clone();
+        this.mask = source.mask;
+        this.recorded = source.recorded;
+    }
+
+    // Moves the write position to recorded, which counts modulo 2^32 like the
+    // int position of the interpreter loop
+    void advance(int recorded) {
+        this.recorded += (recorded - (int) this.recorded) & 0xFFFFFFFFL;
+    }
+
+    public CMaTrace copy() {
+        return new CMaTrace(this);
+    }
+
+    public void clear() {
+        recorded = 0;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    // Instructions recorded since the last clear(), including those overwritten since
+    public long getRecordedCount() {
+        return recorded;
+    }
+
+    // Number of entries held, at most the capacity
+    public int size() {
+        return (int) Math.min(recorded, mask + 1);
+    }
+
+    // Entry k counts from the oldest held entry, size() - 1 is the last instruction
+    public int getIp(int k) {
+        return entries[offset(k)];
+    }
+
+    public CMaInstructionType getType(int k) {
+        return CMaOpcodes.toType(entries[offset(k) + 1]);
+    }
+
+    public int getSp(int k) {
+        return entries[offset(k) + 2];
+    }
+
+    // Value on top of the stack before the instruction ran, 0 if the stack was empty
+    public int getTop(int k) {
+        return entries[offset(k) + 3];
+    }
+
+    private int offset(int k) {
+        if (k < 0 || k >= size()) {
+            throw new IndexOutOfBoundsException("Trace entry " + k + " out of bounds for size " + size());
+        }
+        return (int) ((recorded - size() + k) & mask) * ENTRY;
+    }
+
+    // One line per entry, oldest first, with source lines if the image has debug info
+    public String dump(CMaCodeImage image) {
+        return dump(image, null);
+    }
+
+    // Like dump(image), and also shows the text of each instruction's source line.
+    // source is the program text the image was parsed from.
+    public String dump(CMaCodeImage image, String source) {
+        String[] sourceLines = source == null ? null : source.split("\n", -1);
+        StringBuilder dump = new StringBuilder();
+        dump.append(String.format("%12s %6s  %-12s %6s %12s  %s%n", "step", "ip", "instruction", "sp", "top", "line"));
+        long first = recorded - size();
+        for (int k = 0; k < size(); k++) {
+            int ip = getIp(k);
+            CMaInstructionType type = getType(k);
+            String instruction = CMaInstructionType.expectedNumberOfArguments(type) == 0 || ip >= image.length
+                    ? type.toString()
+                    : type + " " + image.code[ip * CMaCodeImage.STRIDE + 1];
+            int line = image.debugInfo == null ? -1 : image.debugInfo.getSourceLine(ip);
+            String lineText = line < 0 ? "-" : Integer.toString(line);
+            if (line > 0 && sourceLines != null && line <= sourceLines.length) {
+                lineText += ": " + sourceLines[line - 1].strip();
+            }
+            dump.append(String.format("%12d %6d  %-12s %6d %12d  %s%n", first + k, ip, instruction, getSp(k), getTop(k),
+                    lineText));
+        }
+        return dump.toString();
+    }
+
+    // Carries the trace of a machine when it trapped, attached to the error as a
+    // suppressed exception so that printing the error prints the trace as well.
+    // Serialized errors carry the dump as a plain RuntimeException instead.
+    public static final class TraceException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final transient CMaTrace trace;
+        private final transient CMaCodeImage image;
+
+        TraceException(CMaTrace trace, CMaCodeImage image) {
+            super(null, null, false, false);
+            this.trace = trace;
+            this.image = image;
+        }
+
+        public CMaTrace getTrace() {
+            return trace;
+        }
+
+        public String dump(String source) {
+            return trace.dump(image, source);
+        }
+
+        @Override
+        public String getMessage() {
+            return "Last " + trace.size() + " instructions before the trap:" + System.lineSeparator() + trace.dump(image);
+        }
+
+        private Object writeReplace() {
+            RuntimeException dump = new RuntimeException(getMessage());
+            dump.setStackTrace(getStackTrace());
+            return dump;
+        }
+    }
+
+    // The trace attached to error by a traced machine, null if there is none
+    public static CMaTrace of(Throwable error) {
+        return Arrays.stream(error.getSuppressed())
+                .filter(TraceException.class::isInstance)
+                .map(suppressed -> ((TraceException) suppressed).getTrace())
+                .findFirst()
+                .orElse(null);
+    }
+}
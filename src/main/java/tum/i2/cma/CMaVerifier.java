@@ -0,0 +1,535 @@
+package tum.i2.cma;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Static verifier for CMa programs.
+// It follows every path through the program from instruction 0 with an empty
+// stack and proves that no instruction can
+//  - find too few values on the stack,
+//  - access a LOADA/STOREA slot above the stack top or below 0,
+//  - jump outside the program (JUMP/JUMPZ targets, JUMPI target ranges),
+//  - move sp below -1 with ALLOC.
+// The stack depth must be the same on all paths into an instruction, so every
+// reachable instruction gets one exact depth. For JUMPI it additionally tracks
+// value ranges of the top stack slots, which covers the usual bounds-checked
+// switch (DUP, LOADC 0, GEQ, JUMPZ, DUP, LOADC k, LE, JUMPZ, JUMPI).
+// Programs that call functions are rejected: CALL and RETURN jump to
+// addresses from the stack, and a function runs at a different depth on
+// every call.
+//
+// A verified program can run without any of the corresponding runtime checks
+// (see CMa.interpretVerified()), as long as its maximum stack depth fits the
+// machine's stack limit. Division by zero and the addresses of LOAD/STORE
+// still depend on runtime values and stay checked.
+public final class CMaVerifier {
+    // Number of top stack slots whose values are tracked
+    private static final int TRACKED_SLOTS = 4;
+    // Visits per instruction before tracked values are widened to unknown
+    private static final int MAX_VISITS = 16;
+
+    public static final class Result {
+        private final int[] depths;
+        private final boolean[] blockStarts;
+        private final int maxStackDepth;
+        private final List<String> problems;
+        private final List<Integer> unboundedJumpiSites;
+        private final int[] jumpiFirst;
+        private final int[] jumpiLast;
+
+        Result(int[] depths, boolean[] blockStarts, int[] jumpiFirst, int[] jumpiLast, int maxStackDepth,
+                List<String> problems, List<Integer> unboundedJumpiSites) {
+            this.depths = depths;
+            this.blockStarts = blockStarts;
+            this.jumpiFirst = jumpiFirst;
+            this.jumpiLast = jumpiLast;
+            this.maxStackDepth = maxStackDepth;
+            this.problems = Collections.unmodifiableList(problems);
+            this.unboundedJumpiSites = Collections.unmodifiableList(unboundedJumpiSites);
+        }
+
+        public boolean isVerified() {
+            return problems.isEmpty();
+        }
+
+        // Why the program did not verify, one message per problem
+        public List<String> getProblems() {
+            return problems;
+        }
+
+        // Number of values on the stack before instruction i executes, -1 if it is unreachable
+        public int getStackDepth(int i) {
+            return depths[i];
+        }
+
+        // Whether instruction i is reached other than by falling through from i - 1,
+        // i.e. it is the entry or a possible successor of a jump
+        public boolean isBlockStart(int i) {
+            return blockStarts[i];
+        }
+
+        // Largest number of values on the stack at any point of the program
+        public int getMaxStackDepth() {
+            return maxStackDepth;
+        }
+
+        // JUMPI instructions whose targets could not be bounded
+        public List<Integer> getUnboundedJumpiSites() {
+            return unboundedJumpiSites;
+        }
+
+        // Lowest and highest target of the JUMPI at instruction i,
+        // -1 if i is no JUMPI or unreachable. A target may be the program length.
+        public int getFirstJumpiTarget(int i) {
+            return jumpiFirst[i];
+        }
+
+        public int getLastJumpiTarget(int i) {
+            return jumpiLast[i];
+        }
+    }
+
+    // What is known about one stack slot: its range, an identity shared by
+    // DUP copies (0 if none), and for comparison results the comparison it
+    // came from, so that JUMPZ can narrow the compared value on both branches.
+    private record Value(int lo, int hi, int id, int compareOp, int compareId, int compareWith) {
+        static final Value UNKNOWN = new Value(Integer.MIN_VALUE, Integer.MAX_VALUE, 0, -1, 0, 0);
+        static final Value BOOLEAN = new Value(0, 1, 0, -1, 0, 0);
+
+        static Value constant(int c) {
+            return new Value(c, c, 0, -1, 0, 0);
+        }
+
+        Value withId(int newId) {
+            return new Value(lo, hi, newId, compareOp, compareId, compareWith);
+        }
+
+        Value withRange(int newLo, int newHi) {
+            return new Value(newLo, newHi, id, compareOp, compareId, compareWith);
+        }
+
+        Value join(Value other) {
+            boolean sameCompare = compareOp == other.compareOp && compareId == other.compareId && compareWith == other.compareWith;
+            return new Value(Math.min(lo, other.lo), Math.max(hi, other.hi), id == other.id ? id : 0,
+                    sameCompare ? compareOp : -1, sameCompare ? compareId : 0, sameCompare ? compareWith : 0);
+        }
+    }
+
+    // Stack depth and the tracked top slots, top[0] being the top of the stack
+    private record State(int depth, Value[] top) {
+        Value get(int fromTop) {
+            return fromTop < top.length ? top[fromTop] : Value.UNKNOWN;
+        }
+
+        State pop(int count) {
+            int depth = this.depth - count;
+            Value[] top = new Value[Math.min(depth, TRACKED_SLOTS)];
+            for (int k = 0; k < top.length; k++) {
+                top[k] = get(k + count);
+            }
+            return new State(depth, top);
+        }
+
+        State push(Value value) {
+            Value[] top = new Value[Math.min(depth + 1, TRACKED_SLOTS)];
+            top[0] = value;
+            for (int k = 1; k < top.length; k++) {
+                top[k] = get(k - 1);
+            }
+            return new State(depth + 1, top);
+        }
+
+        State set(int fromTop, Value value) {
+            if (fromTop >= top.length) {
+                return this;
+            }
+            Value[] top = this.top.clone();
+            top[fromTop] = value;
+            return new State(depth, top);
+        }
+
+        // Replaces every slot with the given identity
+        State map(int id, Value value) {
+            Value[] top = this.top.clone();
+            for (int k = 0; k < top.length; k++) {
+                if (top[k].id() == id) {
+                    top[k] = value;
+                }
+            }
+            return new State(depth, top);
+        }
+
+        State join(State other) {
+            Value[] top = new Value[this.top.length];
+            for (int k = 0; k < top.length; k++) {
+                top[k] = this.top[k].join(other.top[k]);
+            }
+            return new State(depth, top);
+        }
+
+        State widen() {
+            Value[] top = new Value[this.top.length];
+            Arrays.fill(top, Value.UNKNOWN);
+            return new State(depth, top);
+        }
+    }
+
+    private final int[] code;
+    private final int length;
+    private final State[] states;
+    private final int[] visits;
+    private final boolean[] blockStarts;
+    private final int[] jumpiFirst;
+    private final int[] jumpiLast;
+    private final ArrayDeque<Integer> worklist = new ArrayDeque<>();
+    private final List<String> problems = new ArrayList<>();
+    private final List<Integer> unboundedJumpiSites = new ArrayList<>();
+    private int maxStackDepth;
+
+    private CMaVerifier(CMaCodeImage image) {
+        this.code = image.code;
+        this.length = image.length;
+        this.states = new State[length];
+        this.visits = new int[length];
+        this.blockStarts = new boolean[length];
+        this.jumpiFirst = new int[length];
+        this.jumpiLast = new int[length];
+        Arrays.fill(jumpiFirst, -1);
+        Arrays.fill(jumpiLast, -1);
+    }
+
+    public static Result verify(CMaInstruction[] instructions) {
+        return verify(CMaCodeImage.decode(instructions));
+    }
+
+    // Superinstructions are verified as the instructions they were fused from
+    public static Result verify(CMaCodeImage image) {
+        return new CMaVerifier(image).run();
+    }
+
+    private Result run() {
+        if (length > 0) {
+            flow(-1, 0, new State(0, new Value[0]));
+        }
+        while (!worklist.isEmpty() && problems.isEmpty()) {
+            int i = worklist.poll();
+            transfer(i, states[i]);
+        }
+        int[] depths = new int[length];
+        for (int i = 0; i < length; i++) {
+            depths[i] = states[i] == null ? -1 : states[i].depth();
+        }
+        return new Result(depths, blockStarts, jumpiFirst, jumpiLast, maxStackDepth, problems, unboundedJumpiSites);
+    }
+
+    // Merges state into the entry state of instruction target
+    private void flow(int from, int target, State state) {
+        maxStackDepth = Math.max(maxStackDepth, state.depth());
+        if (target == length) {
+            return; // Falling off the end halts the machine
+        }
+        if (from < 0 || target != from + 1 || isJump(from)) {
+            blockStarts[target] = true;
+        }
+        State old = states[target];
+        State merged;
+        if (old == null) {
+            merged = state;
+        } else if (old.depth() != state.depth()) {
+            problems.add("Instruction " + target + " is reached with stack depths " + old.depth()
+                    + " and " + state.depth() + " (from instruction " + from + ")");
+            return;
+        } else {
+            merged = old.join(state);
+            if (Arrays.equals(merged.top(), old.top())) {
+                return;
+            }
+        }
+        if (++visits[target] > MAX_VISITS) {
+            merged = merged.widen();
+            if (old != null && Arrays.equals(merged.top(), old.top())) {
+                return;
+            }
+        }
+        states[target] = merged;
+        worklist.add(target);
+    }
+
+    private void transfer(int i, State state) {
+        int opcode = CMaOpcodes.baseOf(code[i * CMaCodeImage.STRIDE]);
+        int operand = code[i * CMaCodeImage.STRIDE + 1];
+        int depth = state.depth();
+        String name = CMaOpcodes.toType(opcode).toString();
+
+        switch (opcode) {
+            case CMaOpcodes.LOADC -> next(i, state.push(Value.constant(operand)));
+            case CMaOpcodes.ADD, CMaOpcodes.SUB, CMaOpcodes.MUL, CMaOpcodes.DIV, CMaOpcodes.MOD -> {
+                if (require(i, name, depth, 2)) {
+                    next(i, state.pop(2).push(arithmetic(opcode, state.get(1), state.get(0))));
+                }
+            }
+            case CMaOpcodes.NEG -> {
+                if (require(i, name, depth, 1)) {
+                    next(i, state.pop(1).push(Value.UNKNOWN));
+                }
+            }
+            case CMaOpcodes.AND, CMaOpcodes.OR, CMaOpcodes.XOR, CMaOpcodes.NOT -> {
+                int operands = opcode == CMaOpcodes.NOT ? 1 : 2;
+                if (require(i, name, depth, operands)) {
+                    next(i, state.pop(operands).push(Value.BOOLEAN));
+                }
+            }
+            case CMaOpcodes.EQ, CMaOpcodes.NEQ, CMaOpcodes.LE, CMaOpcodes.LEQ, CMaOpcodes.GR, CMaOpcodes.GEQ -> {
+                if (require(i, name, depth, 2)) {
+                    Value left = state.get(1);
+                    Value right = state.get(0);
+                    Value result = Value.BOOLEAN;
+                    if (left.id() != 0 && right.lo() == right.hi()) {
+                        result = new Value(0, 1, 0, opcode, left.id(), right.lo());
+                    }
+                    next(i, state.pop(2).push(result));
+                }
+            }
+            case CMaOpcodes.LOAD, CMaOpcodes.NEW, CMaOpcodes.LOADH -> {
+                if (require(i, name, depth, 1)) {
+                    next(i, state.pop(1).push(Value.UNKNOWN));
+                }
+            }
+            case CMaOpcodes.FREE -> {
+                if (require(i, name, depth, 1)) {
+                    next(i, state.pop(1));
+                }
+            }
+            case CMaOpcodes.STOREH -> {
+                // Heap cells are not tracked, the stored value stays on top
+                if (require(i, name, depth, 2)) {
+                    next(i, state.pop(1));
+                }
+            }
+            case CMaOpcodes.STORE -> {
+                if (require(i, name, depth, 2)) {
+                    // Any slot may have been overwritten
+                    State after = state.pop(1);
+                    next(i, after.widen().set(0, after.get(0)));
+                }
+            }
+            case CMaOpcodes.LOADA -> {
+                if (checkSlot(i, name, operand, depth)) {
+                    next(i, state.push(state.get(depth - 1 - operand)));
+                }
+            }
+            case CMaOpcodes.STOREA -> {
+                if (require(i, name, depth, 1) && checkSlot(i, name, operand, depth)) {
+                    next(i, state.set(depth - 1 - operand, state.get(0)));
+                }
+            }
+            case CMaOpcodes.POP -> {
+                if (require(i, name, depth, 1)) {
+                    next(i, state.pop(1));
+                }
+            }
+            case CMaOpcodes.DUP -> {
+                if (require(i, name, depth, 1)) {
+                    if (state.get(0).id() == 0) {
+                        // Identities are per DUP instruction, so forget older values that carry this one
+                        state = forget(state, i + 1);
+                        state = state.set(0, state.get(0).withId(i + 1));
+                    }
+                    Value top = state.get(0);
+                    next(i, state.push(top));
+                }
+            }
+            case CMaOpcodes.ALLOC -> {
+                long allocated = (long) depth + operand;
+                if (allocated < 0 || allocated > Integer.MAX_VALUE - 1) {
+                    problems.add("ALLOC " + operand + " at instruction " + i + " moves the stack out of range");
+                    return;
+                }
+                State after = state;
+                if (operand >= 0) {
+                    for (int k = 0; k < Math.min(operand, TRACKED_SLOTS); k++) {
+                        after = after.push(Value.UNKNOWN);
+                    }
+                    after = new State((int) allocated, after.top());
+                } else {
+                    after = state.pop(-operand);
+                }
+                next(i, after);
+            }
+            case CMaOpcodes.JUMP -> {
+                if (checkTarget(i, name, operand)) {
+                    flow(i, operand, state);
+                }
+            }
+            case CMaOpcodes.JUMPZ -> {
+                if (require(i, name, depth, 1) && checkTarget(i, name, operand)) {
+                    Value condition = state.get(0);
+                    State after = state.pop(1);
+                    flow(i, i + 1, narrow(after, condition, true));
+                    flow(i, operand, narrow(after, condition, false));
+                }
+            }
+            case CMaOpcodes.JUMPI -> {
+                if (!require(i, name, depth, 1)) {
+                    return;
+                }
+                if (operand >= length) {
+                    problems.add("JUMPI at instruction " + i + " has target " + operand + " outside the program");
+                    return;
+                }
+                Value index = state.get(0);
+                long first = (long) operand + index.lo();
+                long last = (long) operand + index.hi();
+                if (first < 0 || last > length) {
+                    unboundedJumpiSites.add(i);
+                    problems.add("JUMPI at instruction " + i + " has targets that cannot be bounded");
+                    return;
+                }
+                State after = state.pop(1);
+                jumpiFirst[i] = jumpiFirst[i] < 0 ? (int) first : Math.min(jumpiFirst[i], (int) first);
+                jumpiLast[i] = Math.max(jumpiLast[i], (int) last);
+                for (long target = first; target <= last; target++) {
+                    flow(i, (int) target, after);
+                }
+            }
+            case CMaOpcodes.MARK, CMaOpcodes.CALL, CMaOpcodes.ENTER, CMaOpcodes.RETURN, CMaOpcodes.SLIDE,
+                    CMaOpcodes.LOADRC, CMaOpcodes.LOADR, CMaOpcodes.STORER -> {
+                problems.add(name + " at instruction " + i + " is part of a function call, which is checked at run time");
+            }
+            default -> throw new IllegalArgumentException("Unknown opcode: " + opcode);
+        }
+    }
+
+    private boolean isJump(int i) {
+        int opcode = CMaOpcodes.baseOf(code[i * CMaCodeImage.STRIDE]);
+        return opcode == CMaOpcodes.JUMP || opcode == CMaOpcodes.JUMPZ || opcode == CMaOpcodes.JUMPI;
+    }
+
+    private void next(int i, State state) {
+        flow(i, i + 1, state);
+    }
+
+    private boolean require(int i, String name, int depth, int operands) {
+        if (depth < operands) {
+            problems.add(name + " at instruction " + i + " needs " + operands
+                    + " values but the stack holds " + depth);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean checkSlot(int i, String name, int address, int depth) {
+        if (address < 0 || address >= depth) {
+            problems.add(name + " " + address + " at instruction " + i + " accesses a slot outside the stack of depth " + depth);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean checkTarget(int i, String name, int target) {
+        if (target < 0 || target >= length) {
+            problems.add(name + " at instruction " + i + " has target " + target + " outside the program");
+            return false;
+        }
+        return true;
+    }
+
+    // Range of an arithmetic result, unknown whenever the operation might overflow
+    private static Value arithmetic(int opcode, Value left, Value right) {
+        long lo;
+        long hi;
+        switch (opcode) {
+            case CMaOpcodes.ADD -> {
+                lo = (long) left.lo() + right.lo();
+                hi = (long) left.hi() + right.hi();
+            }
+            case CMaOpcodes.SUB -> {
+                lo = (long) left.lo() - right.hi();
+                hi = (long) left.hi() - right.lo();
+            }
+            case CMaOpcodes.MOD -> {
+                // The remainder has the sign of the dividend and is smaller than the divisor
+                if (right.lo() != right.hi() || right.lo() <= 0) {
+                    return Value.UNKNOWN;
+                }
+                lo = left.lo() >= 0 ? 0 : -(right.lo() - 1);
+                hi = left.hi() <= 0 ? 0 : right.lo() - 1;
+            }
+            default -> {
+                return Value.UNKNOWN;
+            }
+        }
+        if (lo < Integer.MIN_VALUE || hi > Integer.MAX_VALUE) {
+            return Value.UNKNOWN;
+        }
+        return new Value((int) lo, (int) hi, 0, -1, 0, 0);
+    }
+
+    private static State forget(State state, int id) {
+        Value[] top = state.top().clone();
+        for (int k = 0; k < top.length; k++) {
+            Value value = top[k];
+            if (value.id() == id) {
+                value = value.withId(0);
+            }
+            if (value.compareId() == id) {
+                value = new Value(value.lo(), value.hi(), value.id(), -1, 0, 0);
+            }
+            top[k] = value;
+        }
+        return new State(state.depth(), top);
+    }
+
+    // Narrows the compared value after a JUMPZ on a comparison result.
+    // outcome is the value of the comparison on the branch being followed.
+    private static State narrow(State state, Value condition, boolean outcome) {
+        if (condition.compareOp() < 0) {
+            return state;
+        }
+        int id = condition.compareId();
+        Value value = null;
+        for (Value slot : state.top()) {
+            if (slot.id() == id) {
+                value = slot;
+                break;
+            }
+        }
+        if (value == null) {
+            return state;
+        }
+        long c = condition.compareWith();
+        long lo = value.lo();
+        long hi = value.hi();
+        int op = condition.compareOp();
+        if (!outcome) {
+            op = switch (op) {
+                case CMaOpcodes.EQ -> CMaOpcodes.NEQ;
+                case CMaOpcodes.NEQ -> CMaOpcodes.EQ;
+                case CMaOpcodes.LE -> CMaOpcodes.GEQ;
+                case CMaOpcodes.LEQ -> CMaOpcodes.GR;
+                case CMaOpcodes.GR -> CMaOpcodes.LEQ;
+                default -> CMaOpcodes.LE; // GEQ
+            };
+        }
+        switch (op) {
+            case CMaOpcodes.EQ -> {
+                lo = Math.max(lo, c);
+                hi = Math.min(hi, c);
+            }
+            case CMaOpcodes.LE -> hi = Math.min(hi, c - 1);
+            case CMaOpcodes.LEQ -> hi = Math.min(hi, c);
+            case CMaOpcodes.GR -> lo = Math.max(lo, c + 1);
+            case CMaOpcodes.GEQ -> lo = Math.max(lo, c);
+            default -> {
+                // NEQ narrows nothing that an interval can express
+            }
+        }
+        if (lo > hi) {
+            return state; // Branch cannot be taken, keep it conservative
+        }
+        return state.map(id, value.withRange((int) lo, (int) hi));
+    }
+}
@@ -0,0 +1,343 @@
+package tum.i2.cma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Parser for programs that are edited while they are worked on.
+// It keeps the lexed form of every source line, so an edit only lexes the
+// lines it inserts. Label positions and label arguments are then resolved
+// again in one pass over the lexed lines, which does no string work: label
+// names are interned to symbol numbers when a line is lexed.
+//
+// Accepts the same language as CmaParser and CmaStreamingParser, and reports
+// the same errors with the same line numbers. A failed parse or edit keeps the
+// new text, so a later edit can fix it. Not thread-safe.
+//
+//   CmaIncrementalParser parser = new CmaIncrementalParser();
+//   CMa machine = new CMa(CMaFusion.fuse(parser.parse(source)));
+//   ...
+//   CmaIncrementalParser.Edit edit = parser.edit(12, 1, "LOADC 5");
+//   machine.reload(CMaFusion.fuse(edit.getImage()), edit::relocate);
+public class CmaIncrementalParser {
+
+    // The lexed form of a line. Errors leave out the line number, which
+    // changes when lines are inserted or removed above.
+    private static final class Line {
+        String syntaxError; // Reported before all other errors
+        int label = -1; // Symbol defined on this line
+        boolean instruction;
+        int opcode = -1; // -1 for an unknown mnemonic
+        String mnemonic;
+        int arguments;
+        int operand; // First argument, if it is a number
+        int[] symbols; // Symbol of every label argument, -1 for numbers; null if there are none
+        int invalidArgument = -1; // First argument that is neither a number nor a label
+        String invalidText;
+    }
+
+    // The program after an edit, and where the instructions of the previous
+    // program ended up in it
+    public static final class Edit {
+        private final CMaCodeImage image;
+        private final int[] previousLines; // Source line of every instruction of the previous program
+        private final int[] edits; // (first, removed, inserted) of every edit since the previous program
+
+        Edit(CMaCodeImage image, int[] previousLines, int[] edits) {
+            this.image = image;
+            this.previousLines = previousLines;
+            this.edits = edits;
+        }
+
+        public CMaCodeImage getImage() {
+            return image;
+        }
+
+        // Index in the new program of instruction i of the previous one.
+        // Instructions on lines the edit kept are found by their line. Those
+        // on replaced lines continue at the first new instruction from the
+        // start of the edit on. The end of the previous program maps to the
+        // end of the new one.
+        public int relocate(int i) {
+            if (i < 0 || i >= previousLines.length) {
+                return image.length;
+            }
+            int line = previousLines[i];
+            for (int e = 0; e < edits.length; e += 3) {
+                int first = edits[e];
+                int removed = edits[e + 1];
+                if (line >= first + removed) {
+                    line += edits[e + 2] - removed;
+                } else if (line >= first) {
+                    line = first;
+                }
+            }
+            return firstInstructionFrom(line);
+        }
+
+        private int firstInstructionFrom(int line) {
+            int low = 0;
+            int high = image.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (image.debugInfo.getSourceLine(middle) < line) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final List<Line> lines = new ArrayList<>();
+    private final HashMap<String, Integer> symbols = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private CMaCodeImage image; // Of the last successful parse or edit
+    private int[] labelPositions = new int[0]; // Of image, by symbol, -1 if undefined
+    private int[] edits = new int[0]; // Edits since then, see Edit
+
+    public CMaCodeImage parse(String input) {
+        lines.clear();
+        symbols.clear();
+        names.clear();
+        edits = new int[0];
+        image = null;
+        labelPositions = new int[0];
+        for (String text : input.split("\n", -1)) {
+            lines.add(lex(text));
+        }
+        image = link();
+        return image;
+    }
+
+    // Replaces removed lines from line first on (counting from 1) with the
+    // given ones, and returns the program the text now has. Lines may be
+    // added at the end with first = getLineCount() + 1.
+    public Edit edit(int first, int removed, String... inserted) {
+        if (first < 1 || removed < 0 || first - 1 + removed > lines.size()) {
+            throw new IllegalArgumentException("Lines " + first + " to " + (first + removed - 1)
+                    + " are not in the program, which has " + lines.size() + " lines");
+        }
+        Line[] lexed = new Line[inserted.length];
+        for (int i = 0; i < inserted.length; i++) {
+            if (inserted[i].indexOf('\n') >= 0) {
+                throw new IllegalArgumentException("Inserted lines must not contain line breaks");
+            }
+            lexed[i] = lex(inserted[i]);
+        }
+        List<Line> replaced = lines.subList(first - 1, first - 1 + removed);
+        replaced.clear();
+        replaced.addAll(Arrays.asList(lexed));
+        edits = Arrays.copyOf(edits, edits.length + 3);
+        edits[edits.length - 3] = first;
+        edits[edits.length - 2] = removed;
+        edits[edits.length - 1] = inserted.length;
+        CMaCodeImage previous = image;
+        image = link();
+        Edit edit = new Edit(image, previous == null ? new int[0] : previous.debugInfo.sourceLines, edits);
+        edits = new int[0];
+        return edit;
+    }
+
+    public int getLineCount() {
+        return lines.size();
+    }
+
+    // Program of the last parse or edit that succeeded, null if there is none
+    public CMaCodeImage getImage() {
+        return image;
+    }
+
+    // Label name to instruction index in the last program
+    public Map<String, Integer> getLabels() {
+        return image == null ? Map.of() : image.debugInfo.getLabels();
+    }
+
+    // Mirrors CmaStreamingParser.parseLine()
+    private Line lex(String text) {
+        Line line = new Line();
+        int length = text.length();
+        int position = skipWhitespace(text, 0);
+        if (text.indexOf(':') >= 0) {
+            int end = text.indexOf(':', position);
+            if (end == position) {
+                line.syntaxError = "Empty label";
+                return line;
+            }
+            line.label = intern(text.substring(position, end));
+            position = end + 1;
+        }
+        position = skipWhitespace(text, position);
+        if (position >= length) {
+            return line;
+        }
+        if (Character.isAlphabetic(text.charAt(position))) {
+            position = lexInstruction(line, text, position);
+        }
+        position = skipWhitespace(text, position);
+        if (position < length && text.charAt(position) == '/') {
+            if (!text.startsWith("//", position)) {
+                line.syntaxError = "Invalid comment";
+                return line;
+            }
+            position = length;
+        }
+        if (position < length) {
+            line.syntaxError = "Unexpected character";
+        }
+        return line;
+    }
+
+    // Like CmaStreamingParser.readInstruction(), the parts are separated by single spaces
+    private int lexInstruction(Line line, String text, int position) {
+        int end = text.indexOf('/', position);
+        if (end < 0) {
+            end = text.length();
+        }
+        int next = end;
+        while (end > position && text.charAt(end - 1) == ' ') {
+            end--;
+        }
+        line.instruction = true;
+        String[] parts = text.substring(position, end).split(" ", -1);
+        line.mnemonic = parts[0];
+        try {
+            line.opcode = CMaOpcodes.fromType(CMaInstructionType.fromString(parts[0]));
+        } catch (IllegalArgumentException e) {
+            line.opcode = -1;
+        }
+        line.arguments = parts.length - 1;
+        for (int argument = 0; argument < line.arguments; argument++) {
+            String part = parts[argument + 1];
+            if (!part.isEmpty() && Character.isAlphabetic(part.charAt(0))) {
+                if (line.symbols == null) {
+                    line.symbols = new int[line.arguments];
+                    Arrays.fill(line.symbols, -1);
+                }
+                line.symbols[argument] = intern(part);
+                continue;
+            }
+            try {
+                int value = Integer.parseInt(part);
+                if (argument == 0) {
+                    line.operand = value;
+                }
+            } catch (NumberFormatException e) {
+                if (line.invalidArgument < 0) {
+                    line.invalidArgument = argument;
+                    line.invalidText = part;
+                }
+            }
+        }
+        return next;
+    }
+
+    private static int skipWhitespace(String text, int position) {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private int intern(String name) {
+        Integer symbol = symbols.get(name);
+        if (symbol == null) {
+            symbol = names.size();
+            symbols.put(name, symbol);
+            names.add(name);
+        }
+        return symbol;
+    }
+
+    // Resolves labels and builds the code image, reporting errors in the
+    // order CmaParser does: syntax errors, repeated labels, then the
+    // instructions in program order
+    private CMaCodeImage link() {
+        int[] positions = new int[names.size()];
+        int[] definedAt = new int[names.size()]; // Line number, 0 while undefined
+        String repeatedLabel = null;
+        int count = 0;
+        int number = 0;
+        for (Line line : lines) {
+            number++;
+            if (line.syntaxError != null) {
+                throw new RuntimeException(line.syntaxError + " at line " + number);
+            }
+            if (line.label >= 0) {
+                if (definedAt[line.label] != 0) {
+                    if (repeatedLabel == null) {
+                        repeatedLabel = "Label " + names.get(line.label) + " is defined multiple times at lines "
+                                + definedAt[line.label] + " and " + number;
+                    }
+                } else {
+                    definedAt[line.label] = number;
+                    positions[line.label] = count;
+                }
+            }
+            if (line.instruction) {
+                count++;
+            }
+        }
+        if (repeatedLabel != null) {
+            throw new RuntimeException(repeatedLabel);
+        }
+
+        int[] code = new int[count * CMaCodeImage.STRIDE];
+        int[] sourceLines = new int[count];
+        int index = 0;
+        number = 0;
+        for (Line line : lines) {
+            number++;
+            if (!line.instruction) {
+                continue;
+            }
+            if (line.opcode < 0) {
+                throw new RuntimeException("Unknown instruction " + line.mnemonic + " at line " + number);
+            }
+            int operand = line.operand;
+            for (int argument = 0; argument < line.arguments; argument++) {
+                if (argument == line.invalidArgument) {
+                    throw new RuntimeException("Invalid argument " + line.invalidText + " at line " + number);
+                }
+                int symbol = line.symbols == null ? -1 : line.symbols[argument];
+                if (symbol >= 0) {
+                    if (definedAt[symbol] == 0) {
+                        throw new RuntimeException("Unknown label " + names.get(symbol) + " at line " + number);
+                    }
+                    if (argument == 0) {
+                        operand = positions[symbol];
+                    }
+                }
+            }
+            if (line.arguments != CMaInstructionType.expectedNumberOfArguments(CMaOpcodes.toType(line.opcode))) {
+                throw new RuntimeException("Invalid number of arguments for instruction " + line.mnemonic
+                        + " at line " + number);
+            }
+            code[index * CMaCodeImage.STRIDE] = line.opcode;
+            code[index * CMaCodeImage.STRIDE + 1] = operand;
+            sourceLines[index] = number;
+            index++;
+        }
+
+        // Most edits change no label position, the label map is then kept
+        for (int symbol = 0; symbol < positions.length; symbol++) {
+            if (definedAt[symbol] == 0) {
+                positions[symbol] = -1;
+            }
+        }
+        if (image != null && Arrays.equals(positions, labelPositions)) {
+            return new CMaCodeImage(code, count, new CMaDebugInfo(image.debugInfo, sourceLines));
+        }
+        HashMap<String, Integer> labels = new HashMap<>();
+        for (int symbol = 0; symbol < positions.length; symbol++) {
+            if (positions[symbol] >= 0) {
+                labels.put(names.get(symbol), positions[symbol]);
+            }
+        }
+        labelPositions = positions;
+        return new CMaCodeImage(code, count, new CMaDebugInfo(labels, sourceLines));
+    }
+}
@@ -4,8 +4,10 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class CmaParser {
     // We keep the parser as simple as possible,
@@ -40,6 +42,7 @@ public class CmaParser {
     String current_line;
     List<ParsedLine> parsed_lines;
     List<CMaInstruction> instructions;
+    List<Integer> source_lines; // Line number of every instruction
     HashMap<String, Integer> labelPositions;
 
     public CmaParser() {
@@ -52,6 +55,20 @@ public class CmaParser {
         return parse(fileContent);
     }
 
+    // Label name to instruction index, as resolved by the last parse
+    public Map<String, Integer> getLabels() {
+        return Collections.unmodifiableMap(labelPositions);
+    }
+
+    // Labels and source lines of the last parse, to be kept alongside the program
+    public CMaDebugInfo getDebugInfo() {
+        int[] lines = new int[source_lines.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = source_lines.get(i);
+        }
+        return new CMaDebugInfo(labelPositions, lines);
+    }
+
     public CMaInstruction[] parse(String input) {
         resetParserState();
 
@@ -72,6 +89,7 @@ public class CmaParser {
         current_line = "";
         parsed_lines = new ArrayList<>();
         instructions = new ArrayList<>();
+        source_lines = new ArrayList<>();
         labelPositions = new HashMap<>();
     }
 
@@ -109,6 +127,7 @@ public class CmaParser {
             CMaInstruction instruction = makeCMaInstruction(parsedLine);
             if (instruction == null) continue;
             instructions.add(instruction);
+            source_lines.add(parsedLine.line_number);
         }
         return instructions;
     }
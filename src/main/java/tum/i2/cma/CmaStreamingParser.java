@@ -0,0 +1,477 @@
+package tum.i2.cma;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+// Single-pass variant of CmaParser for large inputs.
+// Characters are fed in chunks into one reusable line buffer and every line is
+// lexed in place, instructions go straight into the code image. Label
+// references are recorded and backpatched once the input is consumed, so only
+// one String per distinct label name is ever created.
+//
+// It accepts the same language as CmaParser and reports the same errors with
+// the same line numbers, in the same order: syntax errors first, then repeated
+// labels, then the first invalid instruction.
+public class CmaStreamingParser {
+    private static final int CHUNK_SIZE = 8192;
+
+    private static final CMaInstructionType[] TYPES = CMaInstructionType.values();
+
+    // Current line
+    private char[] line = new char[256];
+    private int line_length;
+    private boolean line_has_colon;
+    private int line_number;
+
+    // Output, see CMaCodeImage
+    private int[] code;
+    private int[] source_lines;
+    private int instruction_count;
+
+    // Labels, indexed by symbol
+    private SymbolTable symbols;
+    private int[] label_positions; // -1 while undefined
+    private int[] label_lines; // 0 while undefined
+    private int label_count;
+
+    // Label arguments to backpatch: (instruction, argument index, symbol, line)
+    private int[] references;
+    private int reference_count;
+
+    // Errors that CmaParser only reports after the whole input was read
+    private String repeated_label_error;
+    private String instruction_error;
+    private int instruction_error_index;
+    private int instruction_error_rank; // -1 type, k argument k, MAX_VALUE argument count
+
+    private Map<String, Integer> labels = Map.of();
+    private CMaDebugInfo debugInfo;
+
+    public CmaStreamingParser() {
+        resetParserState();
+    }
+
+    public CMaCodeImage parseFile(String filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)) {
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public CMaCodeImage parse(Reader reader) throws IOException {
+        resetParserState();
+        char[] chunk = new char[CHUNK_SIZE];
+        int read;
+        while ((read = reader.read(chunk)) >= 0) {
+            feed(chunk, 0, read);
+        }
+        return finish();
+    }
+
+    public CMaCodeImage parse(CharSequence input) {
+        resetParserState();
+        if (input instanceof CharBuffer buffer && buffer.hasArray()) {
+            feed(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            char[] chunk = new char[Math.min(CHUNK_SIZE, Math.max(input.length(), 1))];
+            for (int start = 0; start < input.length(); start += chunk.length) {
+                int count = Math.min(chunk.length, input.length() - start);
+                if (input instanceof String string) {
+                    string.getChars(start, start + count, chunk, 0);
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        chunk[i] = input.charAt(start + i);
+                    }
+                }
+                feed(chunk, 0, count);
+            }
+        }
+        return finish();
+    }
+
+    // UTF-8 encoded input
+    public CMaCodeImage parse(byte[] input) {
+        return parse(ByteBuffer.wrap(input));
+    }
+
+    // UTF-8 encoded input, read from the buffer's position to its limit
+    public CMaCodeImage parse(ByteBuffer input) {
+        resetParserState();
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = input.duplicate();
+        CharBuffer chunk = CharBuffer.allocate(CHUNK_SIZE);
+        CoderResult result;
+        do {
+            result = decoder.decode(bytes, chunk, true);
+            feed(chunk.array(), 0, chunk.position());
+            chunk.clear();
+        } while (result.isOverflow());
+        while (decoder.flush(chunk).isOverflow()) {
+            feed(chunk.array(), 0, chunk.position());
+            chunk.clear();
+        }
+        feed(chunk.array(), 0, chunk.position());
+        return finish();
+    }
+
+    // Label name to instruction index, as resolved by the last parse
+    public Map<String, Integer> getLabels() {
+        return labels;
+    }
+
+    // Labels and source lines of the last parse
+    public CMaDebugInfo getDebugInfo() {
+        return debugInfo;
+    }
+
+    private void resetParserState() {
+        line_length = 0;
+        line_has_colon = false;
+        line_number = 0;
+        code = new int[64 * CMaCodeImage.STRIDE];
+        source_lines = new int[64];
+        instruction_count = 0;
+        symbols = new SymbolTable();
+        label_positions = new int[16];
+        label_lines = new int[16];
+        label_count = 0;
+        references = new int[64];
+        reference_count = 0;
+        repeated_label_error = null;
+        instruction_error = null;
+        labels = Map.of();
+        debugInfo = null;
+    }
+
+    private void feed(char[] chunk, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            char c = chunk[i];
+            if (c == '\n') {
+                endLine();
+                continue;
+            }
+            if (line_length == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[line_length++] = c;
+            if (c == ':') {
+                line_has_colon = true;
+            }
+        }
+    }
+
+    private void endLine() {
+        line_number++;
+        parseLine();
+        line_length = 0;
+        line_has_colon = false;
+    }
+
+    private CMaCodeImage finish() {
+        if (line_length > 0) {
+            endLine();
+        }
+        if (repeated_label_error != null) {
+            throw new RuntimeException(repeated_label_error);
+        }
+        for (int r = 0; r < reference_count * 4; r += 4) {
+            int instruction = references[r];
+            int argument = references[r + 1];
+            int symbol = references[r + 2];
+            if (instruction_error != null && (instruction > instruction_error_index
+                    || (instruction == instruction_error_index && argument > instruction_error_rank))) {
+                break;
+            }
+            if (label_positions[symbol] < 0) {
+                throw new RuntimeException("Unknown label " + symbols.name(symbol) + " at line " + references[r + 3]);
+            }
+            if (argument == 0) {
+                code[instruction * CMaCodeImage.STRIDE + 1] = label_positions[symbol];
+            }
+        }
+        if (instruction_error != null) {
+            throw new RuntimeException(instruction_error);
+        }
+
+        HashMap<String, Integer> label_map = new HashMap<>();
+        for (int symbol = 0; symbol < label_count; symbol++) {
+            if (label_positions[symbol] >= 0) {
+                label_map.put(symbols.name(symbol), label_positions[symbol]);
+            }
+        }
+        labels = Collections.unmodifiableMap(label_map);
+        debugInfo = new CMaDebugInfo(labels, Arrays.copyOf(source_lines, instruction_count));
+        return new CMaCodeImage(Arrays.copyOf(code, instruction_count * CMaCodeImage.STRIDE), instruction_count, debugInfo);
+    }
+
+    // Mirrors CmaParser.parseLine()
+    private void parseLine() {
+        int position = skipWhitespace(0);
+        if (line_has_colon) {
+            int start = position;
+            while (line[position] != ':') {
+                position++;
+            }
+            if (position == start) {
+                throw new RuntimeException("Empty label at line " + line_number);
+            }
+            defineLabel(internLabel(start, position - start));
+            position++; // Skip the ':'
+        }
+        position = skipWhitespace(position);
+        if (position >= line_length) {
+            return;
+        }
+        if (Character.isAlphabetic(line[position])) {
+            position = readInstruction(position);
+        }
+        position = skipWhitespace(position);
+        if (position < line_length && line[position] == '/') {
+            if (position + 1 >= line_length || line[position + 1] != '/') {
+                throw new RuntimeException("Invalid comment at line " + line_number);
+            }
+            position = line_length;
+        }
+        if (position < line_length) {
+            throw new RuntimeException("Unexpected character at line " + line_number);
+        }
+    }
+
+    private int skipWhitespace(int position) {
+        while (position < line_length && Character.isWhitespace(line[position])) {
+            position++;
+        }
+        return position;
+    }
+
+    private int internLabel(int start, int length) {
+        int symbol = symbols.intern(line, start, length);
+        if (symbol == label_count) {
+            if (label_count == label_positions.length) {
+                label_positions = Arrays.copyOf(label_positions, label_count * 2);
+                label_lines = Arrays.copyOf(label_lines, label_count * 2);
+            }
+            label_positions[symbol] = -1;
+            label_lines[symbol] = 0;
+            label_count++;
+        }
+        return symbol;
+    }
+
+    private void defineLabel(int symbol) {
+        if (label_lines[symbol] != 0) {
+            if (repeated_label_error == null) {
+                repeated_label_error = "Label " + symbols.name(symbol) + " is defined multiple times at lines "
+                        + label_lines[symbol] + " and " + line_number;
+            }
+            return;
+        }
+        label_lines[symbol] = line_number;
+        label_positions[symbol] = instruction_count;
+    }
+
+    // Reads the instruction and its arguments up to a comment or the end of the line.
+    // Like CmaParser, the parts are separated by single spaces.
+    private int readInstruction(int position) {
+        int end = position;
+        while (end < line_length && line[end] != '/') {
+            end++;
+        }
+        int next = end;
+        while (end > position && line[end - 1] == ' ') {
+            end--;
+        }
+
+        int index = instruction_count++;
+        if (index * CMaCodeImage.STRIDE == code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+            source_lines = Arrays.copyOf(source_lines, source_lines.length * 2);
+        }
+        source_lines[index] = line_number;
+
+        int start = position;
+        while (position < end && line[position] != ' ') {
+            position++;
+        }
+        int mnemonic_start = start;
+        int mnemonic_end = position;
+        CMaInstructionType type = findType(start, position - start);
+        if (type == null) {
+            instructionError(index, -1, "Unknown instruction " + new String(line, start, position - start) + " at line " + line_number);
+        } else {
+            code[index * CMaCodeImage.STRIDE] = CMaOpcodes.fromType(type);
+        }
+
+        int argument = 0;
+        while (position < end) {
+            start = ++position; // Skip the ' '
+            while (position < end && line[position] != ' ') {
+                position++;
+            }
+            readArgument(index, argument++, start, position - start);
+        }
+        if (type != null && argument != CMaInstructionType.expectedNumberOfArguments(type)) {
+            instructionError(index, Integer.MAX_VALUE, "Invalid number of arguments for instruction "
+                    + new String(line, mnemonic_start, mnemonic_end - mnemonic_start) + " at line " + line_number);
+        }
+        return next;
+    }
+
+    private void readArgument(int index, int argument, int start, int length) {
+        if (length > 0 && Character.isAlphabetic(line[start])) {
+            int symbol = internLabel(start, length);
+            if (reference_count * 4 == references.length) {
+                references = Arrays.copyOf(references, references.length * 2);
+            }
+            references[reference_count * 4] = index;
+            references[reference_count * 4 + 1] = argument;
+            references[reference_count * 4 + 2] = symbol;
+            references[reference_count * 4 + 3] = line_number;
+            reference_count++;
+            return;
+        }
+        long value = parseInt(start, length);
+        if (value == Long.MIN_VALUE) {
+            instructionError(index, argument, "Invalid argument " + new String(line, start, length) + " at line " + line_number);
+        } else if (argument == 0) {
+            code[index * CMaCodeImage.STRIDE + 1] = (int) value;
+        }
+    }
+
+    // Same rules as Integer.parseInt, Long.MIN_VALUE if the text is no valid int
+    private long parseInt(int start, int length) {
+        int position = start;
+        boolean negative = false;
+        if (length > 0 && (line[position] == '-' || line[position] == '+')) {
+            negative = line[position] == '-';
+            position++;
+        }
+        if (position == start + length) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (; position < start + length; position++) {
+            int digit = Character.digit(line[position], 10);
+            if (digit < 0) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return Long.MIN_VALUE;
+            }
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+    }
+
+    private void instructionError(int index, int rank, String message) {
+        if (instruction_error == null) {
+            instruction_error = message;
+            instruction_error_index = index;
+            instruction_error_rank = rank;
+        }
+    }
+
+    // Case-insensitive, like CMaInstructionType.fromString()
+    private CMaInstructionType findType(int start, int length) {
+        for (CMaInstructionType type : TYPES) {
+            String name = type.name();
+            if (name.length() != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && Character.toUpperCase(line[start + i]) == name.charAt(i)) {
+                i++;
+            }
+            if (i == length) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    // Open-addressing table from label names to dense symbol numbers,
+    // looked up directly on the line buffer.
+    private static final class SymbolTable {
+        private String[] names = new String[16];
+        private int[] slots = new int[32]; // Symbol + 1, 0 if empty
+        private int size;
+
+        String name(int symbol) {
+            return names[symbol];
+        }
+
+        int intern(char[] chars, int start, int length) {
+            int hash = 0;
+            for (int i = start; i < start + length; i++) {
+                hash = 31 * hash + chars[i];
+            }
+            int mask = slots.length - 1;
+            for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+                int symbol = slots[slot] - 1;
+                if (symbol < 0) {
+                    break;
+                }
+                if (names[symbol].hashCode() == hash && equals(names[symbol], chars, start, length)) {
+                    return symbol;
+                }
+            }
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+            }
+            names[size] = new String(chars, start, length);
+            if (2 * (size + 1) > slots.length) {
+                rehash(slots.length * 2);
+            } else {
+                insert(size);
+            }
+            return size++;
+        }
+
+        private void insert(int symbol) {
+            int mask = slots.length - 1;
+            int slot = mix(names[symbol].hashCode()) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = symbol + 1;
+        }
+
+        private void rehash(int capacity) {
+            slots = new int[capacity];
+            for (int symbol = 0; symbol <= size; symbol++) {
+                insert(symbol);
+            }
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean equals(String name, char[] chars, int start, int length) {
+            if (name.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (name.charAt(i) != chars[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -1,12 +1,43 @@
 package tum.i2.cma;
 
 import java.io.IOException;
+import java.nio.file.Path;
 
 public class Helpers {
 
+    // Picks the binary loader for .cmab files and the text parser otherwise
+    public static CMa fromFile(String filePath) throws IOException {
+        if (filePath.endsWith(CMaBinaryFormat.FILE_EXTENSION)) {
+            return fromCMaBinaryFile(filePath);
+        }
+        return fromCMaCodeFile(filePath);
+    }
+
     public static CMa fromCMaCodeFile(String filePath) throws IOException {
-        CmaParser parser = new CmaParser();
-        CMaInstruction[] instructions = parser.parseFile(filePath);
-        return new CMa(instructions);
+        return new CMa(CMaFusion.fuse(parseCMaCodeFile(filePath)));
+    }
+
+    // Runs all CMaOptimizer passes over the program before loading it
+    public static CMa fromCMaCodeFileOptimized(String filePath) throws IOException {
+        CMaOptimizer.Result result = new CMaOptimizer().optimize(parseCMaCodeFile(filePath).toInstructions());
+        return new CMa(CMaFusion.fuse(CMaCodeImage.decode(result.getInstructions())));
+    }
+
+    // Parses each distinct source once, later calls share the cached program
+    public static CMa fromCMaCodeFile(String filePath, CMaProgramCache cache) throws IOException {
+        return new CMa(cache.get(Path.of(filePath)));
+    }
+
+    public static CMa fromCMaBinaryFile(String filePath) throws IOException {
+        return new CMa(CMaFusion.fuse(CMaBinaryLoader.load(Path.of(filePath))));
+    }
+
+    // Assembles a .cma text file into the binary format
+    public static void assemble(String sourcePath, String targetPath) throws IOException {
+        CMaBinaryWriter.write(parseCMaCodeFile(sourcePath), Path.of(targetPath));
+    }
+
+    private static CMaCodeImage parseCMaCodeFile(String filePath) throws IOException {
+        return new CmaStreamingParser().parseFile(filePath);
     }
 }
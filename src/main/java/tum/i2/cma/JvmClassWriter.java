@@ -0,0 +1,377 @@
+package tum.i2.cma;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Minimal writer for JVM class files, just enough for CMaJitCompiler.
+// Classes are written with major version 50 (Java 6), which lets the JVM infer
+// the types at branch targets itself, so no StackMapTable has to be computed.
+final class JvmClassWriter {
+    static final int CLASS_VERSION = 50;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // Opcodes used by the compiler
+    static final int ICONST_M1 = 0x02;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int IALOAD = 0x2e;
+    static final int ISTORE = 0x36;
+    static final int IASTORE = 0x4f;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int IDIV = 0x6c;
+    static final int IREM = 0x70;
+    static final int INEG = 0x74;
+    static final int IUSHR = 0x7c;
+    static final int IAND = 0x7e;
+    static final int IOR = 0x80;
+    static final int IXOR = 0x82;
+    static final int IINC = 0x84;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPGT = 0xa3;
+    static final int IF_ICMPLE = 0xa4;
+    static final int GOTO = 0xa7;
+    static final int TABLESWITCH = 0xaa;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int NEW = 0xbb;
+    static final int ARRAYLENGTH = 0xbe;
+    static final int ATHROW = 0xbf;
+    static final int WIDE = 0xc4;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+    private final List<byte[]> methods = new ArrayList<>();
+
+    // Constant pool
+
+    int utf8(String value) {
+        return constant("U" + value, () -> {
+            pool.writeByte(1);
+            pool.writeUTF(value);
+        });
+    }
+
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return constant("C" + internalName, () -> {
+            pool.writeByte(7);
+            pool.writeShort(name);
+        });
+    }
+
+    int string(String value) {
+        int utf8 = utf8(value);
+        return constant("S" + value, () -> {
+            pool.writeByte(8);
+            pool.writeShort(utf8);
+        });
+    }
+
+    int integer(int value) {
+        return constant("I" + value, () -> {
+            pool.writeByte(3);
+            pool.writeInt(value);
+        });
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + ":" + descriptor, () -> {
+            pool.writeByte(12);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+        });
+        return constant(tag + owner + "." + name + ":" + descriptor, () -> {
+            pool.writeByte(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        });
+    }
+
+    private interface PoolEntry {
+        void write() throws IOException;
+    }
+
+    private int constant(String key, PoolEntry entry) {
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        if (poolCount >= 0xffff) {
+            throw new IllegalStateException("Constant pool overflow");
+        }
+        try {
+            entry.write();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    // Methods and class
+
+    void addMethod(int access, String name, String descriptor, Code code) {
+        byte[] bytecode = code.toByteArray();
+        if (bytecode.length > 0xffff) {
+            throw new IllegalStateException("Method " + name + " is too large");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1); // Attributes: Code
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + bytecode.length + 8 * code.handlers.size());
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(bytecode.length);
+            out.write(bytecode);
+            out.writeShort(code.handlers.size());
+            for (Code.Handler handler : code.handlers) {
+                out.writeShort(handler.start.position);
+                out.writeShort(handler.end.position);
+                out.writeShort(handler.handler.position);
+                out.writeShort(0); // Any exception
+            }
+            out.writeShort(0); // No code attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toByteArray(int access, String thisClass, String superClass, String... interfaces) {
+        int thisIndex = classRef(thisClass);
+        int superIndex = classRef(superClass);
+        int[] interfaceIndices = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceIndices[i] = classRef(interfaces[i]);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndices.length);
+            for (int index : interfaceIndices) {
+                out.writeShort(index);
+            }
+            out.writeShort(0); // No fields
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0); // No class attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static final class Label {
+        int position = -1;
+    }
+
+    // Bytecode of a single method, with forward references through labels
+    static final class Code {
+        private record Fixup(Label target, int instruction, int at, boolean wide) {}
+        private record Handler(Label start, Label end, Label handler) {}
+
+        private final JvmClassWriter classWriter;
+        private byte[] bytes = new byte[256];
+        private int length;
+        private final List<Fixup> fixups = new ArrayList<>();
+        private final List<Handler> handlers = new ArrayList<>();
+        int maxStack;
+        int maxLocals;
+
+        Code(JvmClassWriter classWriter, int maxStack, int maxLocals) {
+            this.classWriter = classWriter;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        int length() {
+            return length;
+        }
+
+        void bind(Label label) {
+            label.position = length;
+        }
+
+        void op(int opcode) {
+            put(opcode);
+        }
+
+        void load(int opcode, int local) {
+            put(opcode);
+            put(local);
+        }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                put(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                put(BIPUSH);
+                put(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                put(SIPUSH);
+                putShort(value);
+            } else {
+                put(LDC_W);
+                putShort(classWriter.integer(value));
+            }
+        }
+
+        void ldcString(String value) {
+            put(LDC_W);
+            putShort(classWriter.string(value));
+        }
+
+        void iinc(int local, int delta) {
+            if (delta >= Byte.MIN_VALUE && delta <= Byte.MAX_VALUE) {
+                put(IINC);
+                put(local);
+                put(delta);
+            } else if (delta >= Short.MIN_VALUE && delta <= Short.MAX_VALUE) {
+                put(WIDE);
+                put(IINC);
+                putShort(local);
+                putShort(delta);
+            } else {
+                load(ILOAD, local);
+                iconst(delta);
+                op(IADD);
+                load(ISTORE, local);
+            }
+        }
+
+        void member(int opcode, int poolIndex) {
+            put(opcode);
+            putShort(poolIndex);
+        }
+
+        void jump(int opcode, Label target) {
+            int instruction = length;
+            put(opcode);
+            fixups.add(new Fixup(target, instruction, length, false));
+            putShort(0);
+        }
+
+        void tableswitch(int low, Label defaultTarget, Label[] targets) {
+            int instruction = length;
+            put(TABLESWITCH);
+            while (length % 4 != 0) {
+                put(0);
+            }
+            fixups.add(new Fixup(defaultTarget, instruction, length, true));
+            putInt(0);
+            putInt(low);
+            putInt(low + targets.length - 1);
+            for (Label target : targets) {
+                fixups.add(new Fixup(target, instruction, length, true));
+                putInt(0);
+            }
+        }
+
+        void handler(Label start, Label end, Label handler) {
+            handlers.add(new Handler(start, end, handler));
+        }
+
+        byte[] toByteArray() {
+            for (Fixup fixup : fixups) {
+                if (fixup.target.position < 0) {
+                    throw new IllegalStateException("Unbound label");
+                }
+                int offset = fixup.target.position - fixup.instruction;
+                if (fixup.wide) {
+                    writeInt(fixup.at, offset);
+                } else {
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                        throw new IllegalStateException("Branch offset out of range");
+                    }
+                    bytes[fixup.at] = (byte) (offset >> 8);
+                    bytes[fixup.at + 1] = (byte) offset;
+                }
+            }
+            return Arrays.copyOf(bytes, length);
+        }
+
+        private void put(int b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[length++] = (byte) b;
+        }
+
+        private void putShort(int s) {
+            put(s >> 8);
+            put(s);
+        }
+
+        private void putInt(int i) {
+            putShort(i >> 16);
+            putShort(i);
+        }
+
+        private void writeInt(int at, int i) {
+            bytes[at] = (byte) (i >> 24);
+            bytes[at + 1] = (byte) (i >> 16);
+            bytes[at + 2] = (byte) (i >> 8);
+            bytes[at + 3] = (byte) i;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package tum.i2.common;
+
+// Outcome of a fuel-bounded VirtualMachine.run(long)
+public enum ExecutionStatus {
+    FINISHED,    // The program ran to its end
+    OUT_OF_FUEL, // The program was suspended and can be resumed with another run
+    TRAPPED      // The program failed, see the machine for the error
+}
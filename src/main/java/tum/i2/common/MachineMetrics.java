@@ -0,0 +1,15 @@
+package tum.i2.common;
+
+// Receives what a VirtualMachine reports about its runs, e.g. to export it to
+// a monitoring system. A machine reports once per run() or run(maxSteps) call,
+// never per instruction, and one instance may receive reports from many
+// machines on many threads at the same time.
+public interface MachineMetrics {
+    // A run ended after executing instructions in nanos of wall time. sp and hp
+    // are the machine's pointers afterwards, peakSp and peakHp the highest they
+    // have been since the machine was reset.
+    public void runEnded(long instructions, long nanos, int sp, int hp, int peakSp, int peakHp);
+
+    // The run ended in a trap, kind tells the traps of a machine apart
+    public void trapped(String kind);
+}
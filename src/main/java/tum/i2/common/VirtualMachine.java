@@ -3,4 +3,9 @@ package tum.i2.common;
 public interface VirtualMachine {
     public void step();
     public int run();
+    // Runs for about maxSteps instructions, then suspends the program so that
+    // the next call continues exactly where this one stopped
+    public ExecutionStatus run(long maxSteps);
+    // Reports every run() and run(maxSteps) to metrics from now on, null stops it
+    public void setMetrics(MachineMetrics metrics);
 }
@@ -0,0 +1,208 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CMaAllocatorTest {
+
+    // Allocates 4 cells per iteration and drops them, while the object in
+    // slot 1 keeps the last counter value
+    static final String GARBAGE_LOOP = """
+            ALLOC 2
+            LOADC 1
+            NEW
+            STOREA 1
+            POP
+            LOADC 100
+            STOREA 0
+            POP
+            L: LOADA 0
+            JUMPZ E
+            LOADC 4
+            NEW
+            POP
+            LOADA 0
+            LOADA 1
+            STOREH 0
+            POP
+            LOADA 0
+            LOADC 1
+            SUB
+            STOREA 0
+            POP
+            JUMP L
+            E: LOADA 1
+            LOADH 0
+            """;
+
+    static CMa machine(String program, int heapCells) {
+        return new CMa(CMaFusion.fuse(CMaCodeImage.decode(new CmaParser().parse(program))), CMa.MEMMAX,
+                new CMaPagedMemory(heapCells));
+    }
+
+    @Test
+    void allocatesAndAccessesObjects() {
+        CMa machine = new CMa(new CmaParser().parse("""
+                LOADC 2
+                NEW
+                LOADC 5
+                LOADA 0
+                STOREH 1
+                POP
+                LOADA 0
+                LOADH 1
+                LOADA 0
+                LOADH 0
+                """));
+        machine.run();
+        assertEquals(2, machine.getSP());
+        int reference = machine.getStack()[0];
+        CMaAllocator allocator = machine.getAllocator();
+        assertTrue(allocator.isReference(reference));
+        assertEquals(2, allocator.sizeOf(reference));
+        assertEquals(5, machine.getStack()[1]);
+        assertEquals(0, machine.getStack()[2]); // New objects are zeroed
+        assertEquals(1, machine.hp);
+        assertEquals(1, allocator.getStats().allocations());
+    }
+
+    @Test
+    void heapErrorsTrapLikeStep() {
+        CMaCodeImageTest.assertSameTrap("NEW");
+        CMaCodeImageTest.assertSameTrap("LOADC -1\nNEW");
+        CMaCodeImageTest.assertSameTrap("LOADC 2\nNEW\nLOADH 2");
+        CMaCodeImageTest.assertSameTrap("LOADC 2\nNEW\nLOADH -1");
+        CMaCodeImageTest.assertSameTrap("LOADC 1\nLOADC 2\nNEW\nSTOREH 3");
+        CMaCodeImageTest.assertSameTrap("LOADC 7\nLOADH 0");
+        CMaCodeImageTest.assertSameTrap("LOADC 1\nNEW\nDUP\nFREE\nFREE");
+        CMaCodeImageTest.assertSameTrap("LOADC 1\nNEW\nSTOREH 0");
+        CMaCodeImageTest.assertSameTrap("LOADC 70000\nNEW");
+        CMaBlockMachineTest.assertSameAsInterpreter("LOADC 1\nNEW\nDUP\nFREE\nLOADH 0");
+        CMaBlockMachineTest.assertSameAsInterpreter("LOADC 1\nNEW\nLOADC 3\nLOADA 0\nSTOREH 1");
+    }
+
+    @Test
+    void reusesFreedCells() {
+        // The last object does not fit above hp and goes where the first one was
+        CMa machine = machine("""
+                LOADC 3
+                NEW
+                LOADC 3
+                NEW
+                LOADC 1
+                NEW
+                LOADA 0
+                FREE
+                LOADC 2
+                NEW
+                """, 7);
+        machine.run();
+        CMaAllocator allocator = machine.getAllocator();
+        assertEquals(1, allocator.getStats().freeListAllocations());
+        assertEquals(6, machine.hp);
+        assertEquals(3, allocator.getLiveObjects());
+        assertEquals(6, allocator.getStats().usedCells());
+
+        // Freeing the objects at the top gives their cells back to the bump allocator
+        CMa top = new CMa(new CmaParser().parse("LOADC 3\nNEW\nLOADC 2\nNEW\nLOADA 0\nFREE\nFREE\nLOADC 5\nNEW"));
+        top.run();
+        assertEquals(4, top.hp);
+        assertEquals(0, top.getAllocator().getStats().freeListAllocations());
+    }
+
+    @Test
+    void collectsGarbageAndKeepsLiveObjects() {
+        CMa machine = machine(GARBAGE_LOOP, 64);
+        assertTrue(machine.image.verification().isVerified());
+        machine.run();
+        assertEquals(1, machine.getStack()[2]);
+        CMaAllocator.Stats stats = machine.getAllocator().getStats();
+        assertTrue(stats.collections() > 0);
+        assertEquals(101, stats.allocations());
+        assertTrue(stats.maxPauseNanos() <= stats.pauseNanos());
+
+        machine.getAllocator().collect();
+        assertEquals(1, machine.getAllocator().getLiveObjects());
+        assertEquals(0, machine.hp); // Compacted to the bottom
+        CMaBlockMachineTest.assertSameAsInterpreter(GARBAGE_LOOP);
+    }
+
+    @Test
+    void compactionMovesObjectsWithTheirContents() {
+        // The object holding 20 is only reachable through the one holding 10
+        CMa machine = machine("""
+                LOADC 4
+                NEW
+                POP
+                LOADC 2
+                NEW
+                LOADC 10
+                LOADA 0
+                STOREH 0
+                POP
+                LOADC 2
+                NEW
+                LOADC 20
+                LOADA 1
+                STOREH 0
+                POP
+                LOADA 0
+                STOREH 1
+                POP
+                LOADC 4
+                NEW
+                POP
+                LOADA 0
+                LOADH 0
+                LOADA 0
+                LOADH 1
+                LOADH 0
+                """, 8);
+        machine.run();
+        assertEquals(10, machine.getStack()[1]);
+        assertEquals(20, machine.getStack()[2]);
+        assertEquals(1, machine.getAllocator().getStats().collections());
+        assertEquals(1, machine.getAllocator().getStats().collectedObjects());
+        assertEquals(7, machine.hp);
+    }
+
+    @Test
+    void runsOutOfMemoryWhenEverythingIsLive() {
+        CMa machine = machine("L: LOADC 4\nNEW\nJUMP L", 64);
+        RuntimeException e = assertThrows(RuntimeException.class, machine::run);
+        assertEquals("Out of heap memory!", e.getMessage());
+        assertEquals(16, machine.getAllocator().getLiveObjects());
+    }
+
+    @Test
+    void forksAndSnapshotsKeepObjects() {
+        CMa machine = machine(GARBAGE_LOOP, 64);
+        machine.run(150);
+        CMa fork = machine.fork();
+        CMa restored = machine(GARBAGE_LOOP, 64);
+        restored.restore(machine.snapshot());
+        machine.run();
+        fork.run();
+        restored.run();
+        CMaCodeImageTest.assertSameState(machine, fork, "fork");
+        CMaCodeImageTest.assertSameState(machine, restored, "restored");
+        assertEquals(machine.hp, restored.hp);
+        assertEquals(machine.getAllocator().getLiveObjects(), restored.getAllocator().getLiveObjects());
+
+        machine.reset();
+        assertEquals(0, machine.getAllocator().getLiveObjects());
+        assertEquals(-1, machine.hp);
+    }
+
+    @Test
+    void otherEnginesFallBackToTheInterpreter() {
+        CMaCodeImage image = CMaCodeImage.decode(new CmaParser().parse(GARBAGE_LOOP));
+        assertNull(CMaRegisterTranslator.translate(image));
+        CMa expected = new CMa(image);
+        expected.run();
+        for (CMa machine : new CMa[] { new CMaJit(image), new CMaRegisterMachine(image), new CMaBlockMachine(image) }) {
+            machine.run();
+            CMaCodeImageTest.assertSameState(expected, machine, machine.getClass().getSimpleName());
+        }
+    }
+}
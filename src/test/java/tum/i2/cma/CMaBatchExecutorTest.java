@@ -0,0 +1,98 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Jobs run by CMaBatchExecutor on recycled machines have to end exactly like
+// the same programs run on fresh machines.
+public class CMaBatchExecutorTest {
+
+    static CMaCodeImage image(String program) {
+        return CMaFusion.fuse(new CmaStreamingParser().parse(program));
+    }
+
+    @Test
+    void resultsMatchFreshMachines() throws IOException {
+        List<CMaBatchExecutor.Job> jobs = new ArrayList<>();
+        try (Stream<Path> files = Files.list(Path.of(CMaCodeImageTest.BYTECODE_DIR))) {
+            for (Path file : files.filter(f -> f.toString().endsWith(".cma")).toList()) {
+                CMaCodeImage image;
+                try {
+                    image = CMaFusion.fuse(new CmaStreamingParser().parseFile(file.toString()));
+                } catch (RuntimeException e) {
+                    continue; // Not every file in the corpus is a valid program
+                }
+                for (int i = 0; i < 20; i++) {
+                    jobs.add(new CMaBatchExecutor.Job(file.toString(), image));
+                }
+            }
+        }
+
+        try (CMaBatchExecutor executor = new CMaBatchExecutor(4)) {
+            CMaBatchExecutor.BatchResult batch = executor.run(jobs);
+
+            assertEquals(jobs.size(), batch.getResults().size());
+            for (CMaBatchExecutor.JobResult result : batch.getResults()) {
+                CMa expected = new CMa(result.job().image());
+                RuntimeException failure = null;
+                try {
+                    expected.run();
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+                String name = result.job().name();
+                assertEquals(failure == null, result.succeeded(), name);
+                if (failure != null) {
+                    assertEquals(failure.getMessage(), result.failure().getMessage(), name);
+                }
+                assertEquals(expected.getSP() + 1, result.stack().length, name);
+                for (int i = 0; i < result.stack().length; i++) {
+                    assertEquals(expected.getStack()[i], result.stack()[i], name);
+                }
+            }
+            assertTrue(executor.getMachinePool().getCreatedCount() <= 4);
+        }
+    }
+
+    @Test
+    void inputsAndFailuresArePerJob() {
+        CMaCodeImage add = image("ADD\n");
+        List<CMaBatchExecutor.Job> jobs = List.of(
+                new CMaBatchExecutor.Job("ok", add, new int[] { 2, 3 }),
+                new CMaBatchExecutor.Job("too few", add, new int[] { 2 }),
+                new CMaBatchExecutor.Job("div", image("LOADC 0\nDIV\n"), new int[] { 1 }));
+
+        try (CMaBatchExecutor executor = new CMaBatchExecutor(2)) {
+            CMaBatchExecutor.BatchResult batch = executor.run(jobs);
+
+            assertArrayEquals(new int[] { 5 }, batch.getResults().get(0).stack());
+            assertEquals("Not enough arguments on the stack to call ADD!", batch.getResults().get(1).failure().getMessage());
+            assertEquals(ArithmeticException.class, batch.getResults().get(2).failure().getClass());
+            assertEquals(2, batch.getFailureCount());
+        }
+    }
+
+    @Test
+    void resetClearsUsedMemory() {
+        CMaMachinePool pool = new CMaMachinePool(1);
+        CMa first = pool.acquire(image("LOADC 1\nLOADC 2\nLOADC 3\nPOP\nPOP\nPOP\n"));
+        first.run();
+        pool.release(first);
+
+        // ALLOC exposes slots nobody wrote in this run, they have to read as 0
+        CMa second = pool.acquire(image("ALLOC 3\n"));
+        assertSame(first, second);
+        second.run();
+        assertEquals(2, second.getSP());
+        for (int i = 0; i <= 2; i++) {
+            assertEquals(0, second.getStack()[i]);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Programs written by CMaBinaryWriter have to load back into the same code
+// image and run exactly like the parsed text program.
+public class CMaBinaryFormatTest {
+
+    static Path writeTemp(byte[] bytes) throws IOException {
+        Path file = Files.createTempFile("cma", CMaBinaryFormat.FILE_EXTENSION);
+        file.toFile().deleteOnExit();
+        Files.write(file, bytes);
+        return file;
+    }
+
+    @Test
+    void roundTripKeepsCodeAndDebugInfo() throws IOException {
+        CmaParser parser = new CmaParser();
+        CMaInstruction[] instructions = parser.parse("LOADC 7\n\nL: DUP\nJUMPZ L\n");
+        CMaCodeImage image = CMaCodeImage.decode(instructions, parser.getDebugInfo());
+
+        CMaCodeImage loaded = CMaBinaryLoader.load(writeTemp(CMaBinaryWriter.toBytes(image, true)));
+
+        assertEquals(image.getLength(), loaded.getLength());
+        assertArrayEquals(image.code, loaded.code);
+        assertEquals(1, (int) loaded.getDebugInfo().getLabels().get("L"));
+        for (int i = 0; i < image.getLength(); i++) {
+            assertEquals(image.getDebugInfo().getSourceLine(i), loaded.getDebugInfo().getSourceLine(i));
+        }
+    }
+
+    @Test
+    void superinstructionsAreStoredAsPlainOpcodes() throws IOException {
+        CMaCodeImage fused = CMaFusion.fuse(new CmaParser().parse("LOADC 1\nLOADC 2\nADD\n"), List.of());
+        assertEquals(CMaOpcodes.LOADC_ADD, fused.code[2]);
+
+        CMaCodeImage loaded = CMaBinaryLoader.load(writeTemp(CMaBinaryWriter.toBytes(fused, false)));
+
+        assertEquals(CMaOpcodes.LOADC, loaded.code[2]);
+        assertNull(loaded.getDebugInfo());
+    }
+
+    @Test
+    void binaryProgramsRunLikeTextPrograms() throws IOException {
+        try (Stream<Path> files = Files.list(Path.of(CMaCodeImageTest.BYTECODE_DIR))) {
+            for (Path file : files.filter(f -> f.toString().endsWith(".cma")).toList()) {
+                CMa expected;
+                try {
+                    expected = Helpers.fromCMaCodeFile(file.toString());
+                } catch (RuntimeException e) {
+                    continue; // Not every file in the corpus is a valid program
+                }
+                Path binary = Files.createTempFile("cma", CMaBinaryFormat.FILE_EXTENSION);
+                binary.toFile().deleteOnExit();
+                Helpers.assemble(file.toString(), binary.toString());
+                CMa actual = Helpers.fromFile(binary.toString());
+
+                expected.run();
+                actual.run();
+                CMaCodeImageTest.assertSameState(expected, actual, file.toString());
+            }
+        }
+    }
+
+    @Test
+    void corruptedFilesAreRejected() throws IOException {
+        byte[] bytes = CMaBinaryWriter.toBytes(CMaCodeImage.decode(new CmaParser().parse("LOADC 1\nLOADC 2\nADD\n")), true);
+
+        byte[] flipped = bytes.clone();
+        flipped[CMaBinaryFormat.HEADER_SIZE + 7] ^= 1;
+        IOException checksum = assertThrows(IOException.class, () -> CMaBinaryLoader.load(writeTemp(flipped)));
+        assertTrue(checksum.getMessage().startsWith("Checksum mismatch"));
+
+        byte[] badMagic = bytes.clone();
+        badMagic[0] = 'X';
+        assertThrows(IOException.class, () -> CMaBinaryLoader.load(writeTemp(badMagic)));
+
+        byte[] truncated = Arrays.copyOf(bytes, 10);
+        assertThrows(IOException.class, () -> CMaBinaryLoader.load(writeTemp(truncated)));
+    }
+}
@@ -0,0 +1,115 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+public class CMaBlockMachineTest {
+
+    // Runs the program on the interpreter and on the block machine and compares the outcome
+    static void assertSameAsInterpreter(String program) {
+        CMaInstruction[] instructions = new CmaParser().parse(program);
+        CMa expected = new CMa(instructions);
+        CMa actual = new CMaBlockMachine(instructions);
+        RuntimeException failure = null;
+        try {
+            expected.run();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        if (failure == null) {
+            actual.run();
+        } else {
+            RuntimeException actualFailure = assertThrows(RuntimeException.class, actual::run, program);
+            assertEquals(failure.getClass(), actualFailure.getClass(), program);
+            assertEquals(failure.getMessage(), actualFailure.getMessage(), program);
+        }
+        CMaCodeImageTest.assertSameState(expected, actual, program);
+    }
+
+    @Test
+    void runsProgramsLikeTheInterpreter() throws IOException {
+        for (String dir : new String[] { CMaCodeImageTest.BYTECODE_DIR, CMaRegisterMachineTest.CORPUS_DIR }) {
+            try (Stream<Path> files = Files.list(Path.of(dir))) {
+                for (Path file : files.filter(f -> !f.getFileName().toString().equals("fac.cma")).toList()) {
+                    assertSameAsInterpreter(Files.readString(file));
+                }
+            }
+        }
+        assertSameAsInterpreter(String.format(CMaVerifierTest.SWITCH, 2));
+    }
+
+    @Test
+    void failingBlocksTrapLikeTheInterpreter() {
+        assertSameAsInterpreter("LOADC 1\nADD");
+        assertSameAsInterpreter("LOADC 1\nLOADA 1");
+        assertSameAsInterpreter("LOADC 1\nLOADA -1");
+        assertSameAsInterpreter("LOADC 1\nSTOREA 3");
+        assertSameAsInterpreter("LOADC 1\nLOADC 0\nDIV");
+        assertSameAsInterpreter("LOADC 7\nLOADC 5\nSTORE");
+        assertSameAsInterpreter("LOADC 1\nJUMP 5");
+        assertSameAsInterpreter("LOADC 3\nJUMP -1"); // Leaves ip at -1
+        assertSameAsInterpreter("LOADC 1\nLOADC 4\nJUMPI 0");
+        assertSameAsInterpreter("ALLOC 70000\nLOADC 1");
+        assertSameAsInterpreter("ALLOC -3\nLOADC 1");
+        assertSameAsInterpreter("L: LOADC 1\nJUMP L");
+    }
+
+    @Test
+    void continuesFromAnyState() throws IOException {
+        String program = Files.readString(Path.of(CMaRegisterMachineTest.CORPUS_DIR, "sieve.cma"));
+        CMa expected = new CMa(new CmaParser().parse(program));
+        expected.run();
+
+        CMaBlockMachine machine = new CMaBlockMachine(new CmaParser().parse(program));
+        for (int i = 0; i < 100; i++) {
+            machine.step(); // Stops in the middle of some block
+        }
+        machine.run();
+        CMaCodeImageTest.assertSameState(expected, machine, "stepped");
+
+        CMaBlockMachine fork = new CMaBlockMachine(new CmaParser().parse(program));
+        fork.run(1000);
+        fork = fork.fork();
+        fork.run();
+        CMaCodeImageTest.assertSameState(expected, fork, "fork");
+    }
+
+    @Test
+    void runsRandomProgramsLikeTheInterpreter() {
+        Random random = new Random(16);
+        String[] simple = { "ADD", "SUB", "MUL", "DIV", "MOD", "AND", "OR", "XOR", "EQ", "NEQ", "LE", "LEQ", "GR", "GEQ",
+                "NOT", "NEG", "DUP", "POP", "LOAD", "STORE" };
+        for (int n = 0; n < 500; n++) {
+            StringBuilder program = new StringBuilder("ALLOC 3\n");
+            int labels = 0;
+            for (int i = 0; i < 30; i++) {
+                int choice = random.nextInt(10);
+                if (choice < 3) {
+                    program.append("LOADC ").append(random.nextInt(6) - 1).append('\n');
+                } else if (choice < 6) {
+                    program.append(simple[random.nextInt(simple.length)]).append('\n');
+                } else if (choice == 6) {
+                    program.append(random.nextBoolean() ? "LOADA " : "STOREA ").append(random.nextInt(4)).append('\n');
+                } else if (choice == 7) {
+                    // Forward jumps only, so every program ends
+                    program.append(random.nextBoolean() ? "JUMP L" : "JUMPZ L").append(labels + 1 + random.nextInt(3))
+                            .append('\n');
+                } else if (choice == 8) {
+                    program.append("L").append(++labels).append(": ALLOC 0\n");
+                } else {
+                    program.append("ALLOC ").append(random.nextInt(3) - 1).append('\n');
+                }
+            }
+            while (labels < 40) {
+                program.append("L").append(++labels).append(": ALLOC 0\n");
+            }
+            assertSameAsInterpreter(program.toString());
+        }
+    }
+}
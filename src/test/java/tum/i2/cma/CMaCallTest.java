@@ -0,0 +1,174 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import tum.i2.common.ExecutionStatus;
+
+public class CMaCallTest {
+
+    // Calls twice(x) = x + x on 21; the result replaces the argument
+    static final String TWICE = """
+            JUMP main
+            twice: ENTER 3
+            LOADR -3
+            LOADR -3
+            ADD
+            STORER -3
+            RETURN
+            main: ENTER 4
+            LOADC 21
+            MARK
+            LOADC twice
+            CALL
+            """;
+
+    static String corpus(String name) throws IOException {
+        return Files.readString(Path.of(CMaRegisterMachineTest.CORPUS_DIR, name + ".cma"));
+    }
+
+    @Test
+    void recursiveProgramsRunOnEveryEngine() throws IOException {
+        String[] programs = { corpus("fib"), corpus("ackermann") };
+        int[] results = { 46368, 509 };
+        for (int p = 0; p < programs.length; p++) {
+            CMaRegisterMachineTest.assertSameAsStepwise(programs[p]);
+            CmaParser parser = new CmaParser();
+            CMaInstruction[] instructions = parser.parse(programs[p]);
+            CMaCodeImage image = CMaFusion.fuse(instructions, parser.getLabels().values());
+            for (CMa machine : new CMa[] { new CMa(instructions), new CMa(image), new CMaJit(image),
+                    new CMaRegisterMachine(image), new CMaBlockMachine(image) }) {
+                machine.run();
+                assertEquals(0, machine.getSP(), machine.getClass().getSimpleName());
+                assertEquals(results[p], machine.getStack()[0], machine.getClass().getSimpleName());
+                assertEquals(-1, machine.getFP());
+            }
+        }
+    }
+
+    @Test
+    void framesLiveOnTheStack() {
+        CMa machine = new CMa(new CmaParser().parse(TWICE));
+        // Stop at the first instruction of twice
+        machine.step();
+        while (machine.ip != 1) {
+            machine.step();
+        }
+        assertEquals(3, machine.getFP());
+        int[] stack = machine.getStack();
+        assertEquals(21, stack[0]);
+        assertEquals(3, stack[1]); // Caller's ep
+        assertEquals(-1, stack[2]); // Caller's fp
+        assertEquals(12, stack[3]); // Return address
+        assertEquals(3, machine.ep);
+
+        machine.run();
+        assertEquals(0, machine.getSP());
+        assertEquals(42, machine.getStack()[0]);
+        assertEquals(-1, machine.getFP());
+        assertEquals(3, machine.ep);
+        assertEquals(12, machine.ip);
+    }
+
+    @Test
+    void badFramesTrap() {
+        CMaCodeImageTest.assertSameTrap("RETURN");
+        CMaCodeImageTest.assertSameTrap("LOADC 1\nLOADC 2\nRETURN");
+        CMaCodeImageTest.assertSameTrap("ENTER 70000");
+        CMaCodeImageTest.assertSameTrap("CALL");
+        CMaCodeImageTest.assertSameTrap("LOADC 9\nCALL");
+        CMaCodeImageTest.assertSameTrap("LOADC -1\nCALL");
+        CMaCodeImageTest.assertSameTrap("LOADC 1\nSLIDE 1");
+        CMaCodeImageTest.assertSameTrap("LOADC 1\nLOADC 2\nSLIDE -1");
+        CMaCodeImageTest.assertSameTrap("LOADC 1\nMARK\nLOADC 4\nCALL\nLOADR 5");
+        CMaCodeImageTest.assertSameTrap("LOADC 1\nMARK\nLOADC 4\nCALL\nSTORER 1");
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> new CMa(new CmaParser().parse("RETURN")).run());
+        assertEquals("Illegal stack memory access!", e.getMessage());
+        e = assertThrows(RuntimeException.class, () -> new CMa(new CmaParser().parse("ENTER 70000")).run());
+        assertEquals("Memory overflow!", e.getMessage());
+
+        // The block machine checks them the same way
+        for (String program : new String[] { "RETURN", "LOADC 9\nCALL", "LOADC 1\nSLIDE 1" }) {
+            CMa reference = new CMa(new CmaParser().parse(program));
+            CMa machine = new CMaBlockMachine(CMaCodeImage.decode(new CmaParser().parse(program)));
+            RuntimeException expected = assertThrows(RuntimeException.class, reference::run);
+            RuntimeException actual = assertThrows(RuntimeException.class, machine::run);
+            assertEquals(expected.getMessage(), actual.getMessage(), program);
+            CMaCodeImageTest.assertSameState(reference, machine, program);
+        }
+    }
+
+    @Test
+    void callsBackToAllocExposeOldSlots() {
+        // The second pass through ALLOC brings back the 2 that ADD popped
+        String program = """
+                ALLOC 1
+                LOADA 0
+                JUMPZ F
+                JUMP E
+                F: LOADC 1
+                STOREA 0
+                POP
+                LOADC 5
+                LOADC 2
+                ADD
+                POP
+                LOADC 0
+                CALL
+                E: LOADC 9
+                """;
+        CMaInstruction[] instructions = new CmaParser().parse(program);
+        assertTrue(CMaCodeImage.decode(instructions).exposesOldSlots());
+        CMa reference = new CMa(instructions);
+        while (reference.ip < instructions.length) {
+            reference.step();
+        }
+        assertEquals(2, reference.getStack()[2]);
+        CMa machine = new CMa(instructions);
+        machine.run();
+        CMaCodeImageTest.assertSameState(reference, machine, program);
+    }
+
+    @Test
+    void callsAreCheckedAtRunTime() {
+        CMaCodeImage image = CMaCodeImage.decode(new CmaParser().parse(TWICE));
+        assertTrue(image.usesFrames());
+        CMaVerifier.Result result = CMaVerifier.verify(image);
+        assertFalse(result.isVerified());
+        assertTrue(result.getProblems().get(0).endsWith("is part of a function call, which is checked at run time"),
+                result.getProblems().get(0));
+        assertNull(CMaJitCompiler.compile(image));
+
+        CMaControlFlowGraph graph = CMaControlFlowGraph.build(image);
+        assertTrue(graph.getBlockAt(image.length - 1).hasUnknownSuccessors());
+    }
+
+    @Test
+    void snapshotsAndForksKeepTheFrame() throws IOException {
+        String program = corpus("fib");
+        CMa expected = CMaSnapshotTest.machine(program);
+        expected.run();
+
+        CMa original = CMaSnapshotTest.machine(program);
+        assertEquals(ExecutionStatus.OUT_OF_FUEL, original.run(5000));
+        assertNotEquals(-1, original.getFP());
+        CMa fork = original.fork();
+        CMaSnapshot snapshot = CMaSnapshot.fromBytes(original.snapshot().toBytes(), "fib");
+        CMa restored = CMaSnapshotTest.machine(program);
+        restored.restore(snapshot);
+        assertEquals(original.getFP(), restored.getFP());
+        for (CMa machine : new CMa[] { original, fork, restored }) {
+            machine.run();
+            CMaCodeImageTest.assertSameState(expected, machine, "fib");
+        }
+
+        original.reset();
+        assertEquals(-1, original.getFP());
+        assertEquals(-1, original.ep);
+    }
+}
@@ -0,0 +1,95 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+// The decoded interpreter loop in CMa.run() has to behave exactly like
+// executing the program one CMaInstruction at a time via step().
+public class CMaCodeImageTest {
+    static final String BYTECODE_DIR = "./src/test/java/e1/bytecode";
+
+    // Reference execution through the CMaInstruction based step()
+    static CMa runStepwise(CMaInstruction[] instructions) {
+        CMa machine = new CMa(instructions);
+        while (machine.ip < instructions.length) {
+            machine.step();
+        }
+        return machine;
+    }
+
+    static void assertSameState(CMa expected, CMa actual, String name) {
+        assertEquals(expected.getSP(), actual.getSP(), name + ": sp");
+        assertEquals(expected.ip, actual.ip, name + ": ip");
+        assertEquals(expected.fp, actual.fp, name + ": fp");
+        for (int i = 0; i <= Math.min(expected.getSP(), CMa.MEMMAX - 1); i++) {
+            assertEquals(expected.getStack()[i], actual.getStack()[i], name + ": stack[" + i + "]");
+        }
+    }
+
+    static void assertSameTrap(String program) {
+        CMaInstruction[] instructions = new CmaParser().parse(program);
+        CMa reference = new CMa(instructions);
+        RuntimeException expected = assertThrows(RuntimeException.class, () -> {
+            while (reference.ip < instructions.length) {
+                reference.step();
+            }
+        });
+        CMa machine = new CMa(instructions);
+        RuntimeException actual = assertThrows(RuntimeException.class, machine::run);
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getMessage(), actual.getMessage());
+        assertSameState(reference, machine, program);
+    }
+
+    @Test
+    void decodeKeepsInstructionIndices() {
+        CMaInstruction[] instructions = new CmaParser().parse("LOADC 7\nL: DUP\nJUMPZ L\n");
+        CMaCodeImage image = CMaCodeImage.decode(instructions);
+
+        assertEquals(3, image.getLength());
+        assertEquals(CMaOpcodes.LOADC, image.code[0]);
+        assertEquals(7, image.code[1]);
+        assertEquals(CMaOpcodes.DUP, image.code[2]);
+        assertEquals(CMaOpcodes.JUMPZ, image.code[4]);
+        assertEquals(1, image.code[5]);
+    }
+
+    @Test
+    void runMatchesStepwiseExecution() throws IOException {
+        try (Stream<Path> files = Files.list(Path.of(BYTECODE_DIR))) {
+            for (Path file : files.filter(f -> f.toString().endsWith(".cma")).toList()) {
+                CMaInstruction[] instructions;
+                try {
+                    instructions = new CmaParser().parseFile(file.toString());
+                } catch (RuntimeException e) {
+                    continue; // Not every file in the corpus is a valid program
+                }
+                CMa machine = new CMa(instructions);
+                machine.run();
+                assertSameState(runStepwise(instructions), machine, file.toString());
+            }
+        }
+    }
+
+    @Test
+    void runMatchesStepwiseTraps() {
+        assertSameTrap("ADD");
+        assertSameTrap("LOADC 1\nLOADC 0\nDIV");
+        assertSameTrap("LOADC 1\nLOADC 0\nMOD");
+        assertSameTrap("LOADA 3");
+        assertSameTrap("LOADC 5\nLOAD");
+        assertSameTrap("POP");
+        assertSameTrap("DUP");
+        assertSameTrap("ALLOC 65537");
+        assertSameTrap("JUMP -1");
+        assertSameTrap("LOADC 0\nJUMPZ -2");
+        assertSameTrap("LOADC 7\nJUMPI 0");
+        assertSameTrap("LOADC -3\nJUMPI 1");
+        assertSameTrap("ALLOC 65536\nLOADC 1");
+    }
+}
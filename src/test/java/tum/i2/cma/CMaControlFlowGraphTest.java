@@ -0,0 +1,109 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class CMaControlFlowGraphTest {
+
+    static CMaControlFlowGraph build(String program) {
+        return CMaControlFlowGraph.build(new CmaParser().parse(program));
+    }
+
+    @Test
+    void splitsAtTargetsAndAfterJumps() {
+        CMaControlFlowGraph graph = build("""
+                ALLOC 1
+                L: LOADA 0
+                LOADC 3
+                LE
+                JUMPZ E
+                LOADA 0
+                LOADC 1
+                ADD
+                STOREA 0
+                POP
+                JUMP L
+                E: LOADA 0
+                """);
+        assertEquals("""
+                B0 [0, 1) -> B1
+                B1 [1, 5) -> B3 B2
+                B2 [5, 11) -> B1
+                B3 [11, 12) -> exit
+                """, graph.toString());
+        CMaControlFlowGraph.Block loop = graph.getBlockAt(3);
+        assertEquals(1, loop.getStart());
+        assertEquals(List.of(graph.getBlocks().get(0), graph.getBlocks().get(2)), loop.getPredecessors());
+        assertSame(graph.getEntry(), graph.getBlockAt(0));
+    }
+
+    @Test
+    void labelsStartBlocks() {
+        CmaParser parser = new CmaParser();
+        CMaInstruction[] instructions = parser.parse("LOADC 1\nL: LOADC 2\nADD");
+        assertEquals(1, CMaControlFlowGraph.build(instructions).getBlocks().size());
+        CMaControlFlowGraph graph = CMaControlFlowGraph.build(instructions, parser.getLabels().values());
+        assertEquals("B0 [0, 1) -> B1\nB1 [1, 3) -> exit\n", graph.toString());
+    }
+
+    @Test
+    void boundedJumpTablesHaveEdges() {
+        CMaControlFlowGraph graph = build(String.format(CMaVerifierTest.SWITCH, 1));
+        CMaControlFlowGraph.Block dispatch = graph.getBlockAt(9);
+        assertEquals(9, dispatch.getStart());
+        assertFalse(dispatch.hasUnknownSuccessors());
+        // The verifier knows the index is 1, so only the second JUMP of the table is taken
+        assertEquals(List.of(11), dispatch.getSuccessors().stream().map(CMaControlFlowGraph.Block::getStart).toList());
+        assertTrue(graph.getBlockAt(15).isReachable());
+        assertFalse(graph.getBlockAt(13).isReachable());
+        assertFalse(graph.getBlockAt(10).isReachable());
+    }
+
+    @Test
+    void unboundedJumpiHasUnknownSuccessors() {
+        CMaControlFlowGraph graph = build("ALLOC 1\nLOADA 0\nJUMPI T\nT: JUMP A\nLOADC 1\nA: LOADC 2");
+        CMaControlFlowGraph.Block jumpi = graph.getBlockAt(2);
+        assertTrue(jumpi.hasUnknownSuccessors());
+        assertTrue(jumpi.getSuccessors().isEmpty());
+        // The JUMPI may land on LOADC 1
+        assertTrue(graph.getBlockAt(4).isReachable());
+    }
+
+    @Test
+    void marksDeadBlocksAndTrappingJumps() {
+        CMaControlFlowGraph graph = build("LOADC 1\nJUMP E\nLOADC 2\nE: JUMP 9");
+        assertEquals("B0 [0, 2) -> B2\nB1 [2, 3) -> B2\nB2 [3, 4) ->\n", graph.toString());
+        assertFalse(graph.getBlocks().get(1).isReachable());
+        assertFalse(graph.getBlocks().get(2).exits());
+    }
+
+    @Test
+    void blocksCoverEveryProgram() throws IOException {
+        for (String dir : new String[] { CMaCodeImageTest.BYTECODE_DIR, CMaRegisterMachineTest.CORPUS_DIR }) {
+            try (Stream<Path> files = Files.list(Path.of(dir))) {
+                for (Path file : files.filter(f -> !f.getFileName().toString().equals("fac.cma")).toList()) {
+                    CMaInstruction[] instructions = new CmaParser().parse(Files.readString(file));
+                    CMaControlFlowGraph graph = CMaControlFlowGraph.build(instructions);
+                    // Fusion does not change the graph
+                    assertEquals(graph.toString(), CMaControlFlowGraph.build(CMaFusion.fuse(CMaCodeImage.decode(instructions))).toString());
+                    int next = 0;
+                    for (CMaControlFlowGraph.Block block : graph.getBlocks()) {
+                        assertEquals(next, block.getStart(), file.toString());
+                        assertTrue(block.getLength() > 0);
+                        for (CMaControlFlowGraph.Block successor : block.getSuccessors()) {
+                            assertTrue(successor.getPredecessors().contains(block));
+                        }
+                        next = block.getEnd();
+                    }
+                    assertEquals(instructions.length, next, file.toString());
+                }
+            }
+        }
+    }
+}
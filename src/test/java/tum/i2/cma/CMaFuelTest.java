@@ -0,0 +1,114 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import tum.i2.common.ExecutionStatus;
+
+public class CMaFuelTest {
+
+    // Runs in slices of the given fuel until the program stops
+    static ExecutionStatus runInSlices(CMa machine, long fuel) {
+        ExecutionStatus status;
+        int slices = 0;
+        while ((status = machine.run(fuel)) == ExecutionStatus.OUT_OF_FUEL) {
+            assertTrue(++slices < 1_000_000, "no progress after " + machine.ip);
+        }
+        return status;
+    }
+
+    @Test
+    void suspendsEndlessLoops() {
+        CMa machine = new CMa(new CmaParser().parse("LOADC 1\nL: LOADC 2\nPOP\nJUMP L"));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(ExecutionStatus.OUT_OF_FUEL, machine.run(1000));
+            assertEquals(1, machine.ip);
+            assertEquals(0, machine.getSP());
+        }
+    }
+
+    @Test
+    void chargesBackwardJumps() {
+        // Each of the 3 iterations jumps back over 5 instructions
+        String countdown = CMaProfilerTest.COUNTDOWN;
+        CMa machine = new CMa(new CmaParser().parse(countdown));
+        assertEquals(ExecutionStatus.OUT_OF_FUEL, machine.run(7));
+        assertEquals(1, machine.ip);
+        assertEquals(1, machine.getStack()[0]);
+        assertEquals(ExecutionStatus.FINISHED, machine.run(10));
+
+        machine = new CMa(new CmaParser().parse(countdown));
+        assertEquals(ExecutionStatus.FINISHED, machine.run(15));
+        assertEquals(42, machine.getStack()[machine.getSP()]);
+    }
+
+    @Test
+    void resumesWhereItStopped() throws IOException {
+        String[] programs = {
+                String.format(CMaVerifierTest.SWITCH, 2),
+                // Does not verify, runs on the checked loop
+                "LOADC 3\nL: DUP\nLOADC 1\nSUB\nDUP\nJUMPZ E\nJUMP L\nE: POP",
+        };
+        for (String program : programs) {
+            CMaInstruction[] instructions = new CmaParser().parse(program);
+            CMa machine = new CMa(instructions);
+            assertEquals(ExecutionStatus.FINISHED, runInSlices(machine, 1));
+            CMaCodeImageTest.assertSameState(CMaCodeImageTest.runStepwise(instructions), machine, program);
+        }
+
+        // The corpus programs run millions of loop iterations, so they get bigger slices
+        for (String dir : new String[] { CMaCodeImageTest.BYTECODE_DIR, CMaRegisterMachineTest.CORPUS_DIR }) {
+            long fuel = dir.equals(CMaCodeImageTest.BYTECODE_DIR) ? 7 : 100_000;
+            try (Stream<Path> files = Files.list(Path.of(dir))) {
+                for (Path file : files.filter(f -> !f.getFileName().toString().equals("fac.cma")).toList()) {
+                    CMaInstruction[] instructions = new CmaParser().parse(Files.readString(file));
+                    CMa expected = new CMa(instructions);
+                    expected.run();
+                    for (CMa machine : new CMa[] { new CMa(instructions), new CMaJit(instructions),
+                            new CMaRegisterMachine(instructions) }) {
+                        assertEquals(ExecutionStatus.FINISHED, runInSlices(machine, fuel), file.toString());
+                        CMaCodeImageTest.assertSameState(expected, machine, file.toString());
+                    }
+                    // A suspended machine can also be finished with run()
+                    CMa machine = new CMa(instructions);
+                    machine.run(fuel);
+                    machine.run();
+                    CMaCodeImageTest.assertSameState(expected, machine, file.toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    void keepsTheTrap() {
+        CMa machine = new CMa(new CmaParser().parse("LOADC 1\nLOADC 0\nDIV"));
+
+        assertEquals(ExecutionStatus.TRAPPED, machine.run(100));
+        assertEquals("Division by zero is not allowed!", machine.getTrap().getMessage());
+        assertEquals(ExecutionStatus.TRAPPED, machine.run(100));
+        assertEquals(3, machine.ip);
+
+        machine.reset();
+        assertNull(machine.getTrap());
+        assertEquals(ExecutionStatus.TRAPPED, machine.run(100));
+
+        machine = new CMa(new CmaParser().parse("LOADC 7\nJUMPI 0"));
+        assertEquals(ExecutionStatus.TRAPPED, machine.run(100));
+        assertEquals("Illegal instruction memory access!", machine.getTrap().getMessage());
+    }
+
+    @Test
+    void rejectsMissingFuel() {
+        CMa machine = new CMa(new CmaParser().parse("LOADC 1"));
+
+        assertThrows(IllegalArgumentException.class, () -> machine.run(0));
+        assertEquals(ExecutionStatus.FINISHED, machine.run(1));
+        assertEquals(ExecutionStatus.FINISHED, machine.run(1));
+    }
+}
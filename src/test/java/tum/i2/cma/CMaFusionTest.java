@@ -0,0 +1,130 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+public class CMaFusionTest {
+
+    static int[] opcodes(CMaCodeImage image) {
+        int[] opcodes = new int[image.getLength()];
+        for (int i = 0; i < opcodes.length; i++) {
+            opcodes[i] = image.code[i * CMaCodeImage.STRIDE];
+        }
+        return opcodes;
+    }
+
+    static CMaCodeImage fuse(String program) {
+        CmaParser parser = new CmaParser();
+        CMaInstruction[] instructions = parser.parse(program);
+        return CMaFusion.fuse(instructions, parser.getLabels().values());
+    }
+
+    @Test
+    void fusesCommonSequences() {
+        CMaCodeImage image = fuse("""
+                ALLOC 1
+                LOADA 0
+                LOADC 1
+                ADD
+                STOREA 0
+                POP
+                LOADC 0
+                LOAD
+                LOADC 3
+                LE
+                JUMPZ 1
+                """);
+
+        // The instructions following a fused opcode are left in place
+        assertArrayEquals(new int[] {
+                CMaOpcodes.ALLOC,
+                CMaOpcodes.INCA, CMaOpcodes.LOADC, CMaOpcodes.ADD, CMaOpcodes.STOREA, CMaOpcodes.POP,
+                CMaOpcodes.LOADC_LOAD, CMaOpcodes.LOAD,
+                CMaOpcodes.LOADC, CMaOpcodes.LE_JUMPZ, CMaOpcodes.JUMPZ
+        }, opcodes(image));
+    }
+
+    @Test
+    void neverFusesAcrossJumpTargets() {
+        CMaCodeImage image = fuse("""
+                LOADC 1
+                L: ADD
+                LOADC 2
+                SUB
+                JUMP 3
+                """);
+
+        assertArrayEquals(new int[] {
+                CMaOpcodes.LOADC, CMaOpcodes.ADD, CMaOpcodes.LOADC, CMaOpcodes.SUB, CMaOpcodes.JUMP
+        }, opcodes(image));
+    }
+
+    @Test
+    void fusedTrapsMatchUnfusedExecution() {
+        // Each of these fails inside a fused sequence
+        String[] programs = {
+                "LOADC 1\nADD",
+                "LOADC 1\nLOAD",
+                "LOADC -1\nLOAD",
+                "LOADA 0\nLOADC 1\nADD\nSTOREA 0\nPOP",
+                "ALLOC 1\nLOADA -1\nLOADC 1\nADD\nSTOREA -1\nPOP",
+                "ALLOC 65535\nLOADA 0\nLOADC 1\nADD\nSTOREA 0\nPOP",
+                "LOADC 1\nEQ\nJUMPZ 0",
+        };
+        for (String program : programs) {
+            CMaInstruction[] instructions = new CmaParser().parse(program);
+            CMa reference = new CMa(instructions);
+            RuntimeException expected = assertThrows(RuntimeException.class, () -> {
+                while (reference.ip < instructions.length) {
+                    reference.step();
+                }
+            });
+            CMa machine = new CMa(CMaFusion.fuse(instructions, List.of()));
+            RuntimeException actual = assertThrows(RuntimeException.class, machine::run);
+            assertEquals(expected.getClass(), actual.getClass(), program);
+            assertEquals(expected.getMessage(), actual.getMessage(), program);
+            assertEquals(reference.getSP(), machine.getSP(), program);
+        }
+    }
+
+    @Test
+    void keepsSlotsThatAllocExposes() {
+        // The fast paths would leave 0 and 1 in the slot that ALLOC exposes
+        String[] programs = {
+                "LOADC 1\nLOADC 2\nADD\nALLOC 1",
+                "LOADC 7\nLOADC 7\nEQ\nJUMPZ L\nL: ALLOC 1",
+                "ALLOC 1\nLOADA 0\nLOADC 1\nADD\nSTOREA 0\nPOP\nLOADA 0\nLOADC 3\nLE\nJUMPZ 0\nALLOC 2",
+        };
+        for (String program : programs) {
+            CMaInstruction[] instructions = new CmaParser().parse(program);
+            CMaCodeImage image = CMaFusion.fuse(instructions, List.of());
+            assertArrayEquals(opcodes(CMaCodeImage.decode(instructions)), opcodes(image), program);
+            CMa reference = new CMa(instructions);
+            while (reference.ip < instructions.length) {
+                reference.step();
+            }
+            CMa machine = new CMa(image);
+            machine.run();
+            CMaCodeImageTest.assertSameState(reference, machine, program);
+        }
+    }
+
+    @Test
+    void computedJumpIntoFusedSequence() {
+        // JUMPI lands on the ADD of a fused LOADC 5; ADD
+        CMa machine = new CMa(fuse("""
+                LOADC 10
+                LOADC 7
+                LOADC 1
+                JUMPI T
+                T: LOADC 5
+                ADD
+                """));
+        machine.run();
+
+        assertEquals(0, machine.getSP());
+        assertEquals(17, machine.getStack()[0]);
+    }
+}
@@ -0,0 +1,111 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+public class CMaJitTest {
+
+    static void assertSameAsInterpreter(String program) {
+        CMaInstruction[] instructions = new CmaParser().parse(program);
+        CMa interpreted = new CMa(instructions);
+        CMa compiled = new CMaJit(instructions);
+        RuntimeException expected = null;
+        RuntimeException actual = null;
+        try {
+            interpreted.run();
+        } catch (RuntimeException e) {
+            expected = e;
+        }
+        try {
+            compiled.run();
+        } catch (RuntimeException e) {
+            actual = e;
+        }
+        if (expected == null) {
+            assertNull(actual, program);
+        } else {
+            assertNotNull(actual, program);
+            assertEquals(expected.getClass(), actual.getClass(), program);
+            assertEquals(expected.getMessage(), actual.getMessage(), program);
+        }
+        assertEquals(interpreted.getSP(), compiled.getSP(), program);
+        assertEquals(interpreted.ip, compiled.ip, program);
+        for (int i = 0; i <= Math.min(interpreted.getSP(), CMa.MEMMAX - 1); i++) {
+            assertEquals(interpreted.getStack()[i], compiled.getStack()[i], program + ": stack[" + i + "]");
+        }
+    }
+
+    @Test
+    void matchesInterpreterOnTestPrograms() throws IOException {
+        try (Stream<Path> files = Files.list(Path.of(CMaCodeImageTest.BYTECODE_DIR))) {
+            for (Path file : files.filter(f -> f.toString().endsWith(".cma")).toList()) {
+                String program = Files.readString(file);
+                try {
+                    new CmaParser().parse(program);
+                } catch (RuntimeException e) {
+                    continue;
+                }
+                assertSameAsInterpreter(program);
+            }
+        }
+    }
+
+    @Test
+    void matchesInterpreterOnTraps() {
+        String[] programs = {
+                "ADD", "LOADC 1\nSUB", "NOT", "NEG", "LOAD", "LOADC 1\nSTORE", "EQ", "LOADC 1\nGEQ",
+                "LOADC 1\nLOADC 0\nDIV", "LOADC 1\nLOADC 0\nMOD",
+                "LOADA 3", "LOADC 5\nLOAD", "LOADC -5\nLOAD", "LOADC 1\nLOADC 5\nSTORE", "STOREA 0",
+                "POP", "DUP", "ALLOC 65537", "ALLOC 65536\nLOADC 1", "ALLOC 65536\nDUP",
+                "JUMP -1", "JUMP 7", "LOADC 0\nJUMPZ -2", "LOADC 0\nJUMPZ 9", "JUMPZ 0",
+                "LOADC 7\nJUMPI 0", "LOADC -3\nJUMPI 1", "LOADC 0\nJUMPI 5",
+                "LOADC 1\nLOADC 2\nLE\nJUMPZ -1\nLOADC 4",
+                "LOADC 2\nLOADC 1\nLE\nJUMPZ -1\nLOADC 4",
+        };
+        for (String program : programs) {
+            assertSameAsInterpreter(program);
+        }
+    }
+
+    @Test
+    void matchesInterpreterOnOperators() {
+        int[] values = { 0, 1, -1, 5, Integer.MIN_VALUE };
+        String[] operators = { "ADD", "SUB", "MUL", "DIV", "MOD", "AND", "OR", "XOR",
+                "EQ", "NEQ", "LE", "LEQ", "GR", "GEQ" };
+        for (String operator : operators) {
+            for (int a : values) {
+                for (int b : values) {
+                    assertSameAsInterpreter("LOADC " + a + "\nLOADC " + b + "\n" + operator + "\nNOT\nDUP\nNEG");
+                    assertSameAsInterpreter("LOADC " + a + "\nLOADC " + b + "\n" + operator
+                            + "\nJUMPZ 5\nLOADC 1\nLOADC 2");
+                }
+            }
+        }
+    }
+
+    @Test
+    void keepsSlotsThatAllocExposes() {
+        // ALLOC brings back the result of EQ that JUMPZ popped
+        String program = "LOADC 7\nLOADC 7\nEQ\nJUMPZ L\nL: ALLOC 1";
+        assertSameAsInterpreter(program);
+        CMaJit machine = new CMaJit(new CmaParser().parse(program));
+        machine.run();
+        assertEquals(1, machine.getStack()[0]);
+    }
+
+    @Test
+    void jumpsBetweenChunks() {
+        // Long enough to need several chunk and group methods, with a loop spanning all of them
+        StringBuilder program = new StringBuilder("ALLOC 1\nLOOP: LOADA 0\nLOADC 1\nADD\nSTOREA 0\nPOP\n");
+        for (int i = 0; i < 20000; i++) {
+            program.append("LOADC ").append(i).append("\nPOP\n");
+        }
+        program.append("LOADA 0\nLOADC 5\nLE\nJUMPZ END\nLOADC 0\nJUMPI LOOP\nEND: LOADA 0\n");
+        assertSameAsInterpreter(program.toString());
+    }
+}
@@ -0,0 +1,180 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+// Every lane of a CMaLockstep has to end like a CMa that starts with the
+// lane's input on its stack.
+public class CMaLockstepTest {
+
+    // Counts the Collatz steps from the value in slot 0 down to 1
+    static final String COLLATZ = """
+            LOADC 0
+            L: LOADA 0
+            LOADC 1
+            EQ
+            NOT
+            JUMPZ E
+            LOADA 0
+            LOADC 2
+            MOD
+            JUMPZ EVEN
+            LOADA 0
+            LOADC 3
+            MUL
+            LOADC 1
+            ADD
+            JUMP NEXT
+            EVEN: LOADA 0
+            LOADC 2
+            DIV
+            NEXT: STOREA 0
+            POP
+            LOADA 1
+            LOADC 1
+            ADD
+            STOREA 1
+            POP
+            JUMP L
+            E: LOADA 1
+            """;
+
+    // Picks 10, 20 or 30 by the value 0, 1 or 2 in slot 0. Up to 10 jumps
+    // into the cases, larger values trap.
+    static final String SWITCH = """
+            LOADA 0
+            JUMPI T
+            T: JUMP A
+            JUMP B
+            JUMP C
+            A: LOADC 10
+            JUMP E
+            B: LOADC 20
+            JUMP E
+            C: LOADC 30
+            E: LOADC 1
+            ADD
+            """;
+
+    static CMaCodeImage image(String program) {
+        return CMaFusion.fuse(new CmaStreamingParser().parse(program));
+    }
+
+    static CMaLockstep assertSameAsMachines(CMaCodeImage image, int lanes, int[]... inputs) {
+        CMaLockstep lockstep = new CMaLockstep(image, lanes, inputs);
+        lockstep.run();
+        for (int lane = 0; lane < lanes; lane++) {
+            CMa machine = new CMa(image);
+            int[] stack = machine.ensureStackCapacity(inputs.length + 1);
+            for (int k = 0; k < inputs.length; k++) {
+                stack[k] = inputs[k][lane];
+            }
+            machine.sp = inputs.length - 1;
+            machine.stackTop = machine.sp;
+            RuntimeException expected = null;
+            try {
+                machine.run();
+            } catch (RuntimeException e) {
+                expected = e;
+            }
+            String name = "lane " + lane;
+            RuntimeException actual = lockstep.getTrap(lane);
+            if (expected == null) {
+                assertNull(actual, name);
+            } else {
+                assertNotNull(actual, name);
+                assertEquals(expected.getClass(), actual.getClass(), name);
+                assertEquals(expected.getMessage(), actual.getMessage(), name);
+            }
+            assertEquals(machine.ip, lockstep.getIP(lane), name);
+            assertEquals(machine.getSP(), lockstep.getSP(lane), name);
+            int[] lockstepStack = lockstep.getStack(lane);
+            for (int s = 0; s <= Math.min(machine.getSP(), CMa.MEMMAX - 1); s++) {
+                assertEquals(machine.getStack()[s], lockstepStack[s], name + ": stack[" + s + "]");
+            }
+        }
+        return lockstep;
+    }
+
+    @Test
+    void lanesWithoutInputRunInOneGroup() throws IOException {
+        for (File file : new File(CMaRegisterMachineTest.CORPUS_DIR).listFiles()) {
+            CMaCodeImage image = image(Files.readString(file.toPath()));
+            if (image.usesFrames()) {
+                continue;
+            }
+            CMaLockstep lockstep = assertSameAsMachines(image, 8);
+            CMaLockstep.Stats stats = lockstep.getStats();
+            assertEquals(0, stats.splits(), file.getName());
+            assertEquals(8 * stats.dispatched(), stats.retired(), file.getName());
+        }
+    }
+
+    @Test
+    void divergingLanesMeetAgain() {
+        int lanes = 1000;
+        int[] start = new int[lanes];
+        for (int lane = 0; lane < lanes; lane++) {
+            start[lane] = lane + 1;
+        }
+        CMaLockstep lockstep = assertSameAsMachines(image(COLLATZ), lanes, start);
+        assertEquals(111, lockstep.getStack(26)[2]); // 27 takes 111 steps
+        CMaLockstep.Stats stats = lockstep.getStats();
+        assertTrue(stats.splits() > 100);
+        assertTrue(stats.merges() > 100);
+        // Without merging, most instructions would run on a handful of lanes
+        assertTrue(stats.retired() > 50 * stats.dispatched(), stats.toString());
+    }
+
+    @Test
+    void lanesTrapOnTheirOwn() {
+        Random random = new Random(5);
+        int lanes = 300;
+        int[] first = new int[lanes];
+        int[] second = new int[lanes];
+        for (int lane = 0; lane < lanes; lane++) {
+            first[lane] = random.nextInt(7) - 2;
+            second[lane] = random.nextInt(5) - 1;
+        }
+        CMaLockstep division = assertSameAsMachines(image("LOADA 0\nLOADA 1\nDIV\nLOADA 0\nLOADA 1\nMOD\nADD"),
+                lanes, first, second);
+        for (int lane = 0; lane < lanes; lane++) {
+            assertEquals(second[lane] == 0, division.getTrap(lane) != null);
+        }
+        assertSameAsMachines(image("LOADC 7\nLOADA 0\nLOAD"), lanes, first);
+        assertSameAsMachines(image("LOADC 7\nLOADA 1\nSTORE\nLOADC 1\nADD"), lanes, first, second);
+        // Bad addresses trap with the same messages as on CMa
+        CMaLockstep load = assertSameAsMachines(image("LOADA 0\nLOAD"), 3, new int[] { -2, 0, 5 });
+        assertEquals("Index -2 out of bounds for length " + CMa.MEMMAX, load.getTrap(0).getMessage());
+        assertEquals("Illegal stack memory access!", load.getTrap(2).getMessage());
+        assertSameAsMachines(image("LOADC 1\nLOADA -2"), 4, new int[4]);
+        assertSameAsMachines(image("LOADC 1\nSTOREA -3"), 4, new int[4]);
+        int[] cases = new int[lanes];
+        for (int lane = 0; lane < lanes; lane++) {
+            cases[lane] = random.nextInt(12);
+        }
+        assertSameAsMachines(image(SWITCH), lanes, cases);
+        assertSameAsMachines(image("LOADA 1\nJUMPZ -1\nLOADC 3"), lanes, first, second);
+        // Traps that do not depend on the input hit every lane
+        CMaLockstep empty = assertSameAsMachines(image("LOADC 1\nADD\nADD"), 4, new int[4]);
+        assertSame(empty.getTrap(0), empty.getTrap(3));
+    }
+
+    @Test
+    void rejectsWhatItCannotRun() {
+        assertThrows(IllegalArgumentException.class, () -> new CMaLockstep(image("LOADC 1\nNEW"), 4));
+        assertThrows(IllegalArgumentException.class, () -> new CMaLockstep(image(CMaCallTest.TWICE), 4));
+        assertThrows(IllegalArgumentException.class, () -> new CMaLockstep(image("ADD"), 4, new int[3]));
+        assertThrows(IllegalArgumentException.class, () -> new CMaLockstep(image("ADD"), 0));
+        CMaLockstep lockstep = new CMaLockstep(image("LOADC 1"), 2);
+        assertThrows(IllegalStateException.class, () -> lockstep.getStack(0));
+        lockstep.run();
+        assertTrue(lockstep.isFinished());
+        assertArrayEquals(new int[] { 1 }, lockstep.getStack(1));
+    }
+}
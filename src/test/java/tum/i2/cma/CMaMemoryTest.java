@@ -0,0 +1,122 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+// Growable stack and the lazily allocated heap backends
+public class CMaMemoryTest {
+
+    static CMaCodeImage image(String program) {
+        return CMaFusion.fuse(new CmaStreamingParser().parse(program));
+    }
+
+    static void checkMemory(CMaMemory memory) {
+        assertEquals(0, memory.allocatedBytes());
+        assertEquals(0, memory.load(12345));
+        assertEquals(0, memory.allocatedBytes());
+
+        memory.store(12345, 42);
+        memory.store(memory.limit() - 1, 7);
+        assertEquals(42, memory.load(12345));
+        assertEquals(7, memory.load(memory.limit() - 1));
+        assertEquals(0, memory.load(12346));
+        assertTrue(memory.allocatedBytes() > 0);
+        assertTrue(memory.allocatedBytes() < 4L * memory.limit());
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> memory.load(memory.limit()));
+        assertEquals("Illegal heap memory access!", e.getMessage());
+        assertThrows(RuntimeException.class, () -> memory.store(-1, 0));
+
+        long allocated = memory.allocatedBytes();
+        memory.clear();
+        assertEquals(0, memory.load(12345));
+        assertEquals(0, memory.load(memory.limit() - 1));
+        assertEquals(allocated, memory.allocatedBytes());
+    }
+
+    @Test
+    void pagedMemoryAllocatesOnWrite() {
+        checkMemory(new CMaPagedMemory(1 << 24));
+        checkMemory(new CMaPagedMemory(100000, 4));
+    }
+
+    @Test
+    void offHeapMemoryAllocatesOnWrite() {
+        checkMemory(new CMaOffHeapMemory(1 << 24));
+        checkMemory(new CMaOffHeapMemory(100000, 12));
+    }
+
+    static void checkFork(CMaMemory memory) {
+        memory.store(10, 1);
+        memory.store(memory.limit() - 1, 2);
+        long allocated = memory.allocatedBytes();
+
+        CMaMemory fork = memory.fork();
+        assertEquals(allocated, fork.allocatedBytes());
+        assertEquals(1, fork.load(10));
+        fork.store(10, 3);
+        memory.store(memory.limit() - 1, 4);
+        assertEquals(1, memory.load(10));
+        assertEquals(3, fork.load(10));
+        assertEquals(4, memory.load(memory.limit() - 1));
+        assertEquals(2, fork.load(memory.limit() - 1));
+
+        // Clearing drops shared pages instead of zeroing them for the other fork
+        CMaMemory second = fork.fork();
+        second.clear();
+        assertEquals(0, second.load(10));
+        assertEquals(3, fork.load(10));
+        assertEquals(2, fork.load(fork.limit() - 1));
+        second.store(10, 5);
+        assertEquals(3, fork.load(10));
+    }
+
+    @Test
+    void forksShareMemoryCopyOnWrite() {
+        checkFork(new CMaPagedMemory(1 << 20));
+        checkFork(new CMaPagedMemory(100, 2));
+        checkFork(new CMaOffHeapMemory(1 << 20, 10));
+    }
+
+    @Test
+    void smallProgramsKeepASmallStack() {
+        CMa machine = new CMa(image("LOADC 1\nLOADC 2\nADD\n"));
+        machine.run();
+        assertEquals(3, machine.getStack()[0]);
+        assertTrue(machine.stack.length <= CMa.INITIAL_STACK_SIZE);
+        assertEquals(0, machine.getHeap().allocatedBytes());
+    }
+
+    @Test
+    void stackGrowsUpToItsLimit() {
+        // Deeper than the default limit of 1 << 16 slots
+        String program = "ALLOC 100000\nLOADC 5\nSTOREA 99999\nPOP\nLOADA 99999\nLOADC 1\nADD\n";
+        RuntimeException e = assertThrows(RuntimeException.class, () -> new CMa(image(program)).run());
+        assertEquals("Memory overflow!", e.getMessage());
+
+        CMa machine = new CMa(image(program), 1 << 20, new CMaPagedMemory(1 << 20));
+        machine.run();
+        assertEquals(100000, machine.getSP());
+        assertEquals(6, machine.getStack()[100000]);
+
+        CMaJit compiled = new CMaJit(image(program), 1 << 20, new CMaPagedMemory(1 << 20));
+        compiled.run();
+        assertEquals(6, compiled.getStack()[100000]);
+    }
+
+    @Test
+    void pushesBeyondTheLimitFailLikeBefore() {
+        StringBuilder program = new StringBuilder();
+        for (int i = 0; i < 1001; i++) {
+            program.append("LOADC ").append(i).append('\n');
+        }
+        CMa machine = new CMa(image(program.toString()), 1000, new CMaPagedMemory(1000));
+        ArrayIndexOutOfBoundsException e = assertThrows(ArrayIndexOutOfBoundsException.class, machine::run);
+        assertEquals("Index 1000 out of bounds for length 1000", e.getMessage());
+        assertEquals(999, machine.getStack()[999]);
+
+        CMa small = new CMa(image("LOADC -5\nLOAD\n"));
+        e = assertThrows(ArrayIndexOutOfBoundsException.class, small::run);
+        assertEquals("Index -5 out of bounds for length " + CMa.MEMMAX, e.getMessage());
+    }
+}
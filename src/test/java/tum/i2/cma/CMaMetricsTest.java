@@ -0,0 +1,141 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import tum.i2.common.ExecutionStatus;
+
+public class CMaMetricsTest {
+
+    @Test
+    void countsEveryInstructionExactly() throws IOException {
+        // The profiler steps through the program, so its total is the exact count
+        try (Stream<Path> files = Files.list(Path.of(CMaCodeImageTest.BYTECODE_DIR))) {
+            for (Path file : files.filter(f -> !f.getFileName().toString().equals("fac.cma")).toList()) {
+                CMaInstruction[] instructions = new CmaParser().parse(Files.readString(file));
+                CMaProfiler profiler = new CMaProfiler(new CMa(instructions));
+                profiler.run();
+                long expected = profiler.getTotalCount();
+
+                CMaMetrics metrics = new CMaMetrics();
+                for (CMa machine : new CMa[] { new CMa(instructions), new CMaJit(instructions),
+                        new CMaRegisterMachine(instructions), new CMaBlockMachine(instructions) }) {
+                    machine.setMetrics(metrics);
+                    machine.run();
+                    assertEquals(expected, machine.getRetiredInstructions(), file + " " + machine.getClass());
+                }
+                CMa sliced = new CMa(instructions);
+                sliced.setMetrics(metrics);
+                CMaFuelTest.runInSlices(sliced, 3);
+                assertEquals(expected, sliced.getRetiredInstructions(), file.toString());
+                assertEquals(5 * expected, metrics.getInstructionsRetired(), file.toString());
+                assertEquals(sliced.getSP(), metrics.getCurrentSp());
+            }
+        }
+        // Forward jumps skip instructions, the fused compare-and-jumps cover two
+        CMa machine = new CMa(new CmaParser().parse(String.format(CMaVerifierTest.SWITCH, 1)));
+        CMaProfiler profiler = new CMaProfiler(new CMa(new CmaParser().parse(String.format(CMaVerifierTest.SWITCH, 1))));
+        profiler.run();
+        machine.run();
+        assertEquals(profiler.getTotalCount(), machine.getRetiredInstructions());
+        machine.reset();
+        assertEquals(0, machine.getRetiredInstructions());
+    }
+
+    @Test
+    void compiledEnginesInterpretWhileReporting() {
+        // Compiled code counts no instructions, so attaching metrics moves
+        // these engines to the interpreter instead of reporting short counts
+        CMaCodeImage image = CMaCodeImage.decode(new CmaParser().parse(CMaProfilerTest.COUNTDOWN.replace("LOADC 3", "LOADC 1000")));
+        CMa reference = new CMa(image);
+        reference.run();
+        long expected = reference.getRetiredInstructions();
+
+        for (boolean reporting : new boolean[] { false, true }) {
+            CMaJit jit = new CMaJit(image);
+            CMaRegisterMachine register = new CMaRegisterMachine(image);
+            CMaTiered tiered = new CMaTiered(image, 100);
+            for (CMa machine : new CMa[] { jit, register, tiered }) {
+                if (reporting) {
+                    machine.setMetrics(new CMaMetrics());
+                }
+                machine.run();
+                assertEquals(reference.getSP(), machine.getSP());
+            }
+            assertEquals(reporting ? expected : 0, jit.getRetiredInstructions());
+            assertEquals(reporting ? expected : 0, register.getRetiredInstructions());
+            assertEquals(reporting ? 0 : 1, tiered.getStats().compiledRuns());
+            assertEquals(reporting, tiered.getLastCompile() == null);
+            assertEquals(reporting ? expected : tiered.getLastCompile().interpretedInstructions(),
+                    tiered.getRetiredInstructions());
+        }
+    }
+
+    @Test
+    void reportsRunsPeaksAndTraps() {
+        CMaMetrics metrics = new CMaMetrics();
+        CMa machine = CMaAllocatorTest.machine(CMaAllocatorTest.GARBAGE_LOOP, 64);
+        machine.setMetrics(metrics);
+        while (machine.run(50) == ExecutionStatus.OUT_OF_FUEL) {
+            // Every slice reports
+        }
+        assertTrue(metrics.getRuns() > 10);
+        assertEquals(machine.getRetiredInstructions(), metrics.getInstructionsRetired());
+        assertEquals(2, metrics.getCurrentSp());
+        assertTrue(metrics.getPeakSp() >= 3);
+        assertEquals(machine.hp, metrics.getCurrentHp());
+        assertTrue(metrics.getPeakHp() > 50);
+        assertTrue(metrics.getMaxRunNanos() <= metrics.getRunNanos());
+        assertTrue(metrics.getInstructionsPerSecond() > 0);
+
+        for (String program : new String[] { "LOADC 1\nLOADC 0\nDIV", "ADD", "ADD", "LOADC 7\nJUMPI 0" }) {
+            CMa trapping = new CMa(new CmaParser().parse(program));
+            trapping.setMetrics(metrics);
+            if (program.startsWith("ADD")) {
+                assertThrows(RuntimeException.class, trapping::run);
+            } else {
+                assertEquals(ExecutionStatus.TRAPPED, trapping.run(100));
+            }
+        }
+        assertEquals(4, metrics.getTraps());
+        assertEquals(Map.of("ArithmeticException", 1L, "Not enough arguments on the stack to call ADD!", 2L,
+                "Illegal instruction memory access!", 1L), metrics.getTrapsByKind());
+    }
+
+    @Test
+    void publishesAnMXBean() throws JMException {
+        CMaMetrics metrics = new CMaMetrics();
+        ObjectName name = metrics.register("test \"machines\"");
+        try {
+            CMa machine = new CMa(new CmaParser().parse("LOADC 1\nLOADC 2\nADD\nADD"));
+            machine.setMetrics(metrics);
+            assertThrows(RuntimeException.class, machine::run);
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(4L, server.getAttribute(name, "InstructionsRetired"));
+            assertEquals(1L, server.getAttribute(name, "Runs"));
+            assertEquals(0, server.getAttribute(name, "CurrentSp"));
+            TabularData traps = (TabularData) server.getAttribute(name, "TrapsByKind");
+            CompositeData row = (CompositeData) traps.values().iterator().next();
+            assertEquals("Not enough arguments on the stack to call ADD!", row.get("key"));
+            assertEquals(1L, row.get("value"));
+            assertThrows(IllegalArgumentException.class, () -> new CMaMetrics().register("test \"machines\""));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -0,0 +1,232 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+public class CMaOptimizerTest {
+
+    static CMaOptimizer.Result optimize(String program) {
+        return new CMaOptimizer().optimize(new CmaParser().parse(program));
+    }
+
+    static String listing(CMaInstruction[] instructions) {
+        StringBuilder listing = new StringBuilder();
+        for (CMaInstruction instruction : instructions) {
+            listing.append(instruction.getType());
+            for (int arg : instruction.getArgs()) {
+                listing.append(' ').append(arg);
+            }
+            listing.append('\n');
+        }
+        return listing.toString();
+    }
+
+    // Runs both programs and compares the stacks they end with, or their traps
+    static void assertSameBehaviour(CMaInstruction[] original, CMaInstruction[] optimized, String name) {
+        CMa expected = new CMa(original);
+        CMa actual = new CMa(optimized);
+        RuntimeException expectedFailure = null;
+        try {
+            expected.run();
+        } catch (RuntimeException e) {
+            expectedFailure = e;
+        }
+        if (expectedFailure != null) {
+            RuntimeException failure = assertThrows(RuntimeException.class, actual::run, name);
+            assertEquals(expectedFailure.getClass(), failure.getClass(), name);
+            assertEquals(expectedFailure.getMessage(), failure.getMessage(), name);
+            return;
+        }
+        actual.run();
+        assertEquals(expected.getSP(), actual.getSP(), name + ": sp");
+        for (int i = 0; i <= expected.getSP(); i++) {
+            assertEquals(expected.getStack()[i], actual.getStack()[i], name + ": stack[" + i + "]");
+        }
+    }
+
+    @Test
+    void foldsConstants() {
+        CMaOptimizer.Result result = optimize("LOADC 2\nLOADC 3\nMUL\nLOADC 1\nADD\nNEG\nLOADC 4\nLOADC 5\nLE\nNOT");
+        assertEquals("LOADC -7\nLOADC 0\n", listing(result.getInstructions()));
+        assertEquals(8, result.getRemoved(CMaOptimizer.Pass.CONSTANT_FOLDING));
+        assertEquals(8, result.getRemovedTotal());
+
+        // Constant conditions decide the branch
+        String branch = "LOADC 5\nLOADC %d\nJUMPZ L\nLOADC 1\nADD\nL: LOADC 2\nADD";
+        assertEquals("LOADC 7\n", listing(optimize(String.format(branch, 0)).getInstructions()));
+        assertEquals("LOADC 8\n", listing(optimize(String.format(branch, 9)).getInstructions()));
+        // A division by zero still traps
+        assertEquals("LOADC 1\nLOADC 0\nDIV\n", listing(optimize("LOADC 1\nLOADC 0\nDIV").getInstructions()));
+    }
+
+    @Test
+    void simplifiesPeepholes() {
+        assertEquals("ALLOC 1\nLOADA 0\nLOADC 6\nLE\n", listing(optimize("""
+                ALLOC 1
+                LOADA 0
+                DUP
+                POP
+                NEG
+                NEG
+                LOADC 6
+                LE
+                NOT
+                NOT
+                LOADC 0
+                ADD
+                """).getInstructions()));
+        assertEquals("ALLOC 1\nLOADC 4\nSTOREA 0\n", listing(optimize("ALLOC 1\nLOADC 4\nSTOREA 0\nPOP\nLOADA 0").getInstructions()));
+        // NOT NOT turns 5 into 1, unless only JUMPZ looks at it
+        assertEquals("ALLOC 1\nLOADA 0\nNOT\nNOT\n", listing(optimize("ALLOC 1\nLOADA 0\nNOT\nNOT").getInstructions()));
+        assertEquals("ALLOC 1\nLOADA 0\nJUMPZ 5\nLOADA 0\nPOP\nALLOC 0\n",
+                listing(optimize("ALLOC 1\nLOADA 0\nNOT\nNOT\nJUMPZ L\nLOADA 0\nPOP\nL: ALLOC 0").getInstructions()));
+    }
+
+    @Test
+    void threadsJumpsAndRemovesDeadCode() {
+        CMaOptimizer.Result result = optimize("""
+                ALLOC 1
+                LOADA 0
+                JUMPZ A
+                LOADC 1
+                JUMP B
+                LOADC 2
+                A: JUMP C
+                B: JUMP C
+                LOADC 3
+                C: LOADC 4
+                """);
+        assertEquals("ALLOC 1\nLOADA 0\nJUMPZ 4\nLOADC 1\nLOADC 4\n", listing(result.getInstructions()));
+        assertEquals(2, result.getRewritten(CMaOptimizer.Pass.JUMP_THREADING));
+        assertTrue(result.getRemoved(CMaOptimizer.Pass.DEAD_CODE) > 0);
+        assertEquals(result.getRemovedTotal(), result.getRemoved(CMaOptimizer.Pass.DEAD_CODE)
+                + result.getRemoved(CMaOptimizer.Pass.PEEPHOLE));
+    }
+
+    @Test
+    void keepsJumpsToTheEnd() {
+        // Jumping to the end of the program traps, falling off it does not
+        for (String program : new String[] { "LOADC 1\nJUMP E\nE:", "LOADC 0\nJUMPZ E\nE:",
+                "LOADC 0\nLOADC 0\nJUMPZ E\nE:", "LOADC 1\nJUMP E\nLOADC 2\nE:" }) {
+            CMaInstruction[] original = new CmaParser().parse(program);
+            CMaInstruction[] optimized = optimize(program).getInstructions();
+            assertSameBehaviour(original, optimized, program);
+            CMa machine = new CMa(optimized);
+            RuntimeException e = assertThrows(RuntimeException.class, machine::run, program);
+            assertEquals("Illegal instruction memory access!", e.getMessage());
+            assertEquals(optimized.length, machine.ip, program);
+        }
+    }
+
+    @Test
+    void neverThreadsJumpsOntoTheEnd() {
+        // Threaded through JUMP 5, the JUMPZ would target the end of the program,
+        // and jumps check their target before the condition
+        String program = "LOADC 1\nJUMPZ 3\nJUMP 4\nJUMP 5\nLOADC 9";
+        CMaInstruction[] optimized = optimize(program).getInstructions();
+        assertSameBehaviour(new CmaParser().parse(program), optimized, program);
+        CMa machine = new CMa(optimized);
+        machine.run();
+        assertEquals(0, machine.getSP());
+        assertEquals(9, machine.getStack()[0]);
+    }
+
+    @Test
+    void passesCanBeSwitchedOff() {
+        String program = "LOADC 1\nLOADC 2\nADD\nJUMP L\nLOADC 3\nL: DUP\nPOP";
+        CMaOptimizer.Result none = new CMaOptimizer(EnumSet.noneOf(CMaOptimizer.Pass.class))
+                .optimize(new CmaParser().parse(program));
+        assertEquals(0, none.getRemovedTotal());
+
+        CMaOptimizer.Result folding = new CMaOptimizer(EnumSet.of(CMaOptimizer.Pass.CONSTANT_FOLDING))
+                .optimize(new CmaParser().parse(program));
+        assertEquals("LOADC 3\nJUMP 3\nLOADC 3\nDUP\nPOP\n", listing(folding.getInstructions()));
+        assertEquals(0, folding.getRemoved(CMaOptimizer.Pass.PEEPHOLE));
+        assertEquals(2, folding.getRemoved(CMaOptimizer.Pass.CONSTANT_FOLDING));
+    }
+
+    @Test
+    void movesLabelsAndJumpTargets() {
+        CmaParser parser = new CmaParser();
+        CMaInstruction[] instructions = parser.parse("LOADC 1\nLOADC 1\nADD\nL: DUP\nJUMPZ E\nLOADC 1\nSUB\nJUMP L\nE: POP");
+        CMaOptimizer.Result result = new CMaOptimizer().optimize(instructions, parser.getLabels());
+        assertEquals(Map.of("L", 1, "E", 6), result.getLabels());
+        assertEquals("LOADC 2\nDUP\nJUMPZ 6\nLOADC 1\nSUB\nJUMP 1\nPOP\n", listing(result.getInstructions()));
+        assertSameBehaviour(instructions, result.getInstructions(), "loop");
+    }
+
+    @Test
+    void keepsJumpTables() {
+        for (int i = -1; i <= 4; i++) {
+            CMaInstruction[] instructions = new CmaParser().parse(String.format(CMaVerifierTest.SWITCH, i));
+            CMaOptimizer.Result result = new CMaOptimizer().optimize(instructions);
+            assertSameBehaviour(instructions, result.getInstructions(), "switch " + i);
+            // Verified programs stay verified
+            assertEquals(CMaVerifier.verify(instructions).isVerified(),
+                    CMaVerifier.verify(result.getInstructions()).isVerified(), "switch " + i);
+        }
+        // Without bounds on the index nothing may move
+        String unbounded = "ALLOC 1\nLOADA 0\nJUMPI T\nT: JUMP A\nLOADC 1\nLOADC 2\nADD\nA: DUP\nPOP";
+        assertEquals(0, optimize(unbounded).getRemovedTotal());
+    }
+
+    @Test
+    void optimizedProgramsBehaveLikeTheOriginal() throws IOException {
+        for (String dir : new String[] { CMaCodeImageTest.BYTECODE_DIR, CMaRegisterMachineTest.CORPUS_DIR }) {
+            try (Stream<Path> files = Files.list(Path.of(dir))) {
+                for (Path file : files.filter(f -> !f.getFileName().toString().equals("fac.cma")).toList()) {
+                    CMaInstruction[] instructions = new CmaParser().parse(Files.readString(file));
+                    CMaOptimizer.Result result = new CMaOptimizer().optimize(instructions);
+                    assertSameBehaviour(instructions, result.getInstructions(), file.toString());
+                    assertTrue(result.getInstructions().length <= instructions.length);
+                }
+            }
+        }
+    }
+
+    @Test
+    void optimizesRandomProgramsSafely() {
+        Random random = new Random(7);
+        String[] simple = { "ADD", "SUB", "MUL", "DIV", "MOD", "AND", "OR", "XOR", "EQ", "LE", "GEQ", "NOT", "NEG",
+                "DUP", "POP" };
+        for (int n = 0; n < 500; n++) {
+            StringBuilder program = new StringBuilder("ALLOC 2\n");
+            int labels = 0;
+            for (int i = 0; i < 24; i++) {
+                int choice = random.nextInt(10);
+                if (choice < 3) {
+                    program.append("LOADC ").append(random.nextInt(5) - 1).append('\n');
+                } else if (choice < 6) {
+                    program.append(simple[random.nextInt(simple.length)]).append('\n');
+                } else if (choice == 6) {
+                    program.append(random.nextBoolean() ? "LOADA " : "STOREA ").append(random.nextInt(2)).append('\n');
+                } else if (choice == 7) {
+                    // Forward jumps only, so every program ends
+                    program.append(random.nextBoolean() ? "JUMP L" : "JUMPZ L").append(labels + 1 + random.nextInt(3))
+                            .append('\n');
+                } else if (choice == 8) {
+                    program.append("L").append(++labels).append(": ALLOC 0\n");
+                } else {
+                    program.append("ALLOC 0\n");
+                }
+            }
+            while (labels < 30) {
+                program.append("L").append(++labels).append(": ALLOC 0\n");
+            }
+            CMaInstruction[] instructions = new CmaParser().parse(program.toString());
+            CMaInstruction[] optimized = new CMaOptimizer().optimize(instructions).getInstructions();
+            assertSameBehaviour(instructions, optimized, program.toString());
+            if (CMaVerifier.verify(instructions).isVerified()) {
+                assertTrue(CMaVerifier.verify(optimized).isVerified(), program.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class CMaProfilerTest {
+    // Counts down from 3, leaving 0 on the stack
+    static final String COUNTDOWN = String.join("\n",
+            "LOADC 3",
+            "loop: DUP",
+            "JUMPZ end",
+            "LOADC 1",
+            "SUB",
+            "JUMP loop",
+            "end: LOADC 42",
+            "");
+
+    static CMaProfiler profile(String program) {
+        CmaParser parser = new CmaParser();
+        CMaInstruction[] instructions = parser.parse(program);
+        CMa machine = new CMa(CMaFusion.fuse(CMaCodeImage.decode(instructions, parser.getDebugInfo())));
+        CMaProfiler profiler = new CMaProfiler(machine);
+        profiler.run();
+        return profiler;
+    }
+
+    @Test
+    void countsInstructionsAndBranches() {
+        CMaProfiler profiler = profile(COUNTDOWN);
+
+        assertEquals(1, profiler.getCount(0));
+        assertEquals(4, profiler.getCount(1));
+        assertEquals(3, profiler.getCount(3)); // Fused with SUB, still counted on its own
+        assertEquals(3, profiler.getCount(4));
+        assertEquals(1, profiler.getCount(6));
+        assertEquals(1 + 4 + 4 + 3 + 3 + 3 + 1, profiler.getTotalCount());
+        assertEquals(1 + 3 + 1, profiler.getCount(CMaInstructionType.LOADC));
+        assertEquals(1, profiler.getTakenCount(2));
+        assertEquals(3, profiler.getNotTakenCount(2));
+        assertEquals(2, profiler.getMaxStackDepth());
+    }
+
+    @Test
+    void mapsToSourceLinesAndLabels() {
+        CMaProfiler profiler = profile(COUNTDOWN);
+
+        assertEquals(2, profiler.getSourceLine(1));
+        assertNull(profiler.getEnclosingLabel(0));
+        assertEquals("loop", profiler.getEnclosingLabel(3));
+        assertEquals("end", profiler.getEnclosingLabel(6));
+
+        String report = profiler.hotSpotReport(3);
+        assertTrue(report.startsWith("19 instructions executed, max stack depth 2"), report);
+        assertTrue(report.contains("DUP"), report);
+    }
+
+    @Test
+    void writesCollapsedStacks() throws IOException {
+        StringWriter out = new StringWriter();
+        profile(COUNTDOWN).writeCollapsedStacks(out, "countdown");
+
+        String[] lines = out.toString().split("\n");
+        assertEquals(7, lines.length);
+        assertEquals("countdown;0 LOADC 3 (line 1) 1", lines[0]);
+        assertEquals("countdown;loop;1 DUP (line 2) 4", lines[1]);
+        assertEquals("countdown;end;6 LOADC 42 (line 7) 1", lines[6]);
+    }
+
+    @Test
+    void profiledRunEndsLikeNormalRun() {
+        CMa expected = new CMa(new CmaParser().parse(COUNTDOWN));
+        expected.run();
+        CMa machine = new CMa(new CmaParser().parse(COUNTDOWN));
+        new CMaProfiler(machine).run();
+
+        CMaCodeImageTest.assertSameState(expected, machine, "countdown");
+    }
+}
@@ -0,0 +1,227 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+public class CMaProgramCacheTest {
+
+    @Test
+    void sharesImagesOfTheSameSource() throws IOException {
+        CMaProgramCache cache = new CMaProgramCache(8);
+        Path file = Path.of(CMaRegisterMachineTest.CORPUS_DIR, "sieve.cma");
+        CMaCodeImage image = cache.get(file);
+        assertSame(image, cache.get(file));
+        assertSame(image, cache.get(Files.readString(file)));
+        assertNotSame(image, cache.get(file, true)); // Optimized programs are cached separately
+
+        CMa machine = new CMa(image);
+        machine.run();
+        CMa expected = new CMa(new CmaParser().parse(Files.readString(file)));
+        expected.run();
+        CMaCodeImageTest.assertSameState(expected, machine, "cached");
+
+        CMaProgramCache.Stats stats = cache.getStats();
+        assertEquals(2, stats.hits());
+        assertEquals(2, stats.misses());
+        assertEquals(2, stats.entries());
+        assertEquals(0.5, stats.getHitRate());
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedProgram() {
+        CMaProgramCache cache = new CMaProgramCache(2);
+        CMaCodeImage one = cache.get("LOADC 1");
+        cache.get("LOADC 2");
+        cache.get("LOADC 1");
+        cache.get("LOADC 3"); // Evicts LOADC 2
+        assertSame(one, cache.get("LOADC 1"));
+        cache.get("LOADC 2");
+        CMaProgramCache.Stats stats = cache.getStats();
+        assertEquals(2, stats.evictions());
+        assertEquals(4, stats.misses());
+        assertEquals(2, stats.entries());
+    }
+
+    @Test
+    void keepsAssembledProgramsOnDisk() throws IOException {
+        Path directory = Files.createTempDirectory("cma-cache");
+        try {
+            String source = String.format(CMaVerifierTest.SWITCH, 2);
+            CMaCodeImage parsed = new CMaProgramCache(4, directory).get(source);
+
+            CMaProgramCache cache = new CMaProgramCache(4, directory);
+            CMaCodeImage loaded = cache.get(source);
+            assertEquals(parsed.fingerprint(), loaded.fingerprint());
+            assertEquals(parsed.getDebugInfo().getLabels(), loaded.getDebugInfo().getLabels());
+            assertEquals(1, cache.getStats().diskHits());
+            assertEquals(0, cache.getStats().misses());
+
+            // A damaged file is parsed and written again
+            Path file = directory.resolve(CMaProgramCache.key(source.getBytes(), false) + CMaBinaryFormat.FILE_EXTENSION);
+            Files.write(file, new byte[] { 1, 2, 3 });
+            CMaProgramCache repaired = new CMaProgramCache(4, directory);
+            assertEquals(parsed.fingerprint(), repaired.get(source).fingerprint());
+            assertEquals(1, repaired.getStats().diskErrors());
+            assertEquals(1, repaired.getStats().diskWrites());
+            assertEquals(parsed.fingerprint(), CMaBinaryLoader.load(file).fingerprint());
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    void keepsCompiledClassesOnDisk() throws IOException {
+        Path directory = Files.createTempDirectory("cma-cache");
+        try {
+            String source = "LOADC 27\n" + CMaLockstepTest.COLLATZ;
+            CMaProgramCache first = new CMaProgramCache(4, directory);
+            assertEquals(111, runJit(first.get(source)));
+            assertEquals(2, first.getStats().diskWrites()); // The program and its class
+            assertEquals(0, first.getStats().compiledHits());
+
+            // A new cache, as in another process, defines the stored class
+            CMaProgramCache second = new CMaProgramCache(4, directory);
+            CMaTiered tiered = new CMaTiered(second.get(source), 10);
+            tiered.run();
+            assertNotNull(tiered.getLastCompile());
+            assertEquals(111, tiered.getStack()[tiered.getSP()]);
+            assertEquals(1, second.getStats().diskHits());
+            assertEquals(0, second.getStats().misses());
+            assertEquals(1, second.getStats().compiledHits());
+            assertEquals(0, second.getStats().diskWrites());
+
+            // A damaged class is generated and written again
+            String key = CMaProgramCache.key(source.getBytes(), false);
+            assertTrue(key.endsWith(".v" + CMaProgramCache.ENGINE_VERSION));
+            Path file = directory.resolve(key + CMaCodeStore.CLASS_EXTENSION);
+            byte[] bytes = Files.readAllBytes(file);
+            bytes[bytes.length / 2] ^= 1;
+            Files.write(file, bytes);
+            CMaProgramCache repaired = new CMaProgramCache(4, directory);
+            assertEquals(111, runJit(repaired.get(source)));
+            assertEquals(1, repaired.getStats().diskErrors());
+            assertEquals(0, repaired.getStats().compiledHits());
+            assertEquals(1, repaired.getStats().diskWrites());
+            assertEquals(111, runJit(new CMaProgramCache(4, directory).get(source)));
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    void boundsTheDirectoryByEvictingTheLeastRecentlyUsedFiles() throws Exception {
+        Path directory = Files.createTempDirectory("cma-cache");
+        try {
+            new CMaProgramCache(1, directory).get("LOADC 0");
+            long size = Files.size(directory.resolve(CMaProgramCache.key("LOADC 0".getBytes(), false)
+                    + CMaBinaryFormat.FILE_EXTENSION));
+            CMaProgramCache cache = new CMaProgramCache(1, directory, size * 5 / 2); // Room for two programs
+            for (String source : new String[] { "LOADC 1", "LOADC 2", "LOADC 1", "LOADC 3" }) {
+                Thread.sleep(50); // Apart in modification time
+                cache.get(source);
+            }
+            // LOADC 1 was read from disk after LOADC 2 was written, so LOADC 2 went
+            assertEquals(1, cache.getStats().diskHits());
+            assertEquals(2, cache.getStats().diskEvictions());
+            for (int i = 0; i < 4; i++) {
+                String source = "LOADC " + i;
+                Path file = directory.resolve(CMaProgramCache.key(source.getBytes(), false)
+                        + CMaBinaryFormat.FILE_EXTENSION);
+                assertEquals(i % 2 == 1, Files.exists(file), source);
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    void sharesTheDirectoryBetweenCaches() throws Exception {
+        Path directory = Files.createTempDirectory("cma-cache");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CMaProgramCache[] caches = new CMaProgramCache[4];
+            for (int c = 0; c < caches.length; c++) {
+                caches[c] = new CMaProgramCache(2, directory);
+            }
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                CMaProgramCache cache = caches[i % caches.length];
+                String source = "LOADC " + (i % 10) + "\nLOADC 1\nADD";
+                results.add(executor.submit(() -> runJit(cache.get(source))));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(i % 10 + 1, (int) results.get(i).get());
+            }
+            for (CMaProgramCache cache : caches) {
+                assertEquals(0, cache.getStats().diskErrors());
+            }
+            try (Stream<Path> files = Files.list(directory)) {
+                List<String> names = files.map(file -> file.getFileName().toString()).toList();
+                assertEquals(21, names.size(), names.toString()); // Programs, classes and the lock file
+                assertTrue(names.contains(CMaCodeStore.LOCK_FILE));
+            }
+        } finally {
+            executor.shutdown();
+            deleteDirectory(directory);
+        }
+    }
+
+    static int runJit(CMaCodeImage image) {
+        CMaJit machine = new CMaJit(image);
+        machine.run();
+        return machine.getStack()[machine.getSP()];
+    }
+
+    static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    void parsesEachSourceOnceUnderContention() throws Exception {
+        CMaProgramCache cache = new CMaProgramCache(16);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<CMaCodeImage>> results = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                String source = "LOADC " + (i % 5) + "\nLOADC 1\nADD";
+                results.add(executor.submit(() -> cache.get(source)));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertSame(results.get(i % 5).get(), results.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(5, cache.getStats().misses());
+        assertEquals(395, cache.getStats().hits());
+    }
+
+    @Test
+    void parseErrorsAreNotCached() {
+        CMaProgramCache cache = new CMaProgramCache(4);
+        assertThrows(RuntimeException.class, () -> cache.get("JUMP X"));
+        assertThrows(RuntimeException.class, () -> cache.get("JUMP X"));
+        assertEquals(2, cache.getStats().misses());
+        assertEquals(0, cache.getStats().entries());
+    }
+}
@@ -0,0 +1,167 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+public class CMaRegisterMachineTest {
+    static final String CORPUS_DIR = "./src/jmh/resources/corpus";
+
+    static void assertSameAsStepwise(String program) {
+        CMaInstruction[] instructions = new CmaParser().parse(program);
+        CMa reference = new CMa(instructions);
+        RuntimeException expected = null;
+        try {
+            while (reference.ip < instructions.length) {
+                reference.step();
+            }
+        } catch (RuntimeException e) {
+            expected = e;
+        }
+        CMaRegisterMachine machine = new CMaRegisterMachine(instructions);
+        RuntimeException actual = null;
+        try {
+            machine.run();
+        } catch (RuntimeException e) {
+            actual = e;
+        }
+        if (expected == null) {
+            assertNull(actual, program);
+        } else {
+            assertNotNull(actual, program);
+            assertEquals(expected.getClass(), actual.getClass(), program);
+            assertEquals(expected.getMessage(), actual.getMessage(), program);
+        }
+        CMaCodeImageTest.assertSameState(reference, machine, program);
+    }
+
+    @Test
+    void translatesExpressionsIntoSingleOperations() {
+        CMaRegisterCode code = CMaRegisterTranslator.translate(new CmaParser().parse("""
+                ALLOC 3
+                LOADA 0
+                LOADA 1
+                ADD
+                STOREA 2
+                POP
+                """));
+
+        assertEquals("0: ADD r2, r0, r1\n1: EXIT sp=2\n", code.toString());
+    }
+
+    @Test
+    void fusesComparisonsIntoBranches() {
+        CMaRegisterCode code = CMaRegisterTranslator.translate(new CmaParser().parse("""
+                ALLOC 1
+                L: LOADA 0
+                LOADC 10
+                LE
+                JUMPZ E
+                LOADA 0
+                LOADC 1
+                ADD
+                STOREA 0
+                POP
+                JUMP L
+                E: LOADA 0
+                """));
+
+        assertEquals("""
+                0: JUMP_GEQ 3, r0, #10
+                1: ADD r0, r0, #1
+                2: JUMP 0
+                3: MOVE r1, r0
+                4: EXIT sp=1
+                """, code.toString());
+    }
+
+    @Test
+    void doesNotTranslateUnverifiedPrograms() {
+        // Every iteration leaves one more value on the stack
+        CMaRegisterMachine machine = new CMaRegisterMachine(new CmaParser().parse(
+                "LOADC 3\nL: DUP\nLOADC 1\nSUB\nDUP\nJUMPZ E\nJUMP L\nE: POP"));
+
+        assertNull(machine.getRegisterCode());
+        machine.run();
+        assertEquals(2, machine.getSP());
+        assertEquals(1, machine.getStack()[2]);
+    }
+
+    @Test
+    void runsLikeStepwiseExecution() throws IOException {
+        for (String dir : new String[] { CMaCodeImageTest.BYTECODE_DIR, CORPUS_DIR }) {
+            try (Stream<Path> files = Files.list(Path.of(dir))) {
+                for (Path file : files.filter(f -> !f.getFileName().toString().equals("fac.cma")).toList()) {
+                    assertSameAsStepwise(Files.readString(file));
+                }
+            }
+        }
+    }
+
+    @Test
+    void trapsLikeStepwiseExecution() {
+        String[] programs = {
+                "ALLOC 2\nLOADC 1\nLOADA 0\nDIV",
+                "LOADC 7\nLOADC 3\nADD\nLOADC 0\nMOD",
+                "LOADC 1\nLOADC 2\nLOADA 1\nLOAD",
+                "LOADC 1\nLOADC -1\nLOAD",
+                "LOADC 1\nLOADC 2\nADD\nLOADC 5\nSTORE",
+                "LOADC 1\nLOADC -3\nSTORE",
+                "LOADC 4\nDUP\nDUP\nMUL\nLOADC 0\nDIV\nPOP",
+        };
+        for (String program : programs) {
+            assertSameAsStepwise(program);
+        }
+    }
+
+    @Test
+    void keepsSlotsThatAllocExposesAgain() {
+        // The 5 is popped right away, but ALLOC makes its slot visible again
+        assertSameAsStepwise("LOADC 5\nLOADC 6\nADD\nPOP\nALLOC 1\nLOADA 0");
+        assertSameAsStepwise("LOADC 2\nLOADC 3\nSTOREA 0\nPOP\nPOP\nALLOC 2");
+    }
+
+    @Test
+    void runsRandomProgramsLikeStepwiseExecution() {
+        Random random = new Random(42);
+        String[] binary = { "ADD", "SUB", "MUL", "DIV", "MOD", "AND", "OR", "XOR", "EQ", "NEQ", "LE", "LEQ", "GR", "GEQ" };
+        for (int n = 0; n < 500; n++) {
+            StringBuilder program = new StringBuilder("ALLOC 3\n");
+            int depth = 3;
+            for (int i = 0; i < 20; i++) {
+                int choice = random.nextInt(9);
+                if (choice == 0 || depth < 2) {
+                    program.append("LOADC ").append(random.nextInt(7) - 2).append('\n');
+                    depth++;
+                } else if (choice == 1) {
+                    program.append("LOADA ").append(random.nextInt(depth)).append('\n');
+                    depth++;
+                } else if (choice == 2) {
+                    program.append(binary[random.nextInt(binary.length)]).append('\n');
+                    depth--;
+                } else if (choice == 3) {
+                    program.append("STOREA ").append(random.nextInt(depth)).append('\n');
+                } else if (choice == 4 && depth > 3) {
+                    program.append("POP\n");
+                    depth--;
+                } else if (choice == 5) {
+                    program.append("DUP\n");
+                    depth++;
+                } else if (choice == 6) {
+                    program.append(random.nextBoolean() ? "NOT\n" : "NEG\n");
+                } else if (choice == 7) {
+                    program.append("LOADC ").append(random.nextInt(depth + 1)).append("\nSTORE\n");
+                } else {
+                    program.append("LOADC ").append(random.nextInt(depth + 1)).append("\nLOAD\n");
+                    depth++;
+                }
+            }
+            assertSameAsStepwise(program.toString());
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import tum.i2.common.ExecutionStatus;
+
+public class CMaSchedulerTest {
+    // Counts up in stack[0] forever
+    static final String ENDLESS = "ALLOC 1\nL: LOADA 0\nLOADC 1\nADD\nSTOREA 0\nPOP\nJUMP L";
+
+    static CMa machine(String program) {
+        return new CMa(CMaFusion.fuse(CMaCodeImage.decode(new CmaParser().parse(program))));
+    }
+
+    static void awaitSlices(CMaScheduler scheduler, long slices) throws InterruptedException {
+        while (scheduler.getStats().slices() < slices) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    void runsMachinesLikeRun() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(Path.of(CMaCodeImageTest.BYTECODE_DIR))) {
+            files = list.filter(f -> !f.getFileName().toString().equals("fac.cma")).toList();
+        }
+        try (CMaScheduler scheduler = new CMaScheduler(4, 5)) {
+            List<CMaScheduler.Task> tasks = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                for (Path file : files) {
+                    tasks.add(scheduler.submit(new CMa(new CmaParser().parse(Files.readString(file)))));
+                }
+            }
+            for (int i = 0; i < tasks.size(); i++) {
+                CMaScheduler.Task task = tasks.get(i);
+                Path file = files.get(i % files.size());
+                CMa expected = new CMa(new CmaParser().parse(Files.readString(file)));
+                RuntimeException failure = null;
+                try {
+                    expected.run();
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+                assertEquals(failure == null ? ExecutionStatus.FINISHED : ExecutionStatus.TRAPPED, task.join());
+                if (failure != null) {
+                    assertEquals(failure.getMessage(), task.getFailure().getMessage(), file.toString());
+                }
+                CMaCodeImageTest.assertSameState(expected, (CMa) task.getMachine(), file.toString());
+            }
+            CMaScheduler.Stats stats = scheduler.getStats();
+            assertEquals(tasks.size(), stats.submitted());
+            assertEquals(tasks.size(), stats.finished() + stats.trapped());
+            assertEquals(0, stats.liveTasks());
+            assertEquals(0, stats.queueDepth());
+            assertTrue(stats.slices() >= tasks.size());
+        }
+    }
+
+    @Test
+    void loopsDoNotStarveOtherMachines() {
+        try (CMaScheduler scheduler = new CMaScheduler(1, 1000)) {
+            CMaScheduler.Task endless = scheduler.submit(machine(ENDLESS));
+            List<CMaScheduler.Task> others = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                others.add(scheduler.submit(machine(CMaProfilerTest.COUNTDOWN)));
+            }
+            for (CMaScheduler.Task task : others) {
+                assertEquals(ExecutionStatus.FINISHED, task.join());
+                assertEquals(42, ((CMa) task.getMachine()).getStack()[1]);
+            }
+            assertFalse(endless.getCompletion().isDone());
+
+            endless.cancel();
+            assertEquals(ExecutionStatus.OUT_OF_FUEL, endless.join());
+            assertEquals(1, scheduler.getStats().cancelled());
+            // The machine is only suspended and can go on by itself
+            CMa machine = (CMa) endless.getMachine();
+            int count = machine.getStack()[0];
+            assertEquals(ExecutionStatus.OUT_OF_FUEL, machine.run(1000));
+            assertTrue(machine.getStack()[0] > count);
+        }
+    }
+
+    @Test
+    void prioritiesScaleTheShare() throws InterruptedException {
+        try (CMaScheduler scheduler = new CMaScheduler(1, 1000)) {
+            CMaScheduler.Tenant tenant = new CMaScheduler.Tenant("t", 1);
+            CMaScheduler.Task low = scheduler.submit(machine(ENDLESS), tenant, 1);
+            CMaScheduler.Task high = scheduler.submit(machine(ENDLESS), tenant, 4);
+            while (low.getSlices() < 50 || high.getSlices() < 50) {
+                Thread.sleep(1);
+            }
+            low.cancel();
+            high.cancel();
+            low.join();
+            high.join();
+
+            // Each turn of the high priority task counts four times as far.
+            // Compared cross-multiplied, without dividing by the slice counts.
+            long highPerSlice = (long) ((CMa) high.getMachine()).getStack()[0] * low.getSlices();
+            long lowPerSlice = (long) ((CMa) low.getMachine()).getStack()[0] * high.getSlices();
+            assertTrue(highPerSlice > 3 * lowPerSlice && highPerSlice < 5 * lowPerSlice,
+                    highPerSlice + " vs " + lowPerSlice);
+        }
+    }
+
+    @Test
+    void tenantsStayWithinTheirQuota() throws InterruptedException {
+        try (CMaScheduler scheduler = new CMaScheduler(4, 1000)) {
+            CMaScheduler.Tenant limited = new CMaScheduler.Tenant("limited", 1);
+            CMaScheduler.Tenant other = new CMaScheduler.Tenant("other", 3);
+            List<CMaScheduler.Task> tasks = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                tasks.add(scheduler.submit(machine(ENDLESS), limited, 1));
+                tasks.add(scheduler.submit(machine(ENDLESS), other, 1));
+            }
+            // Once all are queued, round robin within a tenant gives each of its tasks a turn every 8 slices
+            long limitedStart = limited.getSlices();
+            long otherStart = other.getSlices();
+            while (limited.getSlices() < limitedStart + 100 || other.getSlices() < otherStart + 100) {
+                Thread.sleep(1);
+            }
+            for (CMaScheduler.Task task : tasks) {
+                task.cancel();
+            }
+            for (CMaScheduler.Task task : tasks) {
+                assertEquals(ExecutionStatus.OUT_OF_FUEL, task.join());
+                // Every task got its turns
+                assertTrue(task.getSlices() > 0);
+            }
+            assertEquals(1, limited.getPeakRunning());
+            assertTrue(other.getPeakRunning() <= 3);
+            assertEquals(0, limited.getRunning());
+            assertEquals(0, limited.getWaiting());
+        }
+    }
+
+    @Test
+    void closeSuspendsRunningTasks() throws InterruptedException {
+        CMaScheduler scheduler = new CMaScheduler(2, 1000);
+        CMaScheduler.Tenant tenant = new CMaScheduler.Tenant("t", 1);
+        List<CMaScheduler.Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            tasks.add(scheduler.submit(machine(ENDLESS), tenant, 1));
+        }
+        awaitSlices(scheduler, 10);
+        scheduler.close();
+
+        for (CMaScheduler.Task task : tasks) {
+            assertEquals(ExecutionStatus.OUT_OF_FUEL, task.join());
+        }
+        assertThrows(java.util.concurrent.RejectedExecutionException.class,
+                () -> scheduler.submit(machine(ENDLESS)));
+    }
+}
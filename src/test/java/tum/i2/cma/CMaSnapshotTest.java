@@ -0,0 +1,177 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import tum.i2.common.ExecutionStatus;
+
+public class CMaSnapshotTest {
+
+    static CMa machine(String program) {
+        return new CMa(CMaFusion.fuse(CMaCodeImage.decode(new CmaParser().parse(program))));
+    }
+
+    @Test
+    void restoredMachinesContinueLikeTheOriginal() throws IOException {
+        for (String dir : new String[] { CMaCodeImageTest.BYTECODE_DIR, CMaRegisterMachineTest.CORPUS_DIR }) {
+            try (Stream<Path> files = Files.list(Path.of(dir))) {
+                for (Path file : files.filter(f -> !f.getFileName().toString().equals("fac.cma")).toList()) {
+                    String program = Files.readString(file);
+                    CMa expected = machine(program);
+                    try {
+                        expected.run();
+                    } catch (RuntimeException e) {
+                        continue; // Traps are covered by the fuel tests
+                    }
+                    CMa original = machine(program);
+                    if (original.run(5) != ExecutionStatus.OUT_OF_FUEL) {
+                        continue;
+                    }
+                    CMaSnapshot snapshot = CMaSnapshot.fromBytes(original.snapshot().toBytes(), file.toString());
+                    // Restores into a used machine as well as into a fresh one
+                    for (CMa machine : new CMa[] { original, machine(program), machine(program) }) {
+                        machine.restore(snapshot);
+                        machine.run();
+                        CMaCodeImageTest.assertSameState(expected, machine, file.toString());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void storesTheLiveHeapCompactly() throws IOException {
+        CMa machine = machine("LOADC 1");
+        CMaMemory heap = machine.getHeap();
+        heap.store(0, 7);
+        heap.store(2, 8);
+        heap.store(5000, -1);
+        heap.store(9000, 9); // Above hp, not live
+        machine.hp = 6000;
+        machine.run();
+
+        CMaSnapshot snapshot = machine.snapshot();
+        // Header, one stack slot, two segments of 3 and 1 cells, checksum
+        assertEquals(CMaSnapshot.HEADER_SIZE + 8 + 4 + 4 * (2 + 3) + 4 * (2 + 1) + 4, snapshot.getSizeInBytes());
+
+        Path file = Files.createTempFile("cma", ".cmas");
+        try {
+            snapshot.write(file);
+            CMa restored = machine("LOADC 1");
+            restored.getHeap().store(1, 99);
+            restored.restore(CMaSnapshot.read(file));
+            assertEquals(7, restored.getHeap().load(0));
+            assertEquals(0, restored.getHeap().load(1));
+            assertEquals(8, restored.getHeap().load(2));
+            assertEquals(-1, restored.getHeap().load(5000));
+            assertEquals(0, restored.getHeap().load(9000));
+            assertEquals(6000, restored.hp);
+            assertEquals(1, restored.getStack()[0]);
+            assertEquals(1, restored.ip);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void rejectsBrokenAndForeignSnapshots() throws IOException {
+        CMa machine = machine(String.format(CMaVerifierTest.SWITCH, 1));
+        byte[] bytes = machine.snapshot().toBytes();
+
+        bytes[13] ^= 1;
+        IOException e = assertThrows(IOException.class, () -> CMaSnapshot.fromBytes(bytes, "s"));
+        assertEquals("Checksum mismatch in s", e.getMessage());
+        assertThrows(IOException.class, () -> CMaSnapshot.fromBytes(new byte[8], "s"));
+
+        CMaSnapshot snapshot = machine.snapshot();
+        assertThrows(IllegalArgumentException.class, () -> machine("LOADC 2").restore(snapshot));
+
+        CMa trapped = machine("LOADC 1\nLOADC 0\nDIV");
+        assertEquals(ExecutionStatus.TRAPPED, trapped.run(10));
+        assertThrows(IllegalStateException.class, trapped::snapshot);
+    }
+
+    @Test
+    void keepsSlotsThatAllocExposesAgain() throws IOException {
+        String program = "LOADC 1\nLOADC 2\nADD\nPOP\nALLOC 2";
+        CMa expected = machine(program);
+        expected.run();
+        assertEquals(2, expected.getStack()[1]);
+
+        CMa original = machine(program);
+        for (int i = 0; i < 4; i++) {
+            original.step(); // Up to the ALLOC, with 2 left above sp
+        }
+        CMaSnapshot snapshot = CMaSnapshot.fromBytes(original.snapshot().toBytes(), "exposed");
+        for (CMa machine : new CMa[] { machine(program), original.fork() }) {
+            machine.restore(snapshot);
+            machine.run();
+            CMaCodeImageTest.assertSameState(expected, machine, "exposed");
+        }
+    }
+
+    @Test
+    void smallerStacksLeaveTheVerifiedLoop() {
+        // Counts down from 3 with at most 2 values on the stack, then needs 4
+        String program = """
+                LOADC 3
+                L: LOADC 1
+                SUB
+                DUP
+                JUMPZ E
+                JUMP L
+                E: LOADC 1
+                LOADC 2
+                LOADC 3
+                ADD
+                ADD
+                """;
+        CMaCodeImage image = CMaCodeImage.decode(new CmaParser().parse(program));
+        CMa original = new CMa(image);
+        assertEquals(ExecutionStatus.OUT_OF_FUEL, original.run(1));
+        assertTrue(original.suspendedVerified);
+
+        CMa small = new CMa(image, 2, new CMaPagedMemory(16));
+        RuntimeException expected = assertThrows(RuntimeException.class, small::run);
+        CMa restored = new CMa(image, 2, new CMaPagedMemory(16));
+        restored.restore(original.snapshot());
+        assertFalse(restored.suspendedVerified);
+        RuntimeException actual = assertThrows(RuntimeException.class, restored::run);
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getMessage(), actual.getMessage());
+        assertEquals(small.ip, restored.ip);
+        assertEquals(small.getSP(), restored.getSP());
+    }
+
+    @Test
+    void forksContinueIndependently() throws IOException {
+        String program = Files.readString(Path.of(CMaRegisterMachineTest.CORPUS_DIR, "sieve.cma"));
+        CMa expected = machine(program);
+        expected.run();
+
+        CMa[] machines = { machine(program), new CMaJit(CMaCodeImage.decode(new CmaParser().parse(program))),
+                new CMaRegisterMachine(CMaCodeImage.decode(new CmaParser().parse(program))) };
+        for (CMa original : machines) {
+            original.getHeap().store(3, 42);
+            assertEquals(ExecutionStatus.OUT_OF_FUEL, original.run(1000));
+            CMa fork = original.fork();
+            assertEquals(original.getClass(), fork.getClass());
+
+            fork.getHeap().store(3, 43);
+            fork.run();
+            CMaCodeImageTest.assertSameState(expected, fork, "fork");
+            assertEquals(42, original.getHeap().load(3));
+
+            CMa second = original.fork();
+            original.run();
+            second.run();
+            CMaCodeImageTest.assertSameState(expected, original, "original");
+            CMaCodeImageTest.assertSameState(expected, second, "second fork");
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import tum.i2.common.ExecutionStatus;
+
+public class CMaTieredTest {
+
+    // Counts slot 0 down from 1000, then divides by it
+    static final String COUNTDOWN_THEN_DIVIDE = """
+            LOADC 1000
+            L: LOADA 0
+            JUMPZ E
+            LOADA 0
+            LOADC 1
+            SUB
+            STOREA 0
+            POP
+            JUMP L
+            E: LOADC 7
+            LOADA 0
+            DIV
+            """;
+
+    static void assertSameAsInterpreter(CMaCodeImage image, long threshold, String name) {
+        CMa interpreted = new CMa(image);
+        CMaTiered tiered = new CMaTiered(image, threshold);
+        RuntimeException expected = null;
+        RuntimeException actual = null;
+        try {
+            interpreted.run();
+        } catch (RuntimeException e) {
+            expected = e;
+        }
+        try {
+            tiered.run();
+        } catch (RuntimeException e) {
+            actual = e;
+        }
+        if (expected == null) {
+            assertNull(actual, name);
+        } else {
+            assertNotNull(actual, name);
+            assertEquals(expected.getClass(), actual.getClass(), name);
+            assertEquals(expected.getMessage(), actual.getMessage(), name);
+        }
+        CMaCodeImageTest.assertSameState(interpreted, tiered, name + " at threshold " + threshold);
+    }
+
+    @Test
+    void switchesMidRunAtAnyThreshold() throws IOException {
+        for (String dir : new String[] { CMaCodeImageTest.BYTECODE_DIR, CMaRegisterMachineTest.CORPUS_DIR }) {
+            try (Stream<Path> files = Files.list(Path.of(dir))) {
+                for (Path file : files.filter(f -> f.toString().endsWith(".cma")).toList()) {
+                    CMaCodeImage image;
+                    try {
+                        image = CMaFusion.fuse(new CmaStreamingParser().parse(Files.readString(file)));
+                    } catch (RuntimeException e) {
+                        continue;
+                    }
+                    for (long threshold : new long[] { 1, 7, 1000, CMaTiered.DEFAULT_THRESHOLD }) {
+                        assertSameAsInterpreter(image, threshold, file.toString());
+                    }
+                }
+            }
+        }
+        CMaCodeImage image = CMaFusion.fuse(new CmaStreamingParser().parse(COUNTDOWN_THEN_DIVIDE));
+        assertSameAsInterpreter(image, 100, "countdown");
+    }
+
+    @Test
+    void compilesOnlyHotLoops() {
+        CMaCodeImage image = CMaFusion.fuse(new CmaStreamingParser().parse(COUNTDOWN_THEN_DIVIDE));
+        CMaTiered cold = new CMaTiered(image);
+        ArithmeticException e = assertThrows(ArithmeticException.class, cold::run);
+        assertEquals("Division by zero is not allowed!", e.getMessage());
+        assertNull(cold.getLastCompile());
+        assertEquals(new CMaTiered.Stats(1, 0, 0), cold.getStats());
+
+        CMaTiered hot = new CMaTiered(image, 100);
+        assertThrows(ArithmeticException.class, hot::run);
+        CMaTiered.CompileEvent event = hot.getLastCompile();
+        assertNotNull(event);
+        assertEquals(1, event.loopHeader()); // L
+        assertTrue(event.interpretedInstructions() >= 100, event.toString());
+        assertTrue(event.interpretedInstructions() < 200, event.toString());
+        assertEquals(1, hot.getStats().compiledRuns());
+        assertEquals(12, hot.ip); // Past the DIV, like the interpreter
+
+        // Reset machines interpret from the start again and share the compiled code
+        assertSame(image.compiled(), image.compiled());
+        hot.reset();
+        assertNull(hot.getLastCompile());
+        assertThrows(ArithmeticException.class, hot::run);
+        assertEquals(new CMaTiered.Stats(2, 2, hot.getStats().compileNanos()), hot.getStats());
+        assertThrows(IllegalArgumentException.class, () -> new CMaTiered(image, 0));
+    }
+
+    @Test
+    void interpretsWhatCannotBeCompiled() throws IOException {
+        String fib = Files.readString(Path.of(CMaRegisterMachineTest.CORPUS_DIR, "fib.cma"));
+        CMaTiered machine = new CMaTiered(CMaFusion.fuse(new CmaStreamingParser().parse(fib)), 10);
+        machine.run();
+        assertEquals(46368, machine.getStack()[0]);
+        assertNull(machine.getLastCompile());
+
+        // Bounded runs keep to their fuel
+        CMaCodeImage image = CMaFusion.fuse(new CmaStreamingParser().parse(COUNTDOWN_THEN_DIVIDE));
+        CMaTiered sliced = new CMaTiered(image, 1);
+        assertEquals(ExecutionStatus.TRAPPED, CMaFuelTest.runInSlices(sliced, 50));
+        assertNull(sliced.getLastCompile());
+        assertEquals(1, sliced.fork().getThreshold());
+    }
+}
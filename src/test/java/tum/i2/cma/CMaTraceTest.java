@@ -0,0 +1,133 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+
+public class CMaTraceTest {
+
+    static final String DIVISION = """
+            LOADC 6
+            LOADC 3
+            L: DUP
+            JUMPZ E
+            LOADC 1
+            SUB
+            JUMP L
+            E: DIV
+            """;
+
+    @Test
+    void attachesTheTraceToTraps() {
+        CMa machine = new CMa(CMaFusion.fuse(new CmaStreamingParser().parse(DIVISION)));
+        machine.enableTracing(8);
+        ArithmeticException e = assertThrows(ArithmeticException.class, machine::run);
+        assertEquals("Division by zero is not allowed!", e.getMessage());
+
+        CMaTrace trace = CMaTrace.of(e);
+        assertNotNull(trace);
+        assertNotSame(machine.getTrace(), trace);
+        assertEquals(8, trace.size());
+        assertEquals(20, trace.getRecordedCount());
+        int last = trace.size() - 1;
+        assertEquals(7, trace.getIp(last));
+        assertEquals(CMaInstructionType.DIV, trace.getType(last));
+        assertEquals(1, trace.getSp(last));
+        assertEquals(0, trace.getTop(last));
+        assertEquals(CMaInstructionType.JUMPZ, trace.getType(last - 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> trace.getIp(8));
+
+        // Untraced machines trap the same way and attach nothing
+        CMa untraced = new CMa(CMaFusion.fuse(new CmaStreamingParser().parse(DIVISION)));
+        ArithmeticException plain = assertThrows(ArithmeticException.class, untraced::run);
+        assertNull(CMaTrace.of(plain));
+        CMaCodeImageTest.assertSameState(untraced, machine, "traced");
+    }
+
+    @Test
+    void dumpsInstructionsWithTheirSourceLines() {
+        CMa machine = new CMa(new CmaStreamingParser().parse(DIVISION));
+        machine.enableTracing(4);
+        RuntimeException e = assertThrows(RuntimeException.class, machine::run);
+        CMaTrace.TraceException attached = (CMaTrace.TraceException) e.getSuppressed()[0];
+        String dump = attached.dump(DIVISION);
+        String[] lines = dump.split("\\R");
+        assertEquals(5, lines.length);
+        assertTrue(lines[3].contains("JUMPZ 7"), lines[3]);
+        assertTrue(lines[3].endsWith("4: JUMPZ E"), lines[3]);
+        assertTrue(lines[4].endsWith("8: E: DIV"), lines[4]);
+        assertTrue(attached.getMessage().startsWith("Last 4 instructions before the trap:"));
+    }
+
+    @Test
+    void serializedTrapsKeepTheDump() throws IOException, ClassNotFoundException {
+        CMa machine = new CMa(new CmaStreamingParser().parse(DIVISION));
+        machine.enableTracing(4);
+        RuntimeException e = assertThrows(RuntimeException.class, machine::run);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(e);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            Throwable copy = (Throwable) in.readObject();
+            assertEquals(e.getMessage(), copy.getMessage());
+            assertEquals(e.getSuppressed()[0].getMessage(), copy.getSuppressed()[0].getMessage());
+            assertNull(CMaTrace.of(copy));
+        }
+    }
+
+    @Test
+    void stackErrorsCarryTheTraceToo() {
+        CMa machine = new CMa(new CmaParser().parse("LOADC 1\nLOADA 5000000"));
+        machine.enableTracing(16);
+        RuntimeException e = assertThrows(RuntimeException.class, machine::run);
+        CMaTrace trace = CMaTrace.of(e);
+        assertEquals(2, trace.size());
+        assertEquals(CMaInstructionType.LOADA, trace.getType(1));
+        assertEquals(1, trace.getTop(1));
+    }
+
+    @Test
+    void tracedRunsMatchUntracedOnes() throws IOException {
+        for (File file : new File(CMaRegisterMachineTest.CORPUS_DIR).listFiles()) {
+            CMaCodeImage image = CMaFusion.fuse(new CmaStreamingParser().parse(Files.readString(file.toPath())));
+            CMa expected = new CMa(image);
+            expected.run();
+            for (CMa machine : new CMa[] { new CMa(image), new CMaJit(image), new CMaRegisterMachine(image),
+                    new CMaBlockMachine(image) }) {
+                machine.enableTracing(64);
+                machine.run();
+                CMaCodeImageTest.assertSameState(expected, machine, file.getName());
+                assertEquals(64, machine.getTrace().size());
+                assertEquals(image.length - 1, machine.getTrace().getIp(63), file.getName());
+            }
+        }
+    }
+
+    @Test
+    void boundedRunsCountEveryInstruction() {
+        CMaCodeImage image = CMaFusion.fuse(CMaCodeImage.decode(new CmaParser().parse(CMaAllocatorTest.GARBAGE_LOOP)));
+        CMa machine = new CMa(image);
+        machine.enableTracing(1000);
+        machine.run(25);
+        assertEquals(25, machine.getTrace().getRecordedCount());
+        CMa fork = machine.fork();
+        machine.run();
+        fork.run();
+        CMaCodeImageTest.assertSameState(machine, fork, "fork");
+        assertEquals(machine.getTrace().getRecordedCount(), fork.getTrace().getRecordedCount());
+
+        machine.reset();
+        assertEquals(0, machine.getTrace().size());
+        machine.disableTracing();
+        assertNull(machine.getTrace());
+        assertThrows(IllegalArgumentException.class, () -> machine.enableTracing(0));
+    }
+}
@@ -0,0 +1,197 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class CMaVerifierTest {
+
+    // A JUMPI guarded by the usual range checks on its index
+    static final String SWITCH = """
+            LOADC %d
+            DUP
+            LOADC 0
+            GEQ
+            JUMPZ DEFAULT
+            DUP
+            LOADC 3
+            LE
+            JUMPZ DEFAULT
+            JUMPI TABLE
+            TABLE: JUMP A
+            JUMP B
+            JUMP C
+            A: LOADC 10
+            JUMP END
+            B: LOADC 20
+            JUMP END
+            C: LOADC 30
+            JUMP END
+            DEFAULT: POP
+            LOADC -1
+            END: DUP
+            POP
+            """;
+
+    static CMaVerifier.Result verify(String program) {
+        return CMaVerifier.verify(new CmaParser().parse(program));
+    }
+
+    static void assertRejected(String program, String problem) {
+        CMaVerifier.Result result = verify(program);
+        assertFalse(result.isVerified(), program);
+        assertTrue(result.getProblems().get(0).contains(problem), result.getProblems().toString());
+    }
+
+    @Test
+    void computesStackDepths() {
+        CMaVerifier.Result result = verify("""
+                ALLOC 2
+                L: LOADA 0
+                LOADC 3
+                LE
+                JUMPZ E
+                LOADA 0
+                LOADC 1
+                ADD
+                STOREA 0
+                POP
+                JUMP L
+                E: LOADC 1
+                """);
+
+        assertTrue(result.isVerified(), result.getProblems().toString());
+        assertEquals(0, result.getStackDepth(0));
+        assertEquals(2, result.getStackDepth(1));
+        assertEquals(4, result.getStackDepth(3));
+        assertEquals(2, result.getStackDepth(11));
+        assertEquals(4, result.getMaxStackDepth());
+    }
+
+    @Test
+    void skipsUnreachableCode() {
+        CMaVerifier.Result result = verify("JUMP 2\nADD\nLOADC 1");
+
+        assertTrue(result.isVerified(), result.getProblems().toString());
+        assertEquals(-1, result.getStackDepth(1));
+    }
+
+    @Test
+    void rejectsUnsafePrograms() {
+        assertRejected("LOADC 1\nADD", "ADD at instruction 1 needs 2 values");
+        assertRejected("POP", "POP at instruction 0 needs 1 values");
+        assertRejected("LOADC 0\nJUMPZ 2", "outside the program");
+        assertRejected("JUMP -1", "outside the program");
+        assertRejected("ALLOC 1\nLOADA 1", "LOADA 1 at instruction 1");
+        assertRejected("ALLOC 1\nSTOREA -1", "STOREA -1 at instruction 1");
+        assertRejected("ALLOC -1", "ALLOC -1 at instruction 0");
+        // The stack grows with every iteration
+        assertRejected("L: LOADC 1\nJUMP L", "reached with stack depths");
+    }
+
+    @Test
+    void flagsUnboundedJumpi() {
+        CMaVerifier.Result result = verify("ALLOC 1\nLOADA 0\nJUMPI 3\nLOADC 1");
+
+        assertFalse(result.isVerified());
+        assertEquals(List.of(2), result.getUnboundedJumpiSites());
+    }
+
+    @Test
+    void boundsRangeCheckedJumpi() {
+        // An index the verifier knows nothing about before the checks
+        String unknownIndex = String.format(SWITCH, 7).replace("LOADC 7\n", "LOADC 7\nLOADC 0\nDIV\n");
+        CMaVerifier.Result result = verify(unknownIndex);
+
+        assertTrue(result.isVerified(), result.getProblems().toString());
+        assertTrue(result.getUnboundedJumpiSites().isEmpty());
+        for (int i = 12; i <= 14; i++) {
+            assertEquals(0, result.getStackDepth(i));
+        }
+        // A constant index only reaches its own case
+        result = verify(String.format(SWITCH, 2));
+        assertEquals(-1, result.getStackDepth(10));
+        assertEquals(0, result.getStackDepth(12));
+
+        // Without the upper bound check the index is unbounded
+        assertRejected(unknownIndex.replace("\nLE\n", "\nGEQ\nNOT\n"), "JUMPI at instruction 12");
+    }
+
+    @Test
+    void boundsJumpiOnRemainder() {
+        CMaVerifier.Result result = verify("""
+                LOADC 5
+                LOADC 3
+                MOD
+                JUMPI 4
+                JUMP 7
+                JUMP 7
+                JUMP 7
+                LOADC 1
+                """);
+
+        assertTrue(result.isVerified(), result.getProblems().toString());
+    }
+
+    @Test
+    void verifiedRunsMatchStepwiseExecution() throws IOException {
+        int verified = 0;
+        for (String name : new String[] { "allocTestSimple.cma", "jumpiTestSimple.cma", "loadTestSimple.cma",
+                "storeTestSimple.cma", "andTestSimple.cma", "divTestSimple.cma" }) {
+            CMaInstruction[] instructions = new CmaParser().parse(
+                    Files.readString(Path.of(CMaCodeImageTest.BYTECODE_DIR, name)));
+            CMa machine = new CMa(instructions);
+            assertTrue(machine.canRunVerified(), name);
+            machine.run();
+            CMaCodeImageTest.assertSameState(CMaCodeImageTest.runStepwise(instructions), machine, name);
+            verified++;
+        }
+        assertEquals(6, verified);
+
+        for (int index = -1; index <= 3; index++) {
+            String program = String.format(SWITCH, index);
+            CMaInstruction[] instructions = new CmaParser().parse(program);
+            CMa machine = new CMa(instructions);
+            machine.run();
+            CMaCodeImageTest.assertSameState(CMaCodeImageTest.runStepwise(instructions), machine, program);
+        }
+    }
+
+    @Test
+    void verifiedTrapsMatchStepwiseExecution() {
+        String[] programs = {
+                "LOADC 1\nLOADC 0\nDIV",
+                "LOADC 1\nLOADC 0\nMOD",
+                "LOADC 5\nLOAD",
+                "LOADC -1\nLOAD",
+                "LOADC 1\nLOADC 4\nSTORE",
+                "LOADC 1\nLOADC -1\nSTORE",
+        };
+        for (String program : programs) {
+            assertTrue(verify(program).isVerified(), program);
+            CMaCodeImageTest.assertSameTrap(program);
+        }
+    }
+
+    @Test
+    void fallsBackToCheckedExecution() {
+        // Verifies, but needs more stack than the machine has
+        CMaCodeImage image = CMaCodeImage.decode(new CmaParser().parse("ALLOC 9\nLOADC 1"));
+        CMa small = new CMa(image, 8, new CMaPagedMemory(8));
+        assertFalse(small.canRunVerified());
+        RuntimeException e = assertThrows(RuntimeException.class, small::run);
+        assertEquals("Memory overflow!", e.getMessage());
+
+        // Does not verify, runs through the checked loop
+        CMa machine = new CMa(new CmaParser().parse("LOADC 0\nLOADC 1\nJUMPZ 0"));
+        assertFalse(machine.canRunVerified());
+        machine.run();
+        assertEquals(0, machine.getSP());
+
+        CMaCodeImageTest.assertSameTrap("LOADC 1\nJUMPI 5");
+    }
+}
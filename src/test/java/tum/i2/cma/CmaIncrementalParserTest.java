@@ -0,0 +1,152 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import tum.i2.common.ExecutionStatus;
+
+// CmaIncrementalParser has to produce what CmaStreamingParser produces for the
+// whole text, after a parse and after every edit.
+public class CmaIncrementalParserTest {
+
+    // Sums 1 per iteration into slot 0 while slot 1 counts down from 10
+    static final String COUNTER = """
+            LOADC 0
+            LOADC 10
+            L: LOADA 1
+            JUMPZ E
+            LOADA 0
+            LOADC 1
+            ADD
+            STOREA 0
+            POP
+            LOADA 1
+            LOADC 1
+            SUB
+            STOREA 1
+            POP
+            JUMP L
+            E: LOADA 0
+            """;
+
+    static void assertSameResult(String program, CmaIncrementalParser parser, Runnable parse) {
+        CmaStreamingParser streamingParser = new CmaStreamingParser();
+        CMaCodeImage expected;
+        try {
+            expected = streamingParser.parse(program);
+        } catch (RuntimeException e) {
+            RuntimeException actualError = assertThrows(RuntimeException.class, parse::run, program);
+            assertEquals(e.getMessage(), actualError.getMessage(), program);
+            return;
+        }
+        parse.run();
+        CMaCodeImage actual = parser.getImage();
+        assertArrayEquals(expected.code, actual.code, program);
+        assertEquals(streamingParser.getLabels(), parser.getLabels(), program);
+        for (int i = 0; i < expected.getLength(); i++) {
+            assertEquals(expected.getDebugInfo().getSourceLine(i), actual.getDebugInfo().getSourceLine(i), program);
+        }
+    }
+
+    static void assertSameResult(String program) {
+        CmaIncrementalParser parser = new CmaIncrementalParser();
+        assertSameResult(program, parser, () -> parser.parse(program));
+    }
+
+    @Test
+    void parsesLikeTheStreamingParser() throws IOException {
+        try (Stream<Path> files = Files.list(Path.of(CMaCodeImageTest.BYTECODE_DIR))) {
+            for (Path file : files.filter(f -> f.toString().endsWith(".cma")).toList()) {
+                assertSameResult(Files.readString(file));
+            }
+        }
+        for (String program : new String[] { "", "\n\n  \n", "loadc 3\nLoadC -4\nloadc +5\nadd\nadd",
+                "  start:   LOADC 1 // comment\nJUMP start   \n", "a: b: LOADC 1\n", "A1:\n\nA2:\nJUMPZ A1\nJUMP A2\n",
+                "LOADC 1\nFOO\n", "LOADC x1\n", "LOADC 1x\n", "LOADC 99999999999\n", "ADD 1\n", "LOADC\n",
+                "LOADC  1\n", "JUMP nowhere\n", "L: ADD\nL: SUB\n", ": ADD\n", "ADD / comment\n", "L: 5\n",
+                "JUMP nowhere\nFOO\n", "FOO\nJUMP nowhere\n", "ADD x\n", "FOO x\n", "LOADC x 1y\n",
+                "JUMP nowhere\nL: ADD\nL: ADD\n", "FOO\nL: ADD\nL: ADD\nADD / comment\n" }) {
+            assertSameResult(program);
+        }
+    }
+
+    @Test
+    void editsParseLikeTheWholeText() throws IOException {
+        String source = Files.readString(Path.of(CMaRegisterMachineTest.CORPUS_DIR, "switch_table.cma"));
+        List<String> text = new ArrayList<>(Arrays.asList(source.split("\n", -1)));
+        String[] pieces = { "ADD", "LOADC 7", "POP", "DUP", "", "// note", "X: LOADC 1", "JUMP X", "JUMPZ done",
+                "FOO", "LOADC q" };
+        CmaIncrementalParser parser = new CmaIncrementalParser();
+        parser.parse(source);
+        Random random = new Random(11);
+        for (int i = 0; i < 300; i++) {
+            int first = 1 + random.nextInt(text.size() + 1);
+            int removed = random.nextInt(Math.min(3, text.size() + 2 - first));
+            String[] inserted = new String[random.nextInt(3)];
+            for (int k = 0; k < inserted.length; k++) {
+                inserted[k] = pieces[random.nextInt(pieces.length)];
+            }
+            text.subList(first - 1, first - 1 + removed).clear();
+            text.addAll(first - 1, Arrays.asList(inserted));
+            assertSameResult(String.join("\n", text), parser, () -> parser.edit(first, removed, inserted));
+            assertEquals(text.size(), parser.getLineCount());
+        }
+    }
+
+    @Test
+    void relocatesAcrossFailedEdits() {
+        CmaIncrementalParser parser = new CmaIncrementalParser();
+        CMaCodeImage original = parser.parse(COUNTER);
+        assertThrows(RuntimeException.class, () -> parser.edit(1, 0, "// counts", "LOADC 3", "FOO"));
+        assertSame(original, parser.getImage());
+        CmaIncrementalParser.Edit edit = parser.edit(3, 1, "POP");
+        assertEquals(original.getLength() + 2, edit.getImage().getLength());
+        // Both edits count: the program moved down by two instructions
+        assertEquals(2, edit.relocate(0));
+        assertEquals(4, edit.relocate(2));
+        assertEquals(5, edit.relocate(3));
+        assertEquals(edit.getImage().getLength(), edit.relocate(original.getLength()));
+        assertEquals(Integer.valueOf(17), parser.getLabels().get("E"));
+        assertThrows(IllegalArgumentException.class, () -> parser.edit(30, 1, "ADD"));
+    }
+
+    @Test
+    void reloadsARunningMachine() {
+        CmaIncrementalParser parser = new CmaIncrementalParser();
+        CMa machine = new CMa(CMaFusion.fuse(parser.parse(COUNTER)));
+        assertEquals(ExecutionStatus.OUT_OF_FUEL, machine.run(40));
+        int left = machine.getStack()[1];
+        int done = machine.getStack()[0];
+        assertEquals(10, left + done);
+        assertTrue(left > 0);
+
+        // Add 100 per iteration from now on, then move the loop down by two instructions
+        CmaIncrementalParser.Edit edit = parser.edit(6, 1, "LOADC 100");
+        machine.reload(CMaFusion.fuse(edit.getImage()), edit::relocate);
+        CmaIncrementalParser.Edit moved = parser.edit(2, 0, "LOADC 3", "POP");
+        machine.reload(CMaFusion.fuse(moved.getImage()), moved::relocate);
+        machine.run();
+        assertEquals(done + 100 * left, machine.getStack()[machine.getSP()]);
+        assertEquals(moved.getImage().getLength(), machine.ip);
+
+        // Other engines rebuild their code for the new program
+        CMaCodeImage image = CMaFusion.fuse(new CmaIncrementalParser().parse(COUNTER));
+        for (CMa engine : new CMa[] { new CMaJit(image), new CMaRegisterMachine(image), new CMaBlockMachine(image) }) {
+            engine.run(40);
+            int before = engine.getStack()[0];
+            engine.reload(CMaFusion.fuse(edit.getImage()), edit::relocate);
+            engine.run();
+            assertEquals(before + 100 * (10 - before), engine.getStack()[engine.getSP()],
+                    engine.getClass().getSimpleName());
+        }
+    }
+}
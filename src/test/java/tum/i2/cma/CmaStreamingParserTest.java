@@ -0,0 +1,106 @@
+package tum.i2.cma;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+// CmaStreamingParser has to produce exactly what CmaParser produces,
+// including the error messages for invalid programs.
+public class CmaStreamingParserTest {
+
+    static void assertSameResult(String program) {
+        CmaParser parser = new CmaParser();
+        RuntimeException expectedError = null;
+        CMaCodeImage expected = null;
+        try {
+            expected = CMaCodeImage.decode(parser.parse(program), parser.getDebugInfo());
+        } catch (RuntimeException e) {
+            expectedError = e;
+        }
+
+        CmaStreamingParser streamingParser = new CmaStreamingParser();
+        if (expectedError != null) {
+            RuntimeException actualError = assertThrows(RuntimeException.class, () -> streamingParser.parse(program), program);
+            assertEquals(expectedError.getMessage(), actualError.getMessage(), program);
+            return;
+        }
+        CMaCodeImage actual = streamingParser.parse(program);
+        assertEquals(expected.getLength(), actual.getLength(), program);
+        assertArrayEquals(expected.code, actual.code, program);
+        assertEquals(parser.getLabels(), streamingParser.getLabels(), program);
+        for (int i = 0; i < expected.getLength(); i++) {
+            assertEquals(expected.getDebugInfo().getSourceLine(i), actual.getDebugInfo().getSourceLine(i), program);
+        }
+    }
+
+    @Test
+    void corpusParsesLikeCmaParser() throws IOException {
+        try (Stream<Path> files = Files.list(Path.of(CMaCodeImageTest.BYTECODE_DIR))) {
+            for (Path file : files.filter(f -> f.toString().endsWith(".cma")).toList()) {
+                assertSameResult(Files.readString(file));
+            }
+        }
+    }
+
+    @Test
+    void errorsMatchCmaParser() {
+        assertSameResult("LOADC 1\nFOO\n");
+        assertSameResult("LOADC x1\n");
+        assertSameResult("LOADC 1x\n");
+        assertSameResult("LOADC 99999999999\n");
+        assertSameResult("ADD 1\n");
+        assertSameResult("LOADC\n");
+        assertSameResult("JUMP nowhere\n");
+        assertSameResult("L: ADD\nL: SUB\n");
+        assertSameResult(": ADD\n");
+        assertSameResult("ADD / comment\n");
+        assertSameResult("L: 5\n");
+        // The first error in CmaParser's order wins
+        assertSameResult("JUMP nowhere\nFOO\n");
+        assertSameResult("FOO\nJUMP nowhere\n");
+        assertSameResult("ADD x\n");
+        assertSameResult("FOO x\n");
+        assertSameResult("JUMP nowhere\nL: ADD\nL: ADD\n");
+        assertSameResult("FOO\nL: ADD\nL: ADD\nADD / comment\n");
+    }
+
+    @Test
+    void syntaxMatchesCmaParser() {
+        assertSameResult("");
+        assertSameResult("\n\n  \n");
+        assertSameResult("loadc 3\nLoadC -4\nloadc +5\nadd\nadd");
+        assertSameResult("  start:   LOADC 1 // comment\nJUMP start   \n");
+        assertSameResult("a: b: LOADC 1\n");
+        assertSameResult("A1:\n\nA2:\nJUMPZ A1\nJUMP A2\n");
+        assertSameResult("x:\n");
+        assertSameResult("LOADC 2147483647\nLOADC -2147483648\n");
+    }
+
+    @Test
+    void allInputFormsParseAlike() throws IOException {
+        String program = "L: LOADC 3\nloop: LOADC 1\nSUB\nDUP\nJUMPZ end\nJUMP loop\nend: POP\n";
+        CMaCodeImage expected = new CmaStreamingParser().parse(program);
+
+        assertArrayEquals(expected.code, new CmaStreamingParser().parse(new StringReader(program)).code);
+        assertArrayEquals(expected.code, new CmaStreamingParser().parse(CharBuffer.wrap(program)).code);
+        assertArrayEquals(expected.code, new CmaStreamingParser().parse(new StringBuilder(program)).code);
+        assertArrayEquals(expected.code, new CmaStreamingParser().parse(program.getBytes(StandardCharsets.UTF_8)).code);
+    }
+
+    @Test
+    void longInputsSpanChunks() {
+        StringBuilder program = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            program.append("l").append(i).append(": LOADC ").append(i).append(" // ").append("x".repeat(i % 300)).append('\n');
+            program.append("JUMPZ l").append(i / 2).append('\n');
+        }
+        assertSameResult(program.toString());
+    }
+}